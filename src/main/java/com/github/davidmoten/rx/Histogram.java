@@ -0,0 +1,321 @@
+package com.github.davidmoten.rx;
+
+import com.github.davidmoten.util.Preconditions;
+
+/**
+ * <p>
+ * Mutable summary of a stream of numbers that keeps the count, sum, min and
+ * max exactly and estimates quantiles from buckets of (roughly) logarithmic
+ * size so that memory does not depend on the number of values. Any quantile
+ * estimate is within {@code relativeAccuracy} of the true value (relative to
+ * that value) and adding a value does not allocate unless the range of values
+ * seen widens.
+ *
+ * <p>
+ * Histograms with the same relative accuracy can be merged (for example the
+ * histograms of the partitions of a stream).
+ *
+ * <p>
+ * Not thread-safe.
+ */
+public final class Histogram {
+
+    static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+    // values with a smaller magnitude than this are counted as zero
+    private static final double MIN_MAGNITUDE = Double.MIN_NORMAL;
+    private static final long MANTISSA_MASK = 0x000FFFFFFFFFFFFFL;
+    private static final long ONE_EXPONENT_BITS = 0x3FF0000000000000L;
+
+    private final double relativeAccuracy;
+    private final double multiplier;
+    private final int maxIndex;
+    private final Buckets positive;
+    private final Buckets negative;
+    private long zeroCount;
+    private long count;
+    private double sum;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    private Histogram(double relativeAccuracy, Buckets positive, Buckets negative) {
+        this.relativeAccuracy = relativeAccuracy;
+        double gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.multiplier = 1 / Math.log(gamma);
+        this.maxIndex = index(Double.MAX_VALUE);
+        this.positive = positive;
+        this.negative = negative;
+    }
+
+    public static Histogram create() {
+        return create(DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    /**
+     * Returns a new empty histogram.
+     *
+     * @param relativeAccuracy
+     *            the maximum error of a quantile estimate relative to the true
+     *            value, must be in (0, 1)
+     * @return new empty histogram
+     */
+    public static Histogram create(double relativeAccuracy) {
+        Preconditions.checkArgument(relativeAccuracy > 0 && relativeAccuracy < 1,
+                "relativeAccuracy must be between 0 and 1 exclusive");
+        return new Histogram(relativeAccuracy, new Buckets(), new Buckets());
+    }
+
+    /**
+     * Adds a value. {@code NaN} is ignored.
+     *
+     * @param x
+     *            value
+     * @return this
+     */
+    public Histogram add(double x) {
+        if (x != x) {
+            // NaN
+            return this;
+        }
+        if (x >= MIN_MAGNITUDE) {
+            positive.increment(index(x), 1);
+        } else if (x <= -MIN_MAGNITUDE) {
+            negative.increment(index(-x), 1);
+        } else {
+            zeroCount++;
+        }
+        count++;
+        sum += x;
+        if (x < min) {
+            min = x;
+        }
+        if (x > max) {
+            max = x;
+        }
+        return this;
+    }
+
+    public Histogram add(Number number) {
+        return add(number.doubleValue());
+    }
+
+    /**
+     * Adds the values of another histogram to this one.
+     *
+     * @param other
+     *            histogram with the same relative accuracy
+     * @return this
+     */
+    public Histogram merge(Histogram other) {
+        Preconditions.checkArgument(other.relativeAccuracy == relativeAccuracy,
+                "histograms must have the same relativeAccuracy");
+        positive.merge(other.positive);
+        negative.merge(other.negative);
+        zeroCount += other.zeroCount;
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        return this;
+    }
+
+    public Histogram copy() {
+        Histogram h = new Histogram(relativeAccuracy, positive.copy(), negative.copy());
+        h.zeroCount = zeroCount;
+        h.count = count;
+        h.sum = sum;
+        h.min = min;
+        h.max = max;
+        return h;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public double sum() {
+        return sum;
+    }
+
+    public double mean() {
+        return sum / count;
+    }
+
+    /**
+     * Returns the smallest value or {@code NaN} if empty.
+     *
+     * @return the smallest value
+     */
+    public double min() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    /**
+     * Returns the largest value or {@code NaN} if empty.
+     *
+     * @return the largest value
+     */
+    public double max() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    public double relativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    /**
+     * Returns an estimate of the value at quantile {@code q} (for example 0.99
+     * for the 99th percentile) or {@code NaN} if empty.
+     *
+     * @param q
+     *            quantile in [0, 1]
+     * @return estimate of the value at quantile q
+     */
+    public double quantile(double q) {
+        Preconditions.checkArgument(q >= 0 && q <= 1, "q must be between 0 and 1 inclusive");
+        if (count == 0) {
+            return Double.NaN;
+        } else if (q == 0) {
+            return min;
+        } else if (q == 1) {
+            return max;
+        }
+        long rank = (long) (q * (count - 1));
+        final double value;
+        if (rank < negative.total) {
+            // the most negative values have the highest indexes
+            value = -value(negative.indexAtRank(negative.total - 1 - rank));
+        } else if (rank < negative.total + zeroCount) {
+            value = 0;
+        } else {
+            value = value(positive.indexAtRank(rank - negative.total - zeroCount));
+        }
+        return Math.max(min, Math.min(max, value));
+    }
+
+    // Buckets are equal steps of log2(x) approximated as e + m - 1 where x =
+    // m * 2^e with 1 <= m < 2, which is much cheaper than Math.log. log2 x
+    // changes by at most 1 / ln 2 times the change in the approximation so
+    // steps of ln(gamma) keep the ratio of the ends of every bucket within
+    // gamma.
+
+    private int index(double magnitude) {
+        if (magnitude > Double.MAX_VALUE) {
+            // infinity
+            return maxIndex;
+        } else {
+            return (int) Math.ceil(approximateLog2(magnitude) * multiplier);
+        }
+    }
+
+    private static double approximateLog2(double x) {
+        long bits = Double.doubleToRawLongBits(x);
+        double m = Double.longBitsToDouble((bits & MANTISSA_MASK) | ONE_EXPONENT_BITS);
+        return Math.getExponent(x) + m - 1;
+    }
+
+    // inverse of approximateLog2
+    private static double exp2(double y) {
+        double e = Math.floor(y);
+        return Math.scalb(1 + y - e, (int) e);
+    }
+
+    // the estimate for values in the bucket with the given index, in the
+    // middle of the bucket relative to both ends
+    private double value(int index) {
+        double lower = exp2((index - 1) / multiplier);
+        double upper = exp2(index / multiplier);
+        return 2 * lower * upper / (lower + upper);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Histogram [count=");
+        builder.append(count);
+        builder.append(", min=");
+        builder.append(min());
+        builder.append(", mean=");
+        builder.append(mean());
+        builder.append(", p50=");
+        builder.append(quantile(0.5));
+        builder.append(", p99=");
+        builder.append(quantile(0.99));
+        builder.append(", p999=");
+        builder.append(quantile(0.999));
+        builder.append(", max=");
+        builder.append(max());
+        builder.append("]");
+        return builder.toString();
+    }
+
+    /**
+     * Counts for a contiguous range of bucket indexes.
+     */
+    private static final class Buckets {
+
+        private long[] counts;
+        // the bucket index of counts[0]
+        private int offset;
+        private long total;
+
+        void increment(int index, long n) {
+            if (counts == null) {
+                counts = new long[64];
+                offset = index - counts.length / 2;
+            } else if (index < offset || index >= offset + counts.length) {
+                extend(index);
+            }
+            counts[index - offset] += n;
+            total += n;
+        }
+
+        private void extend(int index) {
+            int from = Math.min(offset, index);
+            int to = Math.max(offset + counts.length, index + 1);
+            // at least double so that extending is amortized constant time
+            int length = Math.max(to - from, counts.length * 2);
+            if (index < offset) {
+                from = offset + counts.length - length;
+            }
+            long[] c = new long[length];
+            System.arraycopy(counts, 0, c, offset - from, counts.length);
+            counts = c;
+            offset = from;
+        }
+
+        void merge(Buckets other) {
+            if (other.counts != null) {
+                for (int i = 0; i < other.counts.length; i++) {
+                    if (other.counts[i] != 0) {
+                        increment(other.offset + i, other.counts[i]);
+                    }
+                }
+            }
+        }
+
+        // returns the index of the bucket holding the value of the given
+        // rank (0 is the smallest)
+        int indexAtRank(long rank) {
+            long n = 0;
+            for (int i = 0; i < counts.length; i++) {
+                n += counts[i];
+                if (n > rank) {
+                    return offset + i;
+                }
+            }
+            throw new IllegalArgumentException("rank out of range: " + rank);
+        }
+
+        Buckets copy() {
+            Buckets b = new Buckets();
+            if (counts != null) {
+                b.counts = counts.clone();
+            }
+            b.offset = offset;
+            b.total = total;
+            return b;
+        }
+    }
+
+}
@@ -1,5 +1,6 @@
 package com.github.davidmoten.rx;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
@@ -9,6 +10,8 @@ import java.util.Queue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
+import com.github.davidmoten.rx.buffertofile.DataSerializer;
+import com.github.davidmoten.rx.buffertofile.Options;
 import com.github.davidmoten.rx.internal.operators.ObservableReverse;
 import com.github.davidmoten.rx.internal.operators.OnSubscribeFromQueue;
 import com.github.davidmoten.rx.internal.operators.OnSubscribeMatch;
@@ -17,15 +20,19 @@ import com.github.davidmoten.rx.internal.operators.OrderedMerge;
 import com.github.davidmoten.rx.internal.operators.Permutations;
 import com.github.davidmoten.rx.internal.operators.Permutations.Swap;
 import com.github.davidmoten.rx.observables.CachedObservable;
+import com.github.davidmoten.rx.observables.FileCachedObservable;
 import com.github.davidmoten.util.Optional;
+import com.github.davidmoten.util.Preconditions;
 
 import rx.Observable;
 import rx.Scheduler;
 import rx.Scheduler.Worker;
 import rx.functions.Action0;
+import rx.functions.Action1;
 import rx.functions.Func0;
 import rx.functions.Func1;
 import rx.functions.Func2;
+import rx.schedulers.Schedulers;
 
 public final class Obs {
 
@@ -167,6 +174,61 @@ public final class Obs {
         }
     }
 
+    /**
+     * Returns a cached {@link Observable} like {@link #cache(Observable)}
+     * except that the cached items are serialized with {@code serializer} to
+     * memory mapped segment files rather than held in memory. Each subscriber
+     * replays from the files at its own pace (with backpressure) on a worker of
+     * {@link Schedulers#computation()} so heap use does not grow with the
+     * number of items cached. Segment size and file names are taken from
+     * {@link Options#defaultInstance()}.
+     * 
+     * @param source
+     *            the observable to be cached
+     * @param serializer
+     *            serializes and deserializes the cached items
+     * @param <T>
+     *            the generic type of the source
+     * @return a file backed cached observable whose cache can be reset
+     */
+    public static <T> FileCachedObservable<T> cacheToFile(Observable<T> source,
+            DataSerializer<T> serializer) {
+        return cacheToFile(source, serializer, Schedulers.computation(),
+                Options.defaultInstance());
+    }
+
+    /**
+     * Returns a cached {@link Observable} like {@link #cache(Observable)}
+     * except that the cached items are serialized with {@code serializer} to
+     * memory mapped segment files rather than held in memory. Each subscriber
+     * replays from the files at its own pace (with backpressure) on a worker of
+     * {@code scheduler} so heap use does not grow with the number of items
+     * cached.
+     * 
+     * <p>
+     * Segments are {@link Options#rolloverSizeBytes()} long (20MB if rollover
+     * is disabled) and are named by {@link Options#fileFactory()}. The other
+     * options do not apply. After {@link FileCachedObservable#reset()} the
+     * segments of the previous cache are deleted once every subscriber still
+     * reading that cache has passed them.
+     * 
+     * @param source
+     *            the observable to be cached
+     * @param serializer
+     *            serializes and deserializes the cached items
+     * @param scheduler
+     *            scheduler that subscribers are replayed on
+     * @param options
+     *            segment size and file factory
+     * @param <T>
+     *            the generic type of the source
+     * @return a file backed cached observable whose cache can be reset
+     */
+    public static <T> FileCachedObservable<T> cacheToFile(Observable<T> source,
+            DataSerializer<T> serializer, Scheduler scheduler, Options options) {
+        return new FileCachedObservable<T>(source, serializer, scheduler, options);
+    }
+
     /**
      * Returns an Observable that epeats emitting {@code t} without completing.
      * Supports backpressure.
@@ -202,6 +264,54 @@ public final class Obs {
         return OrderedMerge.create(sources, comparator, delayErrors);
     }
 
+    /**
+     * Returns the ordered merge of already ordered {@code sources} where each
+     * source is requested {@code prefetch} items up front and more are
+     * requested once 75% of them have been emitted (rather than one at a time).
+     * A larger prefetch reduces request calls and signalling between threads
+     * for asynchronous sources at the cost of memory per source.
+     * 
+     * @param sources
+     *            already ordered observables
+     * @param delayErrors
+     *            if true errors are reported once all other items have been
+     *            emitted
+     * @param prefetch
+     *            number of items buffered per source
+     * @param <T>
+     *            the generic type of the items
+     * @return ordered merge of the sources
+     */
+    public static <T extends Comparable<? super T>> Observable<T> create(
+            Collection<Observable<T>> sources, boolean delayErrors, int prefetch) {
+        return OrderedMerge.create(sources, delayErrors, prefetch);
+    }
+
+    /**
+     * Returns the ordered merge of already ordered {@code sources} where each
+     * source is requested {@code prefetch} items up front and more are
+     * requested once 75% of them have been emitted (rather than one at a time).
+     * A larger prefetch reduces request calls and signalling between threads
+     * for asynchronous sources at the cost of memory per source.
+     * 
+     * @param sources
+     *            already ordered observables
+     * @param comparator
+     *            the ordering to use
+     * @param delayErrors
+     *            if true errors are reported once all other items have been
+     *            emitted
+     * @param prefetch
+     *            number of items buffered per source
+     * @param <T>
+     *            the generic type of the items
+     * @return ordered merge of the sources
+     */
+    public static <T> Observable<T> create(Collection<Observable<T>> sources,
+            Comparator<? super T> comparator, boolean delayErrors, int prefetch) {
+        return OrderedMerge.create(sources, comparator, delayErrors, prefetch);
+    }
+
     public static <T> Observable<T> fromQueue(Queue<T> queue) {
         return Observable.create(new OnSubscribeFromQueue<T>(queue));
     }
@@ -273,6 +383,247 @@ public final class Obs {
                 .create(new OnSubscribeMatch<A, B, K, C>(a, b, aKey, bKey, combiner, requestSize));
     }
 
+    /**
+     * Returns the matches of items from {@code a} and {@code b} by key like
+     * {@link #match(Observable, Observable, Func1, Func1, Func2, long)} except
+     * that once {@code maxUnmatched} items are waiting for a match only the
+     * source with fewer unmatched items is requested from. This bounds the
+     * memory used when one source runs ahead of the other as long as every
+     * item eventually finds its match.
+     * 
+     * @param a
+     *            source of A items
+     * @param b
+     *            source of B items
+     * @param aKey
+     *            key function for A items
+     * @param bKey
+     *            key function for B items
+     * @param combiner
+     *            combines a matched pair
+     * @param requestSize
+     *            number of items requested from each source at a time
+     * @param maxUnmatched
+     *            number of unmatched items at which the faster source is
+     *            throttled
+     * @param <A>
+     *            type of items from a
+     * @param <B>
+     *            type of items from b
+     * @param <K>
+     *            key type
+     * @param <C>
+     *            result type
+     * @return matched items combined
+     */
+    public static <A, B, K, C> Observable<C> match(final Observable<A> a, final Observable<B> b,
+            final Func1<? super A, ? extends K> aKey, final Func1<? super B, ? extends K> bKey,
+            final Func2<? super A, ? super B, C> combiner, long requestSize, long maxUnmatched) {
+        return Observable.create(new OnSubscribeMatch<A, B, K, C>(a, b, aKey, bKey, combiner,
+                requestSize, maxUnmatched));
+    }
+
+    /**
+     * Returns the matches of items from {@code a} and {@code b} by key like
+     * {@link #match(Observable, Observable, Func1, Func1, Func2, long, long)}
+     * except that when more than {@code maxUnmatchedInMemory} items are
+     * waiting for a match the values of the oldest of them are serialized to
+     * files from {@link Options#fileFactory()}. Keys stay in memory. A file is
+     * deleted once all the values in it have been matched and any remaining
+     * files are deleted on termination or unsubscription.
+     * 
+     * @param a
+     *            source of A items
+     * @param b
+     *            source of B items
+     * @param aKey
+     *            key function for A items
+     * @param bKey
+     *            key function for B items
+     * @param combiner
+     *            combines a matched pair
+     * @param requestSize
+     *            number of items requested from each source at a time
+     * @param maxUnmatched
+     *            number of unmatched items at which the faster source is
+     *            throttled
+     * @param aSerializer
+     *            serializer for A items
+     * @param bSerializer
+     *            serializer for B items
+     * @param maxUnmatchedInMemory
+     *            maximum number of unmatched values held in memory
+     * @param options
+     *            provides the file factory
+     * @param <A>
+     *            type of items from a
+     * @param <B>
+     *            type of items from b
+     * @param <K>
+     *            key type
+     * @param <C>
+     *            result type
+     * @return matched items combined
+     */
+    public static <A, B, K, C> Observable<C> match(final Observable<A> a, final Observable<B> b,
+            final Func1<? super A, ? extends K> aKey, final Func1<? super B, ? extends K> bKey,
+            final Func2<? super A, ? super B, C> combiner, long requestSize, long maxUnmatched,
+            DataSerializer<A> aSerializer, DataSerializer<B> bSerializer,
+            long maxUnmatchedInMemory, Options options) {
+        Preconditions.checkNotNull(aSerializer, "aSerializer cannot be null");
+        Preconditions.checkNotNull(bSerializer, "bSerializer cannot be null");
+        Preconditions.checkNotNull(options, "options cannot be null");
+        return Observable.create(new OnSubscribeMatch<A, B, K, C>(a, b, aKey, bKey, combiner,
+                requestSize, maxUnmatched, aSerializer, bSerializer, maxUnmatchedInMemory,
+                options.fileFactory()));
+    }
+
+    /**
+     * Returns the matches of items from {@code a} and {@code b} by key like
+     * {@link #match(Observable, Observable, Func1, Func1, Func2)} except that
+     * unmatched items are expired so that memory is bounded for endless
+     * streams. Unmatched items are expired oldest first when they have been
+     * waiting for {@code maxAge} or when more than {@code maxRetained} are
+     * waiting (across both sources). Expired items are passed to
+     * {@code onExpiredA} or {@code onExpiredB}.
+     * 
+     * <p>
+     * Expiry by age is checked as items arrive and every {@code maxAge} on
+     * {@code scheduler} so an idle stream may hold an item for up to twice
+     * {@code maxAge}. The callbacks may be called on the scheduler thread.
+     * 
+     * @param a
+     *            source of A items
+     * @param b
+     *            source of B items
+     * @param aKey
+     *            key function for A items
+     * @param bKey
+     *            key function for B items
+     * @param combiner
+     *            combines a matched pair
+     * @param maxAge
+     *            maximum time an item waits for a match, {@code Long.MAX_VALUE}
+     *            for no limit
+     * @param unit
+     *            unit of maxAge
+     * @param scheduler
+     *            provides the time and schedules expiry checks
+     * @param maxRetained
+     *            maximum number of unmatched items, {@code Long.MAX_VALUE}
+     *            for no limit
+     * @param onExpiredA
+     *            called with each expired A item
+     * @param onExpiredB
+     *            called with each expired B item
+     * @param <A>
+     *            type of items from a
+     * @param <B>
+     *            type of items from b
+     * @param <K>
+     *            key type
+     * @param <C>
+     *            result type
+     * @return matched items combined
+     */
+    public static <A, B, K, C> Observable<C> match(final Observable<A> a, final Observable<B> b,
+            final Func1<? super A, ? extends K> aKey, final Func1<? super B, ? extends K> bKey,
+            final Func2<? super A, ? super B, C> combiner, long maxAge, TimeUnit unit,
+            Scheduler scheduler, long maxRetained, Action1<? super A> onExpiredA,
+            Action1<? super B> onExpiredB) {
+        return match(a, b, aKey, bKey, combiner, 128, Long.MAX_VALUE, null, null, Long.MAX_VALUE,
+                null, maxAge, unit, scheduler, maxRetained, onExpiredA, onExpiredB);
+    }
+
+    /**
+     * Returns the matches of items from {@code a} and {@code b} by key with
+     * every option of the other overloads: throttling of the faster source as
+     * for
+     * {@link #match(Observable, Observable, Func1, Func1, Func2, long, long)},
+     * spilling of unmatched values to disk as for
+     * {@link #match(Observable, Observable, Func1, Func1, Func2, long, long, DataSerializer, DataSerializer, long, Options)}
+     * and expiry of unmatched items as for
+     * {@link #match(Observable, Observable, Func1, Func1, Func2, long, TimeUnit, Scheduler, long, Action1, Action1)}.
+     * Spilled items that expire are read back from disk before being passed
+     * to {@code onExpiredA} or {@code onExpiredB}.
+     * 
+     * @param a
+     *            source of A items
+     * @param b
+     *            source of B items
+     * @param aKey
+     *            key function for A items
+     * @param bKey
+     *            key function for B items
+     * @param combiner
+     *            combines a matched pair
+     * @param requestSize
+     *            number of items requested from each source at a time
+     * @param maxUnmatched
+     *            number of unmatched items at which the faster source is
+     *            throttled, {@code Long.MAX_VALUE} for no throttling
+     * @param aSerializer
+     *            serializer for A items, null to not spill to disk
+     * @param bSerializer
+     *            serializer for B items, null to not spill to disk
+     * @param maxUnmatchedInMemory
+     *            maximum number of unmatched values held in memory when
+     *            spilling to disk
+     * @param options
+     *            provides the file factory when spilling to disk, otherwise
+     *            may be null
+     * @param maxAge
+     *            maximum time an item waits for a match, {@code Long.MAX_VALUE}
+     *            for no limit
+     * @param unit
+     *            unit of maxAge
+     * @param scheduler
+     *            provides the time and schedules expiry checks, may be null if
+     *            maxAge is {@code Long.MAX_VALUE}
+     * @param maxRetained
+     *            maximum number of unmatched items, {@code Long.MAX_VALUE}
+     *            for no limit
+     * @param onExpiredA
+     *            called with each expired A item
+     * @param onExpiredB
+     *            called with each expired B item
+     * @param <A>
+     *            type of items from a
+     * @param <B>
+     *            type of items from b
+     * @param <K>
+     *            key type
+     * @param <C>
+     *            result type
+     * @return matched items combined
+     */
+    public static <A, B, K, C> Observable<C> match(final Observable<A> a, final Observable<B> b,
+            final Func1<? super A, ? extends K> aKey, final Func1<? super B, ? extends K> bKey,
+            final Func2<? super A, ? super B, C> combiner, long requestSize, long maxUnmatched,
+            DataSerializer<A> aSerializer, DataSerializer<B> bSerializer,
+            long maxUnmatchedInMemory, Options options, long maxAge, TimeUnit unit,
+            Scheduler scheduler, long maxRetained, Action1<? super A> onExpiredA,
+            Action1<? super B> onExpiredB) {
+        Preconditions.checkNotNull(unit, "unit cannot be null");
+        Preconditions.checkArgument(aSerializer == null || options != null,
+                "options cannot be null when spilling to disk");
+        final long maxAgeMs;
+        if (maxAge == Long.MAX_VALUE) {
+            maxAgeMs = Long.MAX_VALUE;
+        } else {
+            maxAgeMs = Math.max(1, unit.toMillis(maxAge));
+        }
+        final Func0<File> fileFactory;
+        if (options == null) {
+            fileFactory = null;
+        } else {
+            fileFactory = options.fileFactory();
+        }
+        return Observable.create(new OnSubscribeMatch<A, B, K, C>(a, b, aKey, bKey, combiner,
+                requestSize, maxUnmatched, aSerializer, bSerializer, maxUnmatchedInMemory,
+                fileFactory, maxAgeMs, scheduler, maxRetained, onExpiredA, onExpiredB));
+    }
+
     public static <T> Observable<T> reverse(Observable<T> source) {
         return ObservableReverse.reverse(source);
     }
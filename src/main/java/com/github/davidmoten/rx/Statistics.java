@@ -1,24 +1,108 @@
 package com.github.davidmoten.rx;
 
+import com.github.davidmoten.util.Preconditions;
+
+/**
+ * Immutable count, sum, mean and standard deviation of a sequence of numbers.
+ * The mean and the sum of squared differences from the mean are updated with
+ * Welford's method (and combined with Chan's method by
+ * {@link #merge(Statistics)}) rather than from the sum of squares so that the
+ * standard deviation does not suffer catastrophic cancellation when the mean
+ * is large relative to the spread.
+ */
 public final class Statistics {
 
     private final long count;
     private final double sumX;
-    private final double sumX2;
+    private final double mean;
+    // sum of squared differences from the mean
+    private final double m2;
 
-    private Statistics(long count, double sumX, double sumX2) {
+    private Statistics(long count, double sumX, double mean, double m2) {
         this.count = count;
         this.sumX = sumX;
-        this.sumX2 = sumX2;
+        this.mean = mean;
+        this.m2 = m2;
     }
 
     public static Statistics create() {
-        return new Statistics(0, 0, 0);
+        return new Statistics(0, 0, 0, 0);
+    }
+
+    /**
+     * Returns the statistics of the given numbers.
+     * 
+     * @param numbers
+     *            the numbers
+     * @return statistics of the numbers
+     */
+    public static Statistics create(Iterable<? extends Number> numbers) {
+        long n = 0;
+        double sumX = 0;
+        double mean = 0;
+        double m2 = 0;
+        for (Number number : numbers) {
+            double x = number.doubleValue();
+            n++;
+            sumX += x;
+            double delta = x - mean;
+            mean += delta / n;
+            m2 += delta * (x - mean);
+        }
+        return new Statistics(n, sumX, mean, m2);
+    }
+
+    /**
+     * Returns statistics with the given count, mean and sum of squared
+     * differences from the mean (for example as maintained over a moving
+     * window).
+     * 
+     * @param count
+     *            the number of values
+     * @param mean
+     *            the mean of the values
+     * @param sumSquaredDeviations
+     *            the sum of the squared differences of the values from the
+     *            mean
+     * @return statistics
+     */
+    public static Statistics create(long count, double mean, double sumSquaredDeviations) {
+        Preconditions.checkArgument(count >= 0, "count cannot be negative");
+        if (count == 0) {
+            return create();
+        } else {
+            return new Statistics(count, mean * count, mean,
+                    Math.max(0, sumSquaredDeviations));
+        }
     }
 
     public Statistics add(Number number) {
         double x = number.doubleValue();
-        return new Statistics(count + 1, sumX + x, sumX2 + x * x);
+        long n = count + 1;
+        double delta = x - mean;
+        double m = mean + delta / n;
+        return new Statistics(n, sumX + x, m, m2 + delta * (x - m));
+    }
+
+    /**
+     * Returns the statistics of the numbers of this and {@code other}
+     * combined, for example to combine statistics of partitions of a stream.
+     * 
+     * @param other
+     *            statistics to combine with this
+     * @return combined statistics
+     */
+    public Statistics merge(Statistics other) {
+        if (other.count == 0) {
+            return this;
+        } else if (count == 0) {
+            return other;
+        }
+        long n = count + other.count;
+        double delta = other.mean - mean;
+        double m = mean + delta * other.count / n;
+        double m2Combined = m2 + other.m2 + delta * delta * count / n * other.count;
+        return new Statistics(n, sumX + other.sumX, m, m2Combined);
     }
 
     public long count() {
@@ -30,16 +114,15 @@ public final class Statistics {
     }
 
     public double sumSquares() {
-        return sumX2;
+        return m2 + count * mean * mean;
     }
 
     public double mean() {
-        return sumX / count;
+        return count == 0 ? Double.NaN : mean;
     }
 
     public double sd() {
-        double m = mean();
-        return Math.sqrt(sumX2 / count - m * m);
+        return Math.sqrt(m2 / count);
     }
 
     @Override
@@ -9,6 +9,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
@@ -22,17 +23,25 @@ import com.github.davidmoten.rx.internal.operators.OnSubscribeDoOnEmpty;
 import com.github.davidmoten.rx.internal.operators.OnSubscribeMapLast;
 import com.github.davidmoten.rx.internal.operators.OperatorBufferPredicateBoundary;
 import com.github.davidmoten.rx.internal.operators.OperatorBufferToFile;
+import com.github.davidmoten.rx.internal.operators.OperatorBufferToFileMerge;
+import com.github.davidmoten.rx.internal.operators.OperatorCollectQuantiles;
 import com.github.davidmoten.rx.internal.operators.OperatorDoOnNth;
+import com.github.davidmoten.rx.internal.operators.OperatorEwma;
 import com.github.davidmoten.rx.internal.operators.OperatorFromTransformer;
+import com.github.davidmoten.rx.internal.operators.OperatorMovingStatistics;
 import com.github.davidmoten.rx.internal.operators.OperatorSampleFirst;
 import com.github.davidmoten.rx.internal.operators.OperatorWindowMinMax;
 import com.github.davidmoten.rx.internal.operators.OperatorWindowMinMax.Metric;
+import com.github.davidmoten.rx.internal.operators.OperatorWindowMinMaxDouble;
+import com.github.davidmoten.rx.internal.operators.OperatorWindowMinMaxLong;
+import com.github.davidmoten.rx.internal.operators.OperatorWindowMinMaxTime;
 import com.github.davidmoten.rx.internal.operators.OrderedMerge;
 import com.github.davidmoten.rx.internal.operators.TransformerDecode;
 import com.github.davidmoten.rx.internal.operators.TransformerDelayFinalUnsubscribe;
 import com.github.davidmoten.rx.internal.operators.TransformerLimitSubscribers;
 import com.github.davidmoten.rx.internal.operators.TransformerOnBackpressureBufferRequestLimiting;
 import com.github.davidmoten.rx.internal.operators.TransformerOnTerminateResume;
+import com.github.davidmoten.rx.internal.operators.TransformerSortExternal;
 import com.github.davidmoten.rx.internal.operators.TransformerStateMachine;
 import com.github.davidmoten.rx.internal.operators.TransformerStringSplit;
 import com.github.davidmoten.rx.util.BackpressureStrategy;
@@ -40,6 +49,7 @@ import com.github.davidmoten.rx.util.MapWithIndex;
 import com.github.davidmoten.rx.util.MapWithIndex.Indexed;
 import com.github.davidmoten.rx.util.Pair;
 import com.github.davidmoten.util.Optional;
+import com.github.davidmoten.util.Preconditions;
 
 import rx.Notification;
 import rx.Observable;
@@ -64,6 +74,8 @@ public final class Transformers {
 
     static final int DEFAULT_INITIAL_BATCH = 1;
 
+    private static final int STATS_BATCH_SIZE = 4096;
+
     public static <T, R> Operator<R, T> toOperator(
             Func1<? super Observable<T>, ? extends Observable<R>> function) {
         return OperatorFromTransformer.toOperator(function);
@@ -96,6 +108,265 @@ public final class Transformers {
         };
     }
 
+    /**
+     * Returns a {@link Transformer} that emits the {@link Statistics} of all
+     * the values of the source on completion. The values are split into
+     * batches that are summarized on up to {@code parallelism} workers of
+     * {@code scheduler} at once and the partial results are combined with
+     * {@link Statistics#merge(Statistics)}. Statistics of an empty source
+     * have a count of zero.
+     * 
+     * @param parallelism
+     *            the maximum number of batches summarized at once
+     * @param scheduler
+     *            the batches are summarized on this scheduler
+     * @param <T>
+     *            the type of the values
+     * @return transformer that emits the statistics of the source
+     */
+    public static <T extends Number> Transformer<T, Statistics> collectStatsParallel(
+            final int parallelism, final Scheduler scheduler) {
+        Preconditions.checkArgument(parallelism > 0, "parallelism must be greater than zero");
+        Preconditions.checkNotNull(scheduler, "scheduler cannot be null");
+        return new Transformer<T, Statistics>() {
+
+            @Override
+            public Observable<Statistics> call(Observable<T> o) {
+                return o.buffer(STATS_BATCH_SIZE)
+                        .flatMap(new Func1<List<T>, Observable<Statistics>>() {
+                            @Override
+                            public Observable<Statistics> call(final List<T> batch) {
+                                return Observable.fromCallable(new Callable<Statistics>() {
+                                    @Override
+                                    public Statistics call() {
+                                        return Statistics.create(batch);
+                                    }
+                                }).subscribeOn(scheduler);
+                            }
+                        }, parallelism) //
+                        .reduce(Statistics.create(),
+                                new Func2<Statistics, Statistics, Statistics>() {
+                                    @Override
+                                    public Statistics call(Statistics a, Statistics b) {
+                                        return a.merge(b);
+                                    }
+                                });
+            }
+        };
+    }
+
+    /**
+     * Returns a {@link Transformer} that emits the {@link Statistics} (count,
+     * mean, standard deviation) of the last {@code windowSize} values once
+     * that many values have arrived. Each value costs O(1) however large the
+     * window.
+     * 
+     * @param windowSize
+     *            the number of values in the window
+     * @param <T>
+     *            the type of the values
+     * @return transformer that emits the statistics of each sliding window
+     */
+    public static <T extends Number> Transformer<T, Statistics> movingStats(
+            final int windowSize) {
+        final OperatorMovingStatistics<T> operator = new OperatorMovingStatistics<T>(
+                windowSize);
+        return new Transformer<T, Statistics>() {
+            @Override
+            public Observable<Statistics> call(Observable<T> o) {
+                return o.lift(operator);
+            }
+        };
+    }
+
+    /**
+     * Returns a {@link Transformer} that emits for every value the
+     * {@link Statistics} (count, mean, standard deviation) of the values that
+     * arrived in the last {@code duration} according to {@code scheduler}.
+     * Each value costs amortized O(1) however many values are in the window.
+     * 
+     * @param duration
+     *            the duration of the window
+     * @param unit
+     *            the unit of {@code duration}
+     * @param scheduler
+     *            provides the arrival time of values
+     * @param <T>
+     *            the type of the values
+     * @return transformer that emits the statistics of the sliding window
+     */
+    public static <T extends Number> Transformer<T, Statistics> movingStats(
+            final long duration, final TimeUnit unit, final Scheduler scheduler) {
+        final OperatorMovingStatistics<T> operator = new OperatorMovingStatistics<T>(duration,
+                unit, scheduler);
+        return new Transformer<T, Statistics>() {
+            @Override
+            public Observable<Statistics> call(Observable<T> o) {
+                return o.lift(operator);
+            }
+        };
+    }
+
+    /**
+     * Returns a {@link Transformer} that emits for every value the
+     * exponentially weighted moving average of the values so far, where the
+     * weight of a value halves every {@code halfLife} after it arrived
+     * according to {@code scheduler}.
+     * 
+     * @param halfLife
+     *            the time for the weight of a value to halve
+     * @param unit
+     *            the unit of {@code halfLife}
+     * @param scheduler
+     *            provides the arrival time of values
+     * @param <T>
+     *            the type of the values
+     * @return transformer that emits the moving average
+     */
+    public static <T extends Number> Transformer<T, Double> ewma(final long halfLife,
+            final TimeUnit unit, final Scheduler scheduler) {
+        return ewma(halfLife, unit, scheduler, false);
+    }
+
+    /**
+     * Returns a {@link Transformer} that emits for every value the rate of
+     * arrival of values per second estimated from the count of values so far
+     * weighted as in {@link #ewma(long, TimeUnit, Scheduler)}.
+     * 
+     * @param halfLife
+     *            the time for the weight of a value to halve
+     * @param unit
+     *            the unit of {@code halfLife}
+     * @param scheduler
+     *            provides the arrival time of values
+     * @param <T>
+     *            the type of the values
+     * @return transformer that emits the moving rate per second
+     */
+    public static <T> Transformer<T, Double> ewmaRate(final long halfLife,
+            final TimeUnit unit, final Scheduler scheduler) {
+        final Transformer<Integer, Double> ewma = ewma(halfLife, unit, scheduler, true);
+        return new Transformer<T, Double>() {
+            @Override
+            public Observable<Double> call(Observable<T> o) {
+                return o.map(Functions.<T, Integer> constant(1)).compose(ewma);
+            }
+        };
+    }
+
+    private static <T extends Number> Transformer<T, Double> ewma(final long halfLife,
+            final TimeUnit unit, final Scheduler scheduler, boolean rate) {
+        final OperatorEwma<T> operator = new OperatorEwma<T>(halfLife, unit, scheduler, rate);
+        return new Transformer<T, Double>() {
+            @Override
+            public Observable<Double> call(Observable<T> o) {
+                return o.lift(operator);
+            }
+        };
+    }
+
+    /**
+     * Returns a {@link Transformer} that adds every value to a
+     * {@link Histogram} (count, sum, min, max and quantile estimates within 1%
+     * of the true value) and emits a copy of it after every {@code every}
+     * values and on completion if values have arrived since the last
+     * emission. Unlike {@link #collectStats()} nothing is allocated per
+     * value.
+     * 
+     * @param every
+     *            the number of values between emissions
+     * @param <T>
+     *            the type of the values
+     * @return transformer that emits the histogram of all values so far
+     */
+    public static <T extends Number> Transformer<T, Histogram> collectQuantiles(
+            final long every) {
+        return collectQuantiles(every, Histogram.DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    /**
+     * Returns a {@link Transformer} that adds every value to a
+     * {@link Histogram} and emits a copy of it after every {@code every}
+     * values and on completion if values have arrived since the last
+     * emission.
+     * 
+     * @param every
+     *            the number of values between emissions
+     * @param relativeAccuracy
+     *            the maximum error of a quantile estimate relative to the true
+     *            value, in (0, 1)
+     * @param <T>
+     *            the type of the values
+     * @return transformer that emits the histogram of all values so far
+     */
+    public static <T extends Number> Transformer<T, Histogram> collectQuantiles(
+            final long every, final double relativeAccuracy) {
+        final OperatorCollectQuantiles<T> operator = new OperatorCollectQuantiles<T>(
+                relativeAccuracy, every);
+        return new Transformer<T, Histogram>() {
+            @Override
+            public Observable<Histogram> call(Observable<T> o) {
+                return o.lift(operator);
+            }
+        };
+    }
+
+    /**
+     * Returns a {@link Transformer} that adds every value to a
+     * {@link Histogram} and emits a copy of it every {@code period} once
+     * values have arrived and on completion if values have arrived since the
+     * last emission. The source is requested from without bound and an
+     * emission is skipped if downstream has not requested it.
+     * 
+     * @param period
+     *            the period between emissions
+     * @param unit
+     *            the unit of {@code period}
+     * @param scheduler
+     *            schedules the emissions
+     * @param relativeAccuracy
+     *            the maximum error of a quantile estimate relative to the true
+     *            value, in (0, 1)
+     * @param <T>
+     *            the type of the values
+     * @return transformer that emits the histogram of all values so far
+     */
+    public static <T extends Number> Transformer<T, Histogram> collectQuantiles(
+            final long period, final TimeUnit unit, final Scheduler scheduler,
+            final double relativeAccuracy) {
+        final OperatorCollectQuantiles<T> operator = new OperatorCollectQuantiles<T>(
+                relativeAccuracy, period, unit, scheduler);
+        return new Transformer<T, Histogram>() {
+            @Override
+            public Observable<Histogram> call(Observable<T> o) {
+                return o.lift(operator);
+            }
+        };
+    }
+
+    /**
+     * Returns a {@link Transformer} that adds every value to a
+     * {@link Histogram} (quantile estimates within 1% of the true value) and
+     * emits a copy of it every {@code period} once values have arrived and on
+     * completion if values have arrived since the last emission. The source is
+     * requested from without bound and an emission is skipped if downstream
+     * has not requested it.
+     * 
+     * @param period
+     *            the period between emissions
+     * @param unit
+     *            the unit of {@code period}
+     * @param scheduler
+     *            schedules the emissions
+     * @param <T>
+     *            the type of the values
+     * @return transformer that emits the histogram of all values so far
+     */
+    public static <T extends Number> Transformer<T, Histogram> collectQuantiles(
+            final long period, final TimeUnit unit, final Scheduler scheduler) {
+        return collectQuantiles(period, unit, scheduler, Histogram.DEFAULT_RELATIVE_ACCURACY);
+    }
+
     public static <T extends Comparable<? super T>> Transformer<T, T> sort() {
         return new Transformer<T, T>() {
 
@@ -117,6 +388,99 @@ public final class Transformers {
         };
     }
 
+    /**
+     * Returns a {@link Transformer} that sorts the source like
+     * {@link #sort(Comparator)} but without holding the whole stream in
+     * memory. Runs of {@code runSize} items are sorted in memory and written
+     * to files from {@link Options#fileFactory()} using {@code serializer}.
+     * When the source completes the runs are merged with
+     * {@link Obs#create(Collection, Comparator)} reading from the files with
+     * backpressure (many runs are first merged in groups to bound the number
+     * of open files). The output is the same as for {@link #sort(Comparator)}
+     * (equal items keep their arrival order) and the files are deleted on
+     * termination or unsubscription.
+     * 
+     * @param comparator
+     *            orders the items
+     * @param serializer
+     *            serializes and deserializes the items
+     * @param runSize
+     *            maximum number of items sorted in memory at once, must be
+     *            greater than zero
+     * @param options
+     *            file factory and buffer size
+     * @param <T>
+     *            the item type
+     * @return sorted stream
+     */
+    public static <T> Transformer<T, T> sortExternal(final Comparator<? super T> comparator,
+            final DataSerializer<T> serializer, final int runSize, final Options options) {
+        return new TransformerSortExternal<T>(comparator, serializer, runSize, options);
+    }
+
+    /**
+     * Returns a {@link Transformer} that sorts like
+     * {@link #sortExternal(Comparator, DataSerializer, int, Options)} with a
+     * run size of {@link Options#rolloverEvery()} or, if rollover is disabled
+     * (the default), one million items.
+     * 
+     * @param comparator
+     *            orders the items
+     * @param serializer
+     *            serializes and deserializes the items
+     * @param options
+     *            run size ({@code rolloverEvery}), file factory and buffer
+     *            size
+     * @param <T>
+     *            the item type
+     * @return sorted stream
+     */
+    public static <T> Transformer<T, T> sortExternal(final Comparator<? super T> comparator,
+            final DataSerializer<T> serializer, final Options options) {
+        return new TransformerSortExternal<T>(comparator, serializer, options);
+    }
+
+    /**
+     * Returns a {@link Transformer} that sorts the source in natural order
+     * like {@link #sort()} but spilling sorted runs of {@code runSize} items
+     * to disk. See
+     * {@link #sortExternal(Comparator, DataSerializer, int, Options)}.
+     * 
+     * @param serializer
+     *            serializes and deserializes the items
+     * @param runSize
+     *            maximum number of items sorted in memory at once, must be
+     *            greater than zero
+     * @param options
+     *            file factory and buffer size
+     * @param <T>
+     *            the item type
+     * @return sorted stream
+     */
+    public static <T extends Comparable<? super T>> Transformer<T, T> sortExternal(
+            final DataSerializer<T> serializer, final int runSize, final Options options) {
+        return sortExternal(Transformers.<T> naturalComparator(), serializer, runSize, options);
+    }
+
+    /**
+     * Returns a {@link Transformer} that sorts the source in natural order
+     * like {@link #sort()} but spilling sorted runs to disk. See
+     * {@link #sortExternal(Comparator, DataSerializer, Options)}.
+     * 
+     * @param serializer
+     *            serializes and deserializes the items
+     * @param options
+     *            run size ({@code rolloverEvery}), file factory and buffer
+     *            size
+     * @param <T>
+     *            the item type
+     * @return sorted stream
+     */
+    public static <T extends Comparable<? super T>> Transformer<T, T> sortExternal(
+            final DataSerializer<T> serializer, final Options options) {
+        return sortExternal(Transformers.<T> naturalComparator(), serializer, options);
+    }
+
     public static <T> Transformer<T, Set<T>> toSet() {
         return new Transformer<T, Set<T>>() {
 
@@ -177,9 +541,10 @@ public final class Transformers {
      * Returns a {@link Transformer} that allows processing of the source stream
      * to be defined in a state machine where transitions of the state machine
      * may also emit items to downstream that are buffered if necessary when
-     * backpressure is requested. <code>flatMap</code> is part of the processing
-     * chain so the source may experience requests for more items than are
-     * strictly required by the endpoint subscriber.
+     * backpressure is requested. The source is requested from in batches as
+     * the emissions of earlier transitions are delivered so the source may
+     * experience requests for more items than are strictly required by the
+     * endpoint subscriber.
      * 
      * <p>
      * <img src=
@@ -213,7 +578,12 @@ public final class Transformers {
      *            if you return true from this function.
      * @param backpressureStrategy
      *            is applied to the emissions from one call of transition and
-     *            should enforce backpressure.
+     *            should enforce backpressure. With
+     *            {@link BackpressureStrategy#DROP} and
+     *            {@link BackpressureStrategy#LATEST} up to 128 emissions of
+     *            one call that arrive without downstream demand are buffered
+     *            and later ones are dropped ({@code LATEST} keeps the newest
+     *            of them).
      * @param <State>
      *            the class representing the state of the state machine
      * @param <In>
@@ -249,12 +619,11 @@ public final class Transformers {
      * Returns a {@link Transformer} that allows processing of the source stream
      * to be defined in a state machine where transitions of the state machine
      * may also emit items to downstream that are buffered if necessary when
-     * backpressure is requested. <code>flatMap</code> is part of the processing
-     * chain so the source may experience requests for more items than are
-     * strictly required by the endpoint subscriber. The backpressure strategy
-     * used for emissions from the transition into the flatMap is
-     * {@link BackpressureStrategy#BUFFER} which corresponds to
-     * {@link Observable#onBackpressureBuffer}.
+     * backpressure is requested. The source is requested from in batches as
+     * the emissions of earlier transitions are delivered so the source may
+     * experience requests for more items than are strictly required by the
+     * endpoint subscriber. Emissions from the transition are buffered until
+     * requested ({@link BackpressureStrategy#BUFFER}).
      * 
      * <p>
      * <img src=
@@ -359,6 +728,55 @@ public final class Transformers {
      */
     public static final <T> Transformer<T, T> orderedMergeWith(
             final Collection<Observable<T>> others, final Comparator<? super T> comparator) {
+        return orderedMergeWith(others, comparator, RxRingBuffer.SIZE);
+    }
+
+    /**
+     * <p>
+     * Returns the source {@link Observable} merged with the <code>other</code>
+     * observable using the given {@link Comparator} for order like
+     * {@link #orderedMergeWith(Observable, Comparator)} except that each input
+     * is requested {@code prefetch} items up front and more once 75% of them
+     * have been emitted.
+     * 
+     * @param other
+     *            the other already ordered observable
+     * @param comparator
+     *            the ordering to use
+     * @param prefetch
+     *            number of items buffered per input
+     * @param <T>
+     *            the generic type of the objects being compared
+     * @return merged and ordered observable
+     */
+    public static final <T> Transformer<T, T> orderedMergeWith(final Observable<T> other,
+            final Comparator<? super T> comparator, int prefetch) {
+        @SuppressWarnings("unchecked")
+        Collection<Observable<T>> collection = Arrays.asList(other);
+        return orderedMergeWith(collection, comparator, prefetch);
+    }
+
+    /**
+     * <p>
+     * Returns the source {@link Observable} merged with all of the other
+     * observables using the given {@link Comparator} for order like
+     * {@link #orderedMergeWith(Collection, Comparator)} except that each input
+     * is requested {@code prefetch} items up front and more once 75% of them
+     * have been emitted.
+     * 
+     * @param others
+     *            a collection of already ordered observables to merge with
+     * @param comparator
+     *            the ordering to use
+     * @param prefetch
+     *            number of items buffered per input
+     * @param <T>
+     *            the generic type of the objects being compared
+     * @return merged and ordered observable
+     */
+    public static final <T> Transformer<T, T> orderedMergeWith(
+            final Collection<Observable<T>> others, final Comparator<? super T> comparator,
+            final int prefetch) {
         return new Transformer<T, T>() {
 
             @Override
@@ -366,7 +784,7 @@ public final class Transformers {
                 List<Observable<T>> collection = new ArrayList<Observable<T>>();
                 collection.add(source);
                 collection.addAll(others);
-                return OrderedMerge.<T> create(collection, comparator, false);
+                return OrderedMerge.<T> create(collection, comparator, false, prefetch);
             }
         };
     }
@@ -700,6 +1118,44 @@ public final class Transformers {
         };
     }
 
+    public static <T> Transformer<Observable<T>, T> onBackpressureBufferToFileMerged(
+            final DataSerializer<T> serializer) {
+        return onBackpressureBufferToFileMerged(serializer, Schedulers.computation(),
+                Options.defaultInstance());
+    }
+
+    /**
+     * Merges the emitted observables and buffers their items to memory mapped
+     * files (segments of {@code options.rolloverSizeBytes()} bytes or 20MB if
+     * not set). Unlike {@code merge} followed by
+     * {@link #onBackpressureBufferToFile(DataSerializer, Scheduler, Options)}
+     * the inner observables write to the buffer concurrently without being
+     * serialized by a lock. Durable storage, compression, an in-memory buffer
+     * and overflow policies other than {@code ERROR} and {@code DROP_NEWEST}
+     * are not supported.
+     * 
+     * @param serializer
+     *            serializes items to file
+     * @param scheduler
+     *            emissions to downstream happen on this scheduler
+     * @param options
+     *            buffer options
+     * @param <T>
+     *            type of item being buffered
+     * @return transformer that merges and buffers to file
+     */
+    public static <T> Transformer<Observable<T>, T> onBackpressureBufferToFileMerged(
+            final DataSerializer<T> serializer, final Scheduler scheduler, final Options options) {
+        final OperatorBufferToFileMerge<T> operator = new OperatorBufferToFileMerge<T>(serializer,
+                scheduler, options);
+        return new Transformer<Observable<T>, T>() {
+            @Override
+            public Observable<T> call(Observable<Observable<T>> o) {
+                return o.lift(operator);
+            }
+        };
+    }
+
     public static <T> Transformer<T, T> windowMin(final int windowSize,
             final Comparator<? super T> comparator) {
         return new Transformer<T, T>() {
@@ -728,6 +1184,288 @@ public final class Transformers {
         return windowMin(windowSize, Transformers.<T> naturalComparator());
     }
 
+    /**
+     * Returns a {@link Transformer} that emits for every item the minimum of
+     * the items with a timestamp within {@code duration} of the timestamp of
+     * that item (later than it minus {@code duration}). Timestamps are
+     * expected to be non-decreasing (a timestamp earlier than the one before
+     * it is treated as equal to it).
+     * 
+     * @param duration
+     *            the duration of the window
+     * @param unit
+     *            the unit of {@code duration}
+     * @param timestampMs
+     *            returns the time in milliseconds of an item
+     * @param comparator
+     *            orders the items
+     * @param <T>
+     *            the item type
+     * @return transformer that emits the minimum of each sliding window
+     */
+    public static <T> Transformer<T, T> windowMin(final long duration, final TimeUnit unit,
+            final Func1<? super T, Long> timestampMs, final Comparator<? super T> comparator) {
+        return windowTime(duration, unit, timestampMs, 0, null, comparator, Metric.MIN);
+    }
+
+    /**
+     * Returns a {@link Transformer} that emits for every item the maximum of
+     * the items with a timestamp within {@code duration} of the timestamp of
+     * that item (later than it minus {@code duration}). Timestamps are
+     * expected to be non-decreasing (a timestamp earlier than the one before
+     * it is treated as equal to it).
+     * 
+     * @param duration
+     *            the duration of the window
+     * @param unit
+     *            the unit of {@code duration}
+     * @param timestampMs
+     *            returns the time in milliseconds of an item
+     * @param comparator
+     *            orders the items
+     * @param <T>
+     *            the item type
+     * @return transformer that emits the maximum of each sliding window
+     */
+    public static <T> Transformer<T, T> windowMax(final long duration, final TimeUnit unit,
+            final Func1<? super T, Long> timestampMs, final Comparator<? super T> comparator) {
+        return windowTime(duration, unit, timestampMs, 0, null, comparator, Metric.MAX);
+    }
+
+    public static <T extends Comparable<T>> Transformer<T, T> windowMin(final long duration,
+            final TimeUnit unit, final Func1<? super T, Long> timestampMs) {
+        return windowMin(duration, unit, timestampMs, Transformers.<T> naturalComparator());
+    }
+
+    public static <T extends Comparable<T>> Transformer<T, T> windowMax(final long duration,
+            final TimeUnit unit, final Func1<? super T, Long> timestampMs) {
+        return windowMax(duration, unit, timestampMs, Transformers.<T> naturalComparator());
+    }
+
+    /**
+     * Returns a {@link Transformer} that emits for every item the minimum of
+     * the items that arrived in the last {@code duration} according to
+     * {@code scheduler}.
+     * 
+     * @param duration
+     *            the duration of the window
+     * @param unit
+     *            the unit of {@code duration}
+     * @param scheduler
+     *            provides the arrival time of items
+     * @param comparator
+     *            orders the items
+     * @param <T>
+     *            the item type
+     * @return transformer that emits the minimum of each sliding window
+     */
+    public static <T> Transformer<T, T> windowMin(final long duration, final TimeUnit unit,
+            final Scheduler scheduler, final Comparator<? super T> comparator) {
+        return windowMin(duration, unit, Transformers.<T> arrivalTime(scheduler), comparator);
+    }
+
+    /**
+     * Returns a {@link Transformer} that emits for every item the maximum of
+     * the items that arrived in the last {@code duration} according to
+     * {@code scheduler}.
+     * 
+     * @param duration
+     *            the duration of the window
+     * @param unit
+     *            the unit of {@code duration}
+     * @param scheduler
+     *            provides the arrival time of items
+     * @param comparator
+     *            orders the items
+     * @param <T>
+     *            the item type
+     * @return transformer that emits the maximum of each sliding window
+     */
+    public static <T> Transformer<T, T> windowMax(final long duration, final TimeUnit unit,
+            final Scheduler scheduler, final Comparator<? super T> comparator) {
+        return windowMax(duration, unit, Transformers.<T> arrivalTime(scheduler), comparator);
+    }
+
+    public static <T extends Comparable<T>> Transformer<T, T> windowMin(final long duration,
+            final TimeUnit unit, final Scheduler scheduler) {
+        return windowMin(duration, unit, scheduler, Transformers.<T> naturalComparator());
+    }
+
+    public static <T extends Comparable<T>> Transformer<T, T> windowMax(final long duration,
+            final TimeUnit unit, final Scheduler scheduler) {
+        return windowMax(duration, unit, scheduler, Transformers.<T> naturalComparator());
+    }
+
+    /**
+     * Returns a {@link Transformer} that every {@code emitPeriod} emits the
+     * minimum of the items that arrived in the last {@code duration}
+     * according to {@code scheduler}. The source is requested from without
+     * bound. Nothing is emitted for a period if no items are in the window or
+     * downstream has not requested.
+     * 
+     * @param duration
+     *            the duration of the window
+     * @param unit
+     *            the unit of {@code duration}
+     * @param emitPeriod
+     *            the period between emissions
+     * @param emitUnit
+     *            the unit of {@code emitPeriod}
+     * @param scheduler
+     *            provides the arrival time of items and schedules emissions
+     * @param comparator
+     *            orders the items
+     * @param <T>
+     *            the item type
+     * @return transformer that emits the minimum of the sliding window
+     *         periodically
+     */
+    public static <T> Transformer<T, T> windowMin(final long duration, final TimeUnit unit,
+            final long emitPeriod, final TimeUnit emitUnit, final Scheduler scheduler,
+            final Comparator<? super T> comparator) {
+        return windowTime(duration, unit, Transformers.<T> arrivalTime(scheduler),
+                periodMs(emitPeriod, emitUnit), scheduler, comparator, Metric.MIN);
+    }
+
+    /**
+     * Returns a {@link Transformer} that every {@code emitPeriod} emits the
+     * maximum of the items that arrived in the last {@code duration}
+     * according to {@code scheduler}. The source is requested from without
+     * bound. Nothing is emitted for a period if no items are in the window or
+     * downstream has not requested.
+     * 
+     * @param duration
+     *            the duration of the window
+     * @param unit
+     *            the unit of {@code duration}
+     * @param emitPeriod
+     *            the period between emissions
+     * @param emitUnit
+     *            the unit of {@code emitPeriod}
+     * @param scheduler
+     *            provides the arrival time of items and schedules emissions
+     * @param comparator
+     *            orders the items
+     * @param <T>
+     *            the item type
+     * @return transformer that emits the maximum of the sliding window
+     *         periodically
+     */
+    public static <T> Transformer<T, T> windowMax(final long duration, final TimeUnit unit,
+            final long emitPeriod, final TimeUnit emitUnit, final Scheduler scheduler,
+            final Comparator<? super T> comparator) {
+        return windowTime(duration, unit, Transformers.<T> arrivalTime(scheduler),
+                periodMs(emitPeriod, emitUnit), scheduler, comparator, Metric.MAX);
+    }
+
+    private static long periodMs(long emitPeriod, TimeUnit emitUnit) {
+        long ms = emitUnit.toMillis(emitPeriod);
+        Preconditions.checkArgument(ms > 0, "emitPeriod must be at least one millisecond");
+        return ms;
+    }
+
+    private static <T> Func1<T, Long> arrivalTime(final Scheduler scheduler) {
+        Preconditions.checkNotNull(scheduler, "scheduler cannot be null");
+        return new Func1<T, Long>() {
+            @Override
+            public Long call(T t) {
+                return scheduler.now();
+            }
+        };
+    }
+
+    private static <T> Transformer<T, T> windowTime(long duration, TimeUnit unit,
+            Func1<? super T, Long> timestampMs, long emitPeriodMs, Scheduler scheduler,
+            Comparator<? super T> comparator, Metric metric) {
+        final OperatorWindowMinMaxTime<T> operator = new OperatorWindowMinMaxTime<T>(duration,
+                unit, timestampMs, emitPeriodMs, scheduler, comparator, metric);
+        return new Transformer<T, T>() {
+            @Override
+            public Observable<T> call(Observable<T> o) {
+                return o.lift(operator);
+            }
+        };
+    }
+
+    /**
+     * Returns a {@link Transformer} that emits the minimum of the last
+     * {@code windowSize} values once {@code windowSize} values have arrived.
+     * Like {@link #windowMin(int)} but values are held and compared as
+     * primitives.
+     * 
+     * @param windowSize
+     *            the number of values in the window
+     * @return transformer that emits the minimum of each sliding window
+     */
+    public static Transformer<Long, Long> windowMinLong(final int windowSize) {
+        return windowLong(windowSize, Metric.MIN);
+    }
+
+    /**
+     * Returns a {@link Transformer} that emits the maximum of the last
+     * {@code windowSize} values once {@code windowSize} values have arrived.
+     * Like {@link #windowMax(int)} but values are held and compared as
+     * primitives.
+     * 
+     * @param windowSize
+     *            the number of values in the window
+     * @return transformer that emits the maximum of each sliding window
+     */
+    public static Transformer<Long, Long> windowMaxLong(final int windowSize) {
+        return windowLong(windowSize, Metric.MAX);
+    }
+
+    private static Transformer<Long, Long> windowLong(final int windowSize, Metric metric) {
+        final OperatorWindowMinMaxLong operator = new OperatorWindowMinMaxLong(windowSize,
+                metric);
+        return new Transformer<Long, Long>() {
+            @Override
+            public Observable<Long> call(Observable<Long> o) {
+                return o.lift(operator);
+            }
+        };
+    }
+
+    /**
+     * Returns a {@link Transformer} that emits the minimum of the last
+     * {@code windowSize} values once {@code windowSize} values have arrived.
+     * Like {@link #windowMin(int)} but values are held and compared as
+     * primitives.
+     * 
+     * @param windowSize
+     *            the number of values in the window
+     * @return transformer that emits the minimum of each sliding window
+     */
+    public static Transformer<Double, Double> windowMinDouble(final int windowSize) {
+        return windowDouble(windowSize, Metric.MIN);
+    }
+
+    /**
+     * Returns a {@link Transformer} that emits the maximum of the last
+     * {@code windowSize} values once {@code windowSize} values have arrived.
+     * Like {@link #windowMax(int)} but values are held and compared as
+     * primitives.
+     * 
+     * @param windowSize
+     *            the number of values in the window
+     * @return transformer that emits the maximum of each sliding window
+     */
+    public static Transformer<Double, Double> windowMaxDouble(final int windowSize) {
+        return windowDouble(windowSize, Metric.MAX);
+    }
+
+    private static Transformer<Double, Double> windowDouble(final int windowSize,
+            Metric metric) {
+        final OperatorWindowMinMaxDouble operator = new OperatorWindowMinMaxDouble(windowSize,
+                metric);
+        return new Transformer<Double, Double>() {
+            @Override
+            public Observable<Double> call(Observable<Double> o) {
+                return o.lift(operator);
+            }
+        };
+    }
+
     private static class NaturalComparatorHolder {
         static final Comparator<Comparable<Object>> INSTANCE = new Comparator<Comparable<Object>>() {
 
@@ -739,7 +1477,7 @@ public final class Transformers {
     }
 
     @SuppressWarnings("unchecked")
-    private static <T extends Comparable<T>> Comparator<T> naturalComparator() {
+    private static <T extends Comparable<? super T>> Comparator<T> naturalComparator() {
         return (Comparator<T>) (Comparator<?>) NaturalComparatorHolder.INSTANCE;
     }
 
@@ -1335,6 +2073,115 @@ public final class Transformers {
         };
 
     }
+
+    public static <A, B, K, C> Transformer<A, C> matchWith(final Observable<B> obs, final Func1<? super A, ? extends K> key1,
+            final Func1<? super B,? extends K> key2, final Func2<? super A, ? super B, C> combiner, final long requestSize,
+            final long maxUnmatched) {
+        return new Transformer<A, C>() {
+
+            @Override
+            public Observable<C> call(Observable<A> source) {
+                return Obs.match(source, obs, key1, key2, combiner, requestSize, maxUnmatched);
+            }
+        };
+
+    }
+
+    /**
+     * Returns a {@link Transformer} that matches items with those from
+     * {@code obs} by key and expires unmatched items that have waited for
+     * {@code maxAge}, passing them to {@code onExpiredA} or
+     * {@code onExpiredB}. See
+     * {@link Obs#match(Observable, Observable, Func1, Func1, Func2, long, TimeUnit, Scheduler, long, Action1, Action1)}.
+     * 
+     * @param obs
+     *            the observable to match with
+     * @param key1
+     *            key function for source items
+     * @param key2
+     *            key function for items from obs
+     * @param combiner
+     *            combines a matched pair
+     * @param maxAge
+     *            maximum time an item waits for a match
+     * @param unit
+     *            unit of maxAge
+     * @param scheduler
+     *            provides the time and schedules expiry checks
+     * @param onExpiredA
+     *            called with each expired source item
+     * @param onExpiredB
+     *            called with each expired item from obs
+     * @param <A>
+     *            source item type
+     * @param <B>
+     *            type of items from obs
+     * @param <K>
+     *            key type
+     * @param <C>
+     *            result type
+     * @return matching transformer
+     */
+    public static <A, B, K, C> Transformer<A, C> matchWith(final Observable<B> obs, final Func1<? super A, ? extends K> key1,
+            final Func1<? super B,? extends K> key2, final Func2<? super A, ? super B, C> combiner, final long maxAge,
+            final TimeUnit unit, final Scheduler scheduler, final Action1<? super A> onExpiredA,
+            final Action1<? super B> onExpiredB) {
+        return new Transformer<A, C>() {
+
+            @Override
+            public Observable<C> call(Observable<A> source) {
+                return Obs.match(source, obs, key1, key2, combiner, maxAge, unit, scheduler,
+                        Long.MAX_VALUE, onExpiredA, onExpiredB);
+            }
+        };
+
+    }
+
+    /**
+     * Returns a {@link Transformer} that matches items with those from
+     * {@code obs} by key and, when more than {@code maxRetained} items are
+     * waiting for a match, expires the oldest of them passing each to
+     * {@code onExpiredA} or {@code onExpiredB}. See
+     * {@link Obs#match(Observable, Observable, Func1, Func1, Func2, long, TimeUnit, Scheduler, long, Action1, Action1)}.
+     * 
+     * @param obs
+     *            the observable to match with
+     * @param key1
+     *            key function for source items
+     * @param key2
+     *            key function for items from obs
+     * @param combiner
+     *            combines a matched pair
+     * @param maxRetained
+     *            maximum number of unmatched items (from both sources)
+     * @param onExpiredA
+     *            called with each expired source item
+     * @param onExpiredB
+     *            called with each expired item from obs
+     * @param <A>
+     *            source item type
+     * @param <B>
+     *            type of items from obs
+     * @param <K>
+     *            key type
+     * @param <C>
+     *            result type
+     * @return matching transformer
+     */
+    public static <A, B, K, C> Transformer<A, C> matchWith(final Observable<B> obs, final Func1<? super A, ? extends K> key1,
+            final Func1<? super B,? extends K> key2, final Func2<? super A, ? super B, C> combiner,
+            final long maxRetained, final Action1<? super A> onExpiredA,
+            final Action1<? super B> onExpiredB) {
+        return new Transformer<A, C>() {
+
+            @Override
+            public Observable<C> call(Observable<A> source) {
+                return Obs.match(source, obs, key1, key2, combiner, Long.MAX_VALUE,
+                        TimeUnit.MILLISECONDS, null, maxRetained, onExpiredA, onExpiredB);
+            }
+        };
+
+    }
     
     public static <T> Transformer<T,T> reverse() {
         return new Transformer<T,T>() {
@@ -0,0 +1,23 @@
+package com.github.davidmoten.rx.buffertofile;
+
+public enum Compression {
+
+    /**
+     * Items are written to files uncompressed.
+     */
+    NONE,
+
+    /**
+     * Each write buffer of {@code bufferSizeBytes} bytes is compressed with
+     * {@code java.util.zip.Deflater} at {@code BEST_SPEED} before being
+     * written to file as one block.
+     */
+    DEFLATE_FAST,
+
+    /**
+     * Each write buffer of {@code bufferSizeBytes} bytes is compressed with
+     * {@code java.util.zip.Deflater} at the default compression level before
+     * being written to file as one block.
+     */
+    DEFLATE;
+}
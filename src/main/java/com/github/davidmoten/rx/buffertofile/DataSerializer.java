@@ -32,7 +32,9 @@ public interface DataSerializer<T> {
     /**
      * Returns the serialized length if constant other wise returns 0 to
      * indicate variable length (which may force more copying in memory and be a
-     * bit slower).
+     * bit slower). Serializers should write their bytes to {@code output}
+     * directly rather than building an intermediate array as file based queues
+     * pass their own buffer as {@code output}.
      * 
      * @return serialized length or 0 if variable
      */
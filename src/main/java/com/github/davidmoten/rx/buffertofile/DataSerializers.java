@@ -1,13 +1,15 @@
 package com.github.davidmoten.rx.buffertofile;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
+import com.github.davidmoten.util.ByteArrayOutputStreamNoCopyUnsynchronized;
+import com.github.davidmoten.util.Preconditions;
+
 public final class DataSerializers {
 
     private DataSerializers() {
@@ -62,6 +64,91 @@ public final class DataSerializers {
         };
     }
 
+    public static DataSerializer<Long> longs() {
+        return LongHolder.INSTANCE;
+    }
+
+    private static final class LongHolder {
+        final static DataSerializer<Long> INSTANCE = new DataSerializer<Long>() {
+
+            @Override
+            public void serialize(DataOutput output, Long t) throws IOException {
+                output.writeLong(t);
+            }
+
+            @Override
+            public Long deserialize(DataInput input) throws IOException {
+                return input.readLong();
+            }
+
+            @Override
+            public int size() {
+                return 8;
+            }
+        };
+    }
+
+    public static DataSerializer<Double> doubles() {
+        return DoubleHolder.INSTANCE;
+    }
+
+    private static final class DoubleHolder {
+        final static DataSerializer<Double> INSTANCE = new DataSerializer<Double>() {
+
+            @Override
+            public void serialize(DataOutput output, Double t) throws IOException {
+                output.writeDouble(t);
+            }
+
+            @Override
+            public Double deserialize(DataInput input) throws IOException {
+                return input.readDouble();
+            }
+
+            @Override
+            public int size() {
+                return 8;
+            }
+        };
+    }
+
+    /**
+     * Returns a serializer for byte arrays that are all of length
+     * {@code size}. No length is written with each array and because the
+     * serialized length is constant file queues can serialize directly into
+     * their storage.
+     * 
+     * @param size
+     *            length of every byte array serialized
+     * @return serializer for byte arrays of length {@code size}
+     */
+    public static DataSerializer<byte[]> fixedSizeByteArray(final int size) {
+        Preconditions.checkArgument(size > 0, "size must be greater than zero");
+        return new DataSerializer<byte[]>() {
+
+            @Override
+            public void serialize(DataOutput output, byte[] bytes) throws IOException {
+                if (bytes.length != size) {
+                    throw new IllegalArgumentException(
+                            "byte array length " + bytes.length + " is not the fixed size " + size);
+                }
+                output.write(bytes);
+            }
+
+            @Override
+            public byte[] deserialize(DataInput input) throws IOException {
+                byte[] bytes = new byte[size];
+                input.readFully(bytes);
+                return bytes;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
     public static DataSerializer<byte[]> byteArray() {
         return ByteArrayHolder.INSTANCE;
     }
@@ -97,27 +184,59 @@ public final class DataSerializers {
 
     private static final class JavaIOHolder {
 
+        // the serialized form of an item is built (and read back) in a buffer
+        // reused per thread rather than allocating and copying arrays for
+        // every item (buffers that grow past MAX_RETAINED_BYTES are not kept)
+        private static final int MAX_RETAINED_BYTES = 1024 * 1024;
+
+        private static final ThreadLocal<ByteArrayOutputStreamNoCopyUnsynchronized> writeBuffer = new ThreadLocal<ByteArrayOutputStreamNoCopyUnsynchronized>() {
+            @Override
+            protected ByteArrayOutputStreamNoCopyUnsynchronized initialValue() {
+                return new ByteArrayOutputStreamNoCopyUnsynchronized(256);
+            }
+        };
+
+        private static final ThreadLocal<byte[][]> readBuffer = new ThreadLocal<byte[][]>() {
+            @Override
+            protected byte[][] initialValue() {
+                return new byte[][] { new byte[256] };
+            }
+        };
+
         final static DataSerializer<Object> INSTANCE = new DataSerializer<Object>() {
 
             @Override
             public void serialize(DataOutput output, Object object) throws IOException {
-                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ByteArrayOutputStreamNoCopyUnsynchronized bytes = writeBuffer.get();
+                bytes.reset();
                 ObjectOutputStream oos = new ObjectOutputStream(bytes);
                 oos.writeObject(object);
                 oos.close();
-                byte[] array = bytes.toByteArray();
-                output.writeInt(array.length);
-                output.write(array);
+                output.writeInt(bytes.size());
+                output.write(bytes.toByteArrayNoCopy(), 0, bytes.size());
+                if (bytes.size() > MAX_RETAINED_BYTES) {
+                    writeBuffer.remove();
+                }
             }
 
             @Override
             public Object deserialize(DataInput input) throws IOException {
                 int length = input.readInt();
-                byte[] array = new byte[length];
-                input.readFully(array);
+                byte[][] holder = readBuffer.get();
+                final byte[] array;
+                if (length > MAX_RETAINED_BYTES) {
+                    array = new byte[length];
+                } else {
+                    if (holder[0].length < length) {
+                        holder[0] = new byte[Math.min(MAX_RETAINED_BYTES,
+                                Math.max(length, holder[0].length * 2))];
+                    }
+                    array = holder[0];
+                }
+                input.readFully(array, 0, length);
                 ObjectInputStream ois = null;
                 try {
-                    ois = new ObjectInputStream(new ByteArrayInputStream(array));
+                    ois = new ObjectInputStream(new ByteArrayInputStream(array, 0, length));
                     return ois.readObject();
                 } catch (ClassNotFoundException e) {
                     throw new RuntimeException(e);
@@ -2,9 +2,12 @@ package com.github.davidmoten.rx.buffertofile;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
+import com.github.davidmoten.util.Optional;
 import com.github.davidmoten.util.Preconditions;
 
+import rx.Scheduler;
 import rx.functions.Func0;
 
 public final class Options {
@@ -16,10 +19,51 @@ public final class Options {
 	private final long rolloverEvery;
 	private final long rolloverSizeBytes;
 	private final int bufferSizeBytes;
+	private final StorageType storageType;
+	private final File durableDirectory;
+	private final long syncEvery;
+	private final long syncIntervalMs;
+	private final Compression compression;
+	private final int memoryBufferItems;
+	private final SpillListener spillListener;
+	private final Optional<Scheduler> rolloverScheduler;
+	private final long maxStorageBytes;
+	private final OverflowPolicy overflowPolicy;
+	private final boolean directBuffers;
 
 	private Options(Func0<File> filefactory, boolean delayError, long rolloverEvery, int bufferSizeBytes,
-			long rolloverSizeBytes) {
+			long rolloverSizeBytes, StorageType storageType, File durableDirectory, long syncEvery,
+			long syncIntervalMs, Compression compression, int memoryBufferItems, SpillListener spillListener,
+			Optional<Scheduler> rolloverScheduler, long maxStorageBytes, OverflowPolicy overflowPolicy,
+			boolean directBuffers) {
 		Preconditions.checkNotNull(filefactory);
+		Preconditions.checkNotNull(storageType);
+		Preconditions.checkNotNull(compression);
+		Preconditions.checkNotNull(spillListener);
+		Preconditions.checkNotNull(rolloverScheduler);
+		Preconditions.checkNotNull(overflowPolicy);
+		Preconditions.checkArgument(durableDirectory == null || storageType == StorageType.RANDOM_ACCESS_FILE,
+				"durable storage is only supported with StorageType.RANDOM_ACCESS_FILE");
+		Preconditions.checkArgument(
+				durableDirectory == null || rolloverSizeBytes != Long.MAX_VALUE || rolloverEvery != Long.MAX_VALUE,
+				"durable storage requires rollover (rolloverEvery or rolloverSizeBytes)");
+		Preconditions.checkArgument(
+				compression == Compression.NONE
+						|| (storageType == StorageType.RANDOM_ACCESS_FILE && durableDirectory == null),
+				"compression is only supported with StorageType.RANDOM_ACCESS_FILE and not durable");
+		Preconditions.checkArgument(memoryBufferItems >= 0, "memoryBufferItems cannot be negative");
+		Preconditions.checkArgument(memoryBufferItems == 0 || durableDirectory == null,
+				"an in-memory buffer cannot be used with durable storage");
+		Preconditions.checkArgument(maxStorageBytes > 0, "maxStorageBytes must be greater than zero");
+		Preconditions.checkArgument(overflowPolicy != OverflowPolicy.DROP_OLDEST_SEGMENT
+				|| (storageType == StorageType.RANDOM_ACCESS_FILE && durableDirectory == null
+						&& (rolloverSizeBytes != Long.MAX_VALUE || rolloverEvery != Long.MAX_VALUE)),
+				"OverflowPolicy.DROP_OLDEST_SEGMENT requires rollover with StorageType.RANDOM_ACCESS_FILE and not durable");
+		Preconditions.checkArgument(!directBuffers || (storageType == StorageType.RANDOM_ACCESS_FILE
+				&& durableDirectory == null && compression == Compression.NONE),
+				"direct buffers are only supported with StorageType.RANDOM_ACCESS_FILE, not durable and not compressed");
+		Preconditions.checkArgument(syncEvery > 0, "syncEvery must be greater than zero");
+		Preconditions.checkArgument(syncIntervalMs > 0, "syncInterval must be at least one millisecond");
 		Preconditions.checkArgument(rolloverSizeBytes > 0, "rolloverSizeBytes must be greater than zero");
 		Preconditions.checkArgument(rolloverEvery > 1, "rolloverEvery must be greater than one");
 		Preconditions.checkArgument(bufferSizeBytes > 0, "bufferSizeBytes must be greater than 0");
@@ -28,6 +72,17 @@ public final class Options {
 		this.rolloverEvery = rolloverEvery;
 		this.rolloverSizeBytes = rolloverSizeBytes;
 		this.bufferSizeBytes = bufferSizeBytes;
+		this.storageType = storageType;
+		this.durableDirectory = durableDirectory;
+		this.syncEvery = syncEvery;
+		this.syncIntervalMs = syncIntervalMs;
+		this.compression = compression;
+		this.memoryBufferItems = memoryBufferItems;
+		this.spillListener = spillListener;
+		this.rolloverScheduler = rolloverScheduler;
+		this.maxStorageBytes = maxStorageBytes;
+		this.overflowPolicy = overflowPolicy;
+		this.directBuffers = directBuffers;
 	}
 
 	public Func0<File> fileFactory() {
@@ -50,6 +105,89 @@ public final class Options {
 		return bufferSizeBytes;
 	}
 
+	public StorageType storageType() {
+		return storageType;
+	}
+
+	/**
+	 * Returns the directory used for durable storage or null if storage is not
+	 * durable.
+	 * 
+	 * @return the directory used for durable storage or null
+	 */
+	public File durableDirectory() {
+		return durableDirectory;
+	}
+
+	public boolean durable() {
+		return durableDirectory != null;
+	}
+
+	public long syncEvery() {
+		return syncEvery;
+	}
+
+	public long syncIntervalMs() {
+		return syncIntervalMs;
+	}
+
+	public Compression compression() {
+		return compression;
+	}
+
+	/**
+	 * Returns the capacity in items of the in-memory buffer used before items
+	 * are spilled to file or 0 if all items go to file.
+	 * 
+	 * @return capacity in items of the in-memory buffer or 0 if none
+	 */
+	public int memoryBufferItems() {
+		return memoryBufferItems;
+	}
+
+	public SpillListener spillListener() {
+		return spillListener;
+	}
+
+	/**
+	 * Returns the scheduler used to create files ahead of rollover and to
+	 * delete files that have been read or absent if that work is done
+	 * synchronously by the writer and reader.
+	 * 
+	 * @return scheduler for file creation and deletion or absent
+	 */
+	public Optional<Scheduler> rolloverScheduler() {
+		return rolloverScheduler;
+	}
+
+	/**
+	 * Returns the limit on the total size of the files used for storage or
+	 * {@code Long.MAX_VALUE} if there is no limit.
+	 * 
+	 * @return the limit on total file size in bytes
+	 */
+	public long maxStorageBytes() {
+		return maxStorageBytes;
+	}
+
+	public OverflowPolicy overflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Returns true if the read and write buffers of file based queues are
+	 * pooled direct (off-heap) buffers.
+	 * 
+	 * @return true if direct buffers are used
+	 */
+	public boolean directBuffers() {
+		return directBuffers;
+	}
+
+	public boolean storageLimited() {
+		return maxStorageBytes != Long.MAX_VALUE;
+	}
+
 	public boolean rolloverEnabled() {
 		return rolloverSizeBytes != Long.MAX_VALUE || rolloverEvery != Long.MAX_VALUE;
 	}
@@ -93,6 +231,34 @@ public final class Options {
 		return builder().bufferSizeBytes(bufferSizeBytes);
 	}
 
+	public static Builder storage(StorageType storageType) {
+		return builder().storage(storageType);
+	}
+
+	public static Builder durable(File directory) {
+		return builder().durable(directory);
+	}
+
+	public static Builder compression(Compression compression) {
+		return builder().compression(compression);
+	}
+
+	public static Builder memoryBufferItems(int memoryBufferItems) {
+		return builder().memoryBufferItems(memoryBufferItems);
+	}
+
+	public static Builder rolloverScheduler(Scheduler scheduler) {
+		return builder().rolloverScheduler(scheduler);
+	}
+
+	public static Builder maxStorageBytes(long maxStorageBytes) {
+		return builder().maxStorageBytes(maxStorageBytes);
+	}
+
+	public static Builder directBuffers(boolean directBuffers) {
+		return builder().directBuffers(directBuffers);
+	}
+
 	public static Options defaultInstance() {
 		return builder().build();
 	}
@@ -104,6 +270,17 @@ public final class Options {
 		private long rolloverSizeBytes = Long.MAX_VALUE;
 		private long rolloverEvery = 1000000;
 		private int bufferSizeBytes = 1024;
+		private StorageType storageType = StorageType.RANDOM_ACCESS_FILE;
+		private File durableDirectory = null;
+		private long syncEvery = Long.MAX_VALUE;
+		private long syncIntervalMs = 1000;
+		private Compression compression = Compression.NONE;
+		private int memoryBufferItems = 0;
+		private SpillListener spillListener = SpillListenerHolder.INSTANCE;
+		private Optional<Scheduler> rolloverScheduler = Optional.absent();
+		private long maxStorageBytes = Long.MAX_VALUE;
+		private OverflowPolicy overflowPolicy = OverflowPolicy.ERROR;
+		private boolean directBuffers = false;
 
 		private Builder() {
 		}
@@ -159,8 +336,208 @@ public final class Options {
 			return this;
 		}
 
+		/**
+		 * Sets the storage mechanism used for the queue. Defaults to
+		 * {@link StorageType#RANDOM_ACCESS_FILE} if this method not called.
+		 * 
+		 * @param storageType
+		 *            the storage mechanism
+		 * @return the current builder
+		 */
+		public Builder storage(StorageType storageType) {
+			this.storageType = storageType;
+			return this;
+		}
+
+		/**
+		 * <p>
+		 * Makes the queue durable. Queue files and a small checkpoint file of
+		 * the read and write positions of each file are kept in
+		 * {@code directory}. If the stream is unsubscribed (or the JVM stops)
+		 * before all items are emitted, the next subscription using the same
+		 * directory first emits the items that were not emitted, as at the last
+		 * sync. Items may be emitted again if they were emitted after the last
+		 * sync. The directory must not be used by more than one subscription
+		 * at a time.
+		 * 
+		 * <p>
+		 * The {@code fileFactory} is not used when durable. Rollover must be
+		 * enabled (queue files are replaced as they are read) so
+		 * {@link #disableRollover()} is rejected by {@link #build()}. Files
+		 * are synced to the storage device according to {@code syncEvery} and
+		 * {@code syncInterval} and on unsubscribe.
+		 * 
+		 * @param directory
+		 *            directory for queue files and checkpoint
+		 * @return the current builder
+		 */
+		public Builder durable(File directory) {
+			Preconditions.checkNotNull(directory);
+			this.durableDirectory = directory;
+			return this;
+		}
+
+		/**
+		 * Sets the number of items offered after which queue files and the
+		 * checkpoint are synced to the storage device (a group commit). Only
+		 * applies if {@link #durable(File)} set. Defaults to no sync based on
+		 * item count if this method not called.
+		 * 
+		 * @param syncEvery
+		 *            number of items between syncs
+		 * @return the current builder
+		 */
+		public Builder syncEvery(long syncEvery) {
+			this.syncEvery = syncEvery;
+			return this;
+		}
+
+		/**
+		 * Sets the interval between syncs of queue files and the checkpoint
+		 * to the storage device. Syncs are made on a worker of
+		 * {@code Schedulers.io()} (if items have been offered since the last
+		 * sync) so items offered by an idle producer are synced within the
+		 * interval. Only applies if {@link #durable(File)} set. Must be at
+		 * least one millisecond. Defaults to one second if this method not
+		 * called.
+		 * 
+		 * @param duration
+		 *            interval duration
+		 * @param unit
+		 *            interval unit
+		 * @return the current builder
+		 */
+		public Builder syncInterval(long duration, TimeUnit unit) {
+			this.syncIntervalMs = unit.toMillis(duration);
+			return this;
+		}
+
+		/**
+		 * Sets the compression applied to each write buffer (of
+		 * {@code bufferSizeBytes} bytes) before it is written to file as one
+		 * block. Rollover by size is then based on compressed bytes. Larger
+		 * buffers (say 64KB) give better compression ratios. Only supported
+		 * with {@link StorageType#RANDOM_ACCESS_FILE} and when not durable.
+		 * Defaults to {@link Compression#NONE} if this method not called.
+		 * 
+		 * @param compression
+		 *            the compression to apply
+		 * @return the current builder
+		 */
+		public Builder compression(Compression compression) {
+			this.compression = compression;
+			return this;
+		}
+
+		/**
+		 * Sets the capacity in items of an in-memory buffer in front of the file
+		 * based queue. Items are held in memory while the consumer keeps up
+		 * and are only written to file (spilled) when the in-memory buffer is
+		 * full. Once everything spilled has been read items are held in memory
+		 * again. Order is preserved. The capacity is rounded up to a power of
+		 * two. Cannot be used with durable storage. Defaults to 0 (all items
+		 * are written to file) if this method not called.
+		 * 
+		 * @param memoryBufferItems
+		 *            capacity in items of the in-memory buffer
+		 * @return the current builder
+		 */
+		public Builder memoryBufferItems(int memoryBufferItems) {
+			this.memoryBufferItems = memoryBufferItems;
+			return this;
+		}
+
+		/**
+		 * Sets the listener notified when items start and finish being
+		 * spilled from the in-memory buffer to file. Only applies if
+		 * {@link #memoryBufferItems(int)} set.
+		 * 
+		 * @param spillListener
+		 *            listener for spill events
+		 * @return the current builder
+		 */
+		public Builder spillListener(SpillListener spillListener) {
+			this.spillListener = spillListener;
+			return this;
+		}
+
+		/**
+		 * Sets the scheduler used to create the next file ahead of each
+		 * rollover and to delete files once they have been read so that
+		 * neither happens on the emitting thread or the consuming thread. If
+		 * the next file is not ready when needed it is created by the writer.
+		 * Only applies to non-durable {@link StorageType#RANDOM_ACCESS_FILE}
+		 * storage with rollover enabled. If this method is not called files
+		 * are created and deleted synchronously.
+		 * 
+		 * @param scheduler
+		 *            scheduler for file creation and deletion, for example
+		 *            {@code Schedulers.io()}
+		 * @return the current builder
+		 */
+		public Builder rolloverScheduler(Scheduler scheduler) {
+			Preconditions.checkNotNull(scheduler);
+			this.rolloverScheduler = Optional.of(scheduler);
+			return this;
+		}
+
+		/**
+		 * Sets the limit on the total size in bytes of the files holding items
+		 * not yet emitted (across all rollover files). What happens when the
+		 * limit is reached is set by {@link #overflowPolicy(OverflowPolicy)}.
+		 * Space is only reclaimed when a fully read file is deleted on
+		 * rollover so the limit should be several times
+		 * {@code rolloverSizeBytes}. Items held in the in-memory buffer
+		 * ({@link #memoryBufferItems(int)}) are not counted. Defaults to no
+		 * limit if this method not called.
+		 * 
+		 * @param maxStorageBytes
+		 *            the limit on total file size in bytes
+		 * @return the current builder
+		 */
+		public Builder maxStorageBytes(long maxStorageBytes) {
+			this.maxStorageBytes = maxStorageBytes;
+			return this;
+		}
+
+		/**
+		 * Sets what happens when the files reach
+		 * {@link #maxStorageBytes(long)}. Defaults to
+		 * {@link OverflowPolicy#ERROR} if this method not called.
+		 * 
+		 * @param overflowPolicy
+		 *            the policy to apply when storage is full
+		 * @return the current builder
+		 */
+		public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+			this.overflowPolicy = overflowPolicy;
+			return this;
+		}
+
+		/**
+		 * Sets if the read and write buffers (of {@code bufferSizeBytes} bytes
+		 * each) of file based queues are direct (off-heap) buffers taken from
+		 * a pool shared by all queues and written and read with
+		 * {@code FileChannel} at explicit positions. This avoids the copy the
+		 * JDK makes between a heap buffer and native memory on each file
+		 * access and keeps large buffers off the heap. Buffers are returned to
+		 * the pool when a queue is closed. Only supported with
+		 * {@link StorageType#RANDOM_ACCESS_FILE} when not durable and not
+		 * compressed. Defaults to {@code false} if this method not called.
+		 * 
+		 * @param directBuffers
+		 *            if true use pooled direct buffers
+		 * @return the current builder
+		 */
+		public Builder directBuffers(boolean directBuffers) {
+			this.directBuffers = directBuffers;
+			return this;
+		}
+
 		public Options build() {
-			return new Options(fileFactory, delayError, rolloverEvery, bufferSizeBytes, rolloverSizeBytes);
+			return new Options(fileFactory, delayError, rolloverEvery, bufferSizeBytes, rolloverSizeBytes,
+					storageType, durableDirectory, syncEvery, syncIntervalMs, compression, memoryBufferItems,
+					spillListener, rolloverScheduler, maxStorageBytes, overflowPolicy, directBuffers);
 		}
 	}
 
@@ -178,4 +555,20 @@ public final class Options {
 		};
 	}
 
+	private static class SpillListenerHolder {
+
+		private static final SpillListener INSTANCE = new SpillListener() {
+
+			@Override
+			public void spillStarted() {
+				// do nothing
+			}
+
+			@Override
+			public void spillFinished(long items) {
+				// do nothing
+			}
+		};
+	}
+
 }
\ No newline at end of file
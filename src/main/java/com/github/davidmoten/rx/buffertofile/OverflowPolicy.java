@@ -0,0 +1,33 @@
+package com.github.davidmoten.rx.buffertofile;
+
+/**
+ * What happens when the files used by {@code onBackpressureBufferToFile}
+ * reach {@code maxStorageBytes}.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * The stream is terminated with a
+     * {@link com.github.davidmoten.rx.exceptions.StorageFullException}.
+     */
+    ERROR,
+
+    /**
+     * Arriving items are discarded until storage drops below the limit.
+     */
+    DROP_NEWEST,
+
+    /**
+     * The oldest file (with any items in it not yet emitted) is deleted to
+     * make room. Requires rollover. If the only file is the one being written
+     * to then the item is written anyway.
+     */
+    DROP_OLDEST_SEGMENT,
+
+    /**
+     * No more items are requested from upstream until storage drops below the
+     * limit. Upstream must support backpressure and the limit may be exceeded
+     * by up to 128 items.
+     */
+    BACKPRESSURE;
+}
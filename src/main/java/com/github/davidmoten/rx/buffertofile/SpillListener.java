@@ -0,0 +1,28 @@
+package com.github.davidmoten.rx.buffertofile;
+
+/**
+ * Notified when a queue with an in-memory buffer (see
+ * {@link Options.Builder#memoryBufferItems(int)}) starts and finishes spilling
+ * items to file. Methods are called synchronously from the thread offering
+ * items to the queue so should return quickly (for example by updating
+ * counters).
+ */
+public interface SpillListener {
+
+    /**
+     * Called when the in-memory buffer is full and items start being written
+     * to file.
+     */
+    void spillStarted();
+
+    /**
+     * Called when all items written to file since the last
+     * {@link #spillStarted()} have been read (or the queue is unsubscribed)
+     * and items are once again held in memory.
+     * 
+     * @param items
+     *            the number of items written to file during the spill
+     */
+    void spillFinished(long items);
+
+}
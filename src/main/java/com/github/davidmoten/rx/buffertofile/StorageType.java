@@ -0,0 +1,19 @@
+package com.github.davidmoten.rx.buffertofile;
+
+public enum StorageType {
+
+    /**
+     * Items are written to and read from files using {@code RandomAccessFile}
+     * via small in-memory read and write buffers. Rollover is controlled by
+     * {@code rolloverEvery} and {@code rolloverSizeBytes}.
+     */
+    RANDOM_ACCESS_FILE,
+
+    /**
+     * Items are written to and read from fixed-size memory mapped files
+     * (segments) of {@code rolloverSizeBytes} bytes (20MB if rollover size not
+     * set). A file is reused or deleted once it has been read.
+     * {@code rolloverEvery} and {@code bufferSizeBytes} are ignored.
+     */
+    MEMORY_MAPPED;
+}
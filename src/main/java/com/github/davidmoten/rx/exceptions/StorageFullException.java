@@ -0,0 +1,11 @@
+package com.github.davidmoten.rx.exceptions;
+
+public final class StorageFullException extends RuntimeException {
+
+    private static final long serialVersionUID = -2630471958012487453L;
+
+    public StorageFullException(String message) {
+        super(message);
+    }
+
+}
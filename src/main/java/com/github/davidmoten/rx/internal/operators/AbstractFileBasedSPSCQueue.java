@@ -0,0 +1,428 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.davidmoten.rx.buffertofile.DataSerializer;
+import com.github.davidmoten.util.Preconditions;
+
+import rx.functions.Action1;
+
+/**
+ * <p>
+ * Base class of the file based queues that write items through a write buffer
+ * to a single file ({@link FileBasedSPSCQueue} with heap buffers and
+ * {@link FileBasedSPSCQueueDirect} with direct buffers). Subclasses provide
+ * the streams that serialization writes to and reads from.
+ *
+ * <p>
+ * The writer and reader hand off without a monitor (single producer, single
+ * consumer). The writer publishes the file length after each write of the
+ * write buffer to the file and publishes the total number of bytes written
+ * after each offer. Before copying from the write buffer the reader claims the
+ * write buffer by recording the file length it read. The writer will not
+ * overwrite the write buffer after writing it to the file until the reader has
+ * released a claim on the previous file length. Both sides use volatile store
+ * then volatile load so at least one of them sees the other.
+ *
+ * <p>
+ * The writer and the reader each open their own handle on the file when they
+ * first need it so neither takes a lock to access the file.
+ * {@code freeResources()} is called by the writer when it has finished with
+ * the queue and closes the writer's handle, the reader's handle is closed on
+ * unsubscribe.
+ *
+ * <p>
+ * Calls to {@code offer()} must be sequential (a happens-before relationship),
+ * and calls to {@code poll()} must be sequential. Calls to {@code offer()},
+ * {@code poll()} and {@code isEmpty()} may happen concurrently. Calls to
+ * {@code unsubscribe()} must not happen concurrently with other methods (wrap
+ * with {@link QueueWithResourcesNonBlockingUnsubscribe}).
+ *
+ * @param <T>
+ *            type of item being queued
+ */
+abstract class AbstractFileBasedSPSCQueue<T> implements QueueWithResources<T> {
+
+	final File file;
+	final DataSerializer<T> serializer;
+	final AtomicLong size = new AtomicLong();
+
+	// published by writer
+	final AtomicLong writePosition = new AtomicLong();
+	final AtomicLong written = new AtomicLong();
+
+	// published by reader, -1 when not reading from the write buffer
+	private final AtomicLong readerClaim = new AtomicLong(-1);
+
+	// only accessed by the writer, the file position of the start of the
+	// write buffer
+	long writerPosition = 0;
+	private RandomAccessFile writeFile;
+
+	// only accessed by the reader, the file position after the bytes read
+	// into the read buffer
+	long readPosition = 0;
+	private RandomAccessFile readFile;
+
+	private volatile boolean unsubscribed = false;
+
+	// set by the subclass constructor
+	private DataOutputStream output;
+	DataInputStream input;
+
+	AbstractFileBasedSPSCQueue(File file, DataSerializer<T> serializer) {
+		Preconditions.checkNotNull(file);
+		Preconditions.checkNotNull(serializer);
+		try {
+			file.getParentFile().mkdirs();
+			file.createNewFile();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		this.file = file;
+		this.serializer = serializer;
+	}
+
+	/**
+	 * Sets the streams that items are serialized to and deserialized from.
+	 * Must be called by the subclass constructor.
+	 *
+	 * @param writer
+	 *            writes to the write buffer and from there to the file
+	 * @param reader
+	 *            reads from the file or the write buffer
+	 */
+	final void setStreams(OutputStream writer, InputStream reader) {
+		this.output = new DataOutputStream(writer);
+		this.input = new DataInputStream(reader);
+	}
+
+	/**
+	 * Returns the file position after the last byte offered (written to the
+	 * file or to the write buffer). Called by the writer.
+	 *
+	 * @return position after the last byte offered
+	 */
+	abstract long offeredPosition();
+
+	/**
+	 * Called by the writer after the write buffer has been written to the
+	 * file. Publishes the new file length {@code end} and waits for the reader
+	 * to release any claim on the write buffer so that it can be reused.
+	 *
+	 * @param end
+	 *            file position after the bytes written
+	 */
+	final void writeBufferWritten(long end) {
+		long wp = writerPosition;
+		writerPosition = end;
+		writePosition.set(end);
+		while (readerClaim.get() == wp) {
+			// the reader is copying from the write buffer, the copy is at
+			// most one buffer length so will not take long
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Called by the reader before copying from the write buffer. If true is
+	 * returned the writer will not reuse the write buffer that starts at file
+	 * position {@code wp} until {@link #releaseWriteBuffer()} is called. If
+	 * false is returned the writer has already written that buffer to the
+	 * file and the reader should read from the file instead.
+	 *
+	 * @param wp
+	 *            value of {@code writePosition} read by the reader
+	 * @return true if the write buffer was claimed
+	 */
+	final boolean claimWriteBuffer(long wp) {
+		readerClaim.set(wp);
+		if (writePosition.get() != wp) {
+			readerClaim.lazySet(-1);
+			return false;
+		} else {
+			return true;
+		}
+	}
+
+	final void releaseWriteBuffer() {
+		readerClaim.lazySet(-1);
+	}
+
+	/**
+	 * Returns the writer's handle on the file, opening it if required. Called
+	 * by the writer.
+	 *
+	 * @return writer's handle on the file
+	 * @throws FileNotFoundException
+	 *             if the file cannot be opened
+	 */
+	final RandomAccessFile writeFile() throws FileNotFoundException {
+		if (writeFile == null) {
+			writeFile = new RandomAccessFile(file, "rw");
+		}
+		return writeFile;
+	}
+
+	/**
+	 * Returns the reader's handle on the file, opening it if required. Called
+	 * by the reader.
+	 *
+	 * @return reader's handle on the file
+	 * @throws FileNotFoundException
+	 *             if the file cannot be opened
+	 */
+	final RandomAccessFile readFile() throws FileNotFoundException {
+		if (readFile == null) {
+			readFile = new RandomAccessFile(file, "r");
+		}
+		return readFile;
+	}
+
+	final void closeWriteFile() {
+		writeFile = close(writeFile);
+	}
+
+	final void closeReadFile() {
+		readFile = close(readFile);
+	}
+
+	private static RandomAccessFile close(RandomAccessFile f) {
+		if (f != null) {
+			try {
+				f.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Called by the reader after an item has been returned by {@code poll()}
+	 * or passed to a {@code drainTo} consumer that has returned.
+	 */
+	void delivered() {
+		// do nothing by default
+	}
+
+	/**
+	 * Returns true if the file should not be deleted on unsubscribe.
+	 *
+	 * @return true if the file should be retained
+	 */
+	boolean retainFileOnUnsubscribe() {
+		return false;
+	}
+
+	/**
+	 * Called on unsubscribe after the file has been closed and before it is
+	 * deleted so that subclasses can release their buffers.
+	 */
+	void releaseBuffers() {
+		// do nothing by default
+	}
+
+	@Override
+	public boolean offer(T t) {
+		// limited thread-safety
+		// offer calls must be sequential but can happen concurrently with other
+		// methods except unsubscribe
+		try {
+			serializer.serialize(output, t);
+			written.lazySet(offeredPosition());
+			size.incrementAndGet();
+			return true;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public T poll() {
+		// limited thread-safety
+		// poll calls must be sequential but can happen concurrently with other
+		// methods except unsubscribe
+		if (size.get() == 0) {
+			// only start reading an item once it has been fully written
+			return null;
+		}
+		try {
+			T t = serializer.deserialize(input);
+			size.decrementAndGet();
+			delivered();
+			if (t == null) {
+				// this is a trick that we can get away with due to type erasure
+				// in java as long as the return value of poll() is checked
+				// using NullSentinel.isNullSentinel(t) (?)
+				return NullSentinel.instance();
+			} else {
+				return t;
+			}
+		} catch (EOFException e) {
+			return null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public int drainTo(Action1<? super T> consumer, int max) {
+		// same thread-safety as poll, size is read once for the batch and
+		// decremented before each item is passed to the consumer so that
+		// size is accurate while the consumer runs
+		int available = (int) Math.min(size.get(), max);
+		int count = 0;
+		try {
+			while (count < available) {
+				T t = serializer.deserialize(input);
+				count++;
+				size.decrementAndGet();
+				if (t == null) {
+					consumer.call(NullSentinel.<T> instance());
+				} else {
+					consumer.call(t);
+				}
+				// only once the consumer has returned so that a checkpoint
+				// never records an item as read before it has been emitted
+				delivered();
+			}
+		} catch (EOFException e) {
+			// return what was read
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return count;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	@Override
+	public void unsubscribe() {
+		// must not run concurrently with offer/poll
+		if (unsubscribed) {
+			return;
+		}
+		unsubscribed = true;
+		try {
+			closeWriteFile();
+			closeReadFile();
+		} finally {
+			releaseBuffers();
+		}
+		if (retainFileOnUnsubscribe()) {
+			return;
+		}
+		size.set(0);
+		if (!file.delete()) {
+			throw new RuntimeException("could not delete file " + file);
+		}
+	}
+
+	@Override
+	public boolean isUnsubscribed() {
+		return unsubscribed;
+	}
+
+	@Override
+	public void freeResources() {
+		// called by the writer when it has finished offering to this queue
+		closeWriteFile();
+	}
+
+	@Override
+	public long resourcesSize() {
+		return writePosition.get();
+	}
+
+	@Override
+	public T element() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public T peek() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int size() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean add(T e) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public T remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Object[] toArray() {
+		throw new UnsupportedOperationException();
+	}
+
+	@SuppressWarnings("hiding")
+	@Override
+	public <T> T[] toArray(T[] a) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends T> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException();
+	}
+
+}
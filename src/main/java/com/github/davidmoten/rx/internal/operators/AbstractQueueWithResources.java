@@ -3,6 +3,8 @@ package com.github.davidmoten.rx.internal.operators;
 import java.util.Collection;
 import java.util.Iterator;
 
+import rx.functions.Action1;
+
 abstract class AbstractQueueWithResources<T> implements QueueWithResources<T> {
 
     private final QueueWithResources<T> q;
@@ -46,6 +48,11 @@ abstract class AbstractQueueWithResources<T> implements QueueWithResources<T> {
         return q.poll();
     }
 
+    @Override
+    public int drainTo(Action1<? super T> consumer, int max) {
+        return q.drainTo(consumer, max);
+    }
+
     @Override
     public T element() {
         return q.element();
@@ -0,0 +1,72 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A pool of direct byte buffers shared by all file based queues. Allocating a
+ * direct buffer is expensive and its memory is only freed when the buffer is
+ * garbage collected so buffers are reused by later queues (for example the
+ * queue created on rollover). At most {@code MAX_POOLED_PER_CAPACITY} buffers
+ * of each capacity are retained.
+ */
+final class DirectByteBufferPool {
+
+	private static final int MAX_POOLED_PER_CAPACITY = 32;
+
+	private static final ConcurrentMap<Integer, BlockingQueue<ByteBuffer>> pools = new ConcurrentHashMap<Integer, BlockingQueue<ByteBuffer>>();
+
+	private DirectByteBufferPool() {
+		// prevent instantiation
+	}
+
+	/**
+	 * Returns a cleared direct buffer of the given capacity from the pool or
+	 * a newly allocated one if the pool has none.
+	 * 
+	 * @param capacity
+	 *            capacity in bytes
+	 * @return direct buffer
+	 */
+	static ByteBuffer acquire(int capacity) {
+		ByteBuffer bb = pool(capacity).poll();
+		if (bb == null) {
+			return ByteBuffer.allocateDirect(capacity);
+		} else {
+			bb.clear();
+			return bb;
+		}
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer (and any duplicates of it) must
+	 * not be used after this call.
+	 * 
+	 * @param bb
+	 *            buffer obtained from {@link #acquire(int)}
+	 */
+	static void release(ByteBuffer bb) {
+		// if the pool is full the buffer is left for the garbage collector
+		pool(bb.capacity()).offer(bb);
+	}
+
+	static int pooled(int capacity) {
+		return pool(capacity).size();
+	}
+
+	private static BlockingQueue<ByteBuffer> pool(int capacity) {
+		BlockingQueue<ByteBuffer> q = pools.get(capacity);
+		if (q == null) {
+			BlockingQueue<ByteBuffer> created = new ArrayBlockingQueue<ByteBuffer>(MAX_POOLED_PER_CAPACITY);
+			q = pools.putIfAbsent(capacity, created);
+			if (q == null) {
+				q = created;
+			}
+		}
+		return q;
+	}
+
+}
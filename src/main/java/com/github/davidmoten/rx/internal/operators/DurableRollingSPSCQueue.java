@@ -0,0 +1,279 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.davidmoten.rx.buffertofile.DataSerializer;
+import com.github.davidmoten.rx.buffertofile.Options;
+import com.github.davidmoten.util.Preconditions;
+
+import rx.Scheduler;
+import rx.Scheduler.Worker;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
+
+/**
+ * <p>
+ * A {@link RollingSPSCQueue} of {@link FileBasedSPSCQueue}s kept in a
+ * directory together with a checkpoint file recording, for each queue file,
+ * the position of the first item not yet delivered (returned by
+ * {@code poll()} or passed to a {@code drainTo} consumer that has returned)
+ * and the position up to which the file has been synced to the storage
+ * device. A checkpoint can run while the reader is part way through a batch
+ * so an item taken from a file but not yet emitted is never recorded as read.
+ *
+ * <p>
+ * Syncs (of the queue files and then the checkpoint) happen every
+ * {@code syncEvery} offers (a group commit), every {@code syncIntervalMs} on a
+ * worker of the given scheduler if anything has been offered since the last
+ * sync (so an idle producer does not leave items unsynced) and on
+ * unsubscribe. A sync and an offer are serialized by a lock. On unsubscribe
+ * queue files with unread items are retained so that a new instance created
+ * on the same directory will return those items first from {@code poll()}.
+ *
+ * <p>
+ * Thread-safety is as for {@link RollingSPSCQueue} with the addition that
+ * {@code unsubscribe()} must not run concurrently with {@code offer()} or
+ * {@code poll()} (wrap with
+ * {@link QueueWithResourcesNonBlockingUnsubscribe}).
+ *
+ * @param <T>
+ *            type of item being queued
+ */
+final class DurableRollingSPSCQueue<T> extends AbstractQueueWithResources<T> {
+
+	static final String CHECKPOINT_FILENAME = "checkpoint";
+	static final String SEGMENT_FILENAME_PREFIX = "segment-";
+	private static final String CHECKPOINT_TEMP_FILENAME = "checkpoint.tmp";
+	private static final int CHECKPOINT_VERSION = 1;
+
+	private final RollingSPSCQueue<T> queue;
+	private final File directory;
+	private final AtomicLong nextSegment;
+	private final long syncEvery;
+	private final Worker worker;
+	private final Object lock = new Object();
+	private final Action1<Collection<QueueWithResources<T>>> checkpoint = new Action1<Collection<QueueWithResources<T>>>() {
+		@Override
+		public void call(Collection<QueueWithResources<T>> queues) {
+			checkpoint(queues);
+		}
+	};
+
+	// guarded by lock, items offered since the last sync
+	private long count;
+
+	private DurableRollingSPSCQueue(final RollingSPSCQueue<T> queue, File directory, AtomicLong nextSegment,
+			long syncEvery, long syncIntervalMs, Scheduler scheduler) {
+		super(queue);
+		this.queue = queue;
+		this.directory = directory;
+		this.nextSegment = nextSegment;
+		this.syncEvery = syncEvery;
+		this.worker = scheduler.createWorker();
+		if (syncIntervalMs != Long.MAX_VALUE) {
+			worker.schedulePeriodically(new Action0() {
+				@Override
+				public void call() {
+					synchronized (lock) {
+						if (count > 0 && !queue.isUnsubscribed()) {
+							sync();
+						}
+					}
+				}
+			}, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Returns a durable queue over the directory in {@code options}, restoring
+	 * the unread items recorded by the checkpoint file if present.
+	 * 
+	 * @param serializer
+	 *            serializes items to file
+	 * @param options
+	 *            buffer options specifying a durable directory
+	 * @param scheduler
+	 *            scheduler whose worker syncs every
+	 *            {@code options.syncIntervalMs()}
+	 * @param <T>
+	 *            type of item being queued
+	 * @return durable queue
+	 */
+	static <T> DurableRollingSPSCQueue<T> create(final DataSerializer<T> serializer, final Options options,
+			Scheduler scheduler) {
+		Preconditions.checkArgument(options.durable(), "options must specify a durable directory");
+		final File directory = options.durableDirectory();
+		directory.mkdirs();
+		List<FileBasedSPSCQueue<T>> restored = new ArrayList<FileBasedSPSCQueue<T>>();
+		Set<String> restoredNames = new HashSet<String>();
+		long next = 0;
+		File checkpointFile = new File(directory, CHECKPOINT_FILENAME);
+		if (checkpointFile.exists()) {
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)));
+				int version = in.readInt();
+				if (version != CHECKPOINT_VERSION) {
+					throw new RuntimeException("unsupported checkpoint version " + version + " in " + checkpointFile);
+				}
+				next = in.readLong();
+				int n = in.readInt();
+				for (int i = 0; i < n; i++) {
+					String name = in.readUTF();
+					long readPosition = in.readLong();
+					long writePosition = in.readLong();
+					File file = new File(directory, name);
+					if (!file.exists()) {
+						throw new RuntimeException("queue file in checkpoint is missing: " + file);
+					}
+					restored.add(FileBasedSPSCQueue.restore(options.bufferSizeBytes(), file, serializer,
+							readPosition, writePosition));
+					restoredNames.add(name);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			} finally {
+				closeQuietly(in);
+			}
+		}
+		// delete queue files not in the checkpoint (their items were not
+		// synced or were all read)
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if ((name.startsWith(SEGMENT_FILENAME_PREFIX) && !restoredNames.contains(name))
+						|| name.equals(CHECKPOINT_TEMP_FILENAME)) {
+					if (!file.delete()) {
+						throw new RuntimeException("could not delete file " + file);
+					}
+				}
+			}
+		}
+		final AtomicLong nextSegment = new AtomicLong(next);
+		Func0<QueueWithResources<T>> queueFactory = new Func0<QueueWithResources<T>>() {
+			@Override
+			public QueueWithResources<T> call() {
+				File file = new File(directory, SEGMENT_FILENAME_PREFIX + nextSegment.getAndIncrement());
+				return new FileBasedSPSCQueue<T>(options.bufferSizeBytes(), file, serializer, true);
+			}
+		};
+		RollingSPSCQueue<T> queue = new RollingSPSCQueue<T>(queueFactory, options.rolloverSizeBytes(),
+				options.rolloverEvery(), restored);
+		return new DurableRollingSPSCQueue<T>(queue, directory, nextSegment, options.syncEvery(),
+				options.syncIntervalMs(), scheduler);
+	}
+
+	@Override
+	public boolean offer(T t) {
+		synchronized (lock) {
+			boolean result = super.offer(t);
+			count++;
+			if (count >= syncEvery) {
+				sync();
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Syncs the queue files and then the checkpoint to the storage device.
+	 * Must not be called concurrently with {@code unsubscribe()}.
+	 */
+	void sync() {
+		synchronized (lock) {
+			queue.withQueues(checkpoint);
+			count = 0;
+		}
+	}
+
+	@Override
+	public boolean isUnsubscribed() {
+		return queue.isUnsubscribed();
+	}
+
+	@Override
+	public void unsubscribe() {
+		if (queue.isUnsubscribed()) {
+			return;
+		}
+		worker.unsubscribe();
+		// record positions so that unread items survive
+		sync();
+		super.unsubscribe();
+	}
+
+	private void checkpoint(Collection<QueueWithResources<T>> queues) {
+		// queue files are synced first so that the checkpoint never refers
+		// to bytes not on the storage device
+		List<FileBasedSPSCQueue<T>> unread = new ArrayList<FileBasedSPSCQueue<T>>(queues.size());
+		for (QueueWithResources<T> q : queues) {
+			FileBasedSPSCQueue<T> fq = (FileBasedSPSCQueue<T>) q;
+			fq.sync();
+			if (fq.deliveredPosition() < fq.syncedPosition()) {
+				unread.add(fq);
+			}
+		}
+		File checkpointFile = new File(directory, CHECKPOINT_FILENAME);
+		if (unread.isEmpty()) {
+			if (checkpointFile.exists() && !checkpointFile.delete()) {
+				throw new RuntimeException("could not delete file " + checkpointFile);
+			}
+			return;
+		}
+		File temp = new File(directory, CHECKPOINT_TEMP_FILENAME);
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(temp);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeInt(CHECKPOINT_VERSION);
+			out.writeLong(nextSegment.get());
+			out.writeInt(unread.size());
+			for (FileBasedSPSCQueue<T> fq : unread) {
+				out.writeUTF(fq.file().getName());
+				out.writeLong(fq.deliveredPosition());
+				out.writeLong(fq.syncedPosition());
+			}
+			out.flush();
+			fos.getFD().sync();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			closeQuietly(fos);
+		}
+		// replace the checkpoint atomically where the platform allows
+		if (!temp.renameTo(checkpointFile)) {
+			checkpointFile.delete();
+			if (!temp.renameTo(checkpointFile)) {
+				throw new RuntimeException("could not rename " + temp + " to " + checkpointFile);
+			}
+		}
+	}
+
+	private static void closeQuietly(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+}
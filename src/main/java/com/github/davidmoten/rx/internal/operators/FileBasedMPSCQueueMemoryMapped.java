@@ -0,0 +1,484 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.github.davidmoten.rx.buffertofile.DataSerializer;
+import com.github.davidmoten.util.ByteArrayOutputStreamNoCopyUnsynchronized;
+import com.github.davidmoten.util.Preconditions;
+
+import rx.functions.Action1;
+import rx.functions.Func0;
+
+/**
+ * <p>
+ * A file based queue that many threads can offer to concurrently and one
+ * thread polls from. Items are stored in a sequence of fixed-size memory
+ * mapped files (segments) as a 4 byte length followed by the serialized item.
+ *
+ * <p>
+ * A producer serializes its item to a thread-local buffer then claims a byte
+ * range of the current segment by CAS on the segment's claimed position and
+ * copies the bytes into the mapped buffer without holding a lock. Ranges are
+ * padded to a multiple of 8 bytes and once its bytes are copied the producer
+ * sets the bit for the start of its range in an in-memory bitset. Producers
+ * never wait for each other except during a segment rollover (see below). The
+ * consumer only reads a range once its bit is set so never sees a partially
+ * written item (the bitset also provides the happens-before relationship for
+ * the bytes in the mapped buffer).
+ *
+ * <p>
+ * When an item does not fit in the current segment the producer that
+ * succeeds in sealing the segment (by CAS of the claimed position to a
+ * negative value) creates the next segment with its item at the start. Other
+ * producers wait for the new segment (if it cannot be created the segment is
+ * unsealed and the error is thrown to the sealing producer). The sealing
+ * producer records where the claimed ranges of the sealed segment end and
+ * links the new segment to it so the consumer knows when to move on. The
+ * consumer deletes a segment once it has read everything in it. An item
+ * larger than the segment size is written to its own segment of sufficient
+ * size.
+ *
+ * <p>
+ * Calls to {@code offer()} may happen concurrently. Calls to {@code poll()}
+ * must be sequential. Calls to {@code offer()}, {@code poll()} and
+ * {@code isEmpty()} may happen concurrently. Calls to {@code unsubscribe()}
+ * must not happen concurrently with other methods (wrap with
+ * {@link QueueWithResourcesNonBlockingUnsubscribe}).
+ *
+ * @param <T>
+ *            type of item being queued
+ */
+final class FileBasedMPSCQueueMemoryMapped<T> implements QueueWithResources<T> {
+
+    private static final int LENGTH_BYTES = 4;
+
+    // ranges start on multiples of this many bytes
+    private static final int ALIGNMENT_BYTES = 8;
+
+    private final Func0<File> factory;
+    private final int segmentSizeBytes;
+    private final DataSerializer<T> serializer;
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong resourcesSize = new AtomicLong();
+    private final ThreadLocal<Serialized> serialized = new ThreadLocal<Serialized>() {
+        @Override
+        protected Serialized initialValue() {
+            return new Serialized();
+        }
+    };
+
+    // the segment producers are claiming ranges in
+    private volatile Segment current;
+
+    // only accessed by the thread calling poll()
+    private Segment reader;
+    private final ReadBufferInputStream readInput = new ReadBufferInputStream();
+    private final DataInputStream input = new DataInputStream(readInput);
+
+    private volatile boolean unsubscribed;
+
+    FileBasedMPSCQueueMemoryMapped(Func0<File> factory, int segmentSizeBytes,
+            DataSerializer<T> serializer) {
+        Preconditions.checkNotNull(factory);
+        Preconditions.checkArgument(segmentSizeBytes >= ALIGNMENT_BYTES,
+                "segmentSizeBytes must be at least " + ALIGNMENT_BYTES);
+        Preconditions.checkNotNull(serializer);
+        this.factory = factory;
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.serializer = serializer;
+        this.current = createSegment(segmentSizeBytes);
+        this.reader = current;
+    }
+
+    private Segment createSegment(int fileSize) {
+        Segment segment = new Segment(factory.call(), fileSize);
+        resourcesSize.addAndGet(fileSize);
+        return segment;
+    }
+
+    private void deleteSegment(Segment segment) {
+        segment.delete();
+        resourcesSize.addAndGet(-segment.fileSize);
+    }
+
+    @Override
+    public boolean offer(T t) {
+        // thread-safe except with unsubscribe
+        Serialized s = serialized.get();
+        s.bytes.reset();
+        try {
+            serializer.serialize(s.output, t);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        int length = s.bytes.size();
+        int recordLength = align(LENGTH_BYTES + length);
+        while (true) {
+            Segment seg = current;
+            int start = seg.claimed.get();
+            if (start < 0) {
+                // another producer is rolling over to a new segment (it
+                // unseals the segment if it fails to create the next one)
+                while (current == seg && seg.claimed.get() < 0) {
+                    if (unsubscribed) {
+                        return true;
+                    }
+                    Thread.yield();
+                }
+            } else if ((long) start + recordLength <= seg.fileSize) {
+                if (seg.claimed.compareAndSet(start, start + recordLength)) {
+                    seg.write(start, s.bytes.toByteArrayNoCopy(), length);
+                    size.incrementAndGet();
+                    return true;
+                }
+            } else if (seg.claimed.compareAndSet(start, -1)) {
+                // this producer sealed the segment so creates the next one
+                // and claims the start of it before other producers can see
+                // it (so a large item is guaranteed to fit)
+                Segment next;
+                try {
+                    next = createSegment(Math.max(segmentSizeBytes, recordLength));
+                } catch (RuntimeException e) {
+                    // unseal so that waiting producers do not wait forever
+                    seg.claimed.set(start);
+                    throw e;
+                } catch (Error e) {
+                    seg.claimed.set(start);
+                    throw e;
+                }
+                next.claimed.set(recordLength);
+                current = next;
+                // end must be set before next so the reader sees it
+                seg.end = start;
+                seg.next = next;
+                next.write(0, s.bytes.toByteArrayNoCopy(), length);
+                size.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    private static int align(int length) {
+        return (length + ALIGNMENT_BYTES - 1) & -ALIGNMENT_BYTES;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    @Override
+    public T poll() {
+        // poll calls must be sequential but can happen concurrently with offer
+        // calls
+        T t = nextItem();
+        if (t != null) {
+            size.decrementAndGet();
+        }
+        return t;
+    }
+
+    @Override
+    public int drainTo(Action1<? super T> consumer, int max) {
+        // same thread-safety as poll, size is decremented before each item
+        // is passed to the consumer so that size is accurate while the
+        // consumer runs
+        int count = 0;
+        while (count < max) {
+            T t = nextItem();
+            if (t == null) {
+                break;
+            }
+            count++;
+            size.decrementAndGet();
+            consumer.call(t);
+        }
+        return count;
+    }
+
+    private T nextItem() {
+        while (true) {
+            if (reader.isWritten(reader.readPosition)) {
+                T t = reader.read();
+                if (t == null) {
+                    // this is a trick that we can get away with due to type
+                    // erasure in java as long as the return value of poll() is
+                    // checked using NullSentinel.isNullSentinel(t) (?)
+                    return NullSentinel.instance();
+                } else {
+                    return t;
+                }
+            } else {
+                // must read next before end
+                Segment next = reader.next;
+                if (next != null && reader.readPosition == reader.end) {
+                    Segment finished = reader;
+                    reader = next;
+                    deleteSegment(finished);
+                } else {
+                    // nothing written yet at the read position
+                    return null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    @Override
+    public void unsubscribe() {
+        // must not run concurrently with offer/poll
+        if (unsubscribed) {
+            return;
+        }
+        unsubscribed = true;
+        Segment seg = reader;
+        while (seg != null) {
+            deleteSegment(seg);
+            seg = seg.next;
+        }
+        size.set(0);
+    }
+
+    @Override
+    public boolean isUnsubscribed() {
+        return unsubscribed;
+    }
+
+    @Override
+    public void freeResources() {
+        // do nothing
+    }
+
+    /**
+     * Returns the total size in bytes of the segment files currently held by
+     * this queue.
+     *
+     * @return total size in bytes of the files held by this queue
+     */
+    @Override
+    public long resourcesSize() {
+        return resourcesSize.get();
+    }
+
+    private final class Segment {
+
+        private final File file;
+        private final int fileSize;
+        private final RandomAccessFile f;
+        private final FileChannel channel;
+        private final MappedByteBuffer mapped;
+        private final ByteBuffer read;
+
+        // the end of the ranges claimed by producers or negative if the
+        // segment has been sealed
+        private final AtomicInteger claimed = new AtomicInteger();
+
+        // a bit for each range start (in units of ALIGNMENT_BYTES) set once
+        // the range has been written
+        private final AtomicLongArray written;
+
+        // the end of the claimed ranges, set before next
+        private volatile int end;
+
+        // set once the segment is sealed
+        private volatile Segment next;
+
+        // only accessed by the reader
+        private int readPosition;
+
+        Segment(File file, int fileSize) {
+            this.file = file;
+            this.fileSize = fileSize;
+            this.written = new AtomicLongArray((fileSize / ALIGNMENT_BYTES + 63) / 64);
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                this.f = raf;
+                this.channel = f.getChannel();
+                this.mapped = channel.map(MapMode.READ_WRITE, 0, fileSize);
+                this.read = mapped.duplicate();
+            } catch (IOException e) {
+                closeQuietly(raf);
+                throw new RuntimeException(e);
+            }
+        }
+
+        void write(int start, byte[] bytes, int length) {
+            // position is per buffer so each producer writes through its own
+            // duplicate
+            ByteBuffer bb = mapped.duplicate();
+            bb.position(start);
+            bb.putInt(length);
+            bb.put(bytes, 0, length);
+            // publish
+            int unit = start / ALIGNMENT_BYTES;
+            int index = unit >> 6;
+            long bit = 1L << (unit & 63);
+            while (true) {
+                long word = written.get(index);
+                if (written.compareAndSet(index, word, word | bit)) {
+                    return;
+                }
+            }
+        }
+
+        boolean isWritten(int position) {
+            if (position >= fileSize) {
+                return false;
+            }
+            int unit = position / ALIGNMENT_BYTES;
+            return (written.get(unit >> 6) & (1L << (unit & 63))) != 0;
+        }
+
+        T read() {
+            read.position(readPosition);
+            int length = read.getInt();
+            readInput.bb = read;
+            try {
+                T t = serializer.deserialize(input);
+                readPosition += align(LENGTH_BYTES + length);
+                return t;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void delete() {
+            try {
+                channel.close();
+                f.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            // release the mapping now rather than when the buffer is garbage
+            // collected so that the disk space is reclaimed (and so that the
+            // file can be deleted at all on Windows)
+            MappedByteBuffers.unmap(mapped);
+            if (!file.delete()) {
+                throw new RuntimeException("could not delete file " + file);
+            }
+        }
+    }
+
+    private static final class Serialized {
+        final ByteArrayOutputStreamNoCopyUnsynchronized bytes = new ByteArrayOutputStreamNoCopyUnsynchronized();
+        final DataOutputStream output = new DataOutputStream(bytes);
+    }
+
+    private static final class ReadBufferInputStream extends InputStream {
+
+        ByteBuffer bb;
+
+        @Override
+        public int read() throws IOException {
+            return bb.get() & 0x000000FF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            bb.get(b, off, len);
+            return len;
+        }
+    }
+
+    @Override
+    public T element() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public T peek() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int size() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean add(T e) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public T remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object[] toArray() {
+        throw new UnsupportedOperationException();
+    }
+
+    @SuppressWarnings("hiding")
+    @Override
+    public <T> T[] toArray(T[] a) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean containsAll(Collection<?> c) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends T> c) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -1,345 +1,320 @@
 package com.github.davidmoten.rx.internal.operators;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
-import java.util.Collection;
-import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.github.davidmoten.rx.buffertofile.DataSerializer;
 import com.github.davidmoten.util.Preconditions;
 
-class FileBasedSPSCQueue<T> implements QueueWithResources<T> {
+/**
+ * <p>
+ * A file based queue with heap read and write buffers. Thread-safety and the
+ * hand off of the write buffer between the writer and the reader are
+ * described in {@link AbstractFileBasedSPSCQueue}.
+ *
+ * @param <T>
+ *            type of item being queued
+ */
+class FileBasedSPSCQueue<T> extends AbstractFileBasedSPSCQueue<T> {
 
-	final File file;
-	final DataSerializer<T> serializer;
-	final AtomicLong size;
 	final byte[] writeBuffer;
 	final byte[] readBuffer;
-	final Object writeLock = new Object();
-	private final Object accessLock = new Object();
-	private final DataOutputStream output;
-	private final DataInputStream input;
+	private final QueueWriter writer;
+	// if true the file is not deleted on unsubscribe if items remain
+	private final boolean retainFile;
 
-	// mutable state
+	// published by reader if retainFile, the position after the last item
+	// returned by poll() or passed to a drainTo consumer that has returned
+	final AtomicLong delivered = new AtomicLong();
 
+	// only accessed by the writer
+	int writeBufferPosition = 0;
+	long syncedPosition = 0;
+
+	// only accessed by the reader
 	int readBufferPosition = 0;
-	long readPosition = 0;
 	int readBufferLength = 0;
-	volatile long writePosition;
-	volatile int writeBufferPosition;
-	// guarded by accessLock
-	private FileAccessor accessor;
-	private volatile boolean unsubscribed = false;
 
 	FileBasedSPSCQueue(int bufferSizeBytes, File file, DataSerializer<T> serializer) {
+		this(bufferSizeBytes, file, serializer, false);
+	}
+
+	FileBasedSPSCQueue(int bufferSizeBytes, File file, DataSerializer<T> serializer, boolean retainFile) {
+		super(file, serializer);
 		Preconditions.checkArgument(bufferSizeBytes > 0, "bufferSizeBytes must be greater than zero");
-		Preconditions.checkNotNull(file);
-		Preconditions.checkNotNull(serializer);
 		this.readBuffer = new byte[bufferSizeBytes];
 		this.writeBuffer = new byte[bufferSizeBytes];
+		this.writer = new QueueWriter();
+		setStreams(writer, new QueueReader());
+		this.retainFile = retainFile;
+	}
+
+	/**
+	 * Returns a queue over the items of an existing file that were written
+	 * before {@code writePosition} and not read before {@code readPosition}.
+	 * The file is retained on unsubscribe if items remain. The returned queue
+	 * should not be offered more items (its unsynced bytes beyond
+	 * {@code writePosition} are discarded).
+	 * 
+	 * @param bufferSizeBytes
+	 *            read and write buffer size
+	 * @param file
+	 *            existing file
+	 * @param serializer
+	 *            serializer used to write the file
+	 * @param readPosition
+	 *            position of the first unread item
+	 * @param writePosition
+	 *            position after the last item written
+	 * @param <T>
+	 *            item type
+	 * @return queue over the unread items of the file
+	 */
+	static <T> FileBasedSPSCQueue<T> restore(int bufferSizeBytes, File file, DataSerializer<T> serializer,
+			long readPosition, long writePosition) {
+		FileBasedSPSCQueue<T> q = new FileBasedSPSCQueue<T>(bufferSizeBytes, file, serializer, true);
+		q.writerPosition = writePosition;
+		q.syncedPosition = writePosition;
+		q.writePosition.set(writePosition);
+		q.written.set(writePosition);
+		q.readPosition = readPosition;
+		// count the items by reading them
+		long count = 0;
 		try {
-			file.getParentFile().mkdirs();
-			file.createNewFile();
-			this.file = file;
+			while (q.consumedPosition() < writePosition) {
+				serializer.deserialize(q.input);
+				count++;
+			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-		this.accessor = new FileAccessor(file);
-		this.serializer = serializer;
-		this.size = new AtomicLong(0);
-		this.output = new DataOutputStream(new QueueWriter());
-		this.input = new DataInputStream(new QueueReader());
+		q.readPosition = readPosition;
+		q.readBufferPosition = 0;
+		q.readBufferLength = 0;
+		q.delivered.set(readPosition);
+		q.size.set(count);
+		return q;
 	}
 
-	private final static class FileAccessor {
-		final RandomAccessFile fWrite;
-		final RandomAccessFile fRead;
-
-		FileAccessor(File file) {
-			try {
-				this.fWrite = new RandomAccessFile(file, "rw");
-				this.fRead = new RandomAccessFile(file, "r");
-			} catch (FileNotFoundException e) {
-				throw new RuntimeException(e);
-			}
-		}
-
-		public void close() {
-			try {
-				fWrite.close();
-				fRead.close();
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-		}
+	File file() {
+		return file;
 	}
 
-	private final class QueueWriter extends OutputStream {
-
-		@Override
-		public void write(int b) throws IOException {
-			// minimize reads of volatile writeBufferPosition
-			int wbp = writeBufferPosition;
-			if (wbp < writeBuffer.length) {
-				writeBuffer[wbp] = (byte) b;
-				writeBufferPosition = wbp + 1;
-			} else
-				synchronized (writeLock) {
-					// minimize reads of volatile writePosition
-					long wp = writePosition;
-					accessor.fWrite.seek(wp);
-					accessor.fWrite.write(writeBuffer);
-					writeBuffer[0] = (byte) b;
-					writeBufferPosition = 1;
-					writePosition = wp + writeBuffer.length;
-				}
-		}
+	/**
+	 * Returns the position in the file of the first item not yet polled. Must
+	 * be called from the thread calling {@code poll()}.
+	 * 
+	 * @return position of the first item not yet polled
+	 */
+	long consumedPosition() {
+		return readPosition - (readBufferLength - readBufferPosition);
 	}
 
-	// create the exception once to avoid building many Exception objects
-	private static final EOFException EOF = new EOFException();
-
-	private final class QueueReader extends InputStream {
-
-		@Override
-		public int read() throws IOException {
-			if (size.get() == 0) {
-				throw EOF;
-			} else {
-				if (readBufferPosition < readBufferLength) {
-					byte b = readBuffer[readBufferPosition];
-					readBufferPosition++;
-					return toUnsignedInteger(b);
-				} else {
-					// before reading more from file we see if we can emit
-					// directly from the writeBuffer by checking if the read
-					// position is past the write position
-					while (true) {
-						long wp;
-						int wbp;
-						synchronized (writeLock) {
-							wp = writePosition;
-							wbp = writeBufferPosition;
-						}
-						long over = wp - readPosition;
-						if (over > 0) {
-							// read position is not past the write position
-							readBufferLength = (int) Math.min(readBuffer.length, over);
-							synchronized (accessLock) {
-								if (accessor == null) {
-									accessor = new FileAccessor(file);
-								}
-								accessor.fRead.seek(readPosition);
-								accessor.fRead.read(readBuffer, 0, readBufferLength);
-							}
-							readPosition += readBufferLength;
-							readBufferPosition = 1;
-							return toUnsignedInteger(readBuffer[0]);
-						} else {
-							// read position is at or past the write position
-							int index = -(int) over;
-							if (index >= writeBuffer.length) {
-								throw EOF;
-							} else {
-								int b = toUnsignedInteger(writeBuffer[index]);
-								final boolean writeBufferUnchanged;
-								synchronized (writeLock) {
-									writeBufferUnchanged = wp == writePosition && wbp == writeBufferPosition;
-									// if (writeBufferUnchanged) {
-									// // reset write buffer a bit and the
-									// readPosition so that we avoid writing
-									// // the full contents of the write buffer
-									// if (index >= writeBuffer.length / 2 &&
-									// index < writeBufferPosition) {
-									// System.arraycopy(writeBuffer, index + 1,
-									// writeBuffer, 0,
-									// writeBufferPosition - index - 1);
-									// writeBufferPosition -= index + 1;
-									// readPosition = writePosition;
-									// } else {
-									// readPosition++;
-									// }
-									// }
-								}
-								if (writeBufferUnchanged) {
-									readPosition++;
-									return b;
-								}
-							}
-						}
-					}
-				}
-			}
-		}
+	/**
+	 * Returns the position in the file of the first item not yet delivered,
+	 * that is not returned by {@code poll()} and not passed to a
+	 * {@code drainTo} consumer that has returned. Only maintained if the file
+	 * is retained (durable). May be called from any thread.
+	 * 
+	 * @return position of the first item not yet delivered
+	 */
+	long deliveredPosition() {
+		return delivered.get();
 	}
 
-	private static int toUnsignedInteger(byte b) {
-		return b & 0x000000FF;
+	/**
+	 * Returns the position in the file up to which items have been synced to
+	 * the storage device. Must be called from the thread calling
+	 * {@code offer()}.
+	 * 
+	 * @return synced position
+	 */
+	long syncedPosition() {
+		return syncedPosition;
 	}
 
-	@Override
-	public void unsubscribe() {
-		// must not run concurrently with offer/poll
-		if (unsubscribed) {
+	/**
+	 * Writes everything offered so far to the file and forces it to the
+	 * storage device. Must be called from the thread calling {@code offer()}.
+	 */
+	void sync() {
+		if (syncedPosition == writerPosition + writeBufferPosition) {
 			return;
 		}
-		unsubscribed = true;
-		synchronized (accessLock) {
-			if (accessor != null) {
-				accessor.close();
-				accessor = null;
+		try {
+			if (writeBufferPosition > 0) {
+				writer.flush(writeBuffer, 0, 0);
 			}
-			size.set(0);
-		}
-		if (!file.delete()) {
-			throw new RuntimeException("could not delete file " + file);
+			writeFile().getFD().sync();
+			syncedPosition = writerPosition;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
 	}
 
-	@Override
-	public boolean isUnsubscribed() {
-		return unsubscribed;
-	}
+	private final class QueueWriter extends OutputStream {
 
-	@Override
-	public boolean offer(T t) {
-		// limited thread-safety
-		// offer calls must be sequential but can happen concurrently with other
-		// methods except unsubscribe
-		try {
-			serializer.serialize(output, t);
-			size.incrementAndGet();
-			return true;
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+		@Override
+		public void write(int b) throws IOException {
+			if (writeBufferPosition == writeBuffer.length) {
+				flush(writeBuffer, 0, 0);
+			}
+			writeBuffer[writeBufferPosition] = (byte) b;
+			writeBufferPosition++;
 		}
-	}
 
-	@Override
-	public T poll() {
-		// limited thread-safety
-		// poll calls must be sequential but can happen concurrently with other
-		// methods except unsubscribe
-		try {
-			T t = serializer.deserialize(input);
-			size.decrementAndGet();
-			if (t == null) {
-				// this is a trick that we can get away with due to type erasure
-				// in java as long as the return value of poll() is checked
-				// using NullSentinel.isNullSentinel(t) (?)
-				return NullSentinel.instance();
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			int wbp = writeBufferPosition;
+			if (len <= writeBuffer.length - wbp) {
+				System.arraycopy(b, off, writeBuffer, wbp, len);
+				writeBufferPosition = wbp + len;
 			} else {
-				return t;
+				// top up the write buffer so that it is flushed as one
+				// block
+				int n = writeBuffer.length - wbp;
+				System.arraycopy(b, off, writeBuffer, wbp, n);
+				writeBufferPosition = writeBuffer.length;
+				off += n;
+				len -= n;
+				if (len < writeBuffer.length) {
+					flush(b, off, 0);
+					System.arraycopy(b, off, writeBuffer, 0, len);
+					writeBufferPosition = len;
+				} else {
+					// large writes bypass the write buffer
+					flush(b, off, len);
+				}
 			}
-		} catch (EOFException e) {
-			return null;
-		} catch (IOException e) {
-			throw new RuntimeException(e);
 		}
-	}
-
-	@Override
-	public boolean isEmpty() {
-		return size.get() == 0;
-	}
 
-	@Override
-	public void freeResources() {
-		synchronized (accessLock) {
-			if (accessor != null) {
-				accessor.close();
+		/**
+		 * Writes the write buffer followed by {@code len} bytes of {@code b}
+		 * to the file and waits for the reader to release any claim on the
+		 * write buffer so that it can be reused.
+		 */
+		private void flush(byte[] b, int off, int len) throws IOException {
+			long wp = writerPosition;
+			RandomAccessFile f = writeFile();
+			f.seek(wp);
+			f.write(writeBuffer, 0, writeBufferPosition);
+			if (len > 0) {
+				f.write(b, off, len);
 			}
-			accessor = null;
+			long end = wp + writeBufferPosition + len;
+			writeBufferPosition = 0;
+			writeBufferWritten(end);
 		}
-	}
 
-	@Override
-	public long resourcesSize() {
-		return writePosition;
 	}
 
 	@Override
-	public T element() {
-		throw new UnsupportedOperationException();
+	long offeredPosition() {
+		return writerPosition + writeBufferPosition;
 	}
 
-	@Override
-	public T peek() {
-		throw new UnsupportedOperationException();
-	}
-
-	@Override
-	public int size() {
-		throw new UnsupportedOperationException();
-	}
-
-	@Override
-	public boolean add(T e) {
-		throw new UnsupportedOperationException();
-	}
-
-	@Override
-	public T remove() {
-		throw new UnsupportedOperationException();
-	}
-
-	@Override
-	public boolean contains(Object o) {
-		throw new UnsupportedOperationException();
-	}
-
-	@Override
-	public Iterator<T> iterator() {
-		throw new UnsupportedOperationException();
-	}
+	// create the exception once to avoid building many Exception objects
+	private static final EOFException EOF = new EOFException();
 
-	@Override
-	public Object[] toArray() {
-		throw new UnsupportedOperationException();
-	}
+	private final class QueueReader extends InputStream {
 
-	@SuppressWarnings("hiding")
-	@Override
-	public <T> T[] toArray(T[] a) {
-		throw new UnsupportedOperationException();
-	}
+		@Override
+		public int read() throws IOException {
+			if (readBufferPosition == readBufferLength && !fillReadBuffer()) {
+				throw EOF;
+			}
+			byte b = readBuffer[readBufferPosition];
+			readBufferPosition++;
+			return toUnsignedInteger(b);
+		}
 
-	@Override
-	public boolean remove(Object o) {
-		throw new UnsupportedOperationException();
-	}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (readBufferPosition == readBufferLength) {
+				long over = writePosition.get() - readPosition;
+				if (len >= readBuffer.length && over > 0) {
+					// large reads bypass the read buffer
+					int n = (int) Math.min(len, over);
+					readFromFile(b, off, n);
+					readPosition += n;
+					return n;
+				} else if (!fillReadBuffer()) {
+					throw EOF;
+				}
+			}
+			int n = Math.min(len, readBufferLength - readBufferPosition);
+			System.arraycopy(readBuffer, readBufferPosition, b, off, n);
+			readBufferPosition += n;
+			return n;
+		}
 
-	@Override
-	public boolean containsAll(Collection<?> c) {
-		throw new UnsupportedOperationException();
-	}
+		/**
+		 * Fills the read buffer from the file or, if everything in the file
+		 * has been read, from the write buffer.
+		 * 
+		 * @return false if and only if no more bytes are available
+		 */
+		private boolean fillReadBuffer() throws IOException {
+			while (true) {
+				long wp = writePosition.get();
+				long over = wp - readPosition;
+				final int n;
+				if (over > 0) {
+					// read position is not past the write position
+					n = (int) Math.min(readBuffer.length, over);
+					readFromFile(readBuffer, 0, n);
+				} else {
+					// read position is at or past the write position so
+					// claim the write buffer then check that the writer
+					// hasn't flushed it in the meantime
+					if (!claimWriteBuffer(wp)) {
+						continue;
+					}
+					n = (int) Math.min(readBuffer.length, written.get() - readPosition);
+					if (n > 0) {
+						System.arraycopy(writeBuffer, (int) (readPosition - wp), readBuffer, 0, n);
+					}
+					releaseWriteBuffer();
+					if (n <= 0) {
+						return false;
+					}
+				}
+				readPosition += n;
+				readBufferPosition = 0;
+				readBufferLength = n;
+				return true;
+			}
+		}
 
-	@Override
-	public boolean addAll(Collection<? extends T> c) {
-		throw new UnsupportedOperationException();
+		private void readFromFile(byte[] b, int off, int len) throws IOException {
+			RandomAccessFile f = readFile();
+			f.seek(readPosition);
+			f.readFully(b, off, len);
+		}
 	}
 
-	@Override
-	public boolean removeAll(Collection<?> c) {
-		throw new UnsupportedOperationException();
+	private static int toUnsignedInteger(byte b) {
+		return b & 0x000000FF;
 	}
 
 	@Override
-	public boolean retainAll(Collection<?> c) {
-		throw new UnsupportedOperationException();
+	void delivered() {
+		if (retainFile) {
+			delivered.lazySet(consumedPosition());
+		}
 	}
 
 	@Override
-	public void clear() {
-		throw new UnsupportedOperationException();
+	boolean retainFileOnUnsubscribe() {
+		return retainFile && size.get() > 0;
 	}
 
 }
@@ -0,0 +1,539 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.github.davidmoten.rx.buffertofile.DataSerializer;
+import com.github.davidmoten.util.ByteArrayOutputStreamNoCopyUnsynchronized;
+import com.github.davidmoten.util.Preconditions;
+
+import rx.functions.Action1;
+
+/**
+ * <p>
+ * A file based queue that writes items to file as compressed blocks. Items are
+ * serialized into an in-memory block and once the unread part of the block
+ * reaches {@code blockSizeBytes} it is compressed with a {@link Deflater} and
+ * appended to the file with a header of the compressed and uncompressed
+ * lengths. Items never span blocks.
+ *
+ * <p>
+ * The reader reads and decompresses blocks from the file in order and once it
+ * has caught up with the file it copies the unread part of the in-memory block
+ * so a consumer that keeps up never causes a write to the file.
+ *
+ * <p>
+ * The lock is only held to append a serialized item to the in-memory block, to
+ * hand a full block to the writer and to publish the new file length.
+ * Serialization, compression, decompression and file access happen without
+ * it (the writer and the reader have their own file handles).
+ *
+ * <p>
+ * {@code FileBasedSPSCQueueCompressed} is partially thread-safe. Calls to
+ * {@code offer()} must be sequential (a happens-before relationship), and calls
+ * to {@code poll()} must be sequential. Calls to {@code offer()},
+ * {@code poll()} and {@code isEmpty()} may happen concurrently. Calls to
+ * {@code unsubscribe()} must not happen concurrently with other methods (wrap
+ * with {@link QueueWithResourcesNonBlockingUnsubscribe}).
+ *
+ * @param <T>
+ *            type of item being queued
+ */
+final class FileBasedSPSCQueueCompressed<T> implements QueueWithResources<T> {
+
+	// compressed length and uncompressed length
+	private static final int HEADER_BYTES = 8;
+
+	private final File file;
+	private final DataSerializer<T> serializer;
+	private final int blockSizeBytes;
+	private final int level;
+	private final AtomicLong size = new AtomicLong();
+
+	private final Object lock = new Object();
+
+	// guarded by lock, the in-memory block shared by the writer and the reader
+	private ByteArrayOutputStreamNoCopyUnsynchronized block;
+	private int blockReadPosition;
+
+	// written under lock, read without lock by resourcesSize()
+	private volatile long writePosition;
+
+	private volatile boolean unsubscribed;
+
+	// only accessed by the writer, items are serialized and compressed and
+	// blocks written to file without holding the lock
+	private final ByteArrayOutputStreamNoCopyUnsynchronized item;
+	private final DataOutputStream itemOutput;
+	private ByteArrayOutputStreamNoCopyUnsynchronized spareBlock;
+	private RandomAccessFile writeFile;
+	private Deflater deflater;
+	private byte[] compressed = new byte[0];
+	private final byte[] header = new byte[HEADER_BYTES];
+
+	// only accessed by the reader
+	private RandomAccessFile readFile;
+	private long readPosition;
+	private Inflater inflater;
+	private final byte[] readHeader = new byte[HEADER_BYTES];
+	private byte[] readCompressed = new byte[0];
+	private byte[] readBuffer = new byte[0];
+	private int readBufferPosition;
+	private int readBufferLength;
+	private final DataInputStream input;
+
+	FileBasedSPSCQueueCompressed(int blockSizeBytes, int level, File file, DataSerializer<T> serializer) {
+		Preconditions.checkArgument(blockSizeBytes > 0, "blockSizeBytes must be greater than zero");
+		Preconditions.checkNotNull(file);
+		Preconditions.checkNotNull(serializer);
+		try {
+			file.getParentFile().mkdirs();
+			file.createNewFile();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		this.file = file;
+		this.serializer = serializer;
+		this.blockSizeBytes = blockSizeBytes;
+		this.level = level;
+		this.block = new ByteArrayOutputStreamNoCopyUnsynchronized(blockSizeBytes);
+		this.spareBlock = new ByteArrayOutputStreamNoCopyUnsynchronized(blockSizeBytes);
+		this.item = new ByteArrayOutputStreamNoCopyUnsynchronized();
+		this.itemOutput = new DataOutputStream(item);
+		this.input = new DataInputStream(new BlockReader());
+	}
+
+	@Override
+	public boolean offer(T t) {
+		// limited thread-safety
+		// offer calls must be sequential but can happen concurrently with other
+		// methods except unsubscribe
+		try {
+			item.reset();
+			serializer.serialize(itemOutput, t);
+			ByteArrayOutputStreamNoCopyUnsynchronized full;
+			int offset;
+			synchronized (lock) {
+				if (blockReadPosition > 0 && blockReadPosition == block.size()) {
+					// the reader has taken everything in the block
+					block.reset();
+					blockReadPosition = 0;
+				}
+				block.write(item.toByteArrayNoCopy(), 0, item.size());
+				size.incrementAndGet();
+				if (block.size() - blockReadPosition >= blockSizeBytes) {
+					offset = blockReadPosition;
+					full = takeBlock();
+				} else {
+					full = null;
+					offset = 0;
+				}
+			}
+			if (full != null) {
+				writeBlock(full, offset);
+			}
+			return true;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Hands the in-memory block to the writer and replaces it with the spare
+	 * block. Until the writer has written the taken block to file and advanced
+	 * {@code writePosition} the reader sees neither those items nor any items
+	 * after them (offer is sequential) so order is preserved.
+	 * 
+	 * @return the block that was in use
+	 */
+	// must hold lock
+	private ByteArrayOutputStreamNoCopyUnsynchronized takeBlock() {
+		ByteArrayOutputStreamNoCopyUnsynchronized full = block;
+		block = spareBlock;
+		blockReadPosition = 0;
+		spareBlock = null;
+		return full;
+	}
+
+	// called by the writer without holding the lock. The taken block becomes
+	// the spare block again even if compression or the write fails so that
+	// the next takeBlock() does not leave the in-memory block null
+	private void writeBlock(ByteArrayOutputStreamNoCopyUnsynchronized full, int offset) throws IOException {
+		try {
+			int len = full.size() - offset;
+			if (len > 0) {
+				if (deflater == null) {
+					deflater = new Deflater(level);
+				}
+				deflater.reset();
+				deflater.setInput(full.toByteArrayNoCopy(), offset, len);
+				deflater.finish();
+				if (compressed.length < len + len / 8 + 64) {
+					compressed = new byte[len + len / 8 + 64];
+				}
+				int n = 0;
+				while (!deflater.finished()) {
+					if (n == compressed.length) {
+						byte[] bigger = new byte[compressed.length * 2];
+						System.arraycopy(compressed, 0, bigger, 0, n);
+						compressed = bigger;
+					}
+					n += deflater.deflate(compressed, n, compressed.length - n);
+				}
+				writeInt(header, 0, n);
+				writeInt(header, 4, len);
+				if (writeFile == null) {
+					writeFile = new RandomAccessFile(file, "rw");
+				}
+				// only the writer changes writePosition
+				long position = writePosition;
+				writeFile.seek(position);
+				writeFile.write(header);
+				writeFile.write(compressed, 0, n);
+				synchronized (lock) {
+					writePosition = position + HEADER_BYTES + n;
+				}
+			}
+		} finally {
+			full.reset();
+			spareBlock = full;
+		}
+	}
+
+	@Override
+	public T poll() {
+		// limited thread-safety
+		// poll calls must be sequential but can happen concurrently with other
+		// methods except unsubscribe
+		if (size.get() == 0) {
+			return null;
+		}
+		try {
+			if (readBufferPosition == readBufferLength && !fillReadBuffer()) {
+				return null;
+			}
+			T t = serializer.deserialize(input);
+			size.decrementAndGet();
+			if (t == null) {
+				// this is a trick that we can get away with due to type erasure
+				// in java as long as the return value of poll() is checked
+				// using NullSentinel.isNullSentinel(t) (?)
+				return NullSentinel.instance();
+			} else {
+				return t;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public int drainTo(Action1<? super T> consumer, int max) {
+		// same thread-safety as poll, size is read once for the batch and
+		// decremented before each item is passed to the consumer so that
+		// size is accurate while the consumer runs
+		int available = (int) Math.min(size.get(), max);
+		int count = 0;
+		try {
+			while (count < available) {
+				if (readBufferPosition == readBufferLength && !fillReadBuffer()) {
+					break;
+				}
+				T t = serializer.deserialize(input);
+				count++;
+				size.decrementAndGet();
+				if (t == null) {
+					consumer.call(NullSentinel.<T> instance());
+				} else {
+					consumer.call(t);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return count;
+	}
+
+	/**
+	 * Fills the read buffer with the next block from the file or, if
+	 * everything in the file has been read, with the unread part of the
+	 * in-memory block. Only the copy of the in-memory block happens while
+	 * holding the lock, the file is read with the reader's own file handle
+	 * and decompressed without it.
+	 *
+	 * @return false if and only if no more bytes are available
+	 */
+	private boolean fillReadBuffer() throws IOException {
+		if (unsubscribed) {
+			return false;
+		}
+		synchronized (lock) {
+			if (readPosition == writePosition) {
+				int length = block.size() - blockReadPosition;
+				if (length == 0) {
+					return false;
+				}
+				ensureReadBufferCapacity(length);
+				System.arraycopy(block.toByteArrayNoCopy(), blockReadPosition, readBuffer, 0, length);
+				blockReadPosition += length;
+				readBufferPosition = 0;
+				readBufferLength = length;
+				return true;
+			}
+		}
+		// the bytes before writePosition have been written by the writer (the
+		// lock gives a happens-before) and are never written again
+		if (readFile == null) {
+			readFile = new RandomAccessFile(file, "r");
+		}
+		readFile.seek(readPosition);
+		readFile.readFully(readHeader);
+		int compressedLength = readInt(readHeader, 0);
+		int length = readInt(readHeader, 4);
+		if (readCompressed.length < compressedLength) {
+			readCompressed = new byte[compressedLength];
+		}
+		readFile.readFully(readCompressed, 0, compressedLength);
+		readPosition += HEADER_BYTES + compressedLength;
+		ensureReadBufferCapacity(length);
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		inflater.reset();
+		inflater.setInput(readCompressed, 0, compressedLength);
+		try {
+			int n = 0;
+			while (n < length) {
+				int count = inflater.inflate(readBuffer, n, length - n);
+				if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("compressed block at position "
+							+ (readPosition - HEADER_BYTES - compressedLength) + " in " + file + " is corrupt");
+				}
+				n += count;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		}
+		readBufferPosition = 0;
+		readBufferLength = length;
+		return true;
+	}
+
+	private void ensureReadBufferCapacity(int length) {
+		if (readBuffer.length < length) {
+			readBuffer = new byte[Math.max(length, blockSizeBytes)];
+		}
+	}
+
+	private static void writeInt(byte[] b, int off, int v) {
+		b[off] = (byte) (v >>> 24);
+		b[off + 1] = (byte) (v >>> 16);
+		b[off + 2] = (byte) (v >>> 8);
+		b[off + 3] = (byte) v;
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8)
+				| (b[off + 3] & 0xFF);
+	}
+
+	// create the exception once to avoid building many Exception objects
+	private static final EOFException EOF = new EOFException();
+
+	private final class BlockReader extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			if (readBufferPosition == readBufferLength) {
+				// items never span blocks
+				throw EOF;
+			}
+			return readBuffer[readBufferPosition++] & 0x000000FF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (readBufferPosition == readBufferLength) {
+				throw EOF;
+			}
+			int n = Math.min(len, readBufferLength - readBufferPosition);
+			System.arraycopy(readBuffer, readBufferPosition, b, off, n);
+			readBufferPosition += n;
+			return n;
+		}
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	@Override
+	public void unsubscribe() {
+		// must not run concurrently with offer/poll
+		if (unsubscribed) {
+			return;
+		}
+		unsubscribed = true;
+		writeFile = close(writeFile);
+		readFile = close(readFile);
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+		if (inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+		size.set(0);
+		if (!file.delete()) {
+			throw new RuntimeException("could not delete file " + file);
+		}
+	}
+
+	@Override
+	public boolean isUnsubscribed() {
+		return unsubscribed;
+	}
+
+	/**
+	 * Called by the writer when it has finished offering to this queue. The
+	 * unread part of the in-memory block is written to the file and the
+	 * writer's file handle and compressor are released.
+	 */
+	@Override
+	public void freeResources() {
+		if (unsubscribed) {
+			return;
+		}
+		ByteArrayOutputStreamNoCopyUnsynchronized full;
+		int offset;
+		synchronized (lock) {
+			offset = blockReadPosition;
+			full = takeBlock();
+		}
+		try {
+			writeBlock(full, offset);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		writeFile = close(writeFile);
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+	}
+
+	private static RandomAccessFile close(RandomAccessFile f) {
+		if (f != null) {
+			try {
+				f.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the length of the file which is the total size of the
+	 * compressed blocks written so far.
+	 *
+	 * @return length of the file
+	 */
+	@Override
+	public long resourcesSize() {
+		return writePosition;
+	}
+
+	@Override
+	public T element() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public T peek() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int size() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean add(T e) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public T remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Object[] toArray() {
+		throw new UnsupportedOperationException();
+	}
+
+	@SuppressWarnings("hiding")
+	@Override
+	public <T> T[] toArray(T[] a) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends T> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException();
+	}
+
+}
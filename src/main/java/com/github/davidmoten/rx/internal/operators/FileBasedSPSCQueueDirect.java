@@ -0,0 +1,228 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+
+import com.github.davidmoten.rx.buffertofile.DataSerializer;
+import com.github.davidmoten.util.Preconditions;
+
+/**
+ * <p>
+ * A file based queue like {@link FileBasedSPSCQueue} whose read and write
+ * buffers are direct (off-heap) buffers taken from
+ * {@link DirectByteBufferPool}. The write buffer is written to file and the
+ * read buffer is filled from file with {@link FileChannel} at explicit
+ * positions so the JDK does not copy the bytes to or from native memory and
+ * large buffers do not occupy the heap. The buffers are returned to the pool
+ * on unsubscribe.
+ *
+ * <p>
+ * Thread-safety and the hand off of the write buffer between the writer and
+ * the reader are described in {@link AbstractFileBasedSPSCQueue}. The writer
+ * and the reader use their own file handles without a lock. A read or write
+ * whose channel is closed by an interrupt of the calling thread is repeated
+ * with a reopened file.
+ *
+ * @param <T>
+ *            type of item being queued
+ */
+final class FileBasedSPSCQueueDirect<T> extends AbstractFileBasedSPSCQueue<T> {
+
+	private final ByteBuffer writeBuffer;
+	private final ByteBuffer readBuffer;
+
+	// only accessed by the reader, a view of the write buffer with its own
+	// position and limit
+	private final ByteBuffer writeBufferView;
+
+	FileBasedSPSCQueueDirect(int bufferSizeBytes, File file, DataSerializer<T> serializer) {
+		super(file, serializer);
+		Preconditions.checkArgument(bufferSizeBytes > 0, "bufferSizeBytes must be greater than zero");
+		this.writeBuffer = DirectByteBufferPool.acquire(bufferSizeBytes);
+		this.readBuffer = DirectByteBufferPool.acquire(bufferSizeBytes);
+		// nothing to read yet
+		this.readBuffer.limit(0);
+		this.writeBufferView = writeBuffer.duplicate();
+		setStreams(new QueueWriter(), new QueueReader());
+	}
+
+	@Override
+	long offeredPosition() {
+		return writerPosition + writeBuffer.position();
+	}
+
+	private final class QueueWriter extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!writeBuffer.hasRemaining()) {
+				writeBufferToFile();
+			}
+			writeBuffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (true) {
+				int n = Math.min(len, writeBuffer.remaining());
+				writeBuffer.put(b, off, n);
+				off += n;
+				len -= n;
+				if (len == 0) {
+					return;
+				}
+				// bytes spanning buffers are copied into the write buffer in
+				// chunks (writing from the heap array would be copied by the
+				// JDK anyway)
+				writeBufferToFile();
+			}
+		}
+
+		/**
+		 * Writes the write buffer to the file and waits for the reader to
+		 * release any claim on the write buffer so that it can be reused.
+		 */
+		private void writeBufferToFile() throws IOException {
+			long wp = writerPosition;
+			writeBuffer.flip();
+			boolean interrupted = false;
+			try {
+				while (writeBuffer.hasRemaining()) {
+					try {
+						writeFile().getChannel().write(writeBuffer, wp + writeBuffer.position());
+					} catch (ClosedByInterruptException e) {
+						interrupted = true;
+						clearInterrupt();
+						closeWriteFile();
+					}
+				}
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			long end = wp + writeBuffer.limit();
+			writeBuffer.clear();
+			writeBufferWritten(end);
+		}
+	}
+
+	// create the exception once to avoid building many Exception objects
+	private static final EOFException EOF = new EOFException();
+
+	private final class QueueReader extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			if (!readBuffer.hasRemaining() && !fillReadBuffer()) {
+				throw EOF;
+			}
+			return readBuffer.get() & 0x000000FF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!readBuffer.hasRemaining() && !fillReadBuffer()) {
+				throw EOF;
+			}
+			int n = Math.min(len, readBuffer.remaining());
+			readBuffer.get(b, off, n);
+			return n;
+		}
+
+		/**
+		 * Fills the read buffer from the file or, if everything in the file
+		 * has been read, from the write buffer.
+		 *
+		 * @return false if and only if no more bytes are available
+		 */
+		private boolean fillReadBuffer() throws IOException {
+			while (true) {
+				long wp = writePosition.get();
+				long over = wp - readPosition;
+				readBuffer.clear();
+				final int n;
+				if (over > 0) {
+					// read position is not past the write position
+					n = (int) Math.min(readBuffer.capacity(), over);
+					readBuffer.limit(n);
+					readFromFile();
+				} else {
+					// read position is at or past the write position so
+					// claim the write buffer then check that the writer
+					// hasn't flushed it in the meantime
+					if (!claimWriteBuffer(wp)) {
+						continue;
+					}
+					n = (int) Math.min(readBuffer.capacity(), written.get() - readPosition);
+					if (n > 0) {
+						int start = (int) (readPosition - wp);
+						writeBufferView.limit(start + n);
+						writeBufferView.position(start);
+						readBuffer.put(writeBufferView);
+					}
+					releaseWriteBuffer();
+					if (n <= 0) {
+						readBuffer.limit(0);
+						return false;
+					}
+				}
+				readPosition += n;
+				readBuffer.flip();
+				return true;
+			}
+		}
+
+		private void readFromFile() throws IOException {
+			// the read buffer position is advanced by the bytes read so it
+			// gives the file position to read from next
+			long start = readPosition;
+			boolean interrupted = false;
+			try {
+				while (readBuffer.hasRemaining()) {
+					try {
+						int n = readFile().getChannel().read(readBuffer, start + readBuffer.position());
+						if (n < 0) {
+							throw EOF;
+						}
+					} catch (ClosedByInterruptException e) {
+						interrupted = true;
+						clearInterrupt();
+						closeReadFile();
+					}
+				}
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * An interrupt of a thread using a {@link FileChannel} (for example when
+	 * the worker it runs on is unsubscribed) closes the channel and its file.
+	 * Reads and writes are at explicit positions so they are repeated with a
+	 * reopened file. The interrupt status is cleared so that the repeat does
+	 * not also fail and is restored once the read or write has finished.
+	 */
+	private static void clearInterrupt() {
+		Thread.interrupted();
+	}
+
+	@Override
+	void releaseBuffers() {
+		DirectByteBufferPool.release(writeBuffer);
+		DirectByteBufferPool.release(readBuffer);
+	}
+
+}
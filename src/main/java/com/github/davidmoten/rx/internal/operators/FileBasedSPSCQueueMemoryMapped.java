@@ -1,148 +1,255 @@
 package com.github.davidmoten.rx.internal.operators;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Deque;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.github.davidmoten.rx.buffertofile.DataSerializer;
-import com.github.davidmoten.rx.internal.operators.FileBasedSPSCQueueMemoryMappedReaderWriter.EOFRuntimeException;
+import com.github.davidmoten.util.ByteArrayOutputStreamNoCopyUnsynchronized;
 import com.github.davidmoten.util.Preconditions;
 
+import rx.functions.Action1;
 import rx.functions.Func0;
 
-public final class FileBasedSPSCQueueMemoryMapped<T> implements QueueWithSubscription<T> {
+/**
+ * <p>
+ * A file based queue that stores items in a sequence of fixed-size memory
+ * mapped files (segments). Writes and reads are plain memory accesses so there
+ * are no {@code seek}/{@code write} system calls per buffer flush.
+ *
+ * <p>
+ * Items are serialized straight into the mapped segment. When the current
+ * segment does not have room for an item the write position is restored, the
+ * item is serialized to an in-memory buffer to find its length and the writer
+ * rolls over to a new segment. A failed serialization never leaves a partial
+ * record. When the reader has finished with a segment it is kept as a spare
+ * for the next rollover (saving file creation and mapping) or if there is
+ * already a spare it is deleted. An item larger than the segment size is
+ * written to its own segment of sufficient size.
+ *
+ * <p>
+ * {@code FileBasedSPSCQueueMemoryMapped} is partially thread-safe. Calls to
+ * {@code offer()} must be sequential (a happens-before relationship), and calls
+ * to {@code poll()} must be sequential. Calls to {@code offer()},
+ * {@code poll()} and {@code isEmpty()} may happen concurrently. Calls to
+ * {@code unsubscribe()} must not happen concurrently with other methods (wrap
+ * with {@link QueueWithResourcesNonBlockingUnsubscribe}).
+ *
+ * @param <T>
+ *            type of item being queued
+ */
+final class FileBasedSPSCQueueMemoryMapped<T> implements QueueWithResources<T> {
 
-    private final Queue<FileBasedSPSCQueueMemoryMappedReaderWriter<T>> inactive = new LinkedList<FileBasedSPSCQueueMemoryMappedReaderWriter<T>>();
-    private final Deque<FileBasedSPSCQueueMemoryMappedReaderWriter<T>> toRead = new ArrayDeque<FileBasedSPSCQueueMemoryMappedReaderWriter<T>>();
-    private final Object lock = new Object();
     private final Func0<File> factory;
-    private final int size;
-    // only needs to be visible to thread calling poll()
-    private FileBasedSPSCQueueMemoryMappedReaderWriter<T> reader;
-    // only needs to be visible to thread calling offer()
+    private final int segmentSizeBytes;
+    private final DataSerializer<T> serializer;
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong resourcesSize = new AtomicLong();
+
+    private final Object lock = new Object();
+
+    // guarded by lock, segments after the reader's current segment in the
+    // order they were written
+    private final Deque<FileBasedSPSCQueueMemoryMappedReaderWriter<T>> toRead = new ArrayDeque<FileBasedSPSCQueueMemoryMappedReaderWriter<T>>();
+
+    // guarded by lock, a segment already read that can be reused
+    private FileBasedSPSCQueueMemoryMappedReaderWriter<T> spare;
+
+    // guarded by lock
+    private boolean unsubscribed;
+
+    // only accessed by the thread calling offer()
     private FileBasedSPSCQueueMemoryMappedReaderWriter<T> writer;
-    private final AtomicInteger wip = new AtomicInteger();
-    private volatile boolean unsubscribed = false;
-    private final AtomicLong count = new AtomicLong();
+    private final ByteArrayOutputStreamNoCopyUnsynchronized bytes;
+    private final DataOutputStream bytesOutput;
 
-    private final DataSerializer<T> serializer;
+    // only accessed by the thread calling poll()
+    private FileBasedSPSCQueueMemoryMappedReaderWriter<T> reader;
 
-    public FileBasedSPSCQueueMemoryMapped(Func0<File> factory, int size,
+    FileBasedSPSCQueueMemoryMapped(Func0<File> factory, int segmentSizeBytes,
             DataSerializer<T> serializer) {
         Preconditions.checkNotNull(factory);
+        Preconditions.checkArgument(segmentSizeBytes > 0,
+                "segmentSizeBytes must be greater than zero");
         Preconditions.checkNotNull(serializer);
         this.factory = factory;
-        this.size = size;
+        this.segmentSizeBytes = segmentSizeBytes;
         this.serializer = serializer;
-        File file = factory.call();
-        this.writer = new FileBasedSPSCQueueMemoryMappedReaderWriter<T>(file, size, serializer);
-        this.reader = writer.openForWrite().openForRead();
-        // store store barrier
-        wip.lazySet(0);
+        this.bytes = new ByteArrayOutputStreamNoCopyUnsynchronized();
+        this.bytesOutput = new DataOutputStream(bytes);
+        this.writer = createSegment(segmentSizeBytes);
+        this.reader = writer;
     }
 
-    @Override
-    public void unsubscribe() {
-        wip.incrementAndGet();
-        unsubscribed = true;
-        checkUnsubscribe();
+    private FileBasedSPSCQueueMemoryMappedReaderWriter<T> createSegment(int fileSize) {
+        FileBasedSPSCQueueMemoryMappedReaderWriter<T> segment = new FileBasedSPSCQueueMemoryMappedReaderWriter<T>(
+                factory.call(), fileSize, serializer);
+        resourcesSize.addAndGet(fileSize);
+        return segment;
     }
 
-    @Override
-    public boolean isUnsubscribed() {
-        return unsubscribed;
+    private void deleteSegment(FileBasedSPSCQueueMemoryMappedReaderWriter<T> segment) {
+        segment.delete();
+        resourcesSize.addAndGet(-segment.fileSize());
     }
 
     @Override
-    public synchronized boolean offer(T t) {
-        // thread safe with poll() and unsubscribe()
+    public boolean offer(T t) {
+        // limited thread-safety
+        // offer calls must be sequential but can happen concurrently with other
+        // methods except unsubscribe
         try {
-            wip.incrementAndGet();
-            if (unsubscribed)
-                return true;
-            if (!writer.offer(t)) {
-                // note that writer will be in a closed state if we follow this
-                // path
-                FileBasedSPSCQueueMemoryMappedReaderWriter<T> nextWriter;
-                synchronized (lock) {
-                    nextWriter = inactive.poll();
-                    if (nextWriter == null) {
-                        nextWriter = new FileBasedSPSCQueueMemoryMappedReaderWriter<T>(
-                                factory.call(), size, serializer);
-                    }
-                    toRead.offerLast(nextWriter);
-                    nextWriter.openForWrite();
+            int length = serializer.size();
+            if (length > 0) {
+                if (writer.remaining() < length) {
+                    rollover(length);
                 }
-                writer = nextWriter;
-                return writer.offer(t);
-            } else {
-                return true;
+                writer.writeDirect(t);
+            } else if (!writer.tryWrite(t)) {
+                // the item does not fit in the rest of the segment so
+                // serialize it to an in-memory buffer to find its length
+                bytes.reset();
+                serializer.serialize(bytesOutput, t);
+                length = bytes.size();
+                rollover(length);
+                writer.write(bytes.toByteArrayNoCopy(), length);
             }
-        } finally {
-            checkUnsubscribe();
-            count.incrementAndGet();
+            size.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 
-    private void checkUnsubscribe() {
-        // single ampersand because we must call wip.decrementAndGet
-        if (unsubscribed & wip.decrementAndGet() == 0) {
-            close();
+    private void rollover(int length) {
+        FileBasedSPSCQueueMemoryMappedReaderWriter<T> next;
+        synchronized (lock) {
+            if (length <= segmentSizeBytes && spare != null) {
+                next = spare;
+                spare = null;
+            } else {
+                next = createSegment(Math.max(length, segmentSizeBytes));
+            }
+            toRead.offerLast(next);
         }
+        // next must be visible in toRead before the reader sees that the
+        // current writer has finished
+        writer.finishWriting();
+        writer = next;
     }
 
-    private void close() {
-        writer.close();
-        reader.close();
+    @Override
+    public T poll() {
+        // limited thread-safety
+        // poll calls must be sequential but can happen concurrently with other
+        // methods except unsubscribe
+        T t = nextItem();
+        if (t != null) {
+            size.decrementAndGet();
+        }
+        return t;
     }
 
     @Override
-    public synchronized T poll() {
-        T value = null;
-        // thread safe with offer() and unsubscribe()
-        try {
-            wip.incrementAndGet();
-            if (unsubscribed)
-                return null;
-            value = reader.poll();
-            return value;
-        } catch (EOFRuntimeException e) {
-            FileBasedSPSCQueueMemoryMappedReaderWriter<T> nextReader;
-            synchronized (lock) {
-                if (toRead.isEmpty()) {
-                    return null;
-                } else {
-                    nextReader = toRead.pollFirst();
+    public int drainTo(Action1<? super T> consumer, int max) {
+        // same thread-safety as poll, size is decremented before each item
+        // is passed to the consumer so that size is accurate while the
+        // consumer runs
+        int count = 0;
+        while (count < max) {
+            T t = nextItem();
+            if (t == null) {
+                break;
+            }
+            count++;
+            size.decrementAndGet();
+            consumer.call(t);
+        }
+        return count;
+    }
+
+    private T nextItem() {
+        // moves on to the next segment when the reader's segment is finished
+        while (true) {
+            T t = reader.poll();
+            if (t != null) {
+                return t;
+            } else if (reader.isFullyRead()) {
+                FileBasedSPSCQueueMemoryMappedReaderWriter<T> finished = reader;
+                synchronized (lock) {
+                    reader = toRead.pollFirst();
+                    if (!unsubscribed && spare == null
+                            && finished.fileSize() == segmentSizeBytes) {
+                        finished.reset();
+                        spare = finished;
+                    } else {
+                        deleteSegment(finished);
+                    }
                 }
-                reader.closeForRead();
-                inactive.offer(reader);
+            } else {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    @Override
+    public void unsubscribe() {
+        // must not run concurrently with offer/poll
+        synchronized (lock) {
+            if (unsubscribed) {
+                return;
             }
-            reader = nextReader;
-            reader.openForRead();
-            value = reader.poll();
-            return value;
-        } finally {
-            checkUnsubscribe();
-            if (value != null) {
-                count.decrementAndGet();
+            unsubscribed = true;
+            // the writer is either the reader or the last segment in toRead
+            deleteSegment(reader);
+            for (FileBasedSPSCQueueMemoryMappedReaderWriter<T> segment : toRead) {
+                deleteSegment(segment);
             }
+            toRead.clear();
+            if (spare != null) {
+                deleteSegment(spare);
+                spare = null;
+            }
+            size.set(0);
         }
     }
 
     @Override
-    public int size() {
-        throw new UnsupportedOperationException();
+    public boolean isUnsubscribed() {
+        synchronized (lock) {
+            return unsubscribed;
+        }
     }
 
     @Override
-    public boolean isEmpty() {
-        return count.get() == 0;
+    public void freeResources() {
+        // do nothing
+    }
+
+    /**
+     * Returns the total size in bytes of the segment files currently held by
+     * this queue (including any spare segment).
+     *
+     * @return total size in bytes of the files held by this queue
+     */
+    @Override
+    public long resourcesSize() {
+        return resourcesSize.get();
+    }
+
+    @Override
+    public int size() {
+        throw new UnsupportedOperationException();
     }
 
     @Override
@@ -1,351 +1,298 @@
 package com.github.davidmoten.rx.internal.operators;
 
 import java.io.DataInputStream;
-import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import com.github.davidmoten.rx.buffertofile.DataSerializer;
-import com.github.davidmoten.util.ByteArrayOutputStreamNoCopyUnsynchronized;
 import com.github.davidmoten.util.Preconditions;
 
-public class FileBasedSPSCQueueMemoryMappedReaderWriter<T> {
+/**
+ * <p>
+ * A single fixed-size memory mapped file (segment) used by
+ * {@link FileBasedSPSCQueueMemoryMapped}. One thread writes to the segment and
+ * another thread reads from it. The writer publishes the count of items
+ * written after their bytes have been put into the mapped buffer and the
+ * reader never reads past the published count so no markers are required in
+ * the file.
+ *
+ * <p>
+ * Once the writer has moved on to another segment it calls
+ * {@link #finishWriting()} and once the reader has read everything from a
+ * finished segment the segment can be {@link #reset()} for reuse or
+ * {@link #delete()}d.
+ *
+ * @param <T>
+ *            type of item being stored
+ */
+final class FileBasedSPSCQueueMemoryMappedReaderWriter<T> {
 
-	private volatile RandomAccessFile f;
-	private volatile FileChannel channel;
-	private DataInputStream input;
-	private DataOutputStream output;
-	private MappedByteBuffer read;
-	private MappedByteBuffer write;
-	private final DataSerializer<T> serializer;
 	private final File file;
 	private final int fileSize;
-	private final DataOutput buffer;
-	// TODO can be passed in to constructor for reuse
-	private final ByteArrayOutputStreamNoCopyUnsynchronized bytes;
-	private final AtomicInteger status = new AtomicInteger(WRITTEN_READ);
-	private final Object markerLock = new Object();
-
-	static final int WRITTEN_READ = 0;
-	static final int WRITTEN_READ_NOT_STARTED = 1;
-	static final int WRITTEN_READING = 2;
-	static final int WRITING_NOT_READING = 3;
-	static final int WRITING_READING = 4;
-
-	public FileBasedSPSCQueueMemoryMappedReaderWriter(File file, int fileSize, DataSerializer<T> serializer) {
-		Preconditions.checkArgument(serializer.size() == 0 || serializer.size() <= fileSize - 2 * MARKER_HEADER_SIZE,
-				"serializer.size() must be less than or equal to file based queue size - 2");
+	private final DataSerializer<T> serializer;
+	private final RandomAccessFile f;
+	private final FileChannel channel;
+	private final MappedByteBuffer mapped;
+	private final ByteBuffer write;
+	private final ByteBuffer read;
+	private final ByteBufferOutputStream stream;
+	private final DataOutputStream output;
+	private final DataInputStream input;
+
+	// written by the writer, read by the reader
+	private volatile long published;
+	private volatile boolean finished;
+
+	// only accessed by the writer
+	private long written;
+
+	// only accessed by the reader
+	private long consumed;
+
+	FileBasedSPSCQueueMemoryMappedReaderWriter(File file, int fileSize, DataSerializer<T> serializer) {
+		Preconditions.checkNotNull(file);
+		Preconditions.checkArgument(fileSize > 0, "fileSize must be greater than zero");
+		Preconditions.checkNotNull(serializer);
 		this.file = file;
-		this.serializer = serializer;
 		this.fileSize = fileSize;
-		this.bytes = new ByteArrayOutputStreamNoCopyUnsynchronized();
-		this.buffer = new DataOutputStream(bytes);
-	}
-
-	public FileBasedSPSCQueueMemoryMappedReaderWriter<T> openForRead() {
-		// System.out.println("openForRead " + file);
-
-		if (!status.compareAndSet(WRITTEN_READ_NOT_STARTED, WRITTEN_READING))
-			status.compareAndSet(WRITING_NOT_READING, WRITING_READING);
-		while (true) {
-			int st = status.get();
-			int newStatus;
-			if (st == WRITTEN_READ_NOT_STARTED)
-				newStatus = WRITTEN_READING;
-			else if (st == WRITING_NOT_READING)
-				newStatus = WRITING_READING;
-			else
-				newStatus = st;
-			if (status.compareAndSet(st, newStatus)) {
-				checkClose(newStatus);
-				break;
-			}
-		}
+		this.serializer = serializer;
 		try {
-			if (f == null) {
-				f = new RandomAccessFile(file, "r");
-			}
-			if (channel == null) {
-				channel = f.getChannel();
-			}
-			read = channel.map(MapMode.READ_ONLY, 0, channel.size());
-			input = new DataInputStream(new MappedByteBufferInputStream(read));
-			// System.out.println("opened for read " + file.getName());
+			this.f = new RandomAccessFile(file, "rw");
+			this.channel = f.getChannel();
+			this.mapped = channel.map(MapMode.READ_WRITE, 0, fileSize);
+			this.write = mapped.duplicate();
+			this.read = mapped.duplicate();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-		return this;
+		this.stream = new ByteBufferOutputStream(write);
+		this.output = new DataOutputStream(stream);
+		this.input = new DataInputStream(new ByteBufferInputStream(read));
 	}
 
-	public void closeForRead() {
-		// System.out.println("closeForRead " + file);
-		while (true) {
-			int st = status.get();
-			int newStatus;
-			if (st == WRITTEN_READING)
-				newStatus = WRITTEN_READ;
-			else
-				newStatus = st;
-			if (status.compareAndSet(st, newStatus)) {
-				checkClose(newStatus);
-				break;
-			}
-		}
+	int fileSize() {
+		return fileSize;
 	}
 
-	public FileBasedSPSCQueueMemoryMappedReaderWriter<T> openForWrite() {
-		// System.out.println("openForWrite " + file);
-		while (true) {
-			int st = status.get();
-			int newStatus;
-			if (st == WRITTEN_READ)
-				newStatus = WRITING_NOT_READING;
-			else
-				newStatus = st;
-			if (status.compareAndSet(st, newStatus)) {
-				checkClose(newStatus);
-				break;
-			}
-		}
+	int remaining() {
+		return write.remaining();
+	}
+
+	/**
+	 * Serializes {@code t} directly into the mapped buffer. The caller must
+	 * have checked that {@code serializer.size()} bytes are remaining. If
+	 * serialization fails nothing is published and the write position is
+	 * restored so the next item overwrites whatever was partially written.
+	 *
+	 * @param t
+	 *            item to write
+	 * @throws IOException
+	 *             if serialization fails
+	 */
+	void writeDirect(T t) throws IOException {
+		int position = write.position();
+		boolean written = false;
 		try {
-			if (f == null) {
-				f = new RandomAccessFile(file, "rw");
-			}
-			if (channel == null) {
-				channel = f.getChannel();
+			serializer.serialize(output, t);
+			if (write.position() - position > serializer.size()) {
+				throw new IllegalArgumentException(
+						"serialized length of value being offered to file queue was greater than serializer.size() value (which was non-zero)");
 			}
-			write = channel.map(MapMode.READ_WRITE, 0, fileSize);
-			output = new DataOutputStream(new MappedByteBufferOutputStream(write));
-			synchronized (markerLock) {
-				output.write(MARKER_END_OF_QUEUE);
+			written = true;
+		} finally {
+			if (!written) {
+				write.position(position);
 			}
-			// System.out.println("opened for write " + file.getName());
-			return this;
-		} catch (IOException e) {
-			throw new RuntimeException(e);
 		}
+		publish();
 	}
 
-	public void closeForWrite() {
-		// System.out.println("closeForWrite " + file);
-		while (true) {
-			int st = status.get();
-			int newStatus;
-			if (st == WRITING_READING)
-				newStatus = WRITTEN_READING;
-			else if (st == WRITING_NOT_READING)
-				newStatus = WRITTEN_READ_NOT_STARTED;
-			newStatus = st;
-			if (status.compareAndSet(st, newStatus)) {
-				checkClose(newStatus);
-				break;
+	/**
+	 * Serializes {@code t} directly into the mapped buffer if it fits in the
+	 * remaining bytes of the segment. If it does not fit or serialization
+	 * fails nothing is published and the write position is restored so the
+	 * next item overwrites whatever was partially written.
+	 *
+	 * @param t
+	 *            item to write
+	 * @return false if {@code t} does not fit in the remaining bytes
+	 * @throws IOException
+	 *             if serialization fails
+	 */
+	boolean tryWrite(T t) throws IOException {
+		int position = write.position();
+		stream.overflowed = false;
+		boolean written = false;
+		try {
+			serializer.serialize(output, t);
+			// the serializer may have swallowed the overflow
+			written = !stream.overflowed;
+		} catch (IOException e) {
+			if (!stream.overflowed) {
+				throw e;
 			}
-		}
-
-	}
-
-	private void checkClose(int newStatus) {
-		// System.out.println("close status = " + newStatus + " for " +
-		// file.getName());
-		if (newStatus == WRITTEN_READ) {
-			try {
-				channel.close();
-				channel = null;
-				read = null;
-				input = null;
-				f.close();
-				f = null;
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+		} catch (RuntimeException e) {
+			if (!stream.overflowed) {
+				throw e;
+			}
+		} finally {
+			if (!written) {
+				write.position(position);
 			}
 		}
-	}
-
-	private static class MappedByteBufferOutputStream extends OutputStream {
-
-		private final MappedByteBuffer write;
-
-		MappedByteBufferOutputStream(MappedByteBuffer write) {
-			this.write = write;
-		}
-
-		@Override
-		public void write(int b) throws IOException {
-			write.put((byte) b);
+		if (written) {
+			publish();
 		}
+		return written;
 	}
 
-	private static class MappedByteBufferInputStream extends InputStream {
-
-		private final MappedByteBuffer read;
-
-		MappedByteBufferInputStream(MappedByteBuffer read) {
-			this.read = read;
-		}
-
-		@Override
-		public int read() throws IOException {
-			return toUnsignedInteger(read.get());
-		}
-
+	/**
+	 * Writes already serialized bytes to the mapped buffer. The caller must
+	 * have checked that {@code length} bytes are remaining.
+	 *
+	 * @param bytes
+	 *            serialized item
+	 * @param length
+	 *            number of bytes of {@code bytes} to write
+	 */
+	void write(byte[] bytes, int length) {
+		write.put(bytes, 0, length);
+		publish();
 	}
 
-	private static int toUnsignedInteger(byte b) {
-		return b & 0x000000FF;
+	private void publish() {
+		written++;
+		published = written;
 	}
 
-	private static final EOFRuntimeException EOF = new EOFRuntimeException();
-
-	static final class EOFRuntimeException extends RuntimeException {
-
-		private static final long serialVersionUID = -6943467453336359472L;
-
+	void finishWriting() {
+		finished = true;
 	}
 
-	// markers must be powers of 2 so that we can detect
-	// a partial write of the byte (which we will treat as END_OF_QUEUE)
-	static final byte MARKER_END_OF_QUEUE = 0;
-	static final byte MARKER_END_OF_FILE = 1;
-	static final byte MARKER_ITEM_PRESENT = 2;
-	static final int MARKER_HEADER_SIZE = 1;
-	static final int UNKNOWN_LENGTH = 0;
-
-	public T poll() {
-		int position = read.position();
-		byte marker;
-		synchronized (markerLock) {
-			marker = read.get();
-		}
-		if (marker == MARKER_END_OF_QUEUE) {
-			read.position(position);
+	/**
+	 * Returns the next item or null if none available.
+	 *
+	 * @return next item or null if none available
+	 */
+	T poll() {
+		if (consumed == published) {
 			return null;
-		} else if (marker == MARKER_END_OF_FILE) {
-			throw EOF;
-		} else if (marker == MARKER_ITEM_PRESENT) {
-			try {
-				T t = serializer.deserialize(input);
-				if (t == null) {
-					// this is a trick that we can get away with due to type
-					// erasure in java as long as the return value of poll() is
-					// checked using NullSentinel.isNullSentinel(t) (?)
-					return NullSentinel.instance();
-				} else {
-					return t;
-				}
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+		}
+		try {
+			T t = serializer.deserialize(input);
+			consumed++;
+			if (t == null) {
+				// this is a trick that we can get away with due to type
+				// erasure in java as long as the return value of poll() is
+				// checked using NullSentinel.isNullSentinel(t) (?)
+				return NullSentinel.instance();
+			} else {
+				return t;
 			}
-		} else {
-			throw new RuntimeException("unexpected");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
 	}
 
 	/**
-	 * Returns true if value written to file or false if not enough space
-	 * (writes and end-of-file marker in the fixed-length memory mapped file).
-	 * 
-	 * @param t
-	 *            value to write to the serialized queue
-	 * @return true if written, false if not enough space
+	 * Returns true if and only if the writer has finished with this segment
+	 * and the reader has read every item in it.
+	 *
+	 * @return true if fully read
 	 */
-	public boolean offer(T t) {
-		// the current position will be just past the length bytes for this
-		// item (length bytes will be 0 at the moment)
-		int serializedLength = serializer.size();
-		if (serializedLength == UNKNOWN_LENGTH) {
-			return offerUnknownLength(t);
-		} else {
-			return offerKnownLength(t, serializedLength);
-		}
+	boolean isFullyRead() {
+		// must read finished before published
+		return finished && consumed == published;
 	}
 
-	private boolean offerKnownLength(T t, int serializedLength) {
-		try {
-			if (notEnoughSpace(serializedLength)) {
-				markFileAsCompletedAndClose();
-				return false;
-			}
-			int position = write.position();
-			// serialize the object t to the file
-			serializer.serialize(output, t);
-			int length = write.position() - position;
-			checkLength(serializedLength, length);
-			updateMarkers(serializedLength);
-			return true;
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
+	/**
+	 * Prepares the segment for reuse. Must only be called once the segment is
+	 * fully read and before it is handed to the writer again.
+	 */
+	void reset() {
+		write.clear();
+		read.clear();
+		written = 0;
+		consumed = 0;
+		finished = false;
+		published = 0;
 	}
 
-	private boolean offerUnknownLength(T t) {
+	void delete() {
 		try {
-			bytes.reset();
-			// serialize to an in-memory buffer to calculate length
-			serializer.serialize(buffer, t);
-			int serializedLength = bytes.size();
-			if (notEnoughSpace(serializedLength)) {
-				markFileAsCompletedAndClose();
-				return false;
-			} else {
-				write.put(bytes.toByteArrayNoCopy(), 0, bytes.size());
-				updateMarkers(serializedLength);
-				return true;
-			}
+			channel.close();
+			f.close();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+		// release the mapping now rather than when the buffer is garbage
+		// collected so that the disk space is reclaimed (and so that the file
+		// can be deleted at all on Windows)
+		MappedByteBuffers.unmap(mapped);
+		if (!file.delete()) {
+			throw new RuntimeException("could not delete file " + file);
+		}
 	}
 
-	private void checkLength(int serializedLength, int length) {
-		if (length > serializedLength) {
-			throw new IllegalArgumentException(
-					"serialized length of value being offered to file queue was greater than serializer.size() value (which was non-zero)");
+	// create the exception once to avoid building many Exception objects
+	private static final IOException SEGMENT_FULL = new IOException(
+			"segment full");
+
+	private static final class ByteBufferOutputStream extends OutputStream {
+
+		private final ByteBuffer bb;
+
+		// set when a write did not fit in the remaining bytes
+		boolean overflowed;
+
+		ByteBufferOutputStream(ByteBuffer bb) {
+			this.bb = bb;
 		}
-	}
 
-	private void markFileAsCompletedAndClose() {
-		write.position(write.position() - MARKER_HEADER_SIZE);
-		synchronized (markerLock) {
-			write.put(MARKER_END_OF_FILE);
+		@Override
+		public void write(int b) throws IOException {
+			if (!bb.hasRemaining()) {
+				overflowed = true;
+				throw SEGMENT_FULL;
+			}
+			bb.put((byte) b);
 		}
-		closeForWrite();
-	}
 
-	private boolean notEnoughSpace(int serializedLength) {
-		if (serializedLength > fileSize - 2 * MARKER_HEADER_SIZE)
-			throw new RuntimeException("serialized length is larger than can fit in one file");
-		return serializedLength + MARKER_HEADER_SIZE > write.remaining();
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (bb.remaining() < len) {
+				overflowed = true;
+				throw SEGMENT_FULL;
+			}
+			bb.put(b, off, len);
+		}
 	}
 
-	private void updateMarkers(int serializedLength) throws IOException {
-		// write the marker for the next item
-		write.put(MARKER_END_OF_QUEUE);
-		// remember the position where the next write starts
-		int newWritePosition = write.position();
-		// rewind and update the length for the current item
-		write.position(write.position() - serializedLength - 2 * MARKER_HEADER_SIZE);
-		// now indicate to the reader that it can read this item
-		synchronized (markerLock) {
-			write.put(MARKER_ITEM_PRESENT);
+	private static final class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer bb;
+
+		ByteBufferInputStream(ByteBuffer bb) {
+			this.bb = bb;
 		}
-		// and update the position to the write position for the
-		// next item
-		write.position(newWritePosition);
-	}
 
-	public void close() {
-		try {
-			f.close();
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+		@Override
+		public int read() throws IOException {
+			return bb.get() & 0x000000FF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			bb.get(b, off, len);
+			return len;
 		}
 	}
 
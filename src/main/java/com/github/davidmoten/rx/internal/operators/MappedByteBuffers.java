@@ -0,0 +1,89 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Releases the mapping of a {@link MappedByteBuffer} without waiting for the
+ * buffer to be garbage collected. Until a mapping is released the file keeps
+ * its disk space (even if deleted) and on Windows cannot be deleted at all.
+ * There is no public API for this so the JDK internals are called by
+ * reflection ({@code Unsafe.invokeCleaner} from Java 9,
+ * {@code DirectBuffer.cleaner().clean()} before that). If neither is available
+ * the mapping is left to be released by the garbage collector.
+ */
+final class MappedByteBuffers {
+
+    private static final Unmapper UNMAPPER = createUnmapper();
+
+    private MappedByteBuffers() {
+        // prevent instantiation
+    }
+
+    /**
+     * Releases the mapping of {@code buffer}. Neither the buffer nor any
+     * duplicate of it may be accessed after this call (the JVM may crash if
+     * they are).
+     *
+     * @param buffer
+     *            buffer returned by {@code FileChannel.map}
+     * @return true if the mapping was released, false if it is left for the
+     *         garbage collector
+     */
+    static boolean unmap(MappedByteBuffer buffer) {
+        try {
+            return UNMAPPER.unmap(buffer);
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    private interface Unmapper {
+        boolean unmap(ByteBuffer buffer) throws Exception;
+    }
+
+    private static Unmapper createUnmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            final Object unsafe = field.get(null);
+            return new Unmapper() {
+                @Override
+                public boolean unmap(ByteBuffer buffer) throws Exception {
+                    invokeCleaner.invoke(unsafe, buffer);
+                    return true;
+                }
+            };
+        } catch (Throwable e) {
+            // before Java 9
+        }
+        try {
+            final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return new Unmapper() {
+                @Override
+                public boolean unmap(ByteBuffer buffer) throws Exception {
+                    Object c = cleaner.invoke(buffer);
+                    if (c == null) {
+                        return false;
+                    } else {
+                        clean.invoke(c);
+                        return true;
+                    }
+                }
+            };
+        } catch (Throwable e) {
+            return new Unmapper() {
+                @Override
+                public boolean unmap(ByteBuffer buffer) {
+                    return false;
+                }
+            };
+        }
+    }
+
+}
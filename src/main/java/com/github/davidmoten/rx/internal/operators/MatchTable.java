@@ -0,0 +1,355 @@
+package com.github.davidmoten.rx.internal.operators;
+
+/**
+ * <p>
+ * Unmatched items from one source of {@link OnSubscribeMatch} keyed by match
+ * key. Keys are held in an open addressing table (linear probing with
+ * backward shift deletion) and the items for a key are held in arrival order,
+ * as a single {@link Entry} in the table slot for the common case of one item
+ * per key or in an array-backed ring otherwise.
+ *
+ * <p>
+ * If requested all entries are also linked in arrival order so that the
+ * oldest entries can be found (and spilled to disk or expired) in constant
+ * time. The oldest entry for a key is always the first in its ring.
+ *
+ * <p>
+ * Not thread-safe, accessed only by the drain loop of
+ * {@link OnSubscribeMatch}.
+ *
+ * @param <K>
+ *            key type
+ */
+final class MatchTable<K> {
+
+    // stands in for a null key
+    private static final Object NULL_KEY = new Object();
+    private static final int INITIAL_CAPACITY = 16;
+
+    // keys at even indexes each followed by the Entry or EntryRing of the
+    // entries for that key (adjacent so that a lookup touches one cache line)
+    private Object[] table = new Object[INITIAL_CAPACITY * 2];
+    private int keyCount;
+
+    private final boolean trackArrivalOrder;
+
+    // number of entries
+    private long size;
+    // number of entries not spilled
+    private long inMemory;
+
+    // arrival order
+    private Entry oldest;
+    private Entry newest;
+    // entries older than this one have been spilled
+    private Entry oldestInMemory;
+
+    static final class Entry {
+        // the masked key
+        final Object key;
+        // arrival order across both sources
+        final long sequence;
+        // arrival time, only set when unmatched items expire by age
+        long time;
+        // null when spilled
+        Object value;
+        // position and length of the serialized value when spilled
+        long position;
+        int length;
+        // the spill segment holding the serialized value, null if none
+        Object segment;
+        Entry older;
+        Entry newer;
+
+        Entry(Object key, Object value, long sequence) {
+            this.key = key;
+            this.value = value;
+            this.sequence = sequence;
+        }
+
+        boolean isSpilled() {
+            return value == null;
+        }
+    }
+
+    MatchTable(boolean trackArrivalOrder) {
+        this.trackArrivalOrder = trackArrivalOrder;
+    }
+
+    Entry add(K key, Object value, long sequence) {
+        Object k = mask(key);
+        Entry entry = new Entry(k, value, sequence);
+        int i = indexOf(k);
+        if (i >= 0) {
+            Object slot = table[i + 1];
+            if (slot instanceof EntryRing) {
+                ((EntryRing) slot).offer(entry);
+            } else {
+                EntryRing ring = new EntryRing();
+                ring.offer((Entry) slot);
+                ring.offer(entry);
+                table[i + 1] = ring;
+            }
+        } else {
+            // keep the load factor at or below 1/2
+            if (keyCount + 1 > table.length >> 2) {
+                resize();
+            }
+            insert(k, entry);
+            keyCount++;
+        }
+        if (trackArrivalOrder) {
+            // link as newest
+            if (newest == null) {
+                oldest = entry;
+            } else {
+                newest.newer = entry;
+                entry.older = newest;
+            }
+            newest = entry;
+            if (oldestInMemory == null) {
+                oldestInMemory = entry;
+            }
+        }
+        size++;
+        inMemory++;
+        return entry;
+    }
+
+    /**
+     * Removes and returns the oldest entry for the key.
+     *
+     * @param key
+     *            key
+     * @return the oldest entry for the key or null if there are none
+     */
+    Entry poll(K key) {
+        int i = indexOf(mask(key));
+        if (i < 0) {
+            return null;
+        } else {
+            return removeFirst(i);
+        }
+    }
+
+    /**
+     * Removes and returns the oldest entry. Requires arrival order to be
+     * tracked.
+     *
+     * @return the oldest entry or null if empty
+     */
+    Entry pollOldest() {
+        if (oldest == null) {
+            return null;
+        } else {
+            // the oldest entry is also the oldest entry for its key
+            return removeFirst(indexOf(oldest.key));
+        }
+    }
+
+    /**
+     * Returns the oldest entry without removing it. Requires arrival order to
+     * be tracked.
+     *
+     * @return the oldest entry or null if empty
+     */
+    Entry oldest() {
+        return oldest;
+    }
+
+    // removes the oldest entry for the key at index i of table
+    private Entry removeFirst(int i) {
+        Object slot = table[i + 1];
+        final Entry entry;
+        if (slot instanceof EntryRing) {
+            EntryRing ring = (EntryRing) slot;
+            entry = ring.poll();
+            if (ring.isEmpty()) {
+                removeAt(i);
+            }
+        } else {
+            entry = (Entry) slot;
+            removeAt(i);
+        }
+        unlink(entry);
+        return entry;
+    }
+
+    private void unlink(Entry entry) {
+        size--;
+        if (!entry.isSpilled()) {
+            inMemory--;
+        }
+        if (!trackArrivalOrder) {
+            return;
+        }
+        if (entry == oldestInMemory) {
+            oldestInMemory = entry.newer;
+        }
+        if (entry.older == null) {
+            oldest = entry.newer;
+        } else {
+            entry.older.newer = entry.newer;
+        }
+        if (entry.newer == null) {
+            newest = entry.older;
+        } else {
+            entry.newer.older = entry.older;
+        }
+        entry.older = null;
+        entry.newer = null;
+    }
+
+    /**
+     * Returns the oldest entry whose value is still in memory. Requires
+     * arrival order to be tracked.
+     *
+     * @return oldest entry in memory or null if none
+     */
+    Entry oldestInMemory() {
+        return oldestInMemory;
+    }
+
+    /**
+     * Records that the oldest entry in memory has had its value moved to
+     * disk.
+     */
+    void spilledOldestInMemory() {
+        Entry entry = oldestInMemory;
+        entry.value = null;
+        oldestInMemory = entry.newer;
+        inMemory--;
+    }
+
+    long size() {
+        return size;
+    }
+
+    long inMemory() {
+        return inMemory;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        table = new Object[INITIAL_CAPACITY * 2];
+        keyCount = 0;
+        size = 0;
+        inMemory = 0;
+        oldest = null;
+        newest = null;
+        oldestInMemory = null;
+    }
+
+    private static Object mask(Object key) {
+        if (key == null) {
+            return NULL_KEY;
+        } else {
+            return key;
+        }
+    }
+
+    private static int hash(Object key) {
+        // spread the bits so that sequential keys are not clustered
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // returns the index in table of the key or -1 if not present
+    private int indexOf(Object k) {
+        int mask = table.length - 1;
+        int i = (hash(k) << 1) & mask;
+        while (true) {
+            Object x = table[i];
+            if (x == null) {
+                return -1;
+            } else if (x == k || x.equals(k)) {
+                return i;
+            }
+            i = (i + 2) & mask;
+        }
+    }
+
+    private void insert(Object k, Object slot) {
+        int mask = table.length - 1;
+        int i = (hash(k) << 1) & mask;
+        while (table[i] != null) {
+            i = (i + 2) & mask;
+        }
+        table[i] = k;
+        table[i + 1] = slot;
+    }
+
+    private void resize() {
+        Object[] old = table;
+        table = new Object[old.length * 2];
+        for (int i = 0; i < old.length; i += 2) {
+            if (old[i] != null) {
+                insert(old[i], old[i + 1]);
+            }
+        }
+    }
+
+    private void removeAt(int i) {
+        int mask = table.length - 1;
+        table[i] = null;
+        table[i + 1] = null;
+        keyCount--;
+        // shift back following keys of the same probe sequence so that
+        // lookups do not stop early at the gap
+        int j = i;
+        while (true) {
+            j = (j + 2) & mask;
+            Object k = table[j];
+            if (k == null) {
+                return;
+            }
+            int ideal = (hash(k) << 1) & mask;
+            // move k to the gap unless its ideal position lies cyclically in
+            // (i, j]
+            boolean stays = i <= j ? (i < ideal && ideal <= j) : (i < ideal || ideal <= j);
+            if (!stays) {
+                table[i] = k;
+                table[i + 1] = table[j + 1];
+                table[j] = null;
+                table[j + 1] = null;
+                i = j;
+            }
+        }
+    }
+
+    private static final class EntryRing {
+
+        private Entry[] items = new Entry[4];
+        private int head;
+        private int count;
+
+        void offer(Entry entry) {
+            if (count == items.length) {
+                Entry[] a = new Entry[items.length * 2];
+                for (int i = 0; i < count; i++) {
+                    a[i] = items[(head + i) & (items.length - 1)];
+                }
+                items = a;
+                head = 0;
+            }
+            items[(head + count) & (items.length - 1)] = entry;
+            count++;
+        }
+
+        Entry poll() {
+            Entry entry = items[head];
+            items[head] = null;
+            head = (head + 1) & (items.length - 1);
+            count--;
+            return entry;
+        }
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+    }
+
+}
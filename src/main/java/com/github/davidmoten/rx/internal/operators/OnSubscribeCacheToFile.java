@@ -0,0 +1,564 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.davidmoten.rx.buffertofile.DataSerializer;
+import com.github.davidmoten.rx.buffertofile.Options;
+import com.github.davidmoten.util.ByteArrayOutputStreamNoCopyUnsynchronized;
+import com.github.davidmoten.util.Preconditions;
+
+import rx.Observable;
+import rx.Observable.OnSubscribe;
+import rx.Producer;
+import rx.Scheduler;
+import rx.Scheduler.Worker;
+import rx.Subscriber;
+import rx.exceptions.Exceptions;
+import rx.functions.Action0;
+import rx.functions.Func0;
+import rx.internal.operators.BackpressureUtils;
+import rx.plugins.RxJavaHooks;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * <p>
+ * Like {@link OnSubscribeCacheResetable} except that the cached items are
+ * serialized to a sequence of append-only memory mapped files (segments)
+ * rather than held on the heap. The source is subscribed to once (on first
+ * subscription or first subscription after reset) and every item is appended
+ * to the current segment as a 4 byte length followed by the serialized item.
+ *
+ * <p>
+ * Each subscriber has its own read cursor (a segment and a position in it) and
+ * replays the cached items from disk on a worker of the given scheduler at the
+ * pace it requests, then follows the source as it emits. Heap use does not
+ * depend on the number of items cached.
+ *
+ * <p>
+ * Segments are kept while new subscribers can still replay them. After
+ * {@link #reset()} the segments of the previous cache are deleted once every
+ * cursor reading that cache has passed them and the source subscription and
+ * remaining segments are disposed of when its last subscriber finishes or
+ * unsubscribes.
+ *
+ * @param <T>
+ *            type of item being cached
+ */
+public final class OnSubscribeCacheToFile<T> implements OnSubscribe<T> {
+
+    private final Observable<T> source;
+    private final DataSerializer<T> serializer;
+    private final Scheduler scheduler;
+    private final Func0<File> fileFactory;
+    private final int segmentSizeBytes;
+    private final Object lock = new Object();
+
+    // guarded by lock, null until the first subscription after construction
+    // or reset
+    private Cache<T> current;
+
+    public OnSubscribeCacheToFile(Observable<T> source, DataSerializer<T> serializer,
+            Scheduler scheduler, Options options) {
+        Preconditions.checkNotNull(source);
+        Preconditions.checkNotNull(serializer);
+        Preconditions.checkNotNull(scheduler);
+        Preconditions.checkNotNull(options);
+        this.source = source;
+        this.serializer = serializer;
+        this.scheduler = scheduler;
+        this.fileFactory = options.fileFactory();
+        this.segmentSizeBytes = OperatorBufferToFile.segmentSizeBytes(options);
+    }
+
+    @Override
+    public void call(Subscriber<? super T> child) {
+        Cache<T> cache;
+        boolean connect = false;
+        Cursor<T> cursor;
+        synchronized (lock) {
+            if (current == null) {
+                current = new Cache<T>(serializer, fileFactory, segmentSizeBytes);
+                connect = true;
+            }
+            cache = current;
+            // add the cursor while holding the lock so that a concurrent
+            // reset does not dispose of the cache first
+            cursor = new Cursor<T>(cache, child, scheduler.createWorker());
+            cache.add(cursor);
+        }
+        cursor.start();
+        if (connect) {
+            source.unsafeSubscribe(cache.writer);
+        }
+    }
+
+    /**
+     * Subsequent subscribers will cause a new subscription to the source and
+     * be served from new segment files. Current subscribers continue reading
+     * the previous files.
+     */
+    public void reset() {
+        Cache<T> cache;
+        synchronized (lock) {
+            cache = current;
+            current = null;
+        }
+        if (cache != null) {
+            cache.retire();
+        }
+    }
+
+    private static final class Cache<T> {
+
+        private final DataSerializer<T> serializer;
+        private final Func0<File> fileFactory;
+        private final int segmentSizeBytes;
+        private final Writer<T> writer;
+        private final Object lock = new Object();
+        private final List<Cursor<T>> cursors = new CopyOnWriteArrayList<Cursor<T>>();
+
+        // guarded by lock
+        private Segment first;
+        private boolean retired;
+
+        // written under lock, read by the writer
+        private volatile Segment last;
+        private volatile boolean closed;
+
+        private volatile boolean done;
+
+        // non-zero while the writer may be writing to last so that closing
+        // does not unmap a segment under it. The segments are released by
+        // whichever of the writer and cleanUp() finishes with them last.
+        private final AtomicInteger writing = new AtomicInteger();
+
+        // Is set just before the volatile `done` is set and read just after
+        // `done` is read. Thus doesn't need to be volatile.
+        private Throwable error;
+
+        Cache(DataSerializer<T> serializer, Func0<File> fileFactory, int segmentSizeBytes) {
+            this.serializer = serializer;
+            this.fileFactory = fileFactory;
+            this.segmentSizeBytes = segmentSizeBytes;
+            this.first = new Segment(0, fileFactory.call(), segmentSizeBytes);
+            this.last = first;
+            this.writer = new Writer<T>(this);
+        }
+
+        void onNext(T t) throws IOException {
+            if (closed) {
+                return;
+            }
+            writing.incrementAndGet();
+            try {
+                // must read closed after incrementing writing
+                if (!closed) {
+                    write(t);
+                }
+            } finally {
+                if (writing.decrementAndGet() == 0 && closed) {
+                    synchronized (lock) {
+                        release();
+                    }
+                }
+            }
+        }
+
+        private void write(T t) throws IOException {
+            ByteArrayOutputStreamNoCopyUnsynchronized bytes = writer.bytes;
+            bytes.reset();
+            serializer.serialize(writer.output, t);
+            int length = bytes.size();
+            Segment seg = last;
+            if (seg.write.remaining() < Segment.LENGTH_BYTES + length) {
+                seg = rollover(Segment.LENGTH_BYTES + length);
+                if (seg == null) {
+                    // closed
+                    return;
+                }
+            }
+            seg.write.putInt(length);
+            seg.write.put(bytes.toByteArrayNoCopy(), 0, length);
+            // publish
+            seg.written = seg.write.position();
+            signal();
+        }
+
+        void onTerminate(Throwable e) {
+            error = e;
+            done = true;
+            signal();
+        }
+
+        private Segment rollover(int recordLength) {
+            synchronized (lock) {
+                if (closed) {
+                    return null;
+                }
+                Segment seg = last;
+                // an item larger than a segment gets a segment to itself
+                Segment next = new Segment(seg.index + 1, fileFactory.call(),
+                        Math.max(segmentSizeBytes, recordLength));
+                // seg.written is final from here
+                seg.next = next;
+                last = next;
+                return next;
+            }
+        }
+
+        private void signal() {
+            for (Cursor<T> cursor : cursors) {
+                cursor.drain();
+            }
+        }
+
+        void add(Cursor<T> cursor) {
+            synchronized (lock) {
+                cursor.moveTo(first);
+                cursors.add(cursor);
+            }
+        }
+
+        void remove(Cursor<T> cursor) {
+            synchronized (lock) {
+                if (cursors.remove(cursor)) {
+                    cleanUp();
+                }
+            }
+        }
+
+        void moved(Cursor<T> cursor, Segment next) {
+            synchronized (lock) {
+                cursor.moveTo(next);
+                cleanUp();
+            }
+        }
+
+        void retire() {
+            synchronized (lock) {
+                retired = true;
+                cleanUp();
+            }
+        }
+
+        // must hold lock
+        private void cleanUp() {
+            if (!retired || closed) {
+                return;
+            } else if (cursors.isEmpty()) {
+                closed = true;
+                writer.unsubscribe();
+                // a write in progress holds off the release until it has
+                // finished
+                writing.incrementAndGet();
+                if (writing.decrementAndGet() == 0) {
+                    release();
+                }
+            } else {
+                int min = Integer.MAX_VALUE;
+                for (Cursor<T> cursor : cursors) {
+                    min = Math.min(min, cursor.segment.index);
+                }
+                // no cursor reads these and the writer only writes to last
+                while (first.index < min) {
+                    first.delete();
+                    first = first.next;
+                }
+            }
+        }
+
+        // must hold lock, does nothing if already released
+        private void release() {
+            Segment seg = first;
+            first = null;
+            while (seg != null) {
+                seg.delete();
+                seg = seg.next;
+            }
+        }
+    }
+
+    private static final class Writer<T> extends Subscriber<T> {
+
+        private final Cache<T> cache;
+        final ByteArrayOutputStreamNoCopyUnsynchronized bytes = new ByteArrayOutputStreamNoCopyUnsynchronized();
+        final DataOutputStream output = new DataOutputStream(bytes);
+
+        Writer(Cache<T> cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public void onStart() {
+            request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(T t) {
+            try {
+                cache.onNext(t);
+            } catch (Throwable e) {
+                Exceptions.throwIfFatal(e);
+                unsubscribe();
+                cache.onTerminate(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            cache.onTerminate(e);
+        }
+
+        @Override
+        public void onCompleted() {
+            cache.onTerminate(null);
+        }
+    }
+
+    private static final class Segment {
+
+        static final int LENGTH_BYTES = 4;
+
+        final int index;
+        private final File file;
+        final MappedByteBuffer mapped;
+
+        // only accessed by the writer
+        final ByteBuffer write;
+
+        // the end of the last fully written item
+        volatile int written;
+
+        // set once the segment is full, after the final value of written
+        volatile Segment next;
+
+        Segment(int index, File file, int size) {
+            this.index = index;
+            this.file = file;
+            try {
+                file.getParentFile().mkdirs();
+                RandomAccessFile f = new RandomAccessFile(file, "rw");
+                try {
+                    // the mapping stays valid after the file is closed
+                    this.mapped = f.getChannel().map(MapMode.READ_WRITE, 0, size);
+                } finally {
+                    f.close();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            this.write = mapped.duplicate();
+        }
+
+        // must only be called once neither the writer nor any cursor can
+        // access the segment
+        void delete() {
+            // release the mapping now rather than when the buffer is garbage
+            // collected so that the disk space is reclaimed (and so that the
+            // file can be deleted at all on Windows)
+            MappedByteBuffers.unmap(mapped);
+            if (!file.delete()) {
+                RxJavaHooks.onError(new IOException("could not delete file " + file));
+            }
+        }
+    }
+
+    private static final class Cursor<T> extends AtomicLong implements Producer, Action0 {
+
+        // inherits from AtomicLong to represent the oustanding requests count
+
+        private static final long serialVersionUID = -3994563813542282413L;
+
+        private final Cache<T> cache;
+        private final Subscriber<? super T> child;
+        private final Worker worker;
+        private final AtomicInteger drainRequested = new AtomicInteger();
+        private final ReadBufferInputStream readInput = new ReadBufferInputStream();
+        private final DataInputStream input = new DataInputStream(readInput);
+
+        // written under the cache lock by the drain loop (or before the drain
+        // loop starts)
+        Segment segment;
+
+        // only accessed by the drain loop
+        private ByteBuffer read;
+        private int position;
+
+        Cursor(Cache<T> cache, Subscriber<? super T> child, Worker worker) {
+            this.cache = cache;
+            this.child = child;
+            this.worker = worker;
+        }
+
+        void start() {
+            // the cursor is removed on the worker so that the segments it
+            // reads are not deleted while a drain is running
+            child.add(Subscriptions.create(new Action0() {
+                @Override
+                public void call() {
+                    worker.schedule(new Action0() {
+                        @Override
+                        public void call() {
+                            cache.remove(Cursor.this);
+                            worker.unsubscribe();
+                        }
+                    });
+                }
+            }));
+            child.setProducer(this);
+            // deliver a terminal event even if nothing is requested
+            drain();
+        }
+
+        // called holding the cache lock
+        void moveTo(Segment seg) {
+            segment = seg;
+            read = seg.mapped.duplicate();
+            position = 0;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n > 0) {
+                BackpressureUtils.getAndAddRequest(this, n);
+                drain();
+            }
+        }
+
+        void drain() {
+            if (!child.isUnsubscribed() && drainRequested.getAndIncrement() == 0) {
+                worker.schedule(this);
+            }
+        }
+
+        @Override
+        public void call() {
+            try {
+                drainNow();
+            } catch (Throwable e) {
+                Exceptions.throwIfFatal(e);
+                cache.remove(this);
+                child.onError(e);
+                worker.unsubscribe();
+            }
+        }
+
+        private void drainNow() {
+            int missed = 1;
+            for (;;) {
+                long requests = get();
+                long emitted = 0;
+                while (true) {
+                    if (child.isUnsubscribed()) {
+                        // leave drainRequested > 0 to prevent more
+                        // scheduling of drains
+                        return;
+                    }
+                    // must read done before checking for an item
+                    boolean d = cache.done;
+                    if (!available()) {
+                        if (d) {
+                            finish();
+                            return;
+                        }
+                        break;
+                    } else if (emitted == requests) {
+                        break;
+                    }
+                    T t = next();
+                    child.onNext(t);
+                    emitted++;
+                }
+                if (emitted > 0) {
+                    BackpressureUtils.produced(this, emitted);
+                }
+                missed = drainRequested.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private boolean available() {
+            while (true) {
+                if (position < segment.written) {
+                    return true;
+                }
+                Segment next = segment.next;
+                if (next == null) {
+                    return false;
+                } else if (position < segment.written) {
+                    // written before next was set
+                    return true;
+                } else {
+                    cache.moved(this, next);
+                }
+            }
+        }
+
+        private T next() {
+            read.limit(read.capacity());
+            read.position(position);
+            int length = read.getInt();
+            int end = position + Segment.LENGTH_BYTES + length;
+            read.limit(end);
+            readInput.bb = read;
+            try {
+                T t = cache.serializer.deserialize(input);
+                position = end;
+                return t;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void finish() {
+            Throwable error = cache.error;
+            cache.remove(this);
+            if (error != null) {
+                child.onError(error);
+            } else {
+                child.onCompleted();
+            }
+            worker.unsubscribe();
+        }
+    }
+
+    private static final class ReadBufferInputStream extends InputStream {
+
+        ByteBuffer bb;
+
+        @Override
+        public int read() throws IOException {
+            if (!bb.hasRemaining()) {
+                return -1;
+            }
+            return bb.get() & 0x000000FF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            } else if (!bb.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, bb.remaining());
+            bb.get(b, off, n);
+            return n;
+        }
+    }
+
+}
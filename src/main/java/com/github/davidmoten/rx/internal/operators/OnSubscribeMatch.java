@@ -1,25 +1,44 @@
 package com.github.davidmoten.rx.internal.operators;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+import com.github.davidmoten.rx.Actions;
+import com.github.davidmoten.rx.buffertofile.DataSerializer;
+import com.github.davidmoten.rx.internal.operators.MatchTable.Entry;
+import com.github.davidmoten.util.ByteArrayOutputStreamNoCopyUnsynchronized;
 import com.github.davidmoten.util.Preconditions;
 
 import rx.Observable;
 import rx.Observable.OnSubscribe;
 import rx.Producer;
+import rx.Scheduler;
+import rx.Scheduler.Worker;
 import rx.Subscriber;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
 import rx.functions.Func1;
 import rx.functions.Func2;
 import rx.internal.operators.BackpressureUtils;
 import rx.internal.util.unsafe.MpscLinkedQueue;
 import rx.internal.util.unsafe.UnsafeAccess;
+import rx.plugins.RxJavaHooks;
+import rx.subscriptions.Subscriptions;
 
 public final class OnSubscribeMatch<A, B, K, C> implements OnSubscribe<C> {
 
@@ -29,24 +48,93 @@ public final class OnSubscribeMatch<A, B, K, C> implements OnSubscribe<C> {
     private final Func1<? super B, ? extends K> bKey;
     private final Func2<? super A, ? super B, C> combiner;
     private final long requestSize;
+    private final long maxUnmatched;
+    // spilling to disk is disabled when aSerializer is null
+    private final DataSerializer<A> aSerializer;
+    private final DataSerializer<B> bSerializer;
+    private final long maxUnmatchedInMemory;
+    private final Func0<File> fileFactory;
+    // unmatched items are expired when older than maxAgeMs or when more than
+    // maxRetained are held, disabled when both are Long.MAX_VALUE
+    private final long maxAgeMs;
+    private final Scheduler scheduler;
+    private final long maxRetained;
+    private final Action1<? super A> onExpiredA;
+    private final Action1<? super B> onExpiredB;
 
     private static final Object NULL_SENTINEL = new Object();
 
     public OnSubscribeMatch(Observable<A> a, Observable<B> b, Func1<? super A, ? extends K> aKey,
             Func1<? super B, ? extends K> bKey, Func2<? super A, ? super B, C> combiner,
             long requestSize) {
+        this(a, b, aKey, bKey, combiner, requestSize, Long.MAX_VALUE);
+    }
+
+    public OnSubscribeMatch(Observable<A> a, Observable<B> b, Func1<? super A, ? extends K> aKey,
+            Func1<? super B, ? extends K> bKey, Func2<? super A, ? super B, C> combiner,
+            long requestSize, long maxUnmatched) {
+        this(a, b, aKey, bKey, combiner, requestSize, maxUnmatched, null, null, Long.MAX_VALUE,
+                null);
+    }
+
+    public OnSubscribeMatch(Observable<A> a, Observable<B> b, Func1<? super A, ? extends K> aKey,
+            Func1<? super B, ? extends K> bKey, Func2<? super A, ? super B, C> combiner,
+            long requestSize, long maxUnmatched, DataSerializer<A> aSerializer,
+            DataSerializer<B> bSerializer, long maxUnmatchedInMemory, Func0<File> fileFactory) {
+        this(a, b, aKey, bKey, combiner, requestSize, maxUnmatched, aSerializer, bSerializer,
+                maxUnmatchedInMemory, fileFactory, Long.MAX_VALUE, null, Long.MAX_VALUE,
+                Actions.doNothing1(), Actions.doNothing1());
+    }
+
+    public OnSubscribeMatch(Observable<A> a, Observable<B> b, Func1<? super A, ? extends K> aKey,
+            Func1<? super B, ? extends K> bKey, Func2<? super A, ? super B, C> combiner,
+            long requestSize, long maxAgeMs, Scheduler scheduler, long maxRetained,
+            Action1<? super A> onExpiredA, Action1<? super B> onExpiredB) {
+        this(a, b, aKey, bKey, combiner, requestSize, Long.MAX_VALUE, null, null, Long.MAX_VALUE,
+                null, maxAgeMs, scheduler, maxRetained, onExpiredA, onExpiredB);
+    }
+
+    public OnSubscribeMatch(Observable<A> a, Observable<B> b, Func1<? super A, ? extends K> aKey,
+            Func1<? super B, ? extends K> bKey, Func2<? super A, ? super B, C> combiner,
+            long requestSize, long maxUnmatched, DataSerializer<A> aSerializer,
+            DataSerializer<B> bSerializer, long maxUnmatchedInMemory, Func0<File> fileFactory,
+            long maxAgeMs, Scheduler scheduler, long maxRetained, Action1<? super A> onExpiredA,
+            Action1<? super B> onExpiredB) {
         Preconditions.checkNotNull(a, "a should not be null");
         Preconditions.checkNotNull(b, "b should not be null");
         Preconditions.checkNotNull(aKey, "aKey cannot be null");
         Preconditions.checkNotNull(bKey, "bKey cannot be null");
         Preconditions.checkNotNull(combiner, "combiner cannot be null");
         Preconditions.checkArgument(requestSize >= 1, "requestSize must be >=1");
+        Preconditions.checkArgument(maxUnmatched >= 1, "maxUnmatched must be >=1");
+        Preconditions.checkArgument((aSerializer == null) == (bSerializer == null),
+                "aSerializer and bSerializer must both be null or both be non-null");
+        Preconditions.checkArgument(aSerializer == null || fileFactory != null,
+                "fileFactory cannot be null when spilling to disk");
+        Preconditions.checkArgument(maxUnmatchedInMemory >= 0,
+                "maxUnmatchedInMemory must be >=0");
+        Preconditions.checkArgument(maxAgeMs > 0, "maxAge must be >0");
+        Preconditions.checkArgument(maxAgeMs == Long.MAX_VALUE || scheduler != null,
+                "scheduler cannot be null when maxAge is set");
+        Preconditions.checkArgument(maxRetained >= 1, "maxRetained must be >=1");
+        Preconditions.checkNotNull(onExpiredA, "onExpiredA cannot be null");
+        Preconditions.checkNotNull(onExpiredB, "onExpiredB cannot be null");
         this.a = a;
         this.b = b;
         this.aKey = aKey;
         this.bKey = bKey;
         this.combiner = combiner;
         this.requestSize = requestSize;
+        this.maxUnmatched = maxUnmatched;
+        this.aSerializer = aSerializer;
+        this.bSerializer = bSerializer;
+        this.maxUnmatchedInMemory = maxUnmatchedInMemory;
+        this.fileFactory = fileFactory;
+        this.maxAgeMs = maxAgeMs;
+        this.scheduler = scheduler;
+        this.maxRetained = maxRetained;
+        this.onExpiredA = onExpiredA;
+        this.onExpiredB = onExpiredB;
     }
 
     @Override
@@ -56,9 +144,38 @@ public final class OnSubscribeMatch<A, B, K, C> implements OnSubscribe<C> {
         MySubscriber<B, K> bSub = new MySubscriber<B, K>(Source.B, receiverHolder, requestSize);
         child.add(aSub);
         child.add(bSub);
-        MyProducer<A, B, K, C> producer = new MyProducer<A, B, K, C>(a, b, aKey, bKey, combiner,
-                aSub, bSub, child, requestSize);
+        final Spill spill;
+        if (aSerializer == null) {
+            spill = null;
+        } else {
+            spill = new Spill(fileFactory, Spill.DEFAULT_SEGMENT_SIZE_BYTES);
+        }
+        final MyProducer<A, B, K, C> producer = new MyProducer<A, B, K, C>(a, b, aKey, bKey,
+                combiner, aSub, bSub, child, requestSize, maxUnmatched, aSerializer, bSerializer,
+                maxUnmatchedInMemory, spill, maxAgeMs, scheduler, maxRetained, onExpiredA,
+                onExpiredB);
         receiverHolder.set(producer);
+        if (spill != null) {
+            // the drain loop deletes the spill files when it sees that the
+            // child has unsubscribed
+            child.add(Subscriptions.create(new Action0() {
+                @Override
+                public void call() {
+                    producer.drain();
+                }
+            }));
+        }
+        if (maxAgeMs != Long.MAX_VALUE) {
+            // expire unmatched items even when neither source is emitting
+            Worker worker = scheduler.createWorker();
+            child.add(worker);
+            worker.schedulePeriodically(new Action0() {
+                @Override
+                public void call() {
+                    producer.tick();
+                }
+            }, maxAgeMs, maxAgeMs, TimeUnit.MILLISECONDS);
+        }
         child.setProducer(producer);
         a.unsafeSubscribe(aSub);
         b.unsafeSubscribe(bSub);
@@ -70,8 +187,8 @@ public final class OnSubscribeMatch<A, B, K, C> implements OnSubscribe<C> {
         // extends AtomicInteger as a work-in-progress atomic (wip)
 
         private final Queue<Object> queue;
-        private final Map<K, Queue<A>> as = new HashMap<K, Queue<A>>();
-        private final Map<K, Queue<B>> bs = new HashMap<K, Queue<B>>();
+        private final MatchTable<K> as;
+        private final MatchTable<K> bs;
         private final Func1<? super A, ? extends K> aKey;
         private final Func1<? super B, ? extends K> bKey;
         private final Func2<? super A, ? super B, C> combiner;
@@ -79,12 +196,30 @@ public final class OnSubscribeMatch<A, B, K, C> implements OnSubscribe<C> {
         private final MySubscriber<A, K> aSub;
         private final MySubscriber<B, K> bSub;
         private final long requestSize;
+        private final long maxUnmatched;
+        private final DataSerializer<A> aSerializer;
+        private final DataSerializer<B> bSerializer;
+        private final long maxUnmatchedInMemory;
+        // null if not spilling to disk
+        private final Spill spill;
+        private final long maxAgeMs;
+        private final Scheduler scheduler;
+        private final long maxRetained;
+        private final Action1<? super A> onExpiredA;
+        private final Action1<? super B> onExpiredB;
+        private final boolean expires;
 
         private final AtomicLong requested = new AtomicLong(0);
 
+        // true while a tick is on the queue so that ticks do not accumulate
+        // while the child is not requesting
+        private final AtomicBoolean tickPending = new AtomicBoolean();
+
         // mutable fields, guarded by `this` atomics
         private int requestFromA = 0;
         private int requestFromB = 0;
+        // arrival order of unmatched items across both sources
+        private long sequence = 0;
 
         // completion state machine
         private int completed = COMPLETED_NONE;
@@ -97,7 +232,10 @@ public final class OnSubscribeMatch<A, B, K, C> implements OnSubscribe<C> {
         MyProducer(Observable<A> a, Observable<B> b, Func1<? super A, ? extends K> aKey,
                 Func1<? super B, ? extends K> bKey, Func2<? super A, ? super B, C> combiner,
                 MySubscriber<A, K> aSub, MySubscriber<B, K> bSub, Subscriber<? super C> child,
-                long requestSize) {
+                long requestSize, long maxUnmatched, DataSerializer<A> aSerializer,
+                DataSerializer<B> bSerializer, long maxUnmatchedInMemory, Spill spill,
+                long maxAgeMs, Scheduler scheduler, long maxRetained,
+                Action1<? super A> onExpiredA, Action1<? super B> onExpiredB) {
             this.aKey = aKey;
             this.bKey = bKey;
             this.combiner = combiner;
@@ -105,6 +243,21 @@ public final class OnSubscribeMatch<A, B, K, C> implements OnSubscribe<C> {
             this.aSub = aSub;
             this.bSub = bSub;
             this.requestSize = requestSize;
+            this.maxUnmatched = maxUnmatched;
+            this.aSerializer = aSerializer;
+            this.bSerializer = bSerializer;
+            this.maxUnmatchedInMemory = maxUnmatchedInMemory;
+            this.spill = spill;
+            this.maxAgeMs = maxAgeMs;
+            this.scheduler = scheduler;
+            this.maxRetained = maxRetained;
+            this.onExpiredA = onExpiredA;
+            this.onExpiredB = onExpiredB;
+            this.expires = maxAgeMs != Long.MAX_VALUE || maxRetained != Long.MAX_VALUE;
+            // arrival order is only needed to find the oldest entries to spill
+            // or expire
+            this.as = new MatchTable<K>(spill != null || expires);
+            this.bs = new MatchTable<K>(spill != null || expires);
             if (UnsafeAccess.isUnsafeAvailable()) {
                 queue = new MpscLinkedQueue<Object>();
             } else {
@@ -128,10 +281,15 @@ public final class OnSubscribeMatch<A, B, K, C> implements OnSubscribe<C> {
             }
             int missed = 1;
             while (true) {
+                if (child.isUnsubscribed()) {
+                    clear();
+                    return;
+                }
                 long r = requested.get();
                 int emitted = 0;
                 while (r > emitted) {
                     if (child.isUnsubscribed()) {
+                        clear();
                         return;
                     }
                     // note will not return null
@@ -152,6 +310,11 @@ public final class OnSubscribeMatch<A, B, K, C> implements OnSubscribe<C> {
                         if (status == Status.FINISHED) {
                             return;
                         }
+                    } else if (v == Tick.INSTANCE) {
+                        tickPending.set(false);
+                        if (expire() == Emitted.FINISHED) {
+                            return;
+                        }
                     } else if (v instanceof MyError) {
                         // v must be an error
                         clear();
@@ -193,22 +356,25 @@ public final class OnSubscribeMatch<A, B, K, C> implements OnSubscribe<C> {
                 A a = (A) value;
                 K key;
                 try {
-                    key = aKey.call(a);
+                    key = aKey.call(replaceSentinel(a));
                 } catch (Throwable e) {
                     clear();
                     child.onError(e);
                     return Emitted.FINISHED;
                 }
-                Queue<B> q = bs.get(key);
-                if (q == null) {
+                Entry entry = bs.poll(key);
+                if (entry == null) {
                     // cache value
-                    add(as, key, a);
+                    Entry added = as.add(key, a, sequence++);
+                    if (maxAgeMs != Long.MAX_VALUE) {
+                        added.time = scheduler.now();
+                    }
                     result = Emitted.NONE;
                 } else {
                     // emit match
-                    B b = poll(bs, q, key);
                     C c;
                     try {
+                        B b = this.<B> valueOf(entry, bSerializer);
                         c = combiner.call(replaceSentinel(a), replaceSentinel(b));
                     } catch (Throwable e) {
                         clear();
@@ -234,22 +400,25 @@ public final class OnSubscribeMatch<A, B, K, C> implements OnSubscribe<C> {
                 B b = (B) value;
                 K key;
                 try {
-                    key = bKey.call(b);
+                    key = bKey.call(replaceSentinel(b));
                 } catch (Throwable e) {
                     clear();
                     child.onError(e);
                     return Emitted.FINISHED;
                 }
-                Queue<A> q = as.get(key);
-                if (q == null) {
+                Entry entry = as.poll(key);
+                if (entry == null) {
                     // cache value
-                    add(bs, key, b);
+                    Entry added = bs.add(key, b, sequence++);
+                    if (maxAgeMs != Long.MAX_VALUE) {
+                        added.time = scheduler.now();
+                    }
                     result = Emitted.NONE;
                 } else {
                     // emit match
-                    A a = poll(as, q, key);
                     C c;
                     try {
+                        A a = this.<A> valueOf(entry, aSerializer);
                         c = combiner.call(replaceSentinel(a), replaceSentinel(b));
                     } catch (Throwable e) {
                         clear();
@@ -270,11 +439,105 @@ public final class OnSubscribeMatch<A, B, K, C> implements OnSubscribe<C> {
                     requestFromB += 1;
                 }
             }
+            if (result == Emitted.NONE && expires && expire() == Emitted.FINISHED) {
+                return Emitted.FINISHED;
+            }
+            if (result == Emitted.NONE && spill != null) {
+                try {
+                    spillIfRequired();
+                } catch (Throwable e) {
+                    clear();
+                    child.onError(e);
+                    return Emitted.FINISHED;
+                }
+            }
             // requests are batched so that each source gets a turn
             checkToRequestMore();
             return result;
         }
 
+        // removes unmatched items (oldest first) that are older than maxAgeMs
+        // or that exceed maxRetained and reports them to the callbacks
+        private Emitted expire() {
+            final long now;
+            if (maxAgeMs == Long.MAX_VALUE) {
+                now = 0;
+            } else {
+                now = scheduler.now();
+            }
+            while (true) {
+                Entry ea = as.oldest();
+                Entry eb = bs.oldest();
+                final boolean fromA;
+                final Entry entry;
+                if (eb == null || (ea != null && ea.sequence < eb.sequence)) {
+                    fromA = true;
+                    entry = ea;
+                } else {
+                    fromA = false;
+                    entry = eb;
+                }
+                if (entry == null) {
+                    break;
+                }
+                if (as.size() + bs.size() <= maxRetained
+                        && (maxAgeMs == Long.MAX_VALUE || now - entry.time < maxAgeMs)) {
+                    break;
+                }
+                try {
+                    if (fromA) {
+                        as.pollOldest();
+                        A a = this.<A> valueOf(entry, aSerializer);
+                        onExpiredA.call(replaceSentinel(a));
+                    } else {
+                        bs.pollOldest();
+                        B b = this.<B> valueOf(entry, bSerializer);
+                        onExpiredB.call(replaceSentinel(b));
+                    }
+                } catch (Throwable e) {
+                    clear();
+                    child.onError(e);
+                    return Emitted.FINISHED;
+                }
+            }
+            // nothing left that could match an item from the source that has
+            // not completed
+            if ((completed == COMPLETED_A && as.isEmpty())
+                    || (completed == COMPLETED_B && bs.isEmpty())) {
+                clear();
+                child.onCompleted();
+                return Emitted.FINISHED;
+            } else {
+                return Emitted.NONE;
+            }
+        }
+
+        // the entry must have been removed from its table
+        @SuppressWarnings("unchecked")
+        private <T> T valueOf(Entry entry, DataSerializer<T> serializer) throws IOException {
+            if (entry.isSpilled()) {
+                return (T) spill.remove(entry, serializer);
+            } else {
+                return (T) entry.value;
+            }
+        }
+
+        // moves the oldest unmatched values (from either source) to disk
+        // until at most maxUnmatchedInMemory are held in memory
+        private void spillIfRequired() throws IOException {
+            while (as.inMemory() + bs.inMemory() > maxUnmatchedInMemory) {
+                Entry ea = as.oldestInMemory();
+                Entry eb = bs.oldestInMemory();
+                if (eb == null || (ea != null && ea.sequence < eb.sequence)) {
+                    spill.write(ea, aSerializer);
+                    as.spilledOldestInMemory();
+                } else {
+                    spill.write(eb, bSerializer);
+                    bs.spilledOldestInMemory();
+                }
+            }
+        }
+
         private enum Emitted {
             ONE, NONE, FINISHED;
         }
@@ -304,7 +567,20 @@ public final class OnSubscribeMatch<A, B, K, C> implements OnSubscribe<C> {
         }
 
         private void checkToRequestMore() {
-            if (requestFromA == requestSize && completed == COMPLETED_B) {
+            if (completed == COMPLETED_NONE && as.size() + bs.size() >= maxUnmatched) {
+                // too many unmatched items so only request from the source
+                // holding fewer of them (its items are the ones that can
+                // reduce the backlog of the faster source)
+                if (as.size() >= bs.size()) {
+                    if (requestFromB == requestSize) {
+                        requestFromB = 0;
+                        bSub.requestMore(requestSize);
+                    }
+                } else if (requestFromA == requestSize) {
+                    requestFromA = 0;
+                    aSub.requestMore(requestSize);
+                }
+            } else if (requestFromA == requestSize && completed == COMPLETED_B) {
                 requestFromA = 0;
                 aSub.requestMore(requestSize);
             } else if (requestFromB == requestSize && completed == COMPLETED_A) {
@@ -340,23 +616,9 @@ public final class OnSubscribeMatch<A, B, K, C> implements OnSubscribe<C> {
             queue.clear();
             aSub.unsubscribe();
             bSub.unsubscribe();
-        }
-
-        private static <K, T> void add(Map<K, Queue<T>> map, K key, T value) {
-            Queue<T> q = map.get(key);
-            if (q == null) {
-                q = new LinkedList<T>();
-                map.put(key, q);
+            if (spill != null) {
+                spill.close();
             }
-            q.offer(value);
-        }
-
-        private static <K, T> T poll(Map<K, Queue<T>> map, Queue<T> q, K key) {
-            T t = q.poll();
-            if (q.isEmpty()) {
-                map.remove(key);
-            }
-            return t;
         }
 
         @Override
@@ -365,6 +627,12 @@ public final class OnSubscribeMatch<A, B, K, C> implements OnSubscribe<C> {
             drain();
         }
 
+        void tick() {
+            if (tickPending.compareAndSet(false, true)) {
+                offer(Tick.INSTANCE);
+            }
+        }
+
         private static <T> T replaceSentinel(T t) {
             if (t == NULL_SENTINEL) {
                 return null;
@@ -375,6 +643,138 @@ public final class OnSubscribeMatch<A, B, K, C> implements OnSubscribe<C> {
 
     }
 
+    /**
+     * Files holding the serialized values of unmatched items that have been
+     * moved out of memory. Values are appended to the current segment file
+     * and a new segment is started once the current one reaches
+     * {@code segmentSize} bytes. Each segment counts the values in it that
+     * have not been read back (matched or expired) and when that count
+     * reaches zero the segment is deleted (or rewound if it is the current
+     * segment) so that disk use follows the number of spilled items rather
+     * than growing for the life of the stream. Remaining segments are deleted
+     * on termination.
+     */
+    static final class Spill {
+
+        static final long DEFAULT_SEGMENT_SIZE_BYTES = 64 * 1024 * 1024;
+
+        // marks a spilled null value, nothing is written for it
+        private static final int NULL_LENGTH = -1;
+
+        private final Func0<File> fileFactory;
+        private final long segmentSize;
+        private final ByteArrayOutputStreamNoCopyUnsynchronized bytes = new ByteArrayOutputStreamNoCopyUnsynchronized();
+        private final DataOutputStream output = new DataOutputStream(bytes);
+        private final List<Segment> segments = new ArrayList<Segment>();
+        private byte[] buffer = new byte[0];
+        // segment being appended to, null if none
+        private Segment current;
+
+        Spill(Func0<File> fileFactory, long segmentSize) {
+            Preconditions.checkArgument(segmentSize > 0, "segmentSize must be >0");
+            this.fileFactory = fileFactory;
+            this.segmentSize = segmentSize;
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> void write(Entry entry, DataSerializer<T> serializer) throws IOException {
+            if (entry.value == NULL_SENTINEL) {
+                entry.length = NULL_LENGTH;
+                return;
+            }
+            if (current == null || current.end >= segmentSize) {
+                File file = fileFactory.call();
+                file.getParentFile().mkdirs();
+                current = new Segment(file);
+                segments.add(current);
+            }
+            bytes.reset();
+            serializer.serialize(output, (T) entry.value);
+            current.f.seek(current.end);
+            current.f.write(bytes.toByteArrayNoCopy(), 0, bytes.size());
+            entry.position = current.end;
+            entry.length = bytes.size();
+            entry.segment = current;
+            current.end += bytes.size();
+            current.unread++;
+        }
+
+        /**
+         * Returns the value of a spilled entry that has been removed from its
+         * table and releases the space it occupied.
+         */
+        <T> Object remove(Entry entry, DataSerializer<T> serializer) throws IOException {
+            if (entry.length == NULL_LENGTH) {
+                return NULL_SENTINEL;
+            }
+            Segment segment = (Segment) entry.segment;
+            entry.segment = null;
+            if (buffer.length < entry.length) {
+                buffer = new byte[entry.length];
+            }
+            segment.f.seek(entry.position);
+            segment.f.readFully(buffer, 0, entry.length);
+            segment.unread--;
+            if (segment.unread == 0) {
+                if (segment == current) {
+                    // nothing left to read so overwrite from the start
+                    segment.end = 0;
+                } else {
+                    segments.remove(segment);
+                    segment.delete();
+                }
+            }
+            T t = serializer.deserialize(
+                    new DataInputStream(new ByteArrayInputStream(buffer, 0, entry.length)));
+            if (t == null) {
+                return NULL_SENTINEL;
+            } else {
+                return t;
+            }
+        }
+
+        // number of segment files currently on disk
+        int segmentCount() {
+            return segments.size();
+        }
+
+        void close() {
+            // called from unsubscribe so failures are reported rather than
+            // thrown
+            for (Segment segment : segments) {
+                segment.delete();
+            }
+            segments.clear();
+            current = null;
+        }
+
+        private static final class Segment {
+
+            final File file;
+            final RandomAccessFile f;
+            // position after the last value written
+            long end;
+            // number of values written and not yet removed
+            long unread;
+
+            Segment(File file) throws FileNotFoundException {
+                this.file = file;
+                this.f = new RandomAccessFile(file, "rw");
+            }
+
+            void delete() {
+                try {
+                    f.close();
+                } catch (IOException e) {
+                    RxJavaHooks.onError(e);
+                }
+                if (!file.delete()) {
+                    RxJavaHooks.onError(new IOException("could not delete file " + file));
+                }
+            }
+        }
+    }
+
     interface Receiver {
         void offer(Object item);
     }
@@ -423,6 +823,10 @@ public final class OnSubscribeMatch<A, B, K, C> implements OnSubscribe<C> {
 
     }
 
+    enum Tick {
+        INSTANCE;
+    }
+
     static final class MyError {
         final Throwable error;
 
@@ -1,12 +1,18 @@
 package com.github.davidmoten.rx.internal.operators;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.zip.Deflater;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+import com.github.davidmoten.rx.buffertofile.Compression;
 import com.github.davidmoten.rx.buffertofile.DataSerializer;
 import com.github.davidmoten.rx.buffertofile.Options;
+import com.github.davidmoten.rx.buffertofile.OverflowPolicy;
+import com.github.davidmoten.rx.buffertofile.StorageType;
 import com.github.davidmoten.util.Preconditions;
 
 import rx.Observable;
@@ -18,31 +24,73 @@ import rx.Scheduler.Worker;
 import rx.Subscriber;
 import rx.exceptions.Exceptions;
 import rx.functions.Action0;
+import rx.functions.Action1;
 import rx.functions.Func0;
 import rx.internal.operators.BackpressureUtils;
 import rx.observers.Subscribers;
+import rx.schedulers.Schedulers;
 
 public final class OperatorBufferToFile<T> implements Operator<T, T> {
 
     private final DataSerializer<T> dataSerializer;
     private final Scheduler scheduler;
     private final Options options;
+    private final boolean multipleProducers;
 
     public OperatorBufferToFile(DataSerializer<T> dataSerializer, Scheduler scheduler,
             Options options) {
+        this(dataSerializer, scheduler, options, false);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param dataSerializer
+     *            serializes items to file
+     * @param scheduler
+     *            emissions to downstream happen on this scheduler
+     * @param options
+     *            buffer options
+     * @param multipleProducers
+     *            if true the returned subscriber accepts concurrent calls to
+     *            {@code onNext} and items are stored in memory mapped
+     *            segments of {@code options.rolloverSizeBytes()} bytes.
+     *            {@code onError} may also be called concurrently with
+     *            {@code onNext} (the error is recorded and emitted
+     *            downstream by the drain loop) but {@code onCompleted} must
+     *            only be called after all {@code onNext} calls have finished
+     */
+    OperatorBufferToFile(DataSerializer<T> dataSerializer, Scheduler scheduler, Options options,
+            boolean multipleProducers) {
         Preconditions.checkNotNull(dataSerializer);
         Preconditions.checkNotNull(scheduler);
         Preconditions.checkNotNull(options);
+        if (multipleProducers) {
+            Preconditions.checkArgument(!options.durable(),
+                    "durable storage is not supported with multiple producers");
+            Preconditions.checkArgument(options.compression() == Compression.NONE,
+                    "compression is not supported with multiple producers");
+            Preconditions.checkArgument(options.memoryBufferItems() == 0,
+                    "an in-memory buffer is not supported with multiple producers");
+            Preconditions.checkArgument(!options.directBuffers(),
+                    "direct buffers are not supported with multiple producers");
+            Preconditions.checkArgument(
+                    options.overflowPolicy() == OverflowPolicy.ERROR
+                            || options.overflowPolicy() == OverflowPolicy.DROP_NEWEST,
+                    "only OverflowPolicy.ERROR and OverflowPolicy.DROP_NEWEST are supported with multiple producers");
+        }
         this.scheduler = scheduler;
         this.dataSerializer = dataSerializer;
         this.options = options;
+        this.multipleProducers = multipleProducers;
     }
 
     @Override
     public Subscriber<? super T> call(Subscriber<? super T> child) {
 
         // create the file based queue
-        final QueueWithSubscription<T> queue = createFileBasedQueue(dataSerializer, options);
+        final QueueWithResources<T> queue = createFileBasedQueue(dataSerializer, options,
+                multipleProducers);
 
         // hold a reference to the queueProducer which will be set on
         // subscription to `source`
@@ -51,12 +99,13 @@ public final class OperatorBufferToFile<T> implements Operator<T, T> {
         // emissions will propagate to downstream via this worker
         final Worker worker = scheduler.createWorker();
 
-        // set up the observable to read from the file based queue
-        Observable<T> source = Observable
-                .create(new OnSubscribeFromQueue<T>(queueProducer, queue, worker, options));
-
         // create the parent subscriber
-        Subscriber<T> parentSubscriber = new ParentSubscriber<T>(queueProducer);
+        ParentSubscriber<T> parentSubscriber = new ParentSubscriber<T>(queueProducer, queue,
+                options);
+
+        // set up the observable to read from the file based queue
+        Observable<T> source = Observable.create(new OnSubscribeFromQueue<T>(queueProducer,
+                queue, worker, options, parentSubscriber));
 
         // link unsubscription
         child.add(parentSubscriber);
@@ -76,27 +125,72 @@ public final class OperatorBufferToFile<T> implements Operator<T, T> {
         return parentSubscriber;
     }
 
-    private static final boolean MEMORY_MAPPED = "true"
-            .equals(System.getProperty("memory.mappped"));
+    // segment size used for memory mapped storage when rollover size not set
+    private static final int DEFAULT_SEGMENT_SIZE_BYTES = 20 * 1024 * 1024;
+
+    private static <T> QueueWithResources<T> createFileBasedQueue(
+            final DataSerializer<T> dataSerializer, final Options options,
+            final boolean multipleProducers) {
+        final QueueWithResources<T> queue;
+        if (options.memoryBufferItems() > 0) {
+            // the file based queue is only created if the in-memory buffer
+            // overflows
+            Func0<QueueWithResources<T>> fileQueueFactory = new Func0<QueueWithResources<T>>() {
+                @Override
+                public QueueWithResources<T> call() {
+                    return createStorageQueue(dataSerializer, options, false);
+                }
+            };
+            queue = new SpillingSPSCQueue<T>(options.memoryBufferItems(), fileQueueFactory,
+                    options.spillListener());
+        } else {
+            queue = createStorageQueue(dataSerializer, options, multipleProducers);
+        }
+        // the wrapping class ensures that unsubscribe happens in the same
+        // thread as the offer or poll which avoids the unsubscribe action
+        // not getting a time-slice so that the open file limit is not
+        // exceeded (new files are opened in the offer() call).
+        return new QueueWithResourcesNonBlockingUnsubscribe<T>(queue);
+    }
 
-    private static <T> QueueWithSubscription<T> createFileBasedQueue(
-            final DataSerializer<T> dataSerializer, final Options options) {
-        if (MEMORY_MAPPED) {
-            // warning: still in development!
-            final int size;
-            if (options.rolloverSizeBytes() > Integer.MAX_VALUE) {
-                size = 20 * 1024 * 1024;// 20MB
-            } else {
-                size = (int) options.rolloverSizeBytes();
-            }
-            return new FileBasedSPSCQueueMemoryMapped<T>(options.fileFactory(), size,
-                    dataSerializer);
+    private static <T> QueueWithResources<T> createStorageQueue(
+            final DataSerializer<T> dataSerializer, final Options options,
+            boolean multipleProducers) {
+        QueueWithResources<T> queue = createUnlimitedStorageQueue(dataSerializer, options,
+                multipleProducers);
+        if (!options.storageLimited()
+                || options.overflowPolicy() == OverflowPolicy.BACKPRESSURE) {
+            // backpressure is applied by ParentSubscriber
+            return queue;
+        } else if (options.overflowPolicy() == OverflowPolicy.DROP_OLDEST_SEGMENT) {
+            // Options ensures that rollover is enabled so queue is rolling
+            return new StorageLimitedQueue<T>((RollingSPSCQueue<T>) queue,
+                    options.maxStorageBytes(), options.overflowPolicy());
+        } else {
+            return new StorageLimitedQueue<T>(queue, options.maxStorageBytes(),
+                    options.overflowPolicy());
+        }
+    }
+
+    private static <T> QueueWithResources<T> createUnlimitedStorageQueue(
+            final DataSerializer<T> dataSerializer, final Options options,
+            boolean multipleProducers) {
+        if (multipleProducers) {
+            return new FileBasedMPSCQueueMemoryMapped<T>(options.fileFactory(),
+                    segmentSizeBytes(options), dataSerializer);
+        }
+        if (options.storageType() == StorageType.MEMORY_MAPPED) {
+            return new FileBasedSPSCQueueMemoryMapped<T>(options.fileFactory(),
+                    segmentSizeBytes(options), dataSerializer);
+        }
+        if (options.durable()) {
+            // syncs every syncInterval happen on an io worker
+            return DurableRollingSPSCQueue.create(dataSerializer, options, Schedulers.io());
         }
         if (options.rolloverEvery() == Long.MAX_VALUE
                 && options.rolloverSizeBytes() == Long.MAX_VALUE) {
             // skip the Rollover version
-            return new QueueWithResourcesNonBlockingUnsubscribe<T>(new FileBasedSPSCQueue<T>(
-                    options.bufferSizeBytes(), options.fileFactory().call(), dataSerializer));
+            return createFileQueue(options.fileFactory().call(), dataSerializer, options);
         } else {
             final Func0<QueueWithResources<T>> queueFactory = new Func0<QueueWithResources<T>>() {
                 @Override
@@ -106,37 +200,65 @@ public final class OperatorBufferToFile<T> implements Operator<T, T> {
                     // for storage if multiple are required per queue)
                     File file = options.fileFactory().call();
 
-                    return new FileBasedSPSCQueue<T>(options.bufferSizeBytes(), file,
-                            dataSerializer);
+                    return createFileQueue(file, dataSerializer, options);
                 }
             };
-            // the wrapping class ensures that unsubscribe happens in the same
-            // thread as the offer or poll which avoids the unsubscribe action
-            // not getting a time-slice so that the open file limit is not
-            // exceeded (new files are opened in the offer() call).
-            return new QueueWithResourcesNonBlockingUnsubscribe<T>(new RollingSPSCQueue<T>(
-                    queueFactory, options.rolloverSizeBytes(), options.rolloverEvery()));
+            return new RollingSPSCQueue<T>(queueFactory, options.rolloverSizeBytes(),
+                    options.rolloverEvery(), Collections.<QueueWithResources<T>> emptyList(),
+                    options.rolloverScheduler());
+        }
+    }
+
+    static int segmentSizeBytes(Options options) {
+        if (options.rolloverSizeBytes() > Integer.MAX_VALUE) {
+            return DEFAULT_SEGMENT_SIZE_BYTES;
+        } else {
+            return (int) options.rolloverSizeBytes();
+        }
+    }
+
+    private static <T> QueueWithResources<T> createFileQueue(File file,
+            DataSerializer<T> dataSerializer, Options options) {
+        if (options.directBuffers()) {
+            // Options ensures that compression is not set
+            return new FileBasedSPSCQueueDirect<T>(options.bufferSizeBytes(), file,
+                    dataSerializer);
+        } else if (options.compression() == Compression.NONE) {
+            return new FileBasedSPSCQueue<T>(options.bufferSizeBytes(), file, dataSerializer);
+        } else {
+            final int level;
+            if (options.compression() == Compression.DEFLATE_FAST) {
+                level = Deflater.BEST_SPEED;
+            } else {
+                level = Deflater.DEFAULT_COMPRESSION;
+            }
+            return new FileBasedSPSCQueueCompressed<T>(options.bufferSizeBytes(), level, file,
+                    dataSerializer);
         }
     }
 
     private static final class OnSubscribeFromQueue<T> implements OnSubscribe<T> {
 
         private final AtomicReference<QueueProducer<T>> queueProducer;
-        private final QueueWithSubscription<T> queue;
+        private final QueueWithResources<T> queue;
         private final Worker worker;
         private final Options options;
+        private final ParentSubscriber<T> parent;
 
         OnSubscribeFromQueue(AtomicReference<QueueProducer<T>> queueProducer,
-                QueueWithSubscription<T> queue, Worker worker, Options options) {
+                QueueWithResources<T> queue, Worker worker, Options options,
+                ParentSubscriber<T> parent) {
             this.queueProducer = queueProducer;
             this.queue = queue;
             this.worker = worker;
             this.options = options;
+            this.parent = parent;
         }
 
         @Override
         public void call(Subscriber<? super T> child) {
-            QueueProducer<T> qp = new QueueProducer<T>(queue, child, worker, options.delayError());
+            QueueProducer<T> qp = new QueueProducer<T>(queue, child, worker, options.delayError(),
+                    parent);
             queueProducer.set(qp);
             child.setProducer(qp);
         }
@@ -144,15 +266,38 @@ public final class OperatorBufferToFile<T> implements Operator<T, T> {
 
     private static final class ParentSubscriber<T> extends Subscriber<T> {
 
+        // used for OverflowPolicy.BACKPRESSURE
+        private static final int REQUEST_BATCH = 128;
+        private static final int REPLENISH = REQUEST_BATCH - (REQUEST_BATCH >> 2);
+
         private final AtomicReference<QueueProducer<T>> queueProducer;
+        private final QueueWithResources<T> queue;
+        private final long maxStorageBytes;
+        private final boolean backpressure;
+
+        // true if requests are suspended until storage drops below
+        // maxStorageBytes
+        private final AtomicBoolean suspended = new AtomicBoolean(false);
+
+        // items arrived since last request, only accessed by onNext
+        private int arrived;
 
-        ParentSubscriber(AtomicReference<QueueProducer<T>> queueProducer) {
+        ParentSubscriber(AtomicReference<QueueProducer<T>> queueProducer,
+                QueueWithResources<T> queue, Options options) {
             this.queueProducer = queueProducer;
+            this.queue = queue;
+            this.maxStorageBytes = options.maxStorageBytes();
+            this.backpressure = options.storageLimited()
+                    && options.overflowPolicy() == OverflowPolicy.BACKPRESSURE;
         }
 
         @Override
         public void onStart() {
-            request(Long.MAX_VALUE);
+            if (backpressure) {
+                request(REQUEST_BATCH);
+            } else {
+                request(Long.MAX_VALUE);
+            }
         }
 
         @Override
@@ -168,6 +313,34 @@ public final class OperatorBufferToFile<T> implements Operator<T, T> {
         @Override
         public void onNext(T t) {
             queueProducer.get().onNext(t);
+            if (backpressure && ++arrived == REPLENISH) {
+                arrived = 0;
+                if (belowStorageLimit()) {
+                    request(REPLENISH);
+                } else {
+                    suspended.set(true);
+                    // check again in case the consumer reduced storage
+                    // before suspended was set
+                    requestMoreIfStorageAvailable();
+                }
+            }
+        }
+
+        /**
+         * Called after items have been polled from the queue or the queue
+         * has been found empty. Resumes requests if they were suspended and
+         * storage has dropped below the limit.
+         */
+        void requestMoreIfStorageAvailable() {
+            if (backpressure && suspended.get() && belowStorageLimit()
+                    && suspended.compareAndSet(true, false)) {
+                request(REPLENISH);
+            }
+        }
+
+        private boolean belowStorageLimit() {
+            // an empty queue's files may not have been reclaimed yet
+            return queue.resourcesSize() < maxStorageBytes || queue.isEmpty();
         }
 
     }
@@ -178,24 +351,46 @@ public final class OperatorBufferToFile<T> implements Operator<T, T> {
 
         private static final long serialVersionUID = 2521533710633950102L;
 
-        private final QueueWithSubscription<T> queue;
+        // maximum number of items taken from the queue per call to drainTo
+        private static final int DRAIN_BATCH_SIZE = 1024;
+
+        private final QueueWithResources<T> queue;
         private final AtomicInteger drainRequested = new AtomicInteger(0);
         private final Subscriber<? super T> child;
         private final Worker worker;
         private final boolean delayError;
+        private final ParentSubscriber<T> parent;
         private volatile boolean done;
 
         // Is set just before the volatile `done` is set and read just after
-        // `done` is read. Thus doesn't need to be volatile.
-        private Throwable error = null;
+        // `done` is read. Volatile because onError may be called by more than
+        // one thread with multiple producers (one of the errors is emitted).
+        private volatile Throwable error = null;
+
+        // emits the items taken from the queue by drainTo
+        private final Action1<T> emitter = new Action1<T>() {
+            @Override
+            public void call(T item) {
+                if (child.isUnsubscribed()) {
+                    // the rest of the batch is discarded with the queue
+                    return;
+                }
+                if (NullSentinel.isNullSentinel(item)) {
+                    child.onNext(null);
+                } else {
+                    child.onNext(item);
+                }
+            }
+        };
 
-        QueueProducer(QueueWithSubscription<T> queue, Subscriber<? super T> child, Worker worker,
-                boolean delayError) {
+        QueueProducer(QueueWithResources<T> queue, Subscriber<? super T> child, Worker worker,
+                boolean delayError, ParentSubscriber<T> parent) {
             super();
             this.queue = queue;
             this.child = child;
             this.worker = worker;
             this.delayError = delayError;
+            this.parent = parent;
             this.done = false;
         }
 
@@ -205,6 +400,8 @@ public final class OperatorBufferToFile<T> implements Operator<T, T> {
                     onError(new RuntimeException(
                             "could not place item on queue (queue.offer(item) returned false), item= "
                                     + t));
+                    // stop upstream emissions
+                    parent.unsubscribe();
                     return;
                 } else {
                     drain();
@@ -212,14 +409,18 @@ public final class OperatorBufferToFile<T> implements Operator<T, T> {
             } catch (Throwable e) {
                 Exceptions.throwIfFatal(e);
                 onError(e);
+                // stop upstream emissions
+                parent.unsubscribe();
             }
         }
 
         void onError(Throwable e) {
             // must assign error before assign done = true to avoid race
             // condition in finished() and also so appropriate memory barrier in
-            // place given error is non-volatile
-            error = e;
+            // place
+            if (error == null) {
+                error = e;
+            }
             done = true;
             drain();
         }
@@ -277,9 +478,13 @@ public final class OperatorBufferToFile<T> implements Operator<T, T> {
                         // scheduling of drains
                         return;
                     }
-                    T item = queue.poll();
-                    if (item == null) {
+                    // take up to the outstanding requests in one pass so
+                    // that the queue's bookkeeping is done once per batch
+                    int n = queue.drainTo(emitter,
+                            (int) Math.min(requests - emitted, DRAIN_BATCH_SIZE));
+                    if (n == 0) {
                         // queue is empty
+                        parent.requestMoreIfStorageAvailable();
                         if (finished()) {
                             return;
                         } else {
@@ -290,15 +495,12 @@ public final class OperatorBufferToFile<T> implements Operator<T, T> {
                             break;
                         }
                     } else {
-                        // there was an item on the queue
-                        if (NullSentinel.isNullSentinel(item)) {
-                            child.onNext(null);
-                        } else {
-                            child.onNext(item);
-                        }
-                        emitted++;
+                        emitted += n;
                     }
                 }
+                if (emitted > 0) {
+                    parent.requestMoreIfStorageAvailable();
+                }
                 // update requests with emitted value and any new requests
                 requests = BackpressureUtils.produced(this, emitted);
                 if (child.isUnsubscribed() || (requests == 0L && finished())) {
@@ -0,0 +1,128 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.davidmoten.rx.buffertofile.DataSerializer;
+import com.github.davidmoten.rx.buffertofile.Options;
+
+import rx.Observable;
+import rx.Observable.Operator;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.subscriptions.CompositeSubscription;
+
+/**
+ * Merges the emitted observables into a file based buffer. Each inner
+ * observable offers to the buffer from its own thread without the
+ * serialization that {@code merge} would apply (the buffer accepts concurrent
+ * offers).
+ *
+ * @param <T>
+ *            type of item being buffered
+ */
+public final class OperatorBufferToFileMerge<T> implements Operator<T, Observable<? extends T>> {
+
+    private final OperatorBufferToFile<T> operator;
+
+    public OperatorBufferToFileMerge(DataSerializer<T> dataSerializer, Scheduler scheduler,
+            Options options) {
+        this.operator = new OperatorBufferToFile<T>(dataSerializer, scheduler, options, true);
+    }
+
+    @Override
+    public Subscriber<? super Observable<? extends T>> call(Subscriber<? super T> child) {
+        Subscriber<? super T> parent = operator.call(child);
+        OuterSubscriber<T> outer = new OuterSubscriber<T>(parent);
+        // unsubscribe sources when parent is unsubscribed
+        parent.add(outer);
+        return outer;
+    }
+
+    private static final class OuterSubscriber<T> extends Subscriber<Observable<? extends T>> {
+
+        private final Subscriber<? super T> parent;
+        private final CompositeSubscription inners = new CompositeSubscription();
+
+        // count of the outer observable and the inner observables that have
+        // not completed
+        private final AtomicInteger active = new AtomicInteger(1);
+        private final AtomicBoolean terminated = new AtomicBoolean(false);
+
+        OuterSubscriber(Subscriber<? super T> parent) {
+            this.parent = parent;
+            add(inners);
+        }
+
+        @Override
+        public void onStart() {
+            request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(Observable<? extends T> o) {
+            active.incrementAndGet();
+            InnerSubscriber<T> inner = new InnerSubscriber<T>(this);
+            inners.add(inner);
+            o.unsafeSubscribe(inner);
+        }
+
+        @Override
+        public void onCompleted() {
+            completed();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            if (terminated.compareAndSet(false, true)) {
+                unsubscribe();
+                // inner subscribers may still be in parent.onNext, this is
+                // allowed because the parent only records the error and
+                // leaves it to the serialized drain loop to emit downstream
+                parent.onError(e);
+            }
+        }
+
+        void innerCompleted(InnerSubscriber<T> inner) {
+            inners.remove(inner);
+            completed();
+        }
+
+        private void completed() {
+            if (active.decrementAndGet() == 0 && terminated.compareAndSet(false, true)) {
+                parent.onCompleted();
+            }
+        }
+    }
+
+    private static final class InnerSubscriber<T> extends Subscriber<T> {
+
+        private final OuterSubscriber<T> outer;
+
+        InnerSubscriber(OuterSubscriber<T> outer) {
+            this.outer = outer;
+        }
+
+        @Override
+        public void onStart() {
+            request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(T t) {
+            // may be called concurrently with other inner subscribers
+            outer.parent.onNext(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            outer.innerCompleted(this);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            outer.onError(e);
+        }
+    }
+
+}
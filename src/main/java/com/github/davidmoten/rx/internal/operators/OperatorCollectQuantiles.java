@@ -0,0 +1,218 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.davidmoten.rx.Histogram;
+import com.github.davidmoten.util.Preconditions;
+
+import rx.Observable.Operator;
+import rx.Producer;
+import rx.Scheduler;
+import rx.Scheduler.Worker;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.internal.operators.BackpressureUtils;
+import rx.observers.SerializedSubscriber;
+
+/**
+ * <p>
+ * Adds every value to a single {@link Histogram} and emits copies of it (the
+ * histogram of all values so far) either every {@code every} values or every
+ * {@code periodMs} on {@code scheduler}. Apart from the emitted copies adding
+ * a value does not allocate.
+ *
+ * <p>
+ * When emitting every {@code every} values the source is requested from in
+ * multiples of {@code every} and on completion the histogram is emitted if
+ * values have arrived since the last emission.
+ *
+ * <p>
+ * When emitting periodically the source is requested from without bound. A
+ * period (or completion) with no downstream demand is not emitted, nor is a
+ * period before the first value or completion if no values have arrived since
+ * the last emission.
+ *
+ * @param <T>
+ *            the type of the values
+ */
+public final class OperatorCollectQuantiles<T extends Number> implements Operator<Histogram, T> {
+
+    private final double relativeAccuracy;
+    private final long every;
+    private final long periodMs;
+    private final Scheduler scheduler;
+
+    public OperatorCollectQuantiles(double relativeAccuracy, long every) {
+        this(relativeAccuracy, every, 0, null);
+        Preconditions.checkArgument(every > 0, "every must be greater than zero");
+    }
+
+    public OperatorCollectQuantiles(double relativeAccuracy, long period, TimeUnit unit,
+            Scheduler scheduler) {
+        this(relativeAccuracy, 0, unit.toMillis(period), scheduler);
+        Preconditions.checkArgument(periodMs > 0, "period must be at least one millisecond");
+        Preconditions.checkNotNull(scheduler, "scheduler cannot be null");
+    }
+
+    private OperatorCollectQuantiles(double relativeAccuracy, long every, long periodMs,
+            Scheduler scheduler) {
+        Preconditions.checkArgument(relativeAccuracy > 0 && relativeAccuracy < 1,
+                "relativeAccuracy must be between 0 and 1 exclusive");
+        this.relativeAccuracy = relativeAccuracy;
+        this.every = every;
+        this.periodMs = periodMs;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public Subscriber<? super T> call(Subscriber<? super Histogram> child) {
+        if (periodMs == 0) {
+            CountingSubscriber parent = new CountingSubscriber(child);
+            parent.init();
+            return parent;
+        } else {
+            PeriodicSubscriber parent = new PeriodicSubscriber(
+                    new SerializedSubscriber<Histogram>(child));
+            parent.init(child);
+            return parent;
+        }
+    }
+
+    private final class CountingSubscriber extends Subscriber<T> {
+
+        private final Subscriber<? super Histogram> child;
+        private final Histogram histogram = Histogram.create(relativeAccuracy);
+        // values since the last emission
+        private long count;
+
+        CountingSubscriber(Subscriber<? super Histogram> child) {
+            this.child = child;
+        }
+
+        void init() {
+            child.add(this);
+            child.setProducer(new Producer() {
+                @Override
+                public void request(long n) {
+                    if (n > 0) {
+                        requestMore(BackpressureUtils.multiplyCap(n, every));
+                    }
+                }
+            });
+        }
+
+        void requestMore(long n) {
+            request(n);
+        }
+
+        @Override
+        public void onStart() {
+            request(0);
+        }
+
+        @Override
+        public void onNext(T t) {
+            histogram.add(t.doubleValue());
+            count++;
+            if (count == every) {
+                count = 0;
+                child.onNext(histogram.copy());
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            // fewer than every * requested values arrived so there is demand
+            if (count > 0) {
+                child.onNext(histogram.copy());
+            }
+            child.onCompleted();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            child.onError(e);
+        }
+
+    }
+
+    private final class PeriodicSubscriber extends Subscriber<T> {
+
+        private final Subscriber<? super Histogram> child;
+        private final Worker worker;
+        private final AtomicLong requested = new AtomicLong();
+        // guarded by itself
+        private final Histogram histogram = Histogram.create(relativeAccuracy);
+        // guarded by histogram, values since the last emission
+        private long count;
+
+        PeriodicSubscriber(Subscriber<? super Histogram> child) {
+            super(child);
+            this.child = child;
+            this.worker = scheduler.createWorker();
+        }
+
+        void init(Subscriber<? super Histogram> actual) {
+            add(worker);
+            actual.setProducer(new Producer() {
+                @Override
+                public void request(long n) {
+                    if (n > 0) {
+                        BackpressureUtils.getAndAddRequest(requested, n);
+                    }
+                }
+            });
+            worker.schedulePeriodically(new Action0() {
+                @Override
+                public void call() {
+                    emit(false);
+                }
+            }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void onStart() {
+            request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(T t) {
+            double x = t.doubleValue();
+            synchronized (histogram) {
+                histogram.add(x);
+                count++;
+            }
+        }
+
+        private void emit(boolean completing) {
+            if (requested.get() > 0) {
+                Histogram h;
+                synchronized (histogram) {
+                    if (histogram.count() == 0 || completing && count == 0) {
+                        return;
+                    }
+                    count = 0;
+                    h = histogram.copy();
+                }
+                BackpressureUtils.produced(requested, 1);
+                child.onNext(h);
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            worker.unsubscribe();
+            emit(true);
+            child.onCompleted();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            worker.unsubscribe();
+            child.onError(e);
+        }
+
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.davidmoten.util.Preconditions;
+
+import rx.Observable.Operator;
+import rx.Scheduler;
+import rx.Subscriber;
+
+/**
+ * <p>
+ * Emits for every value an exponentially weighted moving average where the
+ * weight of a value halves every {@code halfLife} after it arrives (according
+ * to {@code scheduler}), so irregularly spaced values are weighted by age
+ * rather than by position. Values arriving at the same time are weighted
+ * equally.
+ *
+ * <p>
+ * Alternatively emits the rate of arrival of values per second estimated from
+ * the decayed count of values.
+ *
+ * <p>
+ * The decayed sum and count are kept as two doubles so nothing is allocated
+ * apart from the emitted value.
+ *
+ * @param <T>
+ *            the type of the values
+ */
+public final class OperatorEwma<T extends Number> implements Operator<Double, T> {
+
+    private static final double LN2 = Math.log(2);
+
+    private final double halfLifeMs;
+    private final Scheduler scheduler;
+    private final boolean rate;
+
+    public OperatorEwma(long halfLife, TimeUnit unit, Scheduler scheduler, boolean rate) {
+        Preconditions.checkArgument(halfLife > 0, "halfLife must be greater than zero");
+        Preconditions.checkNotNull(unit, "unit cannot be null");
+        Preconditions.checkNotNull(scheduler, "scheduler cannot be null");
+        this.halfLifeMs = (double) unit.toNanos(halfLife) / TimeUnit.MILLISECONDS.toNanos(1);
+        this.scheduler = scheduler;
+        this.rate = rate;
+    }
+
+    @Override
+    public Subscriber<? super T> call(final Subscriber<? super Double> child) {
+        return new Subscriber<T>(child) {
+
+            // decayed sum of values and decayed count of values
+            double sum;
+            double weight;
+            long lastTime;
+
+            @Override
+            public void onCompleted() {
+                child.onCompleted();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                child.onError(e);
+            }
+
+            @Override
+            public void onNext(T t) {
+                double x = t.doubleValue();
+                long now = scheduler.now();
+                if (weight > 0 && now > lastTime) {
+                    double decay = Math.exp(-LN2 * (now - lastTime) / halfLifeMs);
+                    sum *= decay;
+                    weight *= decay;
+                }
+                lastTime = Math.max(lastTime, now);
+                sum += x;
+                weight += 1;
+                if (rate) {
+                    // a steady rate r per ms gives a decayed count of
+                    // r * halfLife / ln 2
+                    child.onNext(weight * LN2 / halfLifeMs * 1000);
+                } else {
+                    child.onNext(sum / weight);
+                }
+            }
+
+        };
+    }
+
+}
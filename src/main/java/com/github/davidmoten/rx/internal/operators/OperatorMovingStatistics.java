@@ -0,0 +1,187 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.davidmoten.rx.Statistics;
+import com.github.davidmoten.util.Preconditions;
+
+import rx.Observable.Operator;
+import rx.Producer;
+import rx.Scheduler;
+import rx.Subscriber;
+
+/**
+ * <p>
+ * Emits the {@link Statistics} (count, mean, standard deviation) of a moving
+ * window of values, either the last {@code windowSize} values (emitting once
+ * that many have arrived) or the values that arrived in the last
+ * {@code windowDurationMs} according to {@code scheduler} (emitting for every
+ * value).
+ *
+ * <p>
+ * The values in the window are held in a ring buffer of primitive doubles and
+ * the mean and sum of squared differences from the mean are updated as values
+ * enter and leave the window (Welford's method run forwards and backwards) so
+ * each value costs O(1). To stop rounding errors accumulating they are
+ * recalculated from the ring once as many values have left the window as the
+ * ring can hold, which keeps the cost amortized O(1).
+ *
+ * @param <T>
+ *            the type of the values
+ */
+public final class OperatorMovingStatistics<T extends Number> implements Operator<Statistics, T> {
+
+    private final int windowSize;
+    private final long windowDurationMs;
+    private final Scheduler scheduler;
+
+    public OperatorMovingStatistics(int windowSize) {
+        Preconditions.checkArgument(windowSize > 0, "windowSize must be greater than zero");
+        this.windowSize = windowSize;
+        this.windowDurationMs = 0;
+        this.scheduler = null;
+    }
+
+    public OperatorMovingStatistics(long windowDuration, TimeUnit unit, Scheduler scheduler) {
+        Preconditions.checkArgument(windowDuration > 0,
+                "windowDuration must be greater than zero");
+        Preconditions.checkNotNull(unit, "unit cannot be null");
+        Preconditions.checkNotNull(scheduler, "scheduler cannot be null");
+        this.windowSize = 0;
+        this.windowDurationMs = unit.toMillis(windowDuration);
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public Subscriber<? super T> call(final Subscriber<? super Statistics> child) {
+        return new Subscriber<T>(child) {
+
+            double[] values = new double[initialCapacity()];
+            // arrival times, only used for time windows
+            long[] times = windowSize == 0 ? new long[values.length] : null;
+            int head;
+            int size;
+            double mean;
+            // sum of squared differences from the mean
+            double m2;
+            // removals since mean and m2 were recalculated
+            int removals;
+
+            @Override
+            public void onCompleted() {
+                child.onCompleted();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                child.onError(e);
+            }
+
+            @Override
+            public void onNext(T t) {
+                double x = t.doubleValue();
+                if (windowSize > 0) {
+                    if (size == windowSize) {
+                        remove();
+                    }
+                    add(x, 0);
+                    if (size == windowSize) {
+                        child.onNext(Statistics.create(size, mean, m2));
+                    }
+                } else {
+                    long now = scheduler.now();
+                    while (size > 0 && times[head] <= now - windowDurationMs) {
+                        remove();
+                    }
+                    add(x, now);
+                    child.onNext(Statistics.create(size, mean, m2));
+                }
+            }
+
+            private void add(double x, long time) {
+                if (size == values.length) {
+                    grow();
+                }
+                int i = OperatorWindowMinMax.tail(head, size + 1, values.length);
+                values[i] = x;
+                if (times != null) {
+                    times[i] = time;
+                }
+                size++;
+                double delta = x - mean;
+                mean += delta / size;
+                m2 += delta * (x - mean);
+            }
+
+            private void remove() {
+                double x = values[head];
+                head = OperatorWindowMinMax.next(head, values.length);
+                size--;
+                if (size == 0) {
+                    mean = 0;
+                    m2 = 0;
+                } else if (++removals >= values.length) {
+                    recalculate();
+                } else {
+                    double delta = x - mean;
+                    mean -= delta / size;
+                    m2 -= delta * (x - mean);
+                }
+            }
+
+            private void recalculate() {
+                removals = 0;
+                double m = 0;
+                double s = 0;
+                for (int j = 0; j < size; j++) {
+                    double x = values[OperatorWindowMinMax.tail(head, j + 1, values.length)];
+                    double delta = x - m;
+                    m += delta / (j + 1);
+                    s += delta * (x - m);
+                }
+                mean = m;
+                m2 = s;
+            }
+
+            private void grow() {
+                int capacity;
+                if (windowSize > 0) {
+                    // there are never more than windowSize values in the ring
+                    capacity = (int) Math.min(windowSize, values.length * 2L);
+                } else {
+                    capacity = values.length * 2;
+                }
+                double[] v = new double[capacity];
+                long[] w = times == null ? null : new long[capacity];
+                for (int j = 0; j < size; j++) {
+                    int k = OperatorWindowMinMax.tail(head, j + 1, values.length);
+                    v[j] = values[k];
+                    if (w != null) {
+                        w[j] = times[k];
+                    }
+                }
+                values = v;
+                times = w;
+                head = 0;
+            }
+
+            @Override
+            public void setProducer(final Producer producer) {
+                child.setProducer(producer);
+                if (windowSize > 1) {
+                    producer.request(windowSize - 1);
+                }
+            }
+
+        };
+    }
+
+    private int initialCapacity() {
+        if (windowSize > 0) {
+            return OperatorWindowMinMax.initialCapacity(windowSize);
+        } else {
+            return 16;
+        }
+    }
+
+}
@@ -1,10 +1,6 @@
 package com.github.davidmoten.rx.internal.operators;
 
-import java.util.ArrayDeque;
 import java.util.Comparator;
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.Map;
 
 import com.github.davidmoten.util.Preconditions;
 
@@ -15,7 +11,8 @@ import rx.Subscriber;
 /**
  * Uses a double-ended queue and collapses entries when they are redundant
  * (whenever a value is added to the queue all values at the end of the queue
- * that are greater or equal to that value are removed).
+ * that are greater or equal to that value are removed). The queue is a ring
+ * buffer that never holds more than {@code windowSize} values.
  * 
  * @param <T>
  *            generic type of stream emissions
@@ -45,11 +42,12 @@ public final class OperatorWindowMinMax<T> implements Operator<T, T> {
 
             long count = 0;
 
-            // queue of indices
-            final Deque<Long> q = new ArrayDeque<Long>();
-
-            // map index to value
-            final Map<Long, T> values = new HashMap<Long, T>();
+            // ring of the values in the window that may yet be the min (max)
+            // with their indices, the head is the current min (max)
+            Object[] values = new Object[initialCapacity(windowSize)];
+            long[] indices = new long[values.length];
+            int head;
+            int size;
 
             @Override
             public void onCompleted() {
@@ -61,35 +59,52 @@ public final class OperatorWindowMinMax<T> implements Operator<T, T> {
                 child.onError(e);
             }
 
+            @SuppressWarnings("unchecked")
             @Override
             public void onNext(T t) {
                 count++;
-                // add to queue
-                addToQueue(t);
-                if (count >= windowSize) {
-                    // emit max
-
-                    // head of queue is max
-                    Long head = q.peekFirst();
-                    final T value;
-                    if (head == count - windowSize) {
-                        // if window past that index then remove from map
-                        values.remove(q.pollFirst());
-                        value = values.get(q.peekFirst());
+                // the head is the only value that can drop out of the window
+                if (size > 0 && indices[head] <= count - windowSize) {
+                    values[head] = null;
+                    head = next(head, values.length);
+                    size--;
+                }
+                // remove values at the tail that t makes redundant
+                while (size > 0) {
+                    int tail = tail(head, size, values.length);
+                    if (compare(t, (T) values[tail]) <= 0) {
+                        values[tail] = null;
+                        size--;
                     } else {
-                        value = values.get(head);
+                        break;
                     }
-                    child.onNext(value);
+                }
+                if (size == values.length) {
+                    grow();
+                }
+                int i = tail(head, size + 1, values.length);
+                values[i] = t;
+                indices[i] = count;
+                size++;
+                if (count >= windowSize) {
+                    // head of queue is min (max)
+                    child.onNext((T) values[head]);
                 }
             }
 
-            private void addToQueue(T t) {
-                Long v;
-                while ((v = q.peekLast()) != null && compare(t, values.get(v)) <= 0) {
-                    values.remove(q.pollLast());
+            private void grow() {
+                // there are never more than windowSize values in the ring
+                int capacity = (int) Math.min(windowSize, values.length * 2L);
+                Object[] v = new Object[capacity];
+                long[] x = new long[capacity];
+                for (int j = 0; j < size; j++) {
+                    int k = (head + j) % values.length;
+                    v[j] = values[k];
+                    x[j] = indices[k];
                 }
-                values.put(count, t);
-                q.offerLast(count);
+                values = v;
+                indices = x;
+                head = 0;
             }
 
             @Override
@@ -101,6 +116,20 @@ public final class OperatorWindowMinMax<T> implements Operator<T, T> {
         };
     }
 
+    static int initialCapacity(int windowSize) {
+        return Math.min(windowSize, 16);
+    }
+
+    static int next(int i, int capacity) {
+        return i + 1 == capacity ? 0 : i + 1;
+    }
+
+    // returns the position of the last of size items starting at head
+    static int tail(int head, int size, int capacity) {
+        int i = head + size - 1;
+        return i >= capacity ? i - capacity : i;
+    }
+
     private int compare(T a, T b) {
         if (metric == Metric.MIN) {
             return comparator.compare(a, b);
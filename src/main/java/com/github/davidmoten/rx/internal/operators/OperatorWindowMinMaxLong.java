@@ -0,0 +1,120 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import com.github.davidmoten.rx.internal.operators.OperatorWindowMinMax.Metric;
+import com.github.davidmoten.util.Preconditions;
+
+import rx.Observable.Operator;
+import rx.Producer;
+import rx.Subscriber;
+
+/**
+ * As {@link OperatorWindowMinMax} for {@code Long} values but the queue is a
+ * ring buffer of primitive {@code long} values so that values are not
+ * compared through a {@code Comparator}.
+ */
+public final class OperatorWindowMinMaxLong implements Operator<Long, Long> {
+
+    private final int windowSize;
+    private final boolean min;
+
+    public OperatorWindowMinMaxLong(int windowSize, Metric metric) {
+        Preconditions.checkArgument(windowSize > 0, "windowSize must be greater than zero");
+        Preconditions.checkNotNull(metric, "metric cannot be null");
+        this.windowSize = windowSize;
+        this.min = metric == Metric.MIN;
+    }
+
+    @Override
+    public Subscriber<? super Long> call(final Subscriber<? super Long> child) {
+        return new Subscriber<Long>(child) {
+
+            long count = 0;
+
+            // ring of the values in the window that may yet be the min (max)
+            // with their indices, the head is the current min (max)
+            long[] values = new long[OperatorWindowMinMax.initialCapacity(windowSize)];
+            long[] indices = new long[values.length];
+            int head;
+            int size;
+            // the boxed value at the head or null if not boxed yet, saves
+            // boxing on every emission
+            Long boxedHead;
+
+            @Override
+            public void onCompleted() {
+                child.onCompleted();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                child.onError(e);
+            }
+
+            @Override
+            public void onNext(Long x) {
+                long t = x;
+                count++;
+                // the head is the only value that can drop out of the window
+                if (size > 0 && indices[head] <= count - windowSize) {
+                    head = OperatorWindowMinMax.next(head, values.length);
+                    size--;
+                    boxedHead = null;
+                }
+                // remove values at the tail that t makes redundant
+                while (size > 0 && redundant(
+                        values[OperatorWindowMinMax.tail(head, size, values.length)], t)) {
+                    size--;
+                }
+                if (size == values.length) {
+                    grow();
+                }
+                int i = OperatorWindowMinMax.tail(head, size + 1, values.length);
+                values[i] = t;
+                indices[i] = count;
+                if (size == 0) {
+                    boxedHead = x;
+                }
+                size++;
+                if (count >= windowSize) {
+                    // head of queue is min (max)
+                    if (boxedHead == null) {
+                        boxedHead = values[head];
+                    }
+                    child.onNext(boxedHead);
+                }
+            }
+
+            private void grow() {
+                // there are never more than windowSize values in the ring
+                int capacity = (int) Math.min(windowSize, values.length * 2L);
+                long[] v = new long[capacity];
+                long[] x = new long[capacity];
+                for (int j = 0; j < size; j++) {
+                    int k = (head + j) % values.length;
+                    v[j] = values[k];
+                    x[j] = indices[k];
+                }
+                values = v;
+                indices = x;
+                head = 0;
+            }
+
+            @Override
+            public void setProducer(final Producer producer) {
+                child.setProducer(producer);
+                producer.request(windowSize - 1);
+            }
+
+        };
+    }
+
+    // returns true if v can no longer be the min (max) once t has arrived
+    private boolean redundant(long v, long t) {
+        if (min) {
+            return t <= v;
+        } else {
+            return t >= v;
+        }
+    }
+
+}
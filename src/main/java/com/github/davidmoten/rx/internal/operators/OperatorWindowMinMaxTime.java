@@ -0,0 +1,276 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.davidmoten.rx.internal.operators.OperatorWindowMinMax.Metric;
+import com.github.davidmoten.util.Preconditions;
+
+import rx.Observable.Operator;
+import rx.Producer;
+import rx.Scheduler;
+import rx.Scheduler.Worker;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.functions.Func1;
+import rx.internal.operators.BackpressureUtils;
+import rx.observers.SerializedSubscriber;
+
+/**
+ * <p>
+ * As {@link OperatorWindowMinMax} but the window is all values with a
+ * timestamp later than {@code windowDuration} before the latest time. Values
+ * are evicted from the head of the double-ended queue once they are too old so
+ * each value costs amortized O(1) regardless of how many values are in the
+ * window.
+ *
+ * <p>
+ * If {@code emitPeriodMs} is zero then the min (max) is emitted for every
+ * value where the latest time is the timestamp of that value. Timestamps are
+ * expected to be non-decreasing, a timestamp earlier than the one before it is
+ * treated as equal to it.
+ *
+ * <p>
+ * Otherwise the source is requested from without bound and the min (max) of
+ * the values in the window ending at {@link Scheduler#now()} is emitted every
+ * {@code emitPeriodMs}. Nothing is emitted for a period if the window is empty
+ * or there is no downstream demand.
+ *
+ * @param <T>
+ *            generic type of stream emissions
+ */
+public final class OperatorWindowMinMaxTime<T> implements Operator<T, T> {
+
+    private final long windowDurationMs;
+    private final Func1<? super T, Long> timestampMs;
+    private final long emitPeriodMs;
+    private final Scheduler scheduler;
+    private final Comparator<? super T> comparator;
+    private final Metric metric;
+
+    public OperatorWindowMinMaxTime(long windowDuration, TimeUnit unit,
+            Func1<? super T, Long> timestampMs, long emitPeriodMs, Scheduler scheduler,
+            Comparator<? super T> comparator, Metric metric) {
+        Preconditions.checkArgument(windowDuration > 0,
+                "windowDuration must be greater than zero");
+        Preconditions.checkNotNull(unit, "unit cannot be null");
+        Preconditions.checkNotNull(timestampMs, "timestampMs cannot be null");
+        Preconditions.checkArgument(emitPeriodMs >= 0, "emitPeriodMs cannot be negative");
+        Preconditions.checkArgument(emitPeriodMs == 0 || scheduler != null,
+                "scheduler cannot be null when emitting periodically");
+        Preconditions.checkNotNull(comparator, "comparator cannot be null");
+        Preconditions.checkNotNull(metric, "metric cannot be null");
+        this.windowDurationMs = unit.toMillis(windowDuration);
+        this.timestampMs = timestampMs;
+        this.emitPeriodMs = emitPeriodMs;
+        this.scheduler = scheduler;
+        this.comparator = comparator;
+        this.metric = metric;
+    }
+
+    @Override
+    public Subscriber<? super T> call(final Subscriber<? super T> child) {
+        if (emitPeriodMs == 0) {
+            return new EveryValueSubscriber(child);
+        } else {
+            PeriodicSubscriber parent = new PeriodicSubscriber(
+                    new SerializedSubscriber<T>(child));
+            parent.init(child);
+            return parent;
+        }
+    }
+
+    private final class EveryValueSubscriber extends Subscriber<T> {
+
+        private final Subscriber<? super T> child;
+        private final Window window = new Window();
+        private long latest = Long.MIN_VALUE;
+
+        EveryValueSubscriber(Subscriber<? super T> child) {
+            super(child);
+            this.child = child;
+        }
+
+        @Override
+        public void onNext(T t) {
+            long time;
+            try {
+                time = timestampMs.call(t);
+            } catch (Throwable e) {
+                unsubscribe();
+                onError(e);
+                return;
+            }
+            latest = Math.max(latest, time);
+            window.evictOlderThan(latest - windowDurationMs);
+            window.add(t, latest);
+            child.onNext(window.head());
+        }
+
+        @Override
+        public void onCompleted() {
+            child.onCompleted();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            child.onError(e);
+        }
+
+    }
+
+    private final class PeriodicSubscriber extends Subscriber<T> {
+
+        private final Subscriber<? super T> child;
+        private final Worker worker;
+        private final AtomicLong requested = new AtomicLong();
+        // guarded by itself
+        private final Window window = new Window();
+        private long latest = Long.MIN_VALUE;
+
+        PeriodicSubscriber(Subscriber<? super T> child) {
+            super(child);
+            this.child = child;
+            this.worker = scheduler.createWorker();
+        }
+
+        void init(Subscriber<? super T> actual) {
+            add(worker);
+            actual.setProducer(new Producer() {
+                @Override
+                public void request(long n) {
+                    if (n > 0) {
+                        BackpressureUtils.getAndAddRequest(requested, n);
+                    }
+                }
+            });
+            worker.schedulePeriodically(new Action0() {
+                @Override
+                public void call() {
+                    emit();
+                }
+            }, emitPeriodMs, emitPeriodMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void onStart() {
+            request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(T t) {
+            long time;
+            try {
+                time = timestampMs.call(t);
+            } catch (Throwable e) {
+                unsubscribe();
+                onError(e);
+                return;
+            }
+            synchronized (window) {
+                latest = Math.max(latest, time);
+                window.evictOlderThan(latest - windowDurationMs);
+                window.add(t, latest);
+            }
+        }
+
+        private void emit() {
+            long now = scheduler.now();
+            T value;
+            synchronized (window) {
+                window.evictOlderThan(Math.max(latest, now) - windowDurationMs);
+                value = window.isEmpty() ? null : window.head();
+            }
+            if (value != null && requested.get() > 0) {
+                BackpressureUtils.produced(requested, 1);
+                child.onNext(value);
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            worker.unsubscribe();
+            child.onCompleted();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            worker.unsubscribe();
+            child.onError(e);
+        }
+
+    }
+
+    /**
+     * Ring of the values that may yet be the min (max) with their times, the
+     * head is the current min (max). Grows as required.
+     */
+    private final class Window {
+
+        private Object[] values = new Object[16];
+        private long[] times = new long[values.length];
+        private int head;
+        private int size;
+
+        void evictOlderThan(long time) {
+            while (size > 0 && times[head] <= time) {
+                values[head] = null;
+                head = OperatorWindowMinMax.next(head, values.length);
+                size--;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void add(T t, long time) {
+            // remove values at the tail that t makes redundant
+            while (size > 0) {
+                int tail = OperatorWindowMinMax.tail(head, size, values.length);
+                if (compare(t, (T) values[tail]) <= 0) {
+                    values[tail] = null;
+                    size--;
+                } else {
+                    break;
+                }
+            }
+            if (size == values.length) {
+                grow();
+            }
+            int i = OperatorWindowMinMax.tail(head, size + 1, values.length);
+            values[i] = t;
+            times[i] = time;
+            size++;
+        }
+
+        @SuppressWarnings("unchecked")
+        T head() {
+            return (T) values[head];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        private void grow() {
+            Object[] v = new Object[values.length * 2];
+            long[] x = new long[v.length];
+            for (int j = 0; j < size; j++) {
+                int k = OperatorWindowMinMax.tail(head, j + 1, values.length);
+                v[j] = values[k];
+                x[j] = times[k];
+            }
+            values = v;
+            times = x;
+            head = 0;
+        }
+    }
+
+    private int compare(T a, T b) {
+        if (metric == Metric.MIN) {
+            return comparator.compare(a, b);
+        } else {
+            return comparator.compare(b, a);
+        }
+    }
+
+}
@@ -7,6 +7,8 @@ import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.atomic.AtomicLong;
 
+import com.github.davidmoten.util.Preconditions;
+
 import rx.Observable;
 import rx.Observable.OnSubscribe;
 import rx.Producer;
@@ -16,7 +18,10 @@ import rx.exceptions.MissingBackpressureException;
 import rx.internal.operators.BackpressureUtils;
 import rx.internal.operators.NotificationLite;
 import rx.internal.util.RxRingBuffer;
+import rx.internal.util.atomic.SpscAtomicArrayQueue;
 import rx.internal.util.unsafe.MpscLinkedQueue;
+import rx.internal.util.unsafe.SpscArrayQueue;
+import rx.internal.util.unsafe.UnsafeAccess;
 import rx.plugins.RxJavaHooks;
 
 /**
@@ -26,9 +31,19 @@ import rx.plugins.RxJavaHooks;
  *            type of observable
  */
 public final class OrderedMerge<T> implements OnSubscribe<T> {
+
+    /**
+     * Above this number of sources the minimum is found with a binary heap
+     * (O(log k) per item) rather than by scanning every source (O(k) per
+     * item).
+     */
+    static final int HEAP_THRESHOLD = 4;
+
     final List<Observable<T>> sources;
     final Comparator<? super T> comparator;
     final boolean delayErrors;
+    final boolean useHeap;
+    final int prefetch;
 
     public static <U extends Comparable<? super U>> Observable<U> create(
             Collection<Observable<U>> sources) {
@@ -42,37 +57,61 @@ public final class OrderedMerge<T> implements OnSubscribe<T> {
 
     public static <U extends Comparable<? super U>> Observable<U> create(
             Collection<Observable<U>> sources, boolean delayErrors) {
+        return create(sources, delayErrors, RxRingBuffer.SIZE);
+    }
+
+    public static <U extends Comparable<? super U>> Observable<U> create(
+            Collection<Observable<U>> sources, boolean delayErrors, int prefetch) {
         return Observable.create(new OrderedMerge<U>(sources, new Comparator<U>() {
             @Override
             public int compare(U o1, U o2) {
                 return o1.compareTo(o2);
             }
-        }, delayErrors));
+        }, delayErrors, prefetch));
     }
 
     public static <U> Observable<U> create(Collection<Observable<U>> sources,
             Comparator<? super U> comparator, boolean delayErrors) {
-        return Observable.create(new OrderedMerge<U>(sources, comparator, delayErrors));
+        return create(sources, comparator, delayErrors, RxRingBuffer.SIZE);
+    }
+
+    public static <U> Observable<U> create(Collection<Observable<U>> sources,
+            Comparator<? super U> comparator, boolean delayErrors, int prefetch) {
+        return Observable.create(new OrderedMerge<U>(sources, comparator, delayErrors, prefetch));
     }
 
     private OrderedMerge(Collection<Observable<T>> sources,
-            Comparator<? super T> comparator, boolean delayErrors) {
+            Comparator<? super T> comparator, boolean delayErrors, int prefetch) {
+        this(sources, comparator, delayErrors, sources.size() > HEAP_THRESHOLD, prefetch);
+    }
+
+    OrderedMerge(Collection<Observable<T>> sources, Comparator<? super T> comparator,
+            boolean delayErrors, boolean useHeap) {
+        this(sources, comparator, delayErrors, useHeap, RxRingBuffer.SIZE);
+    }
+
+    OrderedMerge(Collection<Observable<T>> sources, Comparator<? super T> comparator,
+            boolean delayErrors, boolean useHeap, int prefetch) {
+        Preconditions.checkArgument(prefetch > 0, "prefetch must be greater than zero");
         this.sources = sources instanceof List ? (List<Observable<T>>) sources
                 : new ArrayList<Observable<T>>(sources);
         this.comparator = comparator;
         this.delayErrors = delayErrors;
+        this.useHeap = useHeap;
+        this.prefetch = prefetch;
     }
 
     @Override
     public void call(Subscriber<? super T> child) {
         @SuppressWarnings("unchecked")
         SourceSubscriber<T>[] sources = new SourceSubscriber[this.sources.size()];
-        MergeProducer<T> mp = new MergeProducer<T>(sources, child, comparator, delayErrors);
+        MergeProducer<T> mp = new MergeProducer<T>(sources, child, comparator, delayErrors,
+                useHeap);
         for (int i = 0; i < sources.length; i++) {
             if (child.isUnsubscribed()) {
                 return;
             }
-            SourceSubscriber<T> s = new SourceSubscriber<T>(mp);
+            SourceSubscriber<T> s = new SourceSubscriber<T>(mp, prefetch);
             sources[i] = s;
             child.add(s);
         }
@@ -103,14 +142,45 @@ public final class OrderedMerge<T> implements OnSubscribe<T> {
         boolean emitting;
         boolean missed;
 
+        // the following are only used when merging with a heap and are only
+        // accessed by the emission loop
+
+        // indexes of the sources with a value in the heap ordered by value
+        // then index
+        final int[] heap;
+        int heapSize;
+        // the value at the head of each source in the heap
+        final Object[] heads;
+        // indexes of the active sources without a value in the heap
+        final int[] pending;
+        int pendingCount;
+        // number of sources completed and emptied
+        int finished;
+
         @SuppressWarnings("rawtypes")
         public MergeProducer(SourceSubscriber[] sources, Subscriber<? super T> child,
-                Comparator<? super T> comparator, boolean delayErrors) {
+                Comparator<? super T> comparator, boolean delayErrors, boolean useHeap) {
             this.sources = sources;
             this.delayErrors = delayErrors;
             this.errors = new MpscLinkedQueue<Throwable>();
             this.child = child;
             this.comparator = comparator;
+            if (useHeap) {
+                int n = sources.length;
+                this.heap = new int[n];
+                this.heads = new Object[n];
+                this.pending = new int[n];
+                // pending is used as a stack and sources are subscribed to in
+                // index order so the last source is checked first
+                for (int i = 0; i < n; i++) {
+                    pending[i] = i;
+                }
+                this.pendingCount = n;
+            } else {
+                this.heap = null;
+                this.heads = null;
+                this.pending = null;
+            }
         }
 
         @Override
@@ -132,6 +202,14 @@ public final class OrderedMerge<T> implements OnSubscribe<T> {
                 }
                 emitting = true;
             }
+            if (heap != null) {
+                emitFromHeap();
+            } else {
+                emitByScan();
+            }
+        }
+
+        private void emitByScan() {
             // lift into local variables, just in case
             @SuppressWarnings("unchecked")
             final SourceSubscriber<T>[] sources = this.sources;
@@ -247,7 +325,7 @@ public final class OrderedMerge<T> implements OnSubscribe<T> {
                             // remove the winning value from its queue
                             s.queue.poll();
                             // request replenishment
-                            s.requestMore(1);
+                            s.replenish();
                         }
                         // emit the smallest
                         child.onNext(minimum);
@@ -278,6 +356,160 @@ public final class OrderedMerge<T> implements OnSubscribe<T> {
             }
         }
 
+        private void emitFromHeap() {
+            @SuppressWarnings("unchecked")
+            final SourceSubscriber<T>[] sources = this.sources;
+            final int n = sources.length;
+            final Subscriber<? super T> child = this.child;
+
+            for (;;) {
+                if (child.isUnsubscribed()) {
+                    return;
+                }
+                // eagerly check for errors
+                if (!delayErrors && !errors.isEmpty()) {
+                    child.onError(errors.poll());
+                    return;
+                }
+                // the current requested
+                long r = get();
+                // aggregate total emissions
+                long e = 0;
+                // indicates that every active source has a value in the heap
+                boolean fullRow = fillHeap(sources);
+                // even without request, terminal events can be fired if the
+                // state is right
+                if (finished == n) {
+                    reportErrorOrComplete(child);
+                    return;
+                }
+                while (r != 0L && fullRow) {
+                    if (child.isUnsubscribed()) {
+                        return;
+                    }
+                    // eagerly check for errors
+                    if (!delayErrors && !errors.isEmpty()) {
+                        child.onError(errors.poll());
+                        return;
+                    }
+                    // the winner is at the top of the heap
+                    int i = removeMin();
+                    @SuppressWarnings("unchecked")
+                    T minimum = (T) heads[i];
+                    heads[i] = null;
+                    SourceSubscriber<T> s = sources[i];
+                    // remove the winning value from its queue
+                    s.queue.poll();
+                    // request replenishment
+                    s.replenish();
+                    // only the winning source needs a new value in the heap
+                    pending[pendingCount++] = i;
+                    // emit the smallest
+                    child.onNext(minimum);
+                    // decrement the available request and increment the
+                    // emit count
+                    if (r != Long.MAX_VALUE) {
+                        r--;
+                        e++;
+                    }
+                    fullRow = fillHeap(sources);
+                    // in case all of the sources completed
+                    if (finished == n) {
+                        reportErrorOrComplete(child);
+                        return;
+                    }
+                }
+
+                // if there was emission, adjust the downstream request amount
+                if (e != 0L) {
+                    addAndGet(-e);
+                }
+
+                synchronized (this) {
+                    if (!missed) {
+                        emitting = false;
+                        return;
+                    }
+                    missed = false;
+                }
+            }
+        }
+
+        /**
+         * Moves the head values of pending sources into the heap and removes
+         * sources that have completed and been emptied. Stops at the first
+         * source without a value (as nothing can be emitted until it has one)
+         * so that each call is cheap while sources are still being subscribed
+         * to.
+         * 
+         * @return true if and only if every active source has a value in the
+         *         heap
+         */
+        private boolean fillHeap(SourceSubscriber<T>[] sources) {
+            while (pendingCount > 0) {
+                int i = pending[pendingCount - 1];
+                SourceSubscriber<T> s = sources[i];
+                // read the terminal indicator first
+                boolean d = s.done;
+                // peek into the queue
+                Object o = s.queue.peek();
+                if (o == null) {
+                    if (d) {
+                        sources[i] = null;
+                        finished++;
+                    } else {
+                        return false;
+                    }
+                } else {
+                    heads[i] = NotificationLite.getValue(o);
+                    insert(i);
+                }
+                pendingCount--;
+            }
+            return true;
+        }
+
+        private void insert(int i) {
+            int k = heapSize++;
+            while (k > 0) {
+                int parent = (k - 1) >>> 1;
+                if (!less(i, heap[parent])) {
+                    break;
+                }
+                heap[k] = heap[parent];
+                k = parent;
+            }
+            heap[k] = i;
+        }
+
+        private int removeMin() {
+            int min = heap[0];
+            int last = heap[--heapSize];
+            int k = 0;
+            int half = heapSize >>> 1;
+            while (k < half) {
+                int smaller = 2 * k + 1;
+                int right = smaller + 1;
+                if (right < heapSize && less(heap[right], heap[smaller])) {
+                    smaller = right;
+                }
+                if (!less(heap[smaller], last)) {
+                    break;
+                }
+                heap[k] = heap[smaller];
+                k = smaller;
+            }
+            heap[k] = last;
+            return min;
+        }
+
+        // ties are won by the source with the lower index as in the scan
+        @SuppressWarnings("unchecked")
+        private boolean less(int a, int b) {
+            int c = comparator.compare((T) heads[a], (T) heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
         void reportErrorOrComplete(Subscriber<? super T> child) {
             if (delayErrors && !errors.isEmpty()) {
                 if (errors.size() == 1) {
@@ -292,23 +524,44 @@ public final class OrderedMerge<T> implements OnSubscribe<T> {
     }
 
     static final class SourceSubscriber<T> extends Subscriber<T> {
-        final RxRingBuffer queue;
+        final Queue<Object> queue;
         final MergeProducer<T> parent;
+        final int prefetch;
+        // consumed items are requested again in batches of this size (as
+        // observeOn does) rather than one at a time
+        final int limit;
+        // only accessed by the emission loop
+        int consumed;
         volatile boolean done;
 
-        SourceSubscriber(MergeProducer<T> parent) {
-            queue = RxRingBuffer.getSpscInstance();
+        SourceSubscriber(MergeProducer<T> parent, int prefetch) {
+            if (UnsafeAccess.isUnsafeAvailable()) {
+                queue = new SpscArrayQueue<Object>(prefetch);
+            } else {
+                queue = new SpscAtomicArrayQueue<Object>(prefetch);
+            }
             this.parent = parent;
+            this.prefetch = prefetch;
+            this.limit = prefetch - (prefetch >> 2);
         }
 
         @Override
         public void onStart() {
-            add(queue);
-            request(RxRingBuffer.SIZE);
+            request(prefetch);
         }
 
-        public void requestMore(long n) {
-            request(n);
+        /**
+         * Called by the emission loop after an item is taken from the queue.
+         * Requests more once 75% of the prefetch has been consumed.
+         */
+        void replenish() {
+            int c = consumed + 1;
+            if (c == limit) {
+                consumed = 0;
+                request(c);
+            } else {
+                consumed = c;
+            }
         }
 
         @Override
@@ -316,24 +569,13 @@ public final class OrderedMerge<T> implements OnSubscribe<T> {
             if (done) {
                 return;
             }
-            try {
-                queue.onNext(NotificationLite.next(t));
-            } catch (MissingBackpressureException mbe) {
+            if (!queue.offer(NotificationLite.next(t))) {
                 try {
-                    onError(mbe);
+                    onError(new MissingBackpressureException());
                 } finally {
                     unsubscribe();
                 }
                 return;
-            } catch (IllegalStateException ex) {
-                if (!isUnsubscribed()) {
-                    try {
-                        onError(ex);
-                    } finally {
-                        unsubscribe();
-                    }
-                }
-                return;
             }
             parent.emit();
         }
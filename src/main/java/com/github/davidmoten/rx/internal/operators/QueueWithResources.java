@@ -1,5 +1,7 @@
 package com.github.davidmoten.rx.internal.operators;
 
+import rx.functions.Action1;
+
 /**
  * <p>
  * A queue with associated underlying resources that can be freed, or closed
@@ -32,4 +34,24 @@ interface QueueWithResources<T> extends QueueWithSubscription<T> {
 	void freeResources();
 
 	long resourcesSize();
+
+	/**
+	 * <p>
+	 * Removes up to {@code max} items from the queue passing each to
+	 * {@code consumer} in order. Returns early if the queue becomes empty.
+	 * Null items are passed as {@link NullSentinel} (as returned by
+	 * {@code poll()}).
+	 * 
+	 * <p>
+	 * Has the same thread-safety as {@code poll()} and allows bookkeeping
+	 * (counters, locks) to be done once for many items rather than once per
+	 * item.
+	 * 
+	 * @param consumer
+	 *            receives the items removed from the queue
+	 * @param max
+	 *            maximum number of items to remove
+	 * @return number of items removed
+	 */
+	int drainTo(Action1<? super T> consumer, int max);
 }
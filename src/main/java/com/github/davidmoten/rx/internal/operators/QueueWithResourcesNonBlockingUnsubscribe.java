@@ -3,6 +3,8 @@ package com.github.davidmoten.rx.internal.operators;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import rx.functions.Action1;
+
 /**
  * Wraps a Queue (like a file based queue) to provide concurrency guarantees
  * around calls to the close() method. Extends AtomicBoolean to save allocation.
@@ -17,7 +19,11 @@ final class QueueWithResourcesNonBlockingUnsubscribe<T> extends AbstractQueueWit
 
     // ensures queue.close() doesn't occur until outstanding peek(),offer(),
     // poll(), isEmpty() calls have finished. When currentCalls is zero a
-    // close request can be actioned.
+    // close request can be actioned. Calls increment currentCalls before
+    // reading unsubscribing (and unsubscribe sets unsubscribing before
+    // reading currentCalls) so a call can never reach the queue after it has
+    // been closed (which matters for memory mapped queues whose buffers are
+    // unmapped on close).
     private final AtomicInteger currentCalls = new AtomicInteger(0);
 
     private final AtomicBoolean unsubscribed;
@@ -31,15 +37,34 @@ final class QueueWithResourcesNonBlockingUnsubscribe<T> extends AbstractQueueWit
     @Override
     public T poll() {
         try {
-            if (unsubscribing) {
-                return null;
-            } else {
-                try {
-                    currentCalls.incrementAndGet();
+            currentCalls.incrementAndGet();
+            try {
+                if (unsubscribing) {
+                    return null;
+                } else {
                     return super.poll();
-                } finally {
-                    currentCalls.decrementAndGet();
                 }
+            } finally {
+                currentCalls.decrementAndGet();
+            }
+        } finally {
+            checkUnsubscribe();
+        }
+    }
+
+    @Override
+    public int drainTo(Action1<? super T> consumer, int max) {
+        // one increment and decrement of currentCalls for the whole batch
+        try {
+            currentCalls.incrementAndGet();
+            try {
+                if (unsubscribing) {
+                    return 0;
+                } else {
+                    return super.drainTo(consumer, max);
+                }
+            } finally {
+                currentCalls.decrementAndGet();
             }
         } finally {
             checkUnsubscribe();
@@ -49,15 +74,15 @@ final class QueueWithResourcesNonBlockingUnsubscribe<T> extends AbstractQueueWit
     @Override
     public boolean offer(T t) {
         try {
-            if (unsubscribing) {
-                return true;
-            } else {
-                try {
-                    currentCalls.incrementAndGet();
+            currentCalls.incrementAndGet();
+            try {
+                if (unsubscribing) {
+                    return true;
+                } else {
                     return super.offer(t);
-                } finally {
-                    currentCalls.decrementAndGet();
                 }
+            } finally {
+                currentCalls.decrementAndGet();
             }
         } finally {
             checkUnsubscribe();
@@ -67,15 +92,15 @@ final class QueueWithResourcesNonBlockingUnsubscribe<T> extends AbstractQueueWit
     @Override
     public boolean isEmpty() {
         try {
-            if (unsubscribing) {
-                return true;
-            } else {
-                try {
-                    currentCalls.incrementAndGet();
+            currentCalls.incrementAndGet();
+            try {
+                if (unsubscribing) {
+                    return true;
+                } else {
                     return super.isEmpty();
-                } finally {
-                    currentCalls.decrementAndGet();
                 }
+            } finally {
+                currentCalls.decrementAndGet();
             }
         } finally {
             checkUnsubscribe();
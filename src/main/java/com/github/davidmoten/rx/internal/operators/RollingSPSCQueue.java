@@ -1,12 +1,19 @@
 package com.github.davidmoten.rx.internal.operators;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicReference;
 
+import com.github.davidmoten.util.Optional;
 import com.github.davidmoten.util.Preconditions;
 
+import rx.Scheduler;
+import rx.Scheduler.Worker;
+import rx.functions.Action0;
+import rx.functions.Action1;
 import rx.functions.Func0;
 import rx.plugins.RxJavaHooks;
 
@@ -21,11 +28,27 @@ import rx.plugins.RxJavaHooks;
  * it is deleted when empty and its file resources recovered (deleted).
  * 
  * <p>
+ * If a scheduler is specified the next queue is created on a worker of that
+ * scheduler ahead of the rollover that needs it and queues that have been
+ * read are unsubscribed (deleted) on that worker so that neither happens on
+ * the thread calling {@code offer()} or {@code poll()}.
+ * 
+ * <p>
+ * The writer offers to the last queue and the reader polls from the first
+ * queue without taking the lock that guards the deque. The lock is only taken
+ * to add a queue on rollover, to move the reader on to the next queue and to
+ * drop a queue. A queue dropped while the reader may be polling it is only
+ * marked as dropped by the writer, the reader unsubscribes it once it has
+ * moved on to the next queue.
+ * 
+ * <p>
  * {@code RollingSPSCQueue} is partially thread-safe. It is designed to support
  * {@code OperatorBufferToFile} and expects calls to {@code offer()} to be
  * sequential (a happens-before relationship), and calls to {@code poll()} to be
- * sequential. Calls to {@code offer()}, {@code poll()}, {@code isEmpty()},
- * {@code peek()},{@code close()} may happen concurrently.
+ * sequential. Calls to {@code offer()}, {@code poll()}, {@code isEmpty()} may
+ * happen concurrently. Calls to {@code unsubscribe()} must not happen
+ * concurrently with {@code offer()} or {@code poll()} (wrap with
+ * {@link QueueWithResourcesNonBlockingUnsubscribe}).
  * 
  * @param <T>
  *            type of item being queued
@@ -42,11 +65,83 @@ class RollingSPSCQueue<T> implements QueueWithResources<T> {
 	// sequential
 	private long count;
 
-	// guarded by queues
-	private boolean unsubscribed;
+	// written while holding queues, volatile so that offer and poll can check
+	// it without the lock
+	private volatile boolean unsubscribed;
+
+	// only written by the thread calling offer(), the last queue in queues.
+	// Volatile so that the reader can tell without the lock that it is
+	// reading the last queue.
+	private volatile QueueWithResources<T> writing;
+
+	// only written by the thread calling poll() while holding queues, the
+	// queue being polled (the first queue in queues unless it has been
+	// dropped)
+	private QueueWithResources<T> reading;
+
+	// reading once dropped by dropOldestQueue and until the reader has moved
+	// off it and unsubscribed it
+	private final AtomicReference<QueueWithResources<T>> dropped = new AtomicReference<QueueWithResources<T>>();
+
+	// guarded by queues, a queue created by the worker ready for the next
+	// rollover
+	private QueueWithResources<T> prepared;
+
+	// null if queues are created and deleted synchronously
+	private final Worker worker;
+
+	private final Action0 prepare = new Action0() {
+		@Override
+		public void call() {
+			prepareNextQueue();
+		}
+	};
 
 	RollingSPSCQueue(Func0<QueueWithResources<T>> queueFactory, long maxSizeBytesPerQueue, long maxItemsPerQueue) {
+		this(queueFactory, maxSizeBytesPerQueue, maxItemsPerQueue, Collections.<QueueWithResources<T>> emptyList());
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param queueFactory
+	 *            creates the queues
+	 * @param maxSizeBytesPerQueue
+	 *            rollover size threshold
+	 * @param maxItemsPerQueue
+	 *            rollover count threshold
+	 * @param initialQueues
+	 *            queues (earliest first) holding items to be polled before
+	 *            anything offered to this queue. No more items are offered to
+	 *            them.
+	 */
+	RollingSPSCQueue(Func0<QueueWithResources<T>> queueFactory, long maxSizeBytesPerQueue, long maxItemsPerQueue,
+			Collection<? extends QueueWithResources<T>> initialQueues) {
+		this(queueFactory, maxSizeBytesPerQueue, maxItemsPerQueue, initialQueues, Optional.<Scheduler> absent());
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param queueFactory
+	 *            creates the queues
+	 * @param maxSizeBytesPerQueue
+	 *            rollover size threshold
+	 * @param maxItemsPerQueue
+	 *            rollover count threshold
+	 * @param initialQueues
+	 *            queues (earliest first) holding items to be polled before
+	 *            anything offered to this queue. No more items are offered to
+	 *            them.
+	 * @param scheduler
+	 *            if present the scheduler used to create queues ahead of
+	 *            rollover and to delete queues that have been read
+	 */
+	RollingSPSCQueue(Func0<QueueWithResources<T>> queueFactory, long maxSizeBytesPerQueue, long maxItemsPerQueue,
+			Collection<? extends QueueWithResources<T>> initialQueues, Optional<Scheduler> scheduler) {
 		Preconditions.checkNotNull(queueFactory);
+		Preconditions.checkNotNull(initialQueues);
+		Preconditions.checkNotNull(scheduler);
 		Preconditions.checkArgument(maxSizeBytesPerQueue > 0, "maxSizeBytesPerQueue must be greater than zero");
 		Preconditions.checkArgument(maxItemsPerQueue > 1, "maxSizeBytesPerQueue must be greater than one");
 		this.count = 0;
@@ -54,6 +149,32 @@ class RollingSPSCQueue<T> implements QueueWithResources<T> {
 		this.unsubscribed = false;
 		this.queueFactory = queueFactory;
 		this.maxItemsPerQueue = maxItemsPerQueue;
+		this.queues.addAll(initialQueues);
+		if (scheduler.isPresent()) {
+			this.worker = scheduler.get().createWorker();
+			worker.schedule(prepare);
+		} else {
+			this.worker = null;
+		}
+	}
+
+	/**
+	 * Calls {@code action} with the current queues (earliest first) while
+	 * holding the lock that guards changes to them. Must not be called
+	 * concurrently with {@code offer()} (for example call from the thread
+	 * calling {@code offer()}). Does nothing if this queue has been
+	 * unsubscribed.
+	 * 
+	 * @param action
+	 *            action to perform with the queues, must not modify the
+	 *            collection
+	 */
+	void withQueues(Action1<? super Collection<QueueWithResources<T>>> action) {
+		synchronized (queues) {
+			if (!unsubscribed) {
+				action.call(Collections.unmodifiableCollection(queues));
+			}
+		}
 	}
 
 	@Override
@@ -65,16 +186,31 @@ class RollingSPSCQueue<T> implements QueueWithResources<T> {
 			if (!unsubscribed) {
 				unsubscribed = true;
 				try {
+					disposeDropped();
 					for (QueueWithResources<T> q : queues) {
 						q.unsubscribe();
 					}
 					queues.clear();
+					if (prepared != null) {
+						prepared.unsubscribe();
+						prepared = null;
+					}
 				} catch (RuntimeException e) {
 					RxJavaHooks.onError(e);
 					throw e;
 				} catch (Error e) {
 				    RxJavaHooks.onError(e);
 					throw e;
+				} finally {
+					if (worker != null) {
+						// release the worker once queued deletions have run
+						worker.schedule(new Action0() {
+							@Override
+							public void call() {
+								worker.unsubscribe();
+							}
+						});
+					}
 				}
 			}
 		}
@@ -82,11 +218,7 @@ class RollingSPSCQueue<T> implements QueueWithResources<T> {
 
 	@Override
 	public boolean isUnsubscribed() {
-		if (unsubscribed)
-			return true;
-		synchronized (queues) {
-			return unsubscribed;
-		}
+		return unsubscribed;
 	}
 
 	@Override
@@ -99,7 +231,7 @@ class RollingSPSCQueue<T> implements QueueWithResources<T> {
 		count++;
 		if (createAnotherQueue()) {
 			count = 1;
-			QueueWithResources<T> q = queueFactory.call();
+			QueueWithResources<T> q = nextQueue();
 			synchronized (queues) {
 				if (!unsubscribed) {
 					QueueWithResources<T> last = queues.peekLast();
@@ -107,18 +239,94 @@ class RollingSPSCQueue<T> implements QueueWithResources<T> {
 						last.freeResources();
 					}
 					queues.offerLast(q);
+					writing = q;
 					return q.offer(t);
 				} else {
+					q.unsubscribe();
 					return true;
 				}
 			}
 		} else {
-			synchronized (queues) {
-				if (unsubscribed) {
-					return true;
+			// only this thread adds or removes the last queue
+			return writing.offer(t);
+		}
+	}
+
+	private QueueWithResources<T> nextQueue() {
+		if (worker == null) {
+			return queueFactory.call();
+		}
+		QueueWithResources<T> q;
+		synchronized (queues) {
+			q = prepared;
+			prepared = null;
+		}
+		if (q == null) {
+			// the worker has not prepared a queue in time
+			q = queueFactory.call();
+		}
+		worker.schedule(prepare);
+		return q;
+	}
+
+	// called by the worker
+	private void prepareNextQueue() {
+		synchronized (queues) {
+			if (unsubscribed || prepared != null) {
+				return;
+			}
+		}
+		QueueWithResources<T> q = queueFactory.call();
+		synchronized (queues) {
+			if (!unsubscribed && prepared == null) {
+				prepared = q;
+				return;
+			}
+		}
+		q.unsubscribe();
+	}
+
+	private void dispose(final QueueWithResources<T> q) {
+		if (worker == null) {
+			q.unsubscribe();
+		} else {
+			worker.schedule(new Action0() {
+				@Override
+				public void call() {
+					q.unsubscribe();
 				}
-				return queues.peekLast().offer(t);
+			});
+		}
+	}
+
+	/**
+	 * Unsubscribes (deletes) the earliest queue and any items on it that have
+	 * not been polled. The queue being written to is never dropped. Must be
+	 * called from the thread calling {@code offer()}.
+	 * 
+	 * @return true if a queue was dropped
+	 */
+	boolean dropOldestQueue() {
+		synchronized (queues) {
+			if (unsubscribed || queues.size() < 2) {
+				return false;
+			}
+			QueueWithResources<T> q = queues.pollFirst();
+			if (q == reading) {
+				// the reader may be polling q without the lock so leave it to
+				// the reader to unsubscribe q once it has moved off it
+				dropped.set(q);
+			} else {
+				dispose(q);
 			}
+			return true;
+		}
+	}
+
+	private void disposeDropped() {
+		QueueWithResources<T> q = dropped.getAndSet(null);
+		if (q != null) {
+			dispose(q);
 		}
 	}
 
@@ -129,12 +337,7 @@ class RollingSPSCQueue<T> implements QueueWithResources<T> {
 		} else if (count == maxItemsPerQueue) {
 			return true;
 		} else if (maxSizeBytesPerQueue != Long.MAX_VALUE) {
-			synchronized (queues) {
-				if (unsubscribed) {
-					return true;
-				}
-				return queues.peekLast().resourcesSize() >= maxSizeBytesPerQueue;
-			}
+			return writing.resourcesSize() >= maxSizeBytesPerQueue;
 		} else {
 			return false;
 		}
@@ -142,33 +345,85 @@ class RollingSPSCQueue<T> implements QueueWithResources<T> {
 
 	@Override
 	public T poll() {
-		// limited thread safety (offer/poll/close/peek/isEmpty concurrent but
-		// not poll and poll)
-		if (unsubscribed) {
-			return null;
-		}
+		// limited thread safety (offer/poll/isEmpty concurrent but not poll
+		// and poll)
 		while (true) {
-			synchronized (queues) {
-				if (unsubscribed) {
-					return null;
-				}
-				QueueWithResources<T> first = queues.peekFirst();
-				if (first == null) {
-					return null;
-				}
-				T value = first.poll();
-				if (value == null) {
-					if (first == queues.peekLast()) {
-						return null;
-					} else {
-						QueueWithResources<T> removed = queues.pollFirst();
-						if (removed != null)
-							removed.unsubscribe();
-					}
-				} else {
+			QueueWithResources<T> q = reading;
+			if (q != null && dropped.get() != q) {
+				T value = q.poll();
+				if (value != null) {
 					return value;
 				}
 			}
+			if (!nextReadQueue()) {
+				return null;
+			}
+		}
+	}
+
+	@Override
+	public int drainTo(Action1<? super T> consumer, int max) {
+		// limited thread safety as for poll(). Items are passed to the
+		// consumer straight from the queue being read as the lock is not held
+		int count = 0;
+		while (true) {
+			QueueWithResources<T> q = reading;
+			if (q != null && dropped.get() != q) {
+				count += q.drainTo(consumer, max - count);
+				if (count == max) {
+					return count;
+				}
+			}
+			if (!nextReadQueue()) {
+				return count;
+			}
+		}
+	}
+
+	/**
+	 * Called by the reader when the queue being read is empty (or has been
+	 * dropped). Moves the reader on to the next queue, unsubscribing the
+	 * queue being read if the writer has finished with it.
+	 * 
+	 * @return true if there may be more items to read
+	 */
+	private boolean nextReadQueue() {
+		QueueWithResources<T> q = reading;
+		if (q != null && q == writing) {
+			// the writer is still offering to the queue being read (the queue
+			// being written to is never dropped)
+			return false;
+		}
+		synchronized (queues) {
+			if (q != null && dropped.compareAndSet(q, null)) {
+				// the writer dropped the queue being read and it is no longer
+				// used by the reader
+				reading = null;
+				dispose(q);
+				q = null;
+			}
+			if (unsubscribed) {
+				return false;
+			}
+			QueueWithResources<T> first = queues.peekFirst();
+			if (first == null) {
+				return false;
+			} else if (first != q) {
+				// first poll or the queue being read was dropped
+				reading = first;
+				return true;
+			} else if (first == queues.peekLast()) {
+				return false;
+			} else if (!first.isEmpty()) {
+				// the writer offered to first before adding the next queue
+				// while holding the lock so anything offered is now visible
+				return true;
+			} else {
+				queues.pollFirst();
+				dispose(first);
+				reading = queues.peekFirst();
+				return true;
+			}
 		}
 	}
 
@@ -274,7 +529,13 @@ class RollingSPSCQueue<T> implements QueueWithResources<T> {
 
 	@Override
 	public long resourcesSize() {
-		throw new UnsupportedOperationException();
+		synchronized (queues) {
+			long size = 0;
+			for (QueueWithResources<T> q : queues) {
+				size += q.resourcesSize();
+			}
+			return size;
+		}
 	}
 
 }
\ No newline at end of file
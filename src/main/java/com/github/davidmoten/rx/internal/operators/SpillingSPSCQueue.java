@@ -0,0 +1,271 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Queue;
+
+import com.github.davidmoten.rx.buffertofile.SpillListener;
+import com.github.davidmoten.util.Preconditions;
+
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.internal.util.atomic.SpscAtomicArrayQueue;
+import rx.internal.util.unsafe.SpscArrayQueue;
+import rx.internal.util.unsafe.UnsafeAccess;
+
+/**
+ * <p>
+ * A queue that holds items in a bounded in-memory queue and only writes items
+ * to a file based queue (spills) when the in-memory queue is full. Once
+ * spilling has started every item is offered to the file based queue until the
+ * file based queue has been emptied by the reader, at which point items are
+ * held in memory again. The file based queue therefore only ever holds items
+ * from the current (or last) spill. The writer records how many items had been
+ * offered to memory when the spill started and the reader only polls the file
+ * based queue once it has polled that many items from memory so FIFO order is
+ * preserved.
+ *
+ * <p>
+ * The file based queue is created on the first spill.
+ *
+ * <p>
+ * Thread-safety is as for {@link FileBasedSPSCQueue}. Calls to
+ * {@code unsubscribe()} must not happen concurrently with other methods (wrap
+ * with {@link QueueWithResourcesNonBlockingUnsubscribe}).
+ *
+ * @param <T>
+ *            type of item being queued
+ */
+final class SpillingSPSCQueue<T> implements QueueWithResources<T> {
+
+	private final Queue<Object> memory;
+	private final Func0<? extends QueueWithResources<T>> fileQueueFactory;
+	private final SpillListener listener;
+
+	// written by the writer, read by the reader
+	private volatile QueueWithResources<T> fileQueue;
+	private volatile boolean unsubscribed;
+
+	// written by the writer before the first item of a spill is offered to
+	// the file based queue, read by the reader after it has seen that the
+	// file based queue is not empty
+	private volatile long memoryOfferedAtSpillStart;
+
+	// only accessed by the writer
+	private boolean spilling;
+	private long spilled;
+	private long memoryOffered;
+
+	// only accessed by the reader
+	private long memoryPolled;
+
+	SpillingSPSCQueue(int memoryBufferItems, Func0<? extends QueueWithResources<T>> fileQueueFactory,
+			SpillListener listener) {
+		Preconditions.checkArgument(memoryBufferItems > 0, "memoryBufferItems must be greater than zero");
+		Preconditions.checkNotNull(fileQueueFactory);
+		Preconditions.checkNotNull(listener);
+		if (UnsafeAccess.isUnsafeAvailable()) {
+			this.memory = new SpscArrayQueue<Object>(memoryBufferItems);
+		} else {
+			this.memory = new SpscAtomicArrayQueue<Object>(memoryBufferItems);
+		}
+		this.fileQueueFactory = fileQueueFactory;
+		this.listener = listener;
+	}
+
+	@Override
+	public boolean offer(T t) {
+		if (spilling && fileQueue.isEmpty()) {
+			// the reader has read everything spilled and so the in-memory
+			// queue is also empty
+			spilling = false;
+			listener.spillFinished(spilled);
+		}
+		if (!spilling) {
+			if (memory.offer(t == null ? NullSentinel.instance() : t)) {
+				memoryOffered++;
+				return true;
+			}
+			spilling = true;
+			spilled = 0;
+			memoryOfferedAtSpillStart = memoryOffered;
+			if (fileQueue == null) {
+				fileQueue = fileQueueFactory.call();
+			}
+			listener.spillStarted();
+		}
+		spilled++;
+		return fileQueue.offer(t);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T poll() {
+		while (true) {
+			Object o = memory.poll();
+			if (o != null) {
+				memoryPolled++;
+				// NullSentinel is returned as is
+				return (T) o;
+			}
+			QueueWithResources<T> q = fileQueue;
+			if (q == null || q.isEmpty()) {
+				return null;
+			} else if (memoryPolled < memoryOfferedAtSpillStart) {
+				// items offered to memory before the spill started were not
+				// visible when memory was polled so poll memory again
+				continue;
+			} else {
+				return q.poll();
+			}
+		}
+	}
+
+	@Override
+	public int drainTo(Action1<? super T> consumer, int max) {
+		// items move between memory and the file based queue so poll each
+		// one (polling memory involves no shared counters)
+		int count = 0;
+		while (count < max) {
+			T t = poll();
+			if (t == null) {
+				break;
+			}
+			count++;
+			consumer.call(t);
+		}
+		return count;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		if (!memory.isEmpty()) {
+			return false;
+		}
+		QueueWithResources<T> q = fileQueue;
+		return q == null || q.isEmpty();
+	}
+
+	@Override
+	public void unsubscribe() {
+		// must not run concurrently with offer/poll
+		if (unsubscribed) {
+			return;
+		}
+		unsubscribed = true;
+		memory.clear();
+		if (fileQueue != null) {
+			fileQueue.unsubscribe();
+		}
+		if (spilling) {
+			spilling = false;
+			listener.spillFinished(spilled);
+		}
+	}
+
+	@Override
+	public boolean isUnsubscribed() {
+		return unsubscribed;
+	}
+
+	@Override
+	public void freeResources() {
+		QueueWithResources<T> q = fileQueue;
+		if (q != null) {
+			q.freeResources();
+		}
+	}
+
+	/**
+	 * Returns the resources size of the file based queue or 0 if nothing has
+	 * been spilled.
+	 *
+	 * @return resources size of the file based queue or 0
+	 */
+	@Override
+	public long resourcesSize() {
+		QueueWithResources<T> q = fileQueue;
+		if (q == null) {
+			return 0;
+		} else {
+			return q.resourcesSize();
+		}
+	}
+
+	@Override
+	public T element() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public T peek() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int size() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean add(T e) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public T remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Object[] toArray() {
+		throw new UnsupportedOperationException();
+	}
+
+	@SuppressWarnings("hiding")
+	@Override
+	public <T> T[] toArray(T[] a) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends T> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException();
+	}
+
+}
@@ -0,0 +1,77 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import com.github.davidmoten.rx.buffertofile.OverflowPolicy;
+import com.github.davidmoten.rx.exceptions.StorageFullException;
+import com.github.davidmoten.util.Preconditions;
+
+/**
+ * Applies an {@link OverflowPolicy} in {@code offer()} once the
+ * {@code resourcesSize()} of the wrapped queue has reached
+ * {@code maxStorageBytes}. An empty queue is never considered full (its files
+ * may not have been reclaimed yet). {@link OverflowPolicy#BACKPRESSURE} is
+ * applied upstream of the queue so is not supported here.
+ *
+ * @param <T>
+ *            type of item being queued
+ */
+final class StorageLimitedQueue<T> extends AbstractQueueWithResources<T> {
+
+    private final QueueWithResources<T> queue;
+    private final long maxStorageBytes;
+    private final OverflowPolicy policy;
+
+    // non-null only for OverflowPolicy.DROP_OLDEST_SEGMENT
+    private final RollingSPSCQueue<T> rolling;
+
+    StorageLimitedQueue(QueueWithResources<T> queue, long maxStorageBytes, OverflowPolicy policy) {
+        this(queue, maxStorageBytes, policy, null);
+    }
+
+    StorageLimitedQueue(RollingSPSCQueue<T> queue, long maxStorageBytes, OverflowPolicy policy) {
+        this(queue, maxStorageBytes, policy, queue);
+    }
+
+    private StorageLimitedQueue(QueueWithResources<T> queue, long maxStorageBytes,
+            OverflowPolicy policy, RollingSPSCQueue<T> rolling) {
+        super(queue);
+        Preconditions.checkNotNull(policy);
+        Preconditions.checkArgument(maxStorageBytes > 0, "maxStorageBytes must be greater than zero");
+        Preconditions.checkArgument(policy != OverflowPolicy.BACKPRESSURE,
+                "backpressure is not applied by this queue");
+        Preconditions.checkArgument(policy != OverflowPolicy.DROP_OLDEST_SEGMENT || rolling != null,
+                "dropping the oldest segment requires a rolling queue");
+        this.queue = queue;
+        this.maxStorageBytes = maxStorageBytes;
+        this.policy = policy;
+        this.rolling = rolling;
+    }
+
+    @Override
+    public boolean offer(T t) {
+        if (full()) {
+            if (policy == OverflowPolicy.ERROR) {
+                throw new StorageFullException(
+                        "resourcesSize " + queue.resourcesSize() + " has reached maxStorageBytes "
+                                + maxStorageBytes);
+            } else if (policy == OverflowPolicy.DROP_NEWEST) {
+                return true;
+            } else {
+                // DROP_OLDEST_SEGMENT
+                while (full() && rolling.dropOldestQueue()) {
+                    // keep dropping
+                }
+            }
+        }
+        return queue.offer(t);
+    }
+
+    @Override
+    public boolean isUnsubscribed() {
+        return queue.isUnsubscribed();
+    }
+
+    private boolean full() {
+        return queue.resourcesSize() >= maxStorageBytes && !queue.isEmpty();
+    }
+
+}
@@ -0,0 +1,399 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.github.davidmoten.rx.buffertofile.DataSerializer;
+import com.github.davidmoten.rx.buffertofile.Options;
+import com.github.davidmoten.util.Preconditions;
+
+import rx.Observable;
+import rx.Observable.Transformer;
+import rx.Observer;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.functions.Func2;
+import rx.observables.SyncOnSubscribe;
+
+/**
+ * <p>
+ * Sorts a stream that may not fit in memory. The source is split into runs of
+ * at most {@code runSize} items, each run is sorted in memory (stably, as
+ * {@link Observable#toSortedList(Func2)} does) and written to its own file
+ * with the given {@link DataSerializer}. Once the source completes the runs
+ * are merged with {@link OrderedMerge}, reading each file with backpressure.
+ * If there are more than {@code maxMergeSources} runs then consecutive groups
+ * of runs are first merged into new files so that at most
+ * {@code maxMergeSources} files are open at once.
+ *
+ * <p>
+ * Equal items are emitted in the order they arrived (ties are won by the
+ * earlier run) so the output is the same as an in-memory sort. All files are
+ * deleted on termination or unsubscription.
+ *
+ * @param <T>
+ *            type of item being sorted
+ */
+public final class TransformerSortExternal<T> implements Transformer<T, T> {
+
+    static final int DEFAULT_MAX_MERGE_SOURCES = 64;
+
+    // run size used by the Options only constructor when rollover is disabled
+    static final int DEFAULT_RUN_SIZE = 1000000;
+
+    private final Comparator<? super T> comparator;
+    private final DataSerializer<T> serializer;
+    private final int runSize;
+    private final int maxMergeSources;
+    private final Func0<File> fileFactory;
+    private final int bufferSizeBytes;
+
+    public TransformerSortExternal(Comparator<? super T> comparator,
+            DataSerializer<T> serializer, Options options) {
+        this(comparator, serializer, runSize(options), options);
+    }
+
+    public TransformerSortExternal(Comparator<? super T> comparator,
+            DataSerializer<T> serializer, int runSize, Options options) {
+        this(comparator, serializer, runSize, DEFAULT_MAX_MERGE_SOURCES, options.fileFactory(),
+                options.bufferSizeBytes());
+    }
+
+    TransformerSortExternal(Comparator<? super T> comparator, DataSerializer<T> serializer,
+            int runSize, int maxMergeSources, Func0<File> fileFactory, int bufferSizeBytes) {
+        Preconditions.checkNotNull(comparator);
+        Preconditions.checkNotNull(serializer);
+        Preconditions.checkArgument(runSize > 0, "runSize must be greater than zero");
+        Preconditions.checkArgument(maxMergeSources > 1,
+                "maxMergeSources must be greater than one");
+        Preconditions.checkNotNull(fileFactory);
+        this.comparator = comparator;
+        this.serializer = serializer;
+        this.runSize = runSize;
+        this.maxMergeSources = maxMergeSources;
+        this.fileFactory = fileFactory;
+        this.bufferSizeBytes = bufferSizeBytes;
+    }
+
+    private static int runSize(Options options) {
+        if (options.rolloverEvery() == Long.MAX_VALUE) {
+            // rollover disabled
+            return DEFAULT_RUN_SIZE;
+        } else {
+            Preconditions.checkArgument(options.rolloverEvery() <= Integer.MAX_VALUE,
+                    "rolloverEvery must be at most Integer.MAX_VALUE to be used as the run size");
+            return (int) options.rolloverEvery();
+        }
+    }
+
+    @Override
+    public Observable<T> call(final Observable<T> source) {
+        Func0<Runs> resourceFactory = new Func0<Runs>() {
+            @Override
+            public Runs call() {
+                return new Runs();
+            }
+        };
+        Func1<Runs, Observable<T>> observableFactory = new Func1<Runs, Observable<T>>() {
+            @Override
+            public Observable<T> call(final Runs runs) {
+                // grows as items arrive (unlike buffer(runSize) which
+                // allocates room for runSize items up front)
+                final List<T> items = new ArrayList<T>();
+                return source
+                        // write each sorted run to file
+                        .reduce(runs, new Func2<Runs, T, Runs>() {
+                            @Override
+                            public Runs call(Runs runs, T t) {
+                                items.add(t);
+                                if (items.size() == runSize) {
+                                    writeRun(runs, items);
+                                }
+                                return runs;
+                            }
+                        })
+                        // merge the runs
+                        .concatMap(new Func1<Runs, Observable<T>>() {
+                            @Override
+                            public Observable<T> call(Runs runs) {
+                                if (!items.isEmpty()) {
+                                    writeRun(runs, items);
+                                }
+                                return merge(runs);
+                            }
+                        });
+            }
+        };
+        Action1<Runs> disposeAction = new Action1<Runs>() {
+            @Override
+            public void call(Runs runs) {
+                runs.delete();
+            }
+        };
+        return Observable.using(resourceFactory, observableFactory, disposeAction, true);
+    }
+
+    private void writeRun(Runs runs, List<T> items) {
+        Collections.sort(items, comparator);
+        runs.add(write(items));
+        items.clear();
+    }
+
+    private Observable<T> merge(Runs runs) {
+        // bound the number of files open at once
+        while (runs.size() > maxMergeSources) {
+            List<Run> list = runs.list();
+            List<Run> merged = new ArrayList<Run>();
+            for (int i = 0; i < list.size(); i += maxMergeSources) {
+                List<Run> group = list.subList(i, Math.min(list.size(), i + maxMergeSources));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                } else {
+                    merged.add(mergeToFile(group));
+                    for (Run run : group) {
+                        run.delete();
+                    }
+                }
+            }
+            runs.replace(merged);
+        }
+        List<Observable<T>> sources = new ArrayList<Observable<T>>();
+        for (Run run : runs.list()) {
+            sources.add(read(run));
+        }
+        // OrderedMerge takes the earliest source on ties which keeps the
+        // sort stable
+        return OrderedMerge.create(sources, comparator, false);
+    }
+
+    private Run write(List<T> list) {
+        Run run = new Run(fileFactory.call());
+        RunWriter writer = new RunWriter(run);
+        try {
+            for (T t : list) {
+                writer.write(t);
+            }
+        } finally {
+            writer.close();
+        }
+        return run;
+    }
+
+    private Run mergeToFile(List<Run> group) {
+        PriorityQueue<Head> heap = new PriorityQueue<Head>(group.size());
+        Run run = new Run(fileFactory.call());
+        RunWriter writer = new RunWriter(run);
+        try {
+            for (int i = 0; i < group.size(); i++) {
+                Head head = new Head(new RunReader(group.get(i)), i);
+                if (head.advance()) {
+                    heap.add(head);
+                } else {
+                    head.reader.close();
+                }
+            }
+            while (!heap.isEmpty()) {
+                Head head = heap.poll();
+                writer.write(head.value);
+                if (head.advance()) {
+                    heap.add(head);
+                } else {
+                    head.reader.close();
+                }
+            }
+        } finally {
+            for (Head head : heap) {
+                head.reader.close();
+            }
+            writer.close();
+        }
+        return run;
+    }
+
+    private Observable<T> read(final Run run) {
+        return Observable.create(new SyncOnSubscribe<RunReader, T>() {
+
+            @Override
+            protected RunReader generateState() {
+                return new RunReader(run);
+            }
+
+            @Override
+            protected RunReader next(RunReader reader, Observer<? super T> observer) {
+                if (reader.hasNext()) {
+                    observer.onNext(reader.next());
+                } else {
+                    observer.onCompleted();
+                }
+                return reader;
+            }
+
+            @Override
+            protected void onUnsubscribe(RunReader reader) {
+                reader.close();
+            }
+        });
+    }
+
+    private static final class Run {
+
+        final File file;
+        long count;
+
+        Run(File file) {
+            this.file = file;
+        }
+
+        void delete() {
+            if (file.exists() && !file.delete()) {
+                throw new RuntimeException("could not delete file " + file);
+            }
+        }
+    }
+
+    private static final class Runs {
+
+        // guarded by this
+        private List<Run> list = new ArrayList<Run>();
+
+        synchronized void add(Run run) {
+            list.add(run);
+        }
+
+        synchronized int size() {
+            return list.size();
+        }
+
+        synchronized List<Run> list() {
+            return new ArrayList<Run>(list);
+        }
+
+        synchronized void replace(List<Run> runs) {
+            list = runs;
+        }
+
+        synchronized void delete() {
+            for (Run run : list) {
+                run.delete();
+            }
+            list.clear();
+        }
+    }
+
+    private final class RunWriter {
+
+        private final Run run;
+        private final DataOutputStream output;
+
+        RunWriter(Run run) {
+            this.run = run;
+            try {
+                run.file.getParentFile().mkdirs();
+                this.output = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(run.file), bufferSizeBytes));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void write(T t) {
+            try {
+                serializer.serialize(output, t);
+                run.count++;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void close() {
+            try {
+                output.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private final class RunReader {
+
+        private final DataInputStream input;
+        private long remaining;
+
+        RunReader(Run run) {
+            this.remaining = run.count;
+            try {
+                this.input = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(run.file), bufferSizeBytes));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        boolean hasNext() {
+            return remaining > 0;
+        }
+
+        T next() {
+            try {
+                T t = serializer.deserialize(input);
+                remaining--;
+                return t;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void close() {
+            try {
+                input.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private final class Head implements Comparable<Head> {
+
+        final RunReader reader;
+        // the position of the run in the group, breaks ties
+        final int index;
+        T value;
+
+        Head(RunReader reader, int index) {
+            this.reader = reader;
+            this.index = index;
+        }
+
+        boolean advance() {
+            if (reader.hasNext()) {
+                value = reader.next();
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int compareTo(Head other) {
+            int c = comparator.compare(value, other.value);
+            if (c == 0) {
+                return index < other.index ? -1 : (index == other.index ? 0 : 1);
+            } else {
+                return c;
+            }
+        }
+    }
+
+}
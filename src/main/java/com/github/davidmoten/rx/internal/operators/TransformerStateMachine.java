@@ -1,17 +1,28 @@
 package com.github.davidmoten.rx.internal.operators;
 
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.github.davidmoten.rx.util.BackpressureStrategy;
 import com.github.davidmoten.util.Preconditions;
 
-import rx.Notification;
 import rx.Observable;
-import rx.Observable.OnSubscribe;
+import rx.Observable.Operator;
 import rx.Observable.Transformer;
+import rx.Producer;
 import rx.Subscriber;
+import rx.exceptions.Exceptions;
+import rx.functions.Action0;
 import rx.functions.Func0;
-import rx.functions.Func1;
 import rx.functions.Func2;
 import rx.functions.Func3;
+import rx.internal.operators.BackpressureUtils;
+import rx.internal.util.RxRingBuffer;
+import rx.internal.util.atomic.SpscUnboundedAtomicArrayQueue;
+import rx.internal.util.unsafe.SpscUnboundedArrayQueue;
+import rx.internal.util.unsafe.UnsafeAccess;
+import rx.subscriptions.Subscriptions;
 
 public final class TransformerStateMachine<State, In, Out> implements Transformer<In, Out> {
 
@@ -47,137 +58,375 @@ public final class TransformerStateMachine<State, In, Out> implements Transforme
 
     @Override
     public Observable<Out> call(final Observable<In> source) {
-        // use defer so we can have a single state reference for each
-        // subscription
-        return Observable.defer(new Func0<Observable<Out>>() {
+        return source.lift(new Operator<Out, In>() {
             @Override
-            public Observable<Out> call() {
-                Mutable<State> state = new Mutable<State>(initialState.call());
-                return source.materialize()
-                        // do state transitions and emit notifications
-                        // use flatMap to emit notification values
-                        .flatMap(execute(transition, completion, state, backpressureStrategy),
-                                initialRequest)
-                        // complete if we encounter an unsubscribed sentinel
-                        .takeWhile(NOT_UNSUBSCRIBED)
-                        // flatten notifications to a stream which will enable
-                        // early termination from the state machine if desired
-                        .dematerialize();
+            public Subscriber<? super In> call(Subscriber<? super Out> child) {
+                StateMachineSubscriber<State, In, Out> parent = new StateMachineSubscriber<State, In, Out>(
+                        initialState.call(), transition, completion, backpressureStrategy,
+                        initialRequest, child);
+                parent.init();
+                return parent;
             }
         });
     }
 
-    private static <State, Out, In> Func1<Notification<In>, Observable<Notification<Out>>> execute(
-            final Func3<? super State, ? super In, ? super Subscriber<Out>, ? extends State> transition,
-            final Func2<? super State, ? super Subscriber<Out>, Boolean> completion,
-            final Mutable<State> state, final BackpressureStrategy backpressureStrategy) {
+    /**
+     * Runs the transitions of the state machine as items arrive from upstream.
+     * Emissions from a transition go straight to the child if it has
+     * outstanding requests and nothing is queued, otherwise they are queued
+     * and emitted by a queue-drain loop as the child requests. A marker is
+     * queued after the emissions of each transition so that upstream is only
+     * requested from once the emissions of earlier transitions have been
+     * delivered (at most {@code initialRequest} transitions are waiting on
+     * the child at any time). One {@link Emitter} is used for all
+     * transitions.
+     *
+     * <p>
+     * With {@code DROP} and {@code LATEST} an emission is accepted if the
+     * child has requested it. Otherwise up to {@link RxRingBuffer#SIZE}
+     * emissions of each transition are queued (matching the inner buffer of
+     * the {@code flatMap} this operator replaced) and later emissions of that
+     * transition are dropped, except that {@code LATEST} keeps the newest of
+     * them and queues it when the transition ends.
+     */
+    private static final class StateMachineSubscriber<State, In, Out> extends Subscriber<In> {
 
-        return new Func1<Notification<In>, Observable<Notification<Out>>>() {
+        // queued after the emissions of each transition
+        private static final Object TRANSITION_END = new Object();
 
-            @Override
-            public Observable<Notification<Out>> call(final Notification<In> in) {
-
-                Observable<Notification<Out>> o = Observable
-                        .create(new OnSubscribe<Notification<Out>>() {
-
-                    @Override
-                    public void call(Subscriber<? super Notification<Out>> subscriber) {
-                        Subscriber<Out> w = wrap(subscriber);
-                        if (in.hasValue()) {
-                            state.value = transition.call(state.value, in.getValue(), w);
-                            if (!subscriber.isUnsubscribed())
-                                subscriber.onCompleted();
-                            else {
-                                // this is a special emission to indicate that the
-                                // transition called unsubscribe. It will be
-                                // filtered later.
-                                subscriber.onNext(UnsubscribedNotificationHolder.<Out>unsubscribedNotification());
-                            }
-                        } else if (in.isOnCompleted()) {
-                            if (completion.call(state.value, w) && !subscriber.isUnsubscribed()) {
-                                w.onCompleted();
-                            }
-                        } else if (!subscriber.isUnsubscribed()) {
-                            w.onError(in.getThrowable());
+        private final Func3<? super State, ? super In, ? super Subscriber<Out>, ? extends State> transition;
+        private final Func2<? super State, ? super Subscriber<Out>, Boolean> completion;
+        private final BackpressureStrategy backpressureStrategy;
+        private final Subscriber<? super Out> child;
+        private final Emitter<Out> emitter;
+        private final Queue<Object> queue;
+        // work-in-progress counter for the drain loop
+        private final AtomicInteger wip = new AtomicInteger();
+        // total requested by the child (capped at Long.MAX_VALUE)
+        private final AtomicLong requested = new AtomicLong();
+        private final int replenishLimit;
+
+        // accessed from upstream signals only
+        private State state;
+        private boolean completing;
+        // emissions accepted, only used by DROP and LATEST
+        private long accepted;
+        // emissions of the current transition accepted without demand
+        private int buffered;
+        // newest emission of the current transition dropped after the
+        // buffer filled, only used by LATEST
+        private Object latest;
+
+        // no more items will be queued once done is true
+        private volatile boolean done;
+        // the terminal event to emit once the queue is drained, if any
+        private volatile boolean completeWhenDrained;
+        private volatile Throwable error;
+
+        // accessed by the drain loop only
+        private long emitted;
+        private int finishedTransitions;
+        private boolean terminated;
+
+        StateMachineSubscriber(State initialState,
+                Func3<? super State, ? super In, ? super Subscriber<Out>, ? extends State> transition,
+                Func2<? super State, ? super Subscriber<Out>, Boolean> completion,
+                BackpressureStrategy backpressureStrategy, int initialRequest,
+                Subscriber<? super Out> child) {
+            this.state = initialState;
+            this.transition = transition;
+            this.completion = completion;
+            this.backpressureStrategy = backpressureStrategy;
+            this.child = child;
+            this.emitter = new Emitter<Out>(this);
+            if (UnsafeAccess.isUnsafeAvailable()) {
+                this.queue = new SpscUnboundedArrayQueue<Object>(16);
+            } else {
+                this.queue = new SpscUnboundedAtomicArrayQueue<Object>(16);
+            }
+            // request more from upstream once 3/4 of the outstanding
+            // transitions have finished
+            this.replenishLimit = Math.max(1, initialRequest - (initialRequest >> 2));
+            request(initialRequest);
+        }
+
+        void init() {
+            child.add(this);
+            child.add(emitter);
+            child.setProducer(new Producer() {
+                @Override
+                public void request(long n) {
+                    requestFromChild(n);
+                }
+            });
+        }
+
+        void requestFromChild(long n) {
+            if (BackpressureUtils.validate(n)) {
+                BackpressureUtils.getAndAddRequest(requested, n);
+                drain();
+            }
+        }
+
+        @Override
+        public void onNext(In t) {
+            if (done) {
+                return;
+            }
+            buffered = 0;
+            try {
+                state = transition.call(state, t, emitter);
+            } catch (Throwable e) {
+                Exceptions.throwIfFatal(e);
+                unsubscribe();
+                terminate(e, false);
+                return;
+            }
+            if (done) {
+                return;
+            }
+            offerLatest();
+            if (wip.get() == 0 && wip.compareAndSet(0, 1)) {
+                // fast path, the transition has finished if its emissions
+                // have all been delivered
+                if (queue.isEmpty()) {
+                    transitionFinished();
+                } else {
+                    queue.offer(TRANSITION_END);
+                }
+                if (wip.decrementAndGet() == 0) {
+                    return;
+                }
+            } else {
+                queue.offer(TRANSITION_END);
+                if (wip.getAndIncrement() != 0) {
+                    return;
+                }
+            }
+            drainLoop();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            if (!done) {
+                terminate(e, false);
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            if (done) {
+                return;
+            }
+            completing = true;
+            buffered = 0;
+            boolean complete;
+            try {
+                complete = completion.call(state, emitter);
+            } catch (Throwable e) {
+                Exceptions.throwIfFatal(e);
+                terminate(e, false);
+                return;
+            }
+            if (!done) {
+                terminate(null, complete);
+            }
+        }
+
+        void emit(Out t) {
+            if (done) {
+                return;
+            }
+            Object o = t == null ? NullSentinel.instance() : t;
+            if (backpressureStrategy != BackpressureStrategy.BUFFER) {
+                if (latest != null) {
+                    // the buffer of this transition has already filled
+                    latest = o;
+                    return;
+                } else if (requested.get() <= accepted) {
+                    // no demand for the item
+                    if (buffered == RxRingBuffer.SIZE) {
+                        if (backpressureStrategy == BackpressureStrategy.LATEST) {
+                            latest = o;
                         }
+                        return;
                     }
-                });
-                // because the observable we just created does not
-                // support backpressure we need to apply a backpressure
-                // handling operator. This operator is supplied by the
-                // user.
-                return applyBackpressure(o, backpressureStrategy);
+                    buffered++;
+                }
+                accepted++;
+            }
+            offer(o);
+        }
+
+        // queues the newest emission dropped by LATEST in the transition or
+        // completion that has just ended
+        private void offerLatest() {
+            if (latest != null) {
+                Object o = latest;
+                latest = null;
+                accepted++;
+                offer(o);
             }
+        }
 
-        };
-    }
-    
-    private static final class UnsubscribedNotificationHolder {
-        private static final Notification<Object> INSTANCE = Notification.createOnNext(null);
-        
         @SuppressWarnings("unchecked")
-        static <T> Notification<T> unsubscribedNotification() {
-            return (Notification<T>) INSTANCE;
+        private void offer(Object o) {
+            if (wip.get() == 0 && wip.compareAndSet(0, 1)) {
+                // fast path, emit directly if nothing is queued
+                if (queue.isEmpty() && requested.get() != emitted) {
+                    emitted++;
+                    child.onNext(NullSentinel.isNullSentinel(o) ? null : (Out) o);
+                    if (wip.decrementAndGet() == 0) {
+                        return;
+                    }
+                } else {
+                    queue.offer(o);
+                }
+            } else {
+                queue.offer(o);
+                if (wip.getAndIncrement() != 0) {
+                    return;
+                }
+            }
+            drainLoop();
         }
-    }
 
-    private static <Out> Observable<Notification<Out>> applyBackpressure(
-            Observable<Notification<Out>> o, final BackpressureStrategy backpressureStrategy) {
-        if (backpressureStrategy == BackpressureStrategy.BUFFER)
-            return o.onBackpressureBuffer();
-        else if (backpressureStrategy == BackpressureStrategy.DROP)
-            return o.onBackpressureDrop();
-        else if (backpressureStrategy == BackpressureStrategy.LATEST)
-            return o.onBackpressureLatest();
-        else
-            throw new IllegalArgumentException(
-                    "backpressure strategy not supported: " + backpressureStrategy);
-    }
+        void emitterCompleted() {
+            if (!done) {
+                unsubscribe();
+                terminate(null, true);
+            }
+        }
 
-    private static final Func1<Notification<?>, Boolean> NOT_UNSUBSCRIBED = new Func1<Notification<?>, Boolean>() {
+        void emitterError(Throwable e) {
+            if (!done) {
+                unsubscribe();
+                terminate(e, false);
+            }
+        }
 
-        @Override
-        public Boolean call(Notification<?> t) {
-            return t != UnsubscribedNotificationHolder.unsubscribedNotification();
+        void emitterUnsubscribed() {
+            if (done || child.isUnsubscribed()) {
+                return;
+            }
+            if (completing) {
+                // unsubscribing in the completion suppresses completion
+                terminate(null, false);
+            } else {
+                // unsubscribing in a transition completes the stream
+                unsubscribe();
+                terminate(null, true);
+            }
         }
 
-    };
+        // called from upstream signals or from the emitter during a transition
+        // or the completion
+        private void terminate(Throwable e, boolean complete) {
+            offerLatest();
+            error = e;
+            completeWhenDrained = complete;
+            done = true;
+            drain();
+        }
 
-    private static final class Mutable<T> {
-        T value;
+        private void drain() {
+            if (wip.getAndIncrement() == 0) {
+                drainLoop();
+            }
+        }
 
-        Mutable(T value) {
-            this.value = value;
+        @SuppressWarnings("unchecked")
+        private void drainLoop() {
+            int missed = 1;
+            while (true) {
+                long r = requested.get();
+                long e = emitted;
+                while (true) {
+                    if (terminated) {
+                        return;
+                    }
+                    if (child.isUnsubscribed()) {
+                        queue.clear();
+                        return;
+                    }
+                    boolean d = done;
+                    Object o = queue.peek();
+                    if (o == TRANSITION_END) {
+                        queue.poll();
+                        transitionFinished();
+                    } else if (o != null) {
+                        if (e == r) {
+                            break;
+                        }
+                        queue.poll();
+                        e++;
+                        child.onNext(NullSentinel.isNullSentinel(o) ? null : (Out) o);
+                    } else {
+                        if (d) {
+                            terminated = true;
+                            Throwable err = error;
+                            if (err != null) {
+                                child.onError(err);
+                            } else if (completeWhenDrained) {
+                                child.onCompleted();
+                            }
+                            return;
+                        }
+                        break;
+                    }
+                }
+                emitted = e;
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void transitionFinished() {
+            if (done) {
+                return;
+            }
+            finishedTransitions++;
+            if (finishedTransitions == replenishLimit) {
+                finishedTransitions = 0;
+                request(replenishLimit);
+            }
         }
-    }
 
-    private static <Out> NotificationSubscriber<Out> wrap(
-            Subscriber<? super Notification<Out>> sub) {
-        return new NotificationSubscriber<Out>(sub);
     }
 
-    private static final class NotificationSubscriber<Out> extends Subscriber<Out> {
+    /**
+     * The {@link Subscriber} passed to the transition and completion
+     * functions. A single instance is reused for every call.
+     */
+    private static final class Emitter<Out> extends Subscriber<Out> {
 
-        private final Subscriber<? super Notification<Out>> sub;
+        private final StateMachineSubscriber<?, ?, Out> parent;
 
-        NotificationSubscriber(Subscriber<? super Notification<Out>> sub) {
-            this.sub = sub;
-            add(sub);
+        Emitter(final StateMachineSubscriber<?, ?, Out> parent) {
+            this.parent = parent;
+            add(Subscriptions.create(new Action0() {
+                @Override
+                public void call() {
+                    parent.emitterUnsubscribed();
+                }
+            }));
         }
 
         @Override
-        public void onCompleted() {
-            sub.onNext(Notification.<Out> createOnCompleted());
+        public void onNext(Out t) {
+            parent.emit(t);
         }
 
         @Override
-        public void onError(Throwable e) {
-            sub.onNext(Notification.<Out> createOnError(e));
+        public void onCompleted() {
+            parent.emitterCompleted();
         }
 
         @Override
-        public void onNext(Out t) {
-            sub.onNext(Notification.createOnNext(t));
+        public void onError(Throwable e) {
+            parent.emitterError(e);
         }
 
     }
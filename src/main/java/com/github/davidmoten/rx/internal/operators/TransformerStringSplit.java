@@ -1,57 +1,67 @@
 package com.github.davidmoten.rx.internal.operators;
 
+import java.nio.CharBuffer;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import com.github.davidmoten.rx.Functions;
-
 import rx.Observable.Transformer;
 import rx.Subscriber;
 import rx.functions.Func0;
 import rx.functions.Func2;
 import rx.functions.Func3;
 
+/**
+ * Splits a stream of strings as if they were concatenated and split with
+ * {@link Pattern#split(CharSequence, int)} (with a negative limit). Characters
+ * not yet terminated by the pattern are held in a growable {@code char} buffer
+ * that chunks are appended to (rather than concatenating strings) and parts
+ * are emitted straight from the buffer. A pattern without regular expression
+ * metacharacters is searched for literally, other patterns with a reused
+ * {@link Matcher}. Either way the search resumes after the positions known not
+ * to start a match (for a literal, those before the last chunk ended less the
+ * length of the literal) so that a long unterminated part arriving in many
+ * chunks is not searched again from its start for every chunk.
+ */
 public final class TransformerStringSplit {
 
+	private static final String REGEX_METACHARACTERS = ".$|()[]{}^?*+\\";
+
 	public static <T> Transformer<String, String> split(final String pattern, final Pattern compiledPattern) {
-		Func0<String> initialState = Functions.constant0(null);
-		Func3<String, String, Subscriber<String>, String> transition = new Func3<String, String, Subscriber<String>, String>() {
+		Func0<Splitter> initialState = new Func0<Splitter>() {
 
 			@Override
-			public String call(String leftOver, String s, Subscriber<String> observer) {
-                // prepend leftover to the string before splitting
-			    if (leftOver != null) {
-			        s = leftOver + s;
-			    }
-			    
-				String[] parts;
+			public Splitter call() {
 				if (compiledPattern != null) {
-					parts = compiledPattern.split(s, -1);
+					if (compiledPattern.flags() == Pattern.LITERAL && compiledPattern.pattern().length() > 0) {
+						return new Splitter(compiledPattern.pattern(), null);
+					} else {
+						return new Splitter(null, compiledPattern.matcher(""));
+					}
+				} else if (isLiteral(pattern)) {
+					return new Splitter(pattern, null);
 				} else {
-					parts = s.split(pattern, -1);
+					return new Splitter(null, Pattern.compile(pattern).matcher(""));
 				}
+			}
+		};
+		Func3<Splitter, String, Subscriber<String>, Splitter> transition = new Func3<Splitter, String, Subscriber<String>, Splitter>() {
 
+			@Override
+			public Splitter call(Splitter splitter, String s, Subscriber<String> observer) {
+				splitter.append(s);
 				// can emit all parts except the last part because it hasn't
 				// been terminated by the pattern/end-of-stream yet
-				for (int i = 0; i < parts.length - 1; i++) {
-					if (observer.isUnsubscribed()) {
-						// won't be used so can return null
-						return null;
-					}
-					observer.onNext(parts[i]);
-				}
-
-				// we have to assign the last part as leftOver because we
-				// don't know if it has been terminated yet
-				return parts[parts.length - 1];
+				splitter.emitTerminated(observer);
+				return splitter;
 			}
 		};
 
-		Func2<String, Subscriber<String>, Boolean> completion = new Func2<String, Subscriber<String>, Boolean>() {
+		Func2<Splitter, Subscriber<String>, Boolean> completion = new Func2<Splitter, Subscriber<String>, Boolean>() {
 
 			@Override
-			public Boolean call(String leftOver, Subscriber<String> observer) {
-				if (leftOver != null && !observer.isUnsubscribed())
-					observer.onNext(leftOver);
+			public Boolean call(Splitter splitter, Subscriber<String> observer) {
+				if (splitter.started && !observer.isUnsubscribed())
+					observer.onNext(splitter.remaining());
 				// TODO is this check needed?
 				if (!observer.isUnsubscribed())
 					observer.onCompleted();
@@ -61,4 +71,150 @@ public final class TransformerStringSplit {
 		return com.github.davidmoten.rx.Transformers.stateMachine(initialState, transition, completion);
 	}
 
+	private static boolean isLiteral(String pattern) {
+		if (pattern.length() == 0) {
+			return false;
+		}
+		for (int i = 0; i < pattern.length(); i++) {
+			if (REGEX_METACHARACTERS.indexOf(pattern.charAt(i)) >= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final class Splitter {
+
+		// exactly one of literal and matcher is non-null
+		private final String literal;
+		private final Matcher matcher;
+
+		private char[] buffer = new char[64];
+		// the unterminated characters are buffer[start..end)
+		private int start;
+		private int end;
+		// a match cannot start before this index
+		private int scanFrom;
+		boolean started;
+
+		Splitter(String literal, Matcher matcher) {
+			this.literal = literal;
+			this.matcher = matcher;
+			if (matcher != null) {
+				// so that matching in a region behaves as matching the whole
+				// input from the start of the region
+				matcher.useTransparentBounds(true);
+				matcher.useAnchoringBounds(false);
+			}
+		}
+
+		void append(String s) {
+			started = true;
+			int n = s.length();
+			if (end + n > buffer.length) {
+				// discard emitted characters
+				if (start > 0) {
+					System.arraycopy(buffer, start, buffer, 0, end - start);
+					end -= start;
+					scanFrom -= start;
+					start = 0;
+				}
+				if (end + n > buffer.length) {
+					char[] b = new char[Math.max(buffer.length * 2, end + n)];
+					System.arraycopy(buffer, 0, b, 0, end);
+					buffer = b;
+				}
+			}
+			s.getChars(0, n, buffer, end);
+			end += n;
+		}
+
+		void emitTerminated(Subscriber<String> observer) {
+			if (literal != null) {
+				emitTerminatedByLiteral(observer);
+			} else {
+				emitTerminatedByPattern(observer);
+			}
+		}
+
+		private void emitTerminatedByLiteral(Subscriber<String> observer) {
+			int length = literal.length();
+			char first = literal.charAt(0);
+			int i = Math.max(start, scanFrom);
+			int last = end - length;
+			while (i <= last) {
+				if (buffer[i] == first && matchesLiteralAt(i)) {
+					if (observer.isUnsubscribed()) {
+						return;
+					}
+					observer.onNext(new String(buffer, start, i - start));
+					start = i + length;
+					i = start;
+				} else {
+					i++;
+				}
+			}
+			// a literal starting earlier would have been found
+			scanFrom = Math.max(start, last + 1);
+		}
+
+		private boolean matchesLiteralAt(int i) {
+			for (int j = 1; j < literal.length(); j++) {
+				if (buffer[i + j] != literal.charAt(j)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void emitTerminatedByPattern(Subscriber<String> observer) {
+			// same as Pattern.split on the unterminated characters except that
+			// the search starts after the positions known not to start a match
+			int base = start;
+			int length = end - start;
+			matcher.reset(CharBuffer.wrap(buffer, base, length));
+			int index = 0;
+			boolean found = matcher.find(Math.max(0, scanFrom - base));
+			while (found) {
+				if (index == 0 && matcher.start() == 0 && matcher.end() == 0) {
+					// no empty leading part for a zero-width match at the
+					// beginning
+					found = matcher.find();
+					continue;
+				}
+				if (observer.isUnsubscribed()) {
+					return;
+				}
+				observer.onNext(new String(buffer, base + index, matcher.start() - index));
+				index = matcher.end();
+				found = matcher.find();
+			}
+			if (index > 0) {
+				// whether a position can start a match depends on where the
+				// input starts (anchors, lookbehinds) so check again from the
+				// new start
+				start = base + index;
+				base = start;
+				length = end - start;
+				scanFrom = start;
+				matcher.reset(CharBuffer.wrap(buffer, base, length));
+			}
+			// a position cannot start a match however the input continues if an
+			// attempt to match there fails without reaching the end of the input
+			int i = Math.max(start, scanFrom);
+			while (i < end) {
+				matcher.region(i - base, length);
+				if (matcher.lookingAt() || matcher.hitEnd()) {
+					break;
+				}
+				i++;
+			}
+			scanFrom = i;
+		}
+
+		String remaining() {
+			return new String(buffer, start, end - start);
+		}
+	}
+
 }
@@ -0,0 +1,29 @@
+package com.github.davidmoten.rx.observables;
+
+import com.github.davidmoten.rx.buffertofile.DataSerializer;
+import com.github.davidmoten.rx.buffertofile.Options;
+import com.github.davidmoten.rx.internal.operators.OnSubscribeCacheToFile;
+
+import rx.Observable;
+import rx.Scheduler;
+
+public class FileCachedObservable<T> extends Observable<T> {
+
+    private final OnSubscribeCacheToFile<T> cache;
+
+    public FileCachedObservable(Observable<T> source, DataSerializer<T> serializer,
+            Scheduler scheduler, Options options) {
+        this(new OnSubscribeCacheToFile<T>(source, serializer, scheduler, options));
+    }
+
+    FileCachedObservable(OnSubscribeCacheToFile<T> cache) {
+        super(cache);
+        this.cache = cache;
+    }
+
+    public FileCachedObservable<T> reset() {
+        cache.reset();
+        return this;
+    }
+
+}
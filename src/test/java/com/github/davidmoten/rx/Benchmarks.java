@@ -1,21 +1,36 @@
 package com.github.davidmoten.rx;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.infra.Blackhole;
 
+import com.github.davidmoten.rx.StateMachine.Transition;
+import com.github.davidmoten.rx.buffertofile.Compression;
 import com.github.davidmoten.rx.buffertofile.DataSerializers;
+import com.github.davidmoten.rx.buffertofile.Options;
+import com.github.davidmoten.rx.buffertofile.StorageType;
+import com.github.davidmoten.rx.perf.DeferredRequestSubscriber;
 import com.github.davidmoten.rx.perf.LatchedObserver;
 
 import rx.Observable;
+import rx.Observable.Transformer;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action1;
 import rx.functions.Func1;
+import rx.functions.Func2;
+import rx.observers.TestSubscriber;
 import rx.schedulers.Schedulers;
 
 public class Benchmarks {
 
-    // @Benchmark
+    @Benchmark
     public void perfOnBackpressureBufferToFileFor100_000IntegersOnComputation(Blackhole bh)
             throws InterruptedException {
         LatchedObserver<Integer> observer = new LatchedObserver<Integer>(bh);
@@ -64,10 +79,593 @@ public class Benchmarks {
     }
 
     @Benchmark
-    public void perfStringSplit() {
-        Observable.from(Arrays //
+    public void perfOnBackpressureBufferToFileFor3000_1KByteArrays(Blackhole bh)
+            throws InterruptedException {
+        perfOnBackpressureBufferToFileForByteArrays(bh, 3000, 1024);
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor48_64KByteArrays(Blackhole bh)
+            throws InterruptedException {
+        perfOnBackpressureBufferToFileForByteArrays(bh, 48, 64 * 1024);
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor3000_1KByteArraysMemoryBuffer(Blackhole bh)
+            throws InterruptedException {
+        perfOnBackpressureBufferToFileForByteArrays(bh, 3000, 1024,
+                Options.memoryBufferItems(1024).build());
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor3000_1KByteArraysOnComputationMemoryBuffer(
+            Blackhole bh) throws InterruptedException {
+        perfOnBackpressureBufferToFileForByteArrays(bh, 3000, 1024,
+                Options.memoryBufferItems(1024).build(), Schedulers.computation());
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor3000_1KByteArraysDirectBuffers(Blackhole bh)
+            throws InterruptedException {
+        perfOnBackpressureBufferToFileForByteArrays(bh, 3000, 1024,
+                Options.directBuffers(true).build());
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor48_64KByteArraysBuffer64K(Blackhole bh)
+            throws InterruptedException {
+        perfOnBackpressureBufferToFileForByteArrays(bh, 48, 64 * 1024,
+                Options.bufferSizeBytes(64 * 1024).build());
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor48_64KByteArraysBuffer64KDirectBuffers(
+            Blackhole bh) throws InterruptedException {
+        perfOnBackpressureBufferToFileForByteArrays(bh, 48, 64 * 1024,
+                Options.bufferSizeBytes(64 * 1024).directBuffers(true).build());
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor3000_1KByteArraysMemoryMapped(Blackhole bh)
+            throws InterruptedException {
+        perfOnBackpressureBufferToFileForByteArrays(bh, 3000, 1024,
+                Options.storage(StorageType.MEMORY_MAPPED).build());
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor48_64KByteArraysMemoryMapped(Blackhole bh)
+            throws InterruptedException {
+        perfOnBackpressureBufferToFileForByteArrays(bh, 48, 64 * 1024,
+                Options.storage(StorageType.MEMORY_MAPPED).build());
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor3000_1KByteArraysDurableSyncEveryItem(
+            Blackhole bh) throws InterruptedException {
+        perfOnBackpressureBufferToFileForByteArrays(bh, 3000, 1024,
+                Options.durable(DURABLE_DIRECTORY).syncEvery(1).build());
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor3000_1KByteArraysDurableSyncEvery100Items(
+            Blackhole bh) throws InterruptedException {
+        perfOnBackpressureBufferToFileForByteArrays(bh, 3000, 1024,
+                Options.durable(DURABLE_DIRECTORY).syncEvery(100).build());
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor3000_1KByteArraysDurableSyncEvery10ms(
+            Blackhole bh) throws InterruptedException {
+        perfOnBackpressureBufferToFileForByteArrays(bh, 3000, 1024, Options
+                .durable(DURABLE_DIRECTORY).syncInterval(10, TimeUnit.MILLISECONDS).build());
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor3000_1KByteArraysDurableSyncOnUnsubscribeOnly(
+            Blackhole bh) throws InterruptedException {
+        perfOnBackpressureBufferToFileForByteArrays(bh, 3000, 1024,
+                Options.durable(DURABLE_DIRECTORY)
+                        .syncInterval(Long.MAX_VALUE, TimeUnit.MILLISECONDS).build());
+    }
+
+    private static final File DURABLE_DIRECTORY = new File("target/benchmark-durable");
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor3000_1KByteArraysOnComputation(Blackhole bh)
+            throws InterruptedException {
+        // producer and consumer on different threads contend on the file
+        // queue's write buffer
+        perfOnBackpressureBufferToFileForByteArrays(bh, 3000, 1024, Options.defaultInstance(),
+                Schedulers.computation());
+    }
+
+    private static void perfOnBackpressureBufferToFileForByteArrays(Blackhole bh, int count,
+            final int messageSize) throws InterruptedException {
+        perfOnBackpressureBufferToFileForByteArrays(bh, count, messageSize,
+                Options.defaultInstance());
+    }
+
+    private static void perfOnBackpressureBufferToFileForByteArrays(Blackhole bh, int count,
+            final int messageSize, Options options) throws InterruptedException {
+        perfOnBackpressureBufferToFileForByteArrays(bh, count, messageSize, options,
+                Schedulers.immediate());
+    }
+
+    private static void perfOnBackpressureBufferToFileForByteArrays(Blackhole bh, int count,
+            final int messageSize, Options options, Scheduler scheduler)
+            throws InterruptedException {
+        // both cases move about 3MB through the file queue so MB/s can be
+        // derived from ops/s
+        LatchedObserver<byte[]> observer = new LatchedObserver<byte[]>(bh);
+        Observable.range(1, count).map(new Func1<Integer, byte[]>() {
+            @Override
+            public byte[] call(Integer n) {
+                return new byte[messageSize];
+            }
+        }).compose(Transformers.onBackpressureBufferToFile(DataSerializers.byteArray(),
+                scheduler, options)).subscribe(observer);
+        observer.latch.await(100, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor100_000Longs(Blackhole bh)
+            throws InterruptedException {
+        perfOnBackpressureBufferToFileForLongs(bh, Options.defaultInstance());
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor100_000LongsMemoryMapped(Blackhole bh)
+            throws InterruptedException {
+        perfOnBackpressureBufferToFileForLongs(bh,
+                Options.storage(StorageType.MEMORY_MAPPED).build());
+    }
+
+    private static void perfOnBackpressureBufferToFileForLongs(Blackhole bh, Options options)
+            throws InterruptedException {
+        perfOnBackpressureBufferToFileForLongs(bh, options, Schedulers.immediate());
+    }
+
+    private static void perfOnBackpressureBufferToFileForLongs(Blackhole bh, Options options,
+            Scheduler scheduler) throws InterruptedException {
+        LatchedObserver<Long> observer = new LatchedObserver<Long>(bh);
+        Observable.range(1, 100000).map(new Func1<Integer, Long>() {
+            @Override
+            public Long call(Integer n) {
+                return (long) n;
+            }
+        }).compose(Transformers.onBackpressureBufferToFile(DataSerializers.longs(), scheduler,
+                options)).subscribe(observer);
+        observer.latch.await(100, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor100_000LongsOnComputationWithRollover(
+            Blackhole bh) throws InterruptedException {
+        // the consumer drains many items at a time from the rolling queue
+        perfOnBackpressureBufferToFileForLongs(bh, Options.rolloverEvery(10000).build(),
+                Schedulers.computation());
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor100_000LongsOnComputationWithFrequentRollover(
+            Blackhole bh) throws InterruptedException {
+        // files are created and deleted on the offer and poll threads
+        perfOnBackpressureBufferToFileForLongs(bh, Options.rolloverEvery(1000).build(),
+                Schedulers.computation());
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor100_000LongsOnComputationWithFrequentRolloverOnScheduler(
+            Blackhole bh) throws InterruptedException {
+        // files are created and deleted on an io worker
+        perfOnBackpressureBufferToFileForLongs(bh,
+                Options.rolloverEvery(1000).rolloverScheduler(Schedulers.io()).build(),
+                Schedulers.computation());
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor100_000LongsBufferedThenDrained(Blackhole bh) {
+        perfOnBackpressureBufferToFileForLongsBufferedThenDrained(bh, Options.defaultInstance());
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor100_000LongsBufferedThenDrainedWithRollover(
+            Blackhole bh) {
+        perfOnBackpressureBufferToFileForLongsBufferedThenDrained(bh,
+                Options.rolloverEvery(10000).build());
+    }
+
+    private static void perfOnBackpressureBufferToFileForLongsBufferedThenDrained(Blackhole bh,
+            Options options) {
+        // all items are written to file before any are requested so that the
+        // drain loop reads whole batches from the queue
+        DeferredRequestSubscriber<Long> subscriber = new DeferredRequestSubscriber<Long>(bh);
+        Observable.range(1, 100000).map(new Func1<Integer, Long>() {
+            @Override
+            public Long call(Integer n) {
+                return (long) n;
+            }
+        }).compose(Transformers.onBackpressureBufferToFile(DataSerializers.longs(),
+                Schedulers.immediate(), options)).subscribe(subscriber);
+        subscriber.requestAll();
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileMergedFor4Producers(Blackhole bh)
+            throws InterruptedException {
+        perfOnBackpressureBufferToFileMerged(bh, 4, true);
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileMergedFor8Producers(Blackhole bh)
+            throws InterruptedException {
+        perfOnBackpressureBufferToFileMerged(bh, 8, true);
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileAfterMergeFor4Producers(Blackhole bh)
+            throws InterruptedException {
+        perfOnBackpressureBufferToFileMerged(bh, 4, false);
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileAfterMergeFor8Producers(Blackhole bh)
+            throws InterruptedException {
+        perfOnBackpressureBufferToFileMerged(bh, 8, false);
+    }
+
+    private static void perfOnBackpressureBufferToFileMerged(Blackhole bh, int producers,
+            boolean multiProducerQueue) throws InterruptedException {
+        // 100,000 integers in total split between the producers, each on its
+        // own io thread
+        List<Observable<Integer>> sources = new ArrayList<Observable<Integer>>();
+        for (int i = 0; i < producers; i++) {
+            sources.add(Observable.range(1, 100000 / producers).subscribeOn(Schedulers.io()));
+        }
+        LatchedObserver<Integer> observer = new LatchedObserver<Integer>(bh);
+        Options options = Options.storage(StorageType.MEMORY_MAPPED).build();
+        if (multiProducerQueue) {
+            Observable.from(sources)
+                    .compose(Transformers.onBackpressureBufferToFileMerged(
+                            DataSerializers.integer(), Schedulers.immediate(), options))
+                    .subscribe(observer);
+        } else {
+            // merge serializes the producers onto the single producer queue
+            Observable.merge(sources).compose(Transformers.onBackpressureBufferToFile(
+                    DataSerializers.integer(), Schedulers.immediate(), options))
+                    .subscribe(observer);
+        }
+        observer.latch.await(100, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor10_000JavaIOStrings(Blackhole bh)
+            throws InterruptedException {
+        LatchedObserver<String> observer = new LatchedObserver<String>(bh);
+        Observable.range(1, 10000).map(new Func1<Integer, String>() {
+            @Override
+            public String call(Integer n) {
+                return "metric-" + n;
+            }
+        }).compose(Transformers.onBackpressureBufferToFile(DataSerializers.<String> javaIO(),
+                Schedulers.immediate())).subscribe(observer);
+        observer.latch.await(100, TimeUnit.SECONDS);
+    }
+
+    // compression ratios for the same messages are reported by
+    // FileBasedSPSCQueueCompressedTest
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor30_000JsonStringsUncompressed(Blackhole bh) {
+        perfOnBackpressureBufferToFileForJsonStrings(bh, Compression.NONE);
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor30_000JsonStringsDeflateFast(Blackhole bh) {
+        perfOnBackpressureBufferToFileForJsonStrings(bh, Compression.DEFLATE_FAST);
+    }
+
+    @Benchmark
+    public void perfOnBackpressureBufferToFileFor30_000JsonStringsDeflate(Blackhole bh) {
+        perfOnBackpressureBufferToFileForJsonStrings(bh, Compression.DEFLATE);
+    }
+
+    private static void perfOnBackpressureBufferToFileForJsonStrings(final Blackhole bh,
+            Compression compression) {
+        // all items are written to the queue before any are read so that the
+        // items go to file
+        TestSubscriber<String> ts = TestSubscriber.create(0);
+        Observable.range(1, 30000).map(new Func1<Integer, String>() {
+            @Override
+            public String call(Integer n) {
+                return "{\"timestamp\":" + (1460000000000L + n)
+                        + ",\"host\":\"server-01\",\"metric\":\"cpu.load\",\"value\":"
+                        + (n % 100) + "}";
+            }
+        }).compose(Transformers.onBackpressureBufferToFile(DataSerializers.string(),
+                Schedulers.immediate(),
+                Options.compression(compression).bufferSizeBytes(64 * 1024).build()))
+                .doOnNext(new Action1<String>() {
+                    @Override
+                    public void call(String s) {
+                        bh.consume(s);
+                    }
+                }).subscribe(ts);
+        ts.requestMore(Long.MAX_VALUE);
+        ts.awaitTerminalEvent(100, TimeUnit.SECONDS);
+        ts.assertCompleted();
+    }
+
+    @Benchmark
+    public void perfSortExternalFor10MLongs(Blackhole bh) {
+        perfSortExternal(bh, 10000000);
+    }
+
+    // takes minutes per operation
+    // @Benchmark
+    public void perfSortExternalFor100MLongs(Blackhole bh) {
+        perfSortExternal(bh, 100000000);
+    }
+
+    // needs about 8GB of free disk and takes much longer
+    // @Benchmark
+    public void perfSortExternalFor1BLongs(Blackhole bh) {
+        perfSortExternal(bh, 1000000000);
+    }
+
+    private static void perfSortExternal(final Blackhole bh, int count) {
+        // runs of a million longs are sorted in memory
+        Observable.range(1, count).map(new Func1<Integer, Long>() {
+            @Override
+            public Long call(Integer n) {
+                // a scrambled but repeatable order
+                return (n * 2654435761L) % 1000000007L;
+            }
+        }).compose(Transformers.sortExternal(DataSerializers.longs(), 1000000,
+                Options.bufferSizeBytes(64 * 1024).build()))
+                .subscribe(new Action1<Long>() {
+                    @Override
+                    public void call(Long n) {
+                        bh.consume(n);
+                    }
+                });
+    }
+
+    @Benchmark
+    public void perfOrderedMergeFor2Sources(Blackhole bh) {
+        perfOrderedMerge(bh, 2);
+    }
+
+    @Benchmark
+    public void perfOrderedMergeFor16Sources(Blackhole bh) {
+        perfOrderedMerge(bh, 16);
+    }
+
+    @Benchmark
+    public void perfOrderedMergeFor256Sources(Blackhole bh) {
+        perfOrderedMerge(bh, 256);
+    }
+
+    @Benchmark
+    public void perfOrderedMergeFor1024Sources(Blackhole bh) {
+        perfOrderedMerge(bh, 1024);
+    }
+
+    @Benchmark
+    public void perfOrderedMergeFor16AsyncSources(Blackhole bh) throws InterruptedException {
+        perfOrderedMerge(bh, 16, Schedulers.computation());
+    }
+
+    private static void perfOrderedMerge(Blackhole bh, int sources) {
+        try {
+            perfOrderedMerge(bh, sources, Schedulers.immediate());
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void perfOrderedMerge(Blackhole bh, final int sources, Scheduler scheduler)
+            throws InterruptedException {
+        // 102,400 interleaved integers in total whatever the number of sources
+        List<Observable<Integer>> list = new ArrayList<Observable<Integer>>();
+        for (int i = 0; i < sources; i++) {
+            final int offset = i;
+            list.add(Observable.range(0, 102400 / sources).map(new Func1<Integer, Integer>() {
+                @Override
+                public Integer call(Integer n) {
+                    return n * sources + offset;
+                }
+            }).subscribeOn(scheduler));
+        }
+        LatchedObserver<Integer> observer = new LatchedObserver<Integer>(bh);
+        Obs.create(list, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return a.compareTo(b);
+            }
+        }).subscribe(observer);
+        observer.latch.await(100, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void perfMatchFor100_000IntegersReversedInBlocksOf1000(Blackhole bh) {
+        perfMatch(bh, 1000, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public void perfMatchFor100_000IntegersReversed(Blackhole bh) {
+        perfMatch(bh, 100000, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public void perfMatchFor100_000IntegersReversedSpillingAbove10_000(Blackhole bh) {
+        perfMatch(bh, 100000, 10000);
+    }
+
+    private static void perfMatch(Blackhole bh, final int blockSize, long maxUnmatchedInMemory) {
+        final int n = 100000;
+        Observable<Integer> a = Observable.range(0, n).map(new Func1<Integer, Integer>() {
+            @Override
+            public Integer call(Integer x) {
+                // reverse the order within each block
+                int start = x / blockSize * blockSize;
+                return start + blockSize - 1 - (x - start);
+            }
+        });
+        Observable<Integer> b = Observable.range(0, n);
+        Func1<Integer, Integer> key = new Func1<Integer, Integer>() {
+            @Override
+            public Integer call(Integer x) {
+                // spread the keys like ids or hashes would be (a bijection)
+                return x * 0x9E3779B1;
+            }
+        };
+        Func2<Integer, Integer, Integer> combiner = new Func2<Integer, Integer, Integer>() {
+            @Override
+            public Integer call(Integer x, Integer y) {
+                return x;
+            }
+        };
+        final Observable<Integer> o;
+        if (maxUnmatchedInMemory == Long.MAX_VALUE) {
+            o = Obs.match(a, b, key, key, combiner);
+        } else {
+            o = Obs.match(a, b, key, key, combiner, 128, Long.MAX_VALUE,
+                    DataSerializers.integer(), DataSerializers.integer(), maxUnmatchedInMemory,
+                    Options.defaultInstance());
+        }
+        bh.consume(o.count().toBlocking().single());
+    }
+
+    @Benchmark
+    public void perfToListWhileFor100_000Integers(Blackhole bh) {
+        bh.consume(Observable.range(1, 100000) //
+                .compose(Transformers.toListWhile(new Func2<List<Integer>, Integer, Boolean>() {
+                    @Override
+                    public Boolean call(List<Integer> list, Integer x) {
+                        return list.size() < 10;
+                    }
+                })) //
+                .count().toBlocking().single());
+    }
+
+    @Benchmark
+    public void perfStateMachineFor100_000IntegersWithBackpressure(Blackhole bh) {
+        // emits every item and its negation
+        Transformer<Integer, Integer> sm = Transformers.stateMachine() //
+                .initialState(null) //
+                .transition(new Transition<Object, Integer, Integer>() {
+                    @Override
+                    public Object call(Object state, Integer x, Subscriber<Integer> subscriber) {
+                        subscriber.onNext(x);
+                        subscriber.onNext(-x);
+                        return state;
+                    }
+                }).build();
+        bh.consume(Observable.range(1, 100000).compose(sm) //
+                // requests 16 at a time
+                .rebatchRequests(16) //
+                .count().toBlocking().single());
+    }
+
+    private static final Observable<Long> TICKS = Observable.range(1, 1000000)
+            .map(new Func1<Integer, Long>() {
+                @Override
+                public Long call(Integer n) {
+                    // pseudo random values
+                    return (long) ((n * 0x9E3779B1) >> 20);
+                }
+            });
+
+    @Benchmark
+    public void perfWindowMaxFor1MLongs(Blackhole bh) {
+        bh.consume(TICKS.compose(Transformers.<Long> windowMax(1000)) //
+                .count().toBlocking().single());
+    }
+
+    @Benchmark
+    public void perfWindowMaxLongFor1MLongs(Blackhole bh) {
+        bh.consume(TICKS.compose(Transformers.windowMaxLong(1000)) //
+                .count().toBlocking().single());
+    }
+
+    @Benchmark
+    public void perfWindowMaxOverLastSecondFor1MLongs(Blackhole bh) {
+        bh.consume(TICKS
+                .compose(Transformers.<Long> windowMax(1, TimeUnit.SECONDS, Schedulers.immediate()))
+                .count().toBlocking().single());
+    }
+
+    @Benchmark
+    public void perfCollectStatsFor1MLongs(Blackhole bh) {
+        bh.consume(TICKS.compose(Transformers.<Long> collectStats()).last().toBlocking()
+                .single());
+    }
+
+    @Benchmark
+    public void perfCollectStatsParallelFor1MLongs(Blackhole bh) {
+        bh.consume(TICKS.compose(Transformers.<Long> collectStatsParallel(
+                Runtime.getRuntime().availableProcessors(), Schedulers.computation())).toBlocking()
+                .single());
+    }
+
+    @Benchmark
+    public void perfCollectQuantilesEvery1000For1MLongs(Blackhole bh) {
+        bh.consume(TICKS.compose(Transformers.<Long> collectQuantiles(1000)).last()
+                .toBlocking().single());
+    }
+
+    @Benchmark
+    public void perfMovingStatsOver1000For1MLongs(Blackhole bh) {
+        bh.consume(TICKS.compose(Transformers.<Long> movingStats(1000)).count().toBlocking()
+                .single());
+    }
+
+    @Benchmark
+    public void perfEwmaFor1MLongs(Blackhole bh) {
+        bh.consume(TICKS
+                .compose(Transformers.<Long> ewma(1, TimeUnit.SECONDS, Schedulers.immediate()))
+                .count().toBlocking().single());
+    }
+
+    @Benchmark
+    public void perfStringSplit(Blackhole bh) {
+        bh.consume(Observable.from(Arrays //
                 .asList("the quick brown ", "fox jumped over", " the lazy", " dog")) //
-                .compose(Transformers.split("o"));
+                .compose(Transformers.split("o")) //
+                .count().toBlocking().single());
+    }
+
+    // four 4MB lines read in 8K chunks
+    private static final List<String> MULTI_MB_LINES = chunks(4, 4 * 1024 * 1024, 8192);
+
+    private static List<String> chunks(int lines, int lineLength, int chunkSize) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            for (int j = 0; j < lineLength; j++) {
+                s.append((char) ('a' + j % 26));
+            }
+            s.append('\n');
+        }
+        List<String> list = new ArrayList<String>();
+        for (int i = 0; i < s.length(); i += chunkSize) {
+            list.add(s.substring(i, Math.min(s.length(), i + chunkSize)));
+        }
+        return list;
+    }
+
+    @Benchmark
+    public void perfStringSplitMultiMBLines(Blackhole bh) {
+        bh.consume(Observable.from(MULTI_MB_LINES) //
+                .compose(Transformers.split("\n")) //
+                .count().toBlocking().single());
+    }
+
+    @Benchmark
+    public void perfStringSplitMultiMBLinesWithRegex(Blackhole bh) {
+        bh.consume(Observable.from(MULTI_MB_LINES) //
+                .compose(Transformers.split("\n+")) //
+                .count().toBlocking().single());
     }
 
 }
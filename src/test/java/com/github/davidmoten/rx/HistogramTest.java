@@ -0,0 +1,105 @@
+package com.github.davidmoten.rx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void testEmpty() {
+        Histogram h = Histogram.create();
+        assertEquals(0, h.count());
+        assertTrue(Double.isNaN(h.quantile(0.5)));
+        assertTrue(Double.isNaN(h.min()));
+        assertTrue(Double.isNaN(h.max()));
+    }
+
+    @Test
+    public void testQuantilesWithinRelativeAccuracy() {
+        Random r = new Random(1);
+        int n = 100000;
+        double[] values = new double[n];
+        Histogram h = Histogram.create(0.01);
+        for (int i = 0; i < n; i++) {
+            // log normal latencies with some zeros and negatives
+            double x = Math.exp(r.nextGaussian() * 3);
+            if (i % 100 == 0) {
+                x = 0;
+            } else if (i % 10 == 0) {
+                x = -x;
+            }
+            values[i] = x;
+            h.add(x);
+        }
+        Arrays.sort(values);
+        assertEquals(n, h.count());
+        assertEquals(values[0], h.min(), 0);
+        assertEquals(values[n - 1], h.max(), 0);
+        for (double q : new double[] { 0, 0.001, 0.01, 0.05, 0.1, 0.5, 0.9, 0.99, 0.999, 1 }) {
+            double expected = values[(int) (q * (n - 1))];
+            assertEquals("q=" + q, expected, h.quantile(q), Math.abs(expected) * 0.01);
+        }
+    }
+
+    @Test
+    public void testMergeSameAsAddingAll() {
+        Random r = new Random(2);
+        Histogram all = Histogram.create();
+        Histogram a = Histogram.create();
+        Histogram b = Histogram.create();
+        for (int i = 0; i < 10000; i++) {
+            double x = r.nextGaussian() * 1000;
+            all.add(x);
+            if (i % 2 == 0) {
+                a.add(x);
+            } else {
+                b.add(x);
+            }
+        }
+        a.merge(b);
+        assertEquals(all.count(), a.count());
+        assertEquals(all.min(), a.min(), 0);
+        assertEquals(all.max(), a.max(), 0);
+        assertEquals(all.sum(), a.sum(), 0.000001);
+        for (double q = 0; q <= 1; q += 0.01) {
+            assertEquals(all.quantile(q), a.quantile(q), 0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeDifferentAccuracyThrows() {
+        Histogram.create(0.01).merge(Histogram.create(0.02));
+    }
+
+    @Test
+    public void testCopyIsIndependent() {
+        Histogram h = Histogram.create().add(1).add(2);
+        Histogram copy = h.copy();
+        h.add(1000);
+        assertEquals(2, copy.count());
+        assertEquals(2, copy.max(), 0);
+        assertEquals(1, copy.quantile(0.5), 0.01);
+    }
+
+    @Test
+    public void testNaNIgnoredAndInfinityCounted() {
+        Histogram h = Histogram.create().add(Double.NaN).add(1).add(Double.POSITIVE_INFINITY);
+        assertEquals(2, h.count());
+        assertEquals(Double.POSITIVE_INFINITY, h.max(), 0);
+        assertEquals(1, h.quantile(0), 0);
+    }
+
+    @Test
+    public void testValuesFarApartGrowBuckets() {
+        Histogram h = Histogram.create();
+        h.add(1e-100).add(1e100).add(1e-200).add(1e200);
+        assertEquals(1e-100, h.quantile(0.34), 1e-100 * 0.01);
+        assertEquals(1e100, h.quantile(0.67), 1e100 * 0.01);
+    }
+
+}
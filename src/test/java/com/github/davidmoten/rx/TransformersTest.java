@@ -24,6 +24,7 @@ import rx.Subscription;
 import rx.functions.Func1;
 import rx.functions.Func2;
 import rx.observers.TestSubscriber;
+import rx.schedulers.Schedulers;
 import rx.schedulers.TestScheduler;
 
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
@@ -59,6 +60,52 @@ public class TransformersTest {
         assertEquals(7.258615570478987, s.sd(), 0.00001);
     }
 
+    @Test
+    public void testStatisticsSdStableWhenMeanLarge() {
+        Statistics s = Observable.just(4, 7, 13, 16).map(new Func1<Integer, Double>() {
+            @Override
+            public Double call(Integer x) {
+                return 1e9 + x;
+            }
+        }).compose(Transformers.<Double> collectStats()).last().toBlocking().single();
+        assertEquals(1e9 + 10, s.mean(), 0.00001);
+        assertEquals(Math.sqrt(22.5), s.sd(), 0.00001);
+    }
+
+    @Test
+    public void testStatisticsMergeSameAsAddingAll() {
+        Statistics a = Statistics.create(Arrays.asList(1, 4));
+        Statistics b = Statistics.create(Arrays.asList(10, 20));
+        Statistics s = a.merge(b);
+        assertEquals(4, s.count());
+        assertEquals(35.0, s.sum(), 0.0001);
+        assertEquals(8.75, s.mean(), 0.00001);
+        assertEquals(7.258615570478987, s.sd(), 0.00001);
+        assertEquals(517, s.sumSquares(), 0.00001);
+        assertEquals(s.sd(), Statistics.create().merge(s).merge(Statistics.create()).sd(), 0);
+    }
+
+    @Test
+    public void testCollectStatsParallel() {
+        Statistics s = Observable.range(1, 100000)
+                .compose(Transformers.<Integer> collectStatsParallel(4, Schedulers.computation()))
+                .toBlocking().single();
+        Statistics expected = Observable.range(1, 100000)
+                .compose(Transformers.<Integer> collectStats()).last().toBlocking().single();
+        assertEquals(100000, s.count());
+        assertEquals(expected.sum(), s.sum(), 0.0001);
+        assertEquals(expected.mean(), s.mean(), 0.00001);
+        assertEquals(expected.sd(), s.sd(), 0.00001);
+    }
+
+    @Test
+    public void testCollectStatsParallelOnEmptyStream() {
+        Statistics s = Observable.<Integer> empty()
+                .compose(Transformers.<Integer> collectStatsParallel(4, Schedulers.computation()))
+                .toBlocking().single();
+        assertEquals(0, s.count());
+    }
+
     @Test
     public void testStatisticsPairOnEmptyStream() {
         Observable<Integer> nums = Observable.empty();
@@ -0,0 +1,86 @@
+package com.github.davidmoten.rx.buffertofile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DataSerializersTest {
+
+    @Test
+    public void testLongs() throws IOException {
+        List<Long> values = Arrays.asList(0L, -1L, Long.MIN_VALUE, Long.MAX_VALUE, 123456789012L);
+        assertEquals(values, roundTrip(DataSerializers.longs(), values, 8));
+    }
+
+    @Test
+    public void testDoubles() throws IOException {
+        List<Double> values = Arrays.asList(0.0, -1.5, Double.MIN_VALUE, Double.MAX_VALUE,
+                Double.NaN, Double.NEGATIVE_INFINITY);
+        assertEquals(values, roundTrip(DataSerializers.doubles(), values, 8));
+    }
+
+    @Test
+    public void testFixedSizeByteArray() throws IOException {
+        DataSerializer<byte[]> serializer = DataSerializers.fixedSizeByteArray(3);
+        List<byte[]> values = Arrays.asList(new byte[] { 1, 2, 3 }, new byte[] { 4, 5, 6 });
+        List<byte[]> result = roundTrip(serializer, values, 3);
+        assertEquals(2, result.size());
+        assertArrayEquals(values.get(0), result.get(0));
+        assertArrayEquals(values.get(1), result.get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFixedSizeByteArrayWrongLength() throws IOException {
+        DataSerializers.fixedSizeByteArray(3).serialize(
+                new DataOutputStream(new ByteArrayOutputStream()), new byte[] { 1, 2 });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFixedSizeByteArrayNonPositiveSize() {
+        DataSerializers.fixedSizeByteArray(0);
+    }
+
+    @Test
+    public void testJavaIOReusesBuffersAcrossItemsOfDifferentSizes() throws IOException {
+        char[] chars = new char[2 * 1024 * 1024];
+        Arrays.fill(chars, 'a');
+        String large = new String(chars);
+        List<Object> values = Arrays.<Object> asList("small", large, 12, "small again", large,
+                Arrays.asList(1, 2, 3));
+        DataSerializer<Object> serializer = DataSerializers.javaIO();
+        assertEquals(values, roundTrip(serializer, values, 0));
+    }
+
+    private static <T> List<T> roundTrip(DataSerializer<T> serializer, List<T> values,
+            int expectedSize) throws IOException {
+        assertEquals(expectedSize, serializer.size());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        for (T t : values) {
+            serializer.serialize(output, t);
+        }
+        output.close();
+        if (expectedSize > 0) {
+            assertEquals(expectedSize * values.size(), bytes.size());
+        }
+        DataInputStream input = new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        List<T> result = new ArrayList<T>();
+        for (int i = 0; i < values.size(); i++) {
+            result.add(serializer.deserialize(input));
+        }
+        assertEquals(-1, input.read());
+        return result;
+    }
+
+}
@@ -0,0 +1,191 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.github.davidmoten.rx.buffertofile.DataSerializers;
+import com.github.davidmoten.rx.buffertofile.Options;
+
+import rx.Scheduler;
+import rx.functions.Action1;
+import rx.schedulers.TestScheduler;
+
+public class DurableRollingSPSCQueueTest {
+
+	@Test
+	public void testUnreadItemsRestoredAfterUnsubscribe() {
+		File directory = createDirectory("target/durable1");
+		Options options = Options.durable(directory).rolloverEvery(3).build();
+		DurableRollingSPSCQueue<Integer> q = create(options);
+		for (int i = 1; i <= 10; i++) {
+			q.offer(i);
+		}
+		for (int i = 1; i <= 4; i++) {
+			assertEquals(i, (int) q.poll());
+		}
+		q.unsubscribe();
+		q = create(options);
+		q.offer(11);
+		for (int i = 5; i <= 11; i++) {
+			assertEquals(i, (int) q.poll());
+		}
+		assertNull(q.poll());
+		assertTrue(q.isEmpty());
+		q.unsubscribe();
+		assertEquals(0, directory.listFiles().length);
+	}
+
+	@Test
+	public void testItemsAsAtLastSyncRestoredAfterCrash() {
+		File directory = createDirectory("target/durable2");
+		Options options = Options.durable(directory).rolloverEvery(3).build();
+		DurableRollingSPSCQueue<Integer> q = create(options);
+		for (int i = 1; i <= 5; i++) {
+			q.offer(i);
+		}
+		assertEquals(1, (int) q.poll());
+		assertEquals(2, (int) q.poll());
+		q.sync();
+		// not synced so lost on crash
+		assertEquals(3, (int) q.poll());
+		q.offer(6);
+		// simulate crash by not unsubscribing q
+		q = create(options);
+		for (int i = 3; i <= 5; i++) {
+			assertEquals(i, (int) q.poll());
+		}
+		assertNull(q.poll());
+		q.unsubscribe();
+		assertEquals(0, directory.listFiles().length);
+	}
+
+	@Test
+	public void testCheckpointDuringDrainDoesNotRecordUnemittedItemsAsRead() {
+		File directory = createDirectory("target/durable4");
+		Options options = Options.durable(directory).rolloverEvery(100).build();
+		final DurableRollingSPSCQueue<Integer> q = create(options);
+		for (int i = 1; i <= 5; i++) {
+			q.offer(i);
+		}
+		final List<Integer> emitted = new ArrayList<Integer>();
+		try {
+			q.drainTo(new Action1<Integer>() {
+				@Override
+				public void call(Integer t) {
+					if (t == 3) {
+						// a checkpoint (as if on the offer thread) after 3 has
+						// been taken from the file but before it has been
+						// emitted
+						q.sync();
+						// simulate crash before 3 is emitted
+						throw new RuntimeException("crash");
+					}
+					emitted.add(t);
+				}
+			}, 5);
+			Assert.fail();
+		} catch (RuntimeException e) {
+			assertEquals("crash", e.getMessage());
+		}
+		assertEquals(Arrays.asList(1, 2), emitted);
+		// simulate crash by not unsubscribing q
+		DurableRollingSPSCQueue<Integer> q2 = create(options);
+		for (int i = 3; i <= 5; i++) {
+			assertEquals(i, (int) q2.poll());
+		}
+		assertNull(q2.poll());
+		q2.unsubscribe();
+	}
+
+	@Test
+	public void testSyncEveryWritesCheckpoint() {
+		File directory = createDirectory("target/durable3");
+		Options options = Options.durable(directory).syncEvery(2).build();
+		DurableRollingSPSCQueue<Integer> q = create(options);
+		q.offer(1);
+		assertTrue(!new File(directory, DurableRollingSPSCQueue.CHECKPOINT_FILENAME).exists());
+		q.offer(2);
+		assertTrue(new File(directory, DurableRollingSPSCQueue.CHECKPOINT_FILENAME).exists());
+		q = create(options);
+		assertEquals(1, (int) q.poll());
+		assertEquals(2, (int) q.poll());
+		assertNull(q.poll());
+		q.unsubscribe();
+	}
+
+	@Test
+	public void testIdleProducerSyncedAfterInterval() {
+		File directory = createDirectory("target/durable5");
+		Options options = Options.durable(directory).syncInterval(1, TimeUnit.SECONDS).build();
+		TestScheduler scheduler = new TestScheduler();
+		DurableRollingSPSCQueue<Integer> q = create(options, scheduler);
+		q.offer(1);
+		q.offer(2);
+		File checkpoint = new File(directory, DurableRollingSPSCQueue.CHECKPOINT_FILENAME);
+		assertFalse(checkpoint.exists());
+		scheduler.advanceTimeBy(999, TimeUnit.MILLISECONDS);
+		assertFalse(checkpoint.exists());
+		// no more offers but the interval has elapsed
+		scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+		assertTrue(checkpoint.exists());
+		// simulate crash by not unsubscribing q
+		q = create(options);
+		assertEquals(1, (int) q.poll());
+		assertEquals(2, (int) q.poll());
+		assertNull(q.poll());
+		q.unsubscribe();
+	}
+
+	@Test
+	public void testNoSyncAfterUnsubscribe() {
+		File directory = createDirectory("target/durable6");
+		Options options = Options.durable(directory).syncInterval(1, TimeUnit.SECONDS).build();
+		TestScheduler scheduler = new TestScheduler();
+		DurableRollingSPSCQueue<Integer> q = create(options, scheduler);
+		q.offer(1);
+		assertEquals(1, (int) q.poll());
+		q.unsubscribe();
+		assertEquals(0, directory.listFiles().length);
+		scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+		assertEquals(0, directory.listFiles().length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDurableWithRolloverDisabledRejected() {
+		Options.durable(new File("target/durable7")).disableRollover().build();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSyncIntervalLessThanOneMillisecondRejected() {
+		Options.durable(new File("target/durable8")).syncInterval(500, TimeUnit.MICROSECONDS).build();
+	}
+
+	private static DurableRollingSPSCQueue<Integer> create(Options options) {
+		return create(options, new TestScheduler());
+	}
+
+	private static DurableRollingSPSCQueue<Integer> create(Options options, Scheduler scheduler) {
+		return DurableRollingSPSCQueue.create(DataSerializers.integer(), options, scheduler);
+	}
+
+	private static File createDirectory(String name) {
+		File directory = new File(name);
+		directory.mkdirs();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		return directory;
+	}
+
+}
@@ -0,0 +1,184 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.github.davidmoten.rx.buffertofile.DataSerializers;
+
+import rx.functions.Func0;
+
+public class FileBasedMPSCQueueMemoryMappedTest {
+
+    @Test
+    public void testRolloverAndDeletesFiles() {
+        List<File> files = new CopyOnWriteArrayList<File>();
+        // room for 2 length prefixed integers per segment
+        FileBasedMPSCQueueMemoryMapped<Integer> q = createQueue(files, 16);
+        for (int i = 1; i <= 5; i++) {
+            q.offer(i);
+        }
+        assertEquals(3, files.size());
+        assertEquals(48, q.resourcesSize());
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, (int) q.poll());
+        }
+        assertNull(q.poll());
+        assertTrue(q.isEmpty());
+        // segments read are deleted
+        assertFalse(files.get(0).exists());
+        assertFalse(files.get(1).exists());
+        assertEquals(16, q.resourcesSize());
+        q.unsubscribe();
+        assertEquals(0, q.resourcesSize());
+        for (File file : files) {
+            assertFalse(file.exists());
+        }
+    }
+
+    @Test
+    public void testItemLargerThanSegment() {
+        List<File> files = new CopyOnWriteArrayList<File>();
+        FileBasedMPSCQueueMemoryMapped<byte[]> q = new FileBasedMPSCQueueMemoryMapped<byte[]>(
+                createFileFactory(files), 16, DataSerializers.byteArray());
+        q.offer(new byte[3]);
+        q.offer(new byte[100]);
+        q.offer(new byte[2]);
+        assertEquals(3, q.poll().length);
+        assertEquals(100, q.poll().length);
+        assertEquals(2, q.poll().length);
+        assertNull(q.poll());
+        q.unsubscribe();
+        for (File file : files) {
+            assertFalse(file.exists());
+        }
+    }
+
+    @Test
+    public void testConcurrentProducersPreserveOrderPerProducer() throws InterruptedException {
+        final FileBasedMPSCQueueMemoryMapped<Integer> queue = createQueue(
+                new CopyOnWriteArrayList<File>(), 4096);
+        final int producers = 4;
+        final int max = 250000;
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < max; i++) {
+                        queue.offer(producer * max + i);
+                    }
+                }
+            });
+        }
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int[] next = new int[producers];
+                int count = 0;
+                while (count < producers * max) {
+                    Integer t = queue.poll();
+                    if (t != null) {
+                        int producer = t / max;
+                        if (t % max != next[producer]) {
+                            failed.set(true);
+                            System.out.println("failed for producer " + producer + " at "
+                                    + next[producer]);
+                        }
+                        next[producer]++;
+                        count++;
+                    }
+                }
+            }
+        });
+        consumer.start();
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        consumer.join();
+        assertTrue(queue.isEmpty());
+        queue.unsubscribe();
+        assertFalse(failed.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testFailedRolloverDoesNotBlockOtherProducers() throws InterruptedException {
+        final List<File> files = new CopyOnWriteArrayList<File>();
+        final Func0<File> fileFactory = createFileFactory(files);
+        final AtomicBoolean failCreate = new AtomicBoolean(false);
+        Func0<File> factory = new Func0<File>() {
+            @Override
+            public File call() {
+                if (failCreate.get()) {
+                    throw new RuntimeException("boo");
+                }
+                return fileFactory.call();
+            }
+        };
+        // room for 2 length prefixed integers per segment
+        final FileBasedMPSCQueueMemoryMapped<Integer> q = new FileBasedMPSCQueueMemoryMapped<Integer>(
+                factory, 16, DataSerializers.integer());
+        q.offer(1);
+        q.offer(2);
+        failCreate.set(true);
+        try {
+            q.offer(3);
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("boo", e.getMessage());
+        }
+        failCreate.set(false);
+        // another producer can still roll over
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                q.offer(4);
+            }
+        });
+        producer.start();
+        producer.join();
+        assertEquals(1, (int) q.poll());
+        assertEquals(2, (int) q.poll());
+        assertEquals(4, (int) q.poll());
+        assertNull(q.poll());
+        q.unsubscribe();
+        for (File file : files) {
+            assertFalse(file.exists());
+        }
+    }
+
+    private static FileBasedMPSCQueueMemoryMapped<Integer> createQueue(List<File> files,
+            int segmentSizeBytes) {
+        return new FileBasedMPSCQueueMemoryMapped<Integer>(createFileFactory(files),
+                segmentSizeBytes, DataSerializers.integer());
+    }
+
+    private static Func0<File> createFileFactory(final List<File> files) {
+        final AtomicInteger index = new AtomicInteger();
+        return new Func0<File>() {
+            @Override
+            public File call() {
+                File file = new File("target/mpsc" + index.incrementAndGet());
+                file.delete();
+                files.add(file);
+                return file;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,234 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+import com.github.davidmoten.rx.buffertofile.DataSerializer;
+import com.github.davidmoten.rx.buffertofile.DataSerializers;
+
+public class FileBasedSPSCQueueCompressedTest {
+
+    @Test
+    public void testReadFromInMemoryBlockDoesNotWriteFile() {
+        FileBasedSPSCQueueCompressed<Integer> q = createQueue(1024, Deflater.BEST_SPEED);
+        q.offer(1);
+        q.offer(2);
+        assertEquals(1, (int) q.poll());
+        q.offer(3);
+        assertEquals(2, (int) q.poll());
+        assertEquals(3, (int) q.poll());
+        assertNull(q.poll());
+        assertTrue(q.isEmpty());
+        assertEquals(0, q.resourcesSize());
+        q.unsubscribe();
+    }
+
+    @Test
+    public void testReadFromBlocksInFileThenInMemoryBlock() {
+        // 25 integers per block
+        FileBasedSPSCQueueCompressed<Integer> q = createQueue(100, Deflater.DEFAULT_COMPRESSION);
+        for (int i = 1; i <= 1010; i++) {
+            q.offer(i);
+        }
+        assertTrue(q.resourcesSize() > 0);
+        for (int i = 1; i <= 1010; i++) {
+            assertEquals(i, (int) q.poll());
+        }
+        assertNull(q.poll());
+        q.unsubscribe();
+    }
+
+    @Test
+    public void testFreeResourcesWritesBlockAndReaderReopensFile() {
+        FileBasedSPSCQueueCompressed<Integer> q = createQueue(1024, Deflater.BEST_SPEED);
+        q.offer(1);
+        q.offer(2);
+        assertEquals(0, q.resourcesSize());
+        q.freeResources();
+        assertTrue(q.resourcesSize() > 0);
+        assertEquals(1, (int) q.poll());
+        assertEquals(2, (int) q.poll());
+        assertNull(q.poll());
+        q.unsubscribe();
+    }
+
+    @Test
+    public void testItemLargerThanBlock() {
+        File file = new File("target/compressed-large");
+        FileBasedSPSCQueueCompressed<byte[]> q = new FileBasedSPSCQueueCompressed<byte[]>(16,
+                Deflater.BEST_SPEED, file, DataSerializers.byteArray());
+        q.offer(new byte[3]);
+        q.offer(new byte[100000]);
+        q.offer(new byte[2]);
+        assertEquals(3, q.poll().length);
+        assertEquals(100000, q.poll().length);
+        assertEquals(2, q.poll().length);
+        assertNull(q.poll());
+        q.unsubscribe();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testCompressionRatioForRepetitiveJson() {
+        for (int level : new int[] { Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION }) {
+            File file = new File("target/compressed-json");
+            FileBasedSPSCQueueCompressed<String> q = new FileBasedSPSCQueueCompressed<String>(
+                    64 * 1024, level, file, DataSerializers.string());
+            long bytes = 0;
+            for (int i = 0; i < 10000; i++) {
+                String s = "{\"timestamp\":" + (1460000000000L + i)
+                        + ",\"host\":\"server-01\",\"metric\":\"cpu.load\",\"value\":" + (i % 100)
+                        + "}";
+                bytes += 2 + s.length();
+                q.offer(s);
+            }
+            q.freeResources();
+            double ratio = (double) bytes / q.resourcesSize();
+            System.out.println("compression level " + level + ": ratio=" + ratio);
+            assertTrue(ratio > 5);
+            for (int i = 0; i < 10000; i++) {
+                assertTrue(q.poll().endsWith("\"value\":" + (i % 100) + "}"));
+            }
+            assertNull(q.poll());
+            q.unsubscribe();
+        }
+    }
+
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        final FileBasedSPSCQueueCompressed<Integer> queue = createQueue(256, Deflater.BEST_SPEED);
+        final int max = 1000000;
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        Thread t1 = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                for (int i = 1; i <= max; i++) {
+                    queue.offer(i);
+                }
+            }
+        });
+        Thread t2 = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                int i = 1;
+                while (i <= max) {
+                    Integer t = queue.poll();
+                    if (t != null) {
+                        if (i != t) {
+                            failed.set(true);
+                            System.out.println("failed for i = " + i);
+                        }
+                        i++;
+                    }
+                }
+            }
+        });
+        t1.start();
+        t2.start();
+        t1.join();
+        t2.join();
+        queue.unsubscribe();
+        assertFalse(failed.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testReaderNotBlockedBySerializationInOffer() throws InterruptedException {
+        final CountDownLatch serializing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        DataSerializer<Integer> serializer = new DataSerializer<Integer>() {
+
+            @Override
+            public void serialize(DataOutput output, Integer t) throws IOException {
+                if (t == 3) {
+                    serializing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                output.writeInt(t);
+            }
+
+            @Override
+            public Integer deserialize(DataInput input) throws IOException {
+                return input.readInt();
+            }
+
+            @Override
+            public int size() {
+                return 4;
+            }
+        };
+        final FileBasedSPSCQueueCompressed<Integer> q = new FileBasedSPSCQueueCompressed<Integer>(4,
+                Deflater.BEST_SPEED, new File("target/compressed-blocked"), serializer);
+        q.offer(1);
+        q.offer(2);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                q.offer(3);
+            }
+        });
+        writer.start();
+        serializing.await();
+        // the writer is blocked in serialize
+        assertEquals(1, (int) q.poll());
+        assertEquals(2, (int) q.poll());
+        release.countDown();
+        writer.join();
+        assertEquals(3, (int) q.poll());
+        assertNull(q.poll());
+        q.unsubscribe();
+    }
+
+    @Test
+    public void testOfferAfterFailedBlockWrite() {
+        File file = new File("target/compressed-failed-write");
+        file.delete();
+        // 2 integers per block
+        FileBasedSPSCQueueCompressed<Integer> q = new FileBasedSPSCQueueCompressed<Integer>(8,
+                Deflater.BEST_SPEED, file, DataSerializers.integer());
+        // the writer cannot open a directory to write the block
+        assertTrue(file.delete());
+        assertTrue(file.mkdir());
+        q.offer(1);
+        try {
+            q.offer(2);
+            fail();
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertTrue(file.delete());
+        // the failed block is lost but the queue is still usable
+        q.offer(3);
+        q.offer(4);
+        q.offer(5);
+        assertEquals(3, (int) q.poll());
+        assertEquals(4, (int) q.poll());
+        assertEquals(5, (int) q.poll());
+        q.unsubscribe();
+    }
+
+    private static FileBasedSPSCQueueCompressed<Integer> createQueue(int blockSizeBytes,
+            int level) {
+        return new FileBasedSPSCQueueCompressed<Integer>(blockSizeBytes, level,
+                new File("target/compressed"), DataSerializers.integer());
+    }
+
+}
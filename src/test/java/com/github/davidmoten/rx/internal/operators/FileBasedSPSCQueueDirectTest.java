@@ -0,0 +1,161 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.github.davidmoten.rx.buffertofile.DataSerializers;
+
+public class FileBasedSPSCQueueDirectTest {
+
+    @Test
+    public void testOfferAndPollWithItemsSpanningBuffers() {
+        FileBasedSPSCQueueDirect<Integer> q = createQueue(5);
+        assertNull(q.poll());
+        for (int i = 1; i <= 100; i++) {
+            q.offer(i);
+            if (i % 3 == 0) {
+                assertEquals(i / 3, (int) q.poll());
+            }
+        }
+        assertTrue(q.resourcesSize() > 0);
+        for (int i = 34; i <= 100; i++) {
+            assertEquals(i, (int) q.poll());
+        }
+        assertNull(q.poll());
+        assertTrue(q.isEmpty());
+        q.unsubscribe();
+    }
+
+    @Test
+    public void testByteArraysOfSizesAroundBufferSize() {
+        File file = new File("target/direct-bytes");
+        FileBasedSPSCQueueDirect<byte[]> q = new FileBasedSPSCQueueDirect<byte[]>(16, file,
+                DataSerializers.byteArray());
+        for (int size = 0; size < 100; size++) {
+            q.offer(createBytes(size));
+            q.offer(createBytes(size + 1));
+            assertArrayEquals(createBytes(size), q.poll());
+            q.offer(createBytes(size + 2));
+            assertArrayEquals(createBytes(size + 1), q.poll());
+            assertArrayEquals(createBytes(size + 2), q.poll());
+            assertNull(q.poll());
+        }
+        q.unsubscribe();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testInterruptDuringWriteAndReadDoesNotLoseItems() {
+        FileBasedSPSCQueueDirect<Integer> q = createQueue(8);
+        try {
+            // interrupted writes to file close the channel
+            Thread.currentThread().interrupt();
+            for (int i = 1; i <= 10; i++) {
+                q.offer(i);
+            }
+            assertTrue(Thread.interrupted());
+            assertTrue(q.resourcesSize() > 0);
+            // interrupted reads from file close the channel
+            Thread.currentThread().interrupt();
+            for (int i = 1; i <= 10; i++) {
+                assertEquals(i, (int) q.poll());
+            }
+            assertTrue(Thread.interrupted());
+            assertNull(q.poll());
+        } finally {
+            Thread.interrupted();
+            q.unsubscribe();
+        }
+    }
+
+    @Test
+    public void testFreeResourcesReopensFile() {
+        FileBasedSPSCQueueDirect<Integer> q = createQueue(8);
+        for (int i = 1; i <= 10; i++) {
+            q.offer(i);
+        }
+        q.freeResources();
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i, (int) q.poll());
+        }
+        q.unsubscribe();
+    }
+
+    @Test
+    public void testBuffersReturnedToPoolOnUnsubscribe() {
+        // a capacity not used by other tests
+        int capacity = 12345;
+        int pooled = DirectByteBufferPool.pooled(capacity);
+        FileBasedSPSCQueueDirect<Integer> q = createQueue(capacity);
+        q.offer(1);
+        q.unsubscribe();
+        assertEquals(pooled + 2, DirectByteBufferPool.pooled(capacity));
+        // the next queue takes its buffers from the pool
+        q = createQueue(capacity);
+        assertEquals(pooled, DirectByteBufferPool.pooled(capacity));
+        q.offer(2);
+        assertEquals(2, (int) q.poll());
+        q.unsubscribe();
+    }
+
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        final FileBasedSPSCQueueDirect<Integer> queue = createQueue(256);
+        final int max = 1000000;
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        Thread t1 = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                for (int i = 1; i <= max; i++) {
+                    queue.offer(i);
+                }
+            }
+        });
+        Thread t2 = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                int i = 1;
+                while (i <= max) {
+                    Integer t = queue.poll();
+                    if (t != null) {
+                        if (i != t) {
+                            failed.set(true);
+                            System.out.println("failed for i = " + i);
+                        }
+                        i++;
+                    }
+                }
+            }
+        });
+        t1.start();
+        t2.start();
+        t1.join();
+        t2.join();
+        queue.unsubscribe();
+        assertFalse(failed.get());
+    }
+
+    private static FileBasedSPSCQueueDirect<Integer> createQueue(int bufferSizeBytes) {
+        return new FileBasedSPSCQueueDirect<Integer>(bufferSizeBytes, new File("target/direct"),
+                DataSerializers.integer());
+    }
+
+    private static byte[] createBytes(int size) {
+        byte[] b = new byte[size];
+        for (int i = 0; i < size; i++) {
+            b[i] = (byte) i;
+        }
+        return b;
+    }
+
+}
@@ -0,0 +1,303 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.github.davidmoten.rx.buffertofile.DataSerializer;
+import com.github.davidmoten.rx.buffertofile.DataSerializers;
+
+import rx.functions.Func0;
+
+public class FileBasedSPSCQueueMemoryMappedTest {
+
+    @Test
+    public void test() {
+        FileBasedSPSCQueueMemoryMapped<Integer> q = createQueue(new ArrayList<File>(), 12);
+        q.offer(1);
+        assertEquals(1, (int) q.poll());
+        assertNull(q.poll());
+        q.unsubscribe();
+    }
+
+    @Test
+    public void testRolloverReusesSegmentAndDeletesFilesOnUnsubscribe() {
+        List<File> files = new ArrayList<File>();
+        // room for 3 integers per segment
+        FileBasedSPSCQueueMemoryMapped<Integer> q = createQueue(files, 12);
+        for (int i = 1; i <= 7; i++) {
+            q.offer(i);
+        }
+        assertEquals(3, files.size());
+        for (int i = 1; i <= 7; i++) {
+            assertEquals(i, (int) q.poll());
+        }
+        assertNull(q.poll());
+        assertTrue(q.isEmpty());
+        // one segment in use, one spare and the other deleted
+        assertEquals(24, q.resourcesSize());
+        for (int i = 8; i <= 10; i++) {
+            q.offer(i);
+        }
+        // rollover used the spare segment
+        assertEquals(3, files.size());
+        for (int i = 8; i <= 10; i++) {
+            assertEquals(i, (int) q.poll());
+        }
+        q.unsubscribe();
+        assertEquals(0, q.resourcesSize());
+        for (File file : files) {
+            assertFalse(file.exists());
+        }
+    }
+
+    @Test
+    public void testItemLargerThanSegment() {
+        List<File> files = new ArrayList<File>();
+        FileBasedSPSCQueueMemoryMapped<byte[]> q = new FileBasedSPSCQueueMemoryMapped<byte[]>(
+                createFileFactory(files), 10, DataSerializers.byteArray());
+        q.offer(new byte[3]);
+        q.offer(new byte[100]);
+        q.offer(new byte[2]);
+        assertEquals(3, q.poll().length);
+        assertEquals(100, q.poll().length);
+        assertEquals(2, q.poll().length);
+        assertNull(q.poll());
+        q.unsubscribe();
+        for (File file : files) {
+            assertFalse(file.exists());
+        }
+    }
+
+    @Test
+    public void testVariableLengthItemsWrittenDirectlyRollover() {
+        List<File> files = new ArrayList<File>();
+        FileBasedSPSCQueueMemoryMapped<String> q = new FileBasedSPSCQueueMemoryMapped<String>(
+                createFileFactory(files), 10, DataSerializers.string());
+        // 4 bytes then 6 bytes fills the first segment exactly
+        q.offer("ab");
+        q.offer("cdef");
+        assertEquals(1, files.size());
+        // overflows the first segment part way through serialization
+        q.offer("ghi");
+        q.offer("jklmnopqrstu");
+        assertEquals(3, files.size());
+        assertEquals("ab", q.poll());
+        assertEquals("cdef", q.poll());
+        assertEquals("ghi", q.poll());
+        assertEquals("jklmnopqrstu", q.poll());
+        assertNull(q.poll());
+        q.unsubscribe();
+        for (File file : files) {
+            assertFalse(file.exists());
+        }
+    }
+
+    @Test
+    public void testFailedFixedSizeWriteIsNotVisible() {
+        List<File> files = new ArrayList<File>();
+        FileBasedSPSCQueueMemoryMapped<Integer> q = new FileBasedSPSCQueueMemoryMapped<Integer>(
+                createFileFactory(files), 12, INTEGER_TOO_LONG_IF_NEGATIVE);
+        q.offer(1);
+        try {
+            q.offer(-1);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        q.offer(2);
+        assertEquals(1, (int) q.poll());
+        assertEquals(2, (int) q.poll());
+        assertNull(q.poll());
+        q.unsubscribe();
+    }
+
+    @Test
+    public void testFailedVariableSizeWriteIsNotVisible() {
+        List<File> files = new ArrayList<File>();
+        FileBasedSPSCQueueMemoryMapped<Integer> q = new FileBasedSPSCQueueMemoryMapped<Integer>(
+                createFileFactory(files), 12, INTEGER_FAILS_IF_NEGATIVE);
+        q.offer(1);
+        try {
+            q.offer(-1);
+            Assert.fail();
+        } catch (RuntimeException e) {
+            // expected
+        }
+        q.offer(2);
+        assertEquals(1, (int) q.poll());
+        assertEquals(2, (int) q.poll());
+        assertNull(q.poll());
+        q.unsubscribe();
+    }
+
+    @Test
+    public void testOverflowSwallowedBySerializerStillRollsOver() {
+        List<File> files = new ArrayList<File>();
+        FileBasedSPSCQueueMemoryMapped<Integer> q = new FileBasedSPSCQueueMemoryMapped<Integer>(
+                createFileFactory(files), 12, INTEGER_TWICE_SWALLOWS_ERRORS);
+        q.offer(1);
+        // the second int of 2 overflows the first segment
+        q.offer(2);
+        assertEquals(2, files.size());
+        assertEquals(1, (int) q.poll());
+        assertEquals(2, (int) q.poll());
+        assertNull(q.poll());
+        q.unsubscribe();
+    }
+
+    @Test
+    public void testUnmap() throws IOException {
+        File file = new File("target/mmqUnmap");
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer mapped = f.getChannel().map(MapMode.READ_WRITE, 0, 16);
+            assertTrue(MappedByteBuffers.unmap(mapped));
+        } finally {
+            f.close();
+        }
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        final FileBasedSPSCQueueMemoryMapped<Integer> queue = createQueue(new ArrayList<File>(),
+                1024);
+        final int max = 1000000;
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        Thread t1 = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                for (int i = 1; i <= max; i++) {
+                    queue.offer(i);
+                }
+            }
+        });
+        Thread t2 = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                int i = 1;
+                while (i <= max) {
+                    Integer t = queue.poll();
+                    if (t != null) {
+                        if (i != t) {
+                            failed.set(true);
+                            System.out.println("failed for i = " + i);
+                        }
+                        i++;
+                    }
+                }
+            }
+        });
+        t1.start();
+        t2.start();
+        t1.join();
+        t2.join();
+        queue.unsubscribe();
+        assertFalse(failed.get());
+    }
+
+    // writes 8 bytes for a negative value though declares a size of 4
+    private static final DataSerializer<Integer> INTEGER_TOO_LONG_IF_NEGATIVE = new DataSerializer<Integer>() {
+
+        @Override
+        public void serialize(DataOutput output, Integer t) throws IOException {
+            output.writeInt(t);
+            if (t < 0) {
+                output.writeInt(t);
+            }
+        }
+
+        @Override
+        public Integer deserialize(DataInput input) throws IOException {
+            return input.readInt();
+        }
+
+        @Override
+        public int size() {
+            return 4;
+        }
+    };
+
+    private static final DataSerializer<Integer> INTEGER_FAILS_IF_NEGATIVE = new DataSerializer<Integer>() {
+
+        @Override
+        public void serialize(DataOutput output, Integer t) throws IOException {
+            output.writeInt(t);
+            if (t < 0) {
+                throw new IOException("negative");
+            }
+        }
+
+        @Override
+        public Integer deserialize(DataInput input) throws IOException {
+            return input.readInt();
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+    };
+
+    private static final DataSerializer<Integer> INTEGER_TWICE_SWALLOWS_ERRORS = new DataSerializer<Integer>() {
+
+        @Override
+        public void serialize(DataOutput output, Integer t) throws IOException {
+            output.writeInt(t);
+            try {
+                output.writeInt(t);
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        @Override
+        public Integer deserialize(DataInput input) throws IOException {
+            int t = input.readInt();
+            input.readInt();
+            return t;
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+    };
+
+    private static FileBasedSPSCQueueMemoryMapped<Integer> createQueue(List<File> files,
+            int segmentSizeBytes) {
+        return new FileBasedSPSCQueueMemoryMapped<Integer>(createFileFactory(files),
+                segmentSizeBytes, DataSerializers.integer());
+    }
+
+    private static Func0<File> createFileFactory(final List<File> files) {
+        return new Func0<File>() {
+            @Override
+            public File call() {
+                File file = new File("target/mmq" + files.size());
+                file.delete();
+                files.add(file);
+                return file;
+            }
+        };
+    }
+
+}
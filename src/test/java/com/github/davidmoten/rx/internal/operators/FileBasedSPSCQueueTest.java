@@ -1,10 +1,15 @@
 package com.github.davidmoten.rx.internal.operators;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -12,6 +17,8 @@ import org.junit.Test;
 
 import com.github.davidmoten.rx.buffertofile.DataSerializers;
 
+import rx.functions.Action1;
+
 public class FileBasedSPSCQueueTest {
 
 	@Test
@@ -45,6 +52,44 @@ public class FileBasedSPSCQueueTest {
 		assertNull(q.poll());
 	}
 
+	@Test
+	public void testDrainTo() {
+		FileBasedSPSCQueue<Integer> q = createQueue();
+		final List<Integer> list = new ArrayList<Integer>();
+		Action1<Integer> add = new Action1<Integer>() {
+			@Override
+			public void call(Integer t) {
+				list.add(t);
+			}
+		};
+		assertEquals(0, q.drainTo(add, 10));
+		for (int i = 1; i <= 5; i++) {
+			q.offer(i);
+		}
+		assertEquals(3, q.drainTo(add, 3));
+		assertFalse(q.isEmpty());
+		q.offer(6);
+		assertEquals(3, q.drainTo(add, 10));
+		assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), list);
+		assertTrue(q.isEmpty());
+		assertNull(q.poll());
+	}
+
+	@Test
+	public void testDrainToDecrementsSizeBeforeEachItemIsConsumed() {
+		final FileBasedSPSCQueue<Integer> q = createQueue();
+		q.offer(1);
+		q.offer(2);
+		final List<Boolean> emptyWhenConsumed = new ArrayList<Boolean>();
+		assertEquals(2, q.drainTo(new Action1<Integer>() {
+			@Override
+			public void call(Integer t) {
+				emptyWhenConsumed.add(q.isEmpty());
+			}
+		}, 10));
+		assertEquals(Arrays.asList(false, true), emptyWhenConsumed);
+	}
+
 	@Test
 	public void testConcurrent() throws InterruptedException, ExecutionException {
 		File file = new File("target/pq2");
@@ -87,6 +132,73 @@ public class FileBasedSPSCQueueTest {
 		assertFalse(failed.get());
 	}
 
+	@Test
+	public void testByteArraysOfSizesAroundBufferSize() {
+		File file = new File("target/pq3");
+		file.delete();
+		FileBasedSPSCQueue<byte[]> q = new FileBasedSPSCQueue<byte[]>(16, file, DataSerializers.byteArray());
+		for (int size = 0; size < 100; size++) {
+			q.offer(createBytes(size));
+			q.offer(createBytes(size + 1));
+			assertArrayEquals(createBytes(size), q.poll());
+			q.offer(createBytes(size + 2));
+			assertArrayEquals(createBytes(size + 1), q.poll());
+			assertArrayEquals(createBytes(size + 2), q.poll());
+			assertNull(q.poll());
+		}
+		q.unsubscribe();
+	}
+
+	@Test
+	public void testConcurrentByteArrays() throws InterruptedException {
+		File file = new File("target/pq4");
+		file.delete();
+		final FileBasedSPSCQueue<byte[]> queue = new FileBasedSPSCQueue<byte[]>(1024, file,
+				DataSerializers.byteArray());
+		final int max = 100000;
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		Thread t1 = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				for (int i = 1; i <= max; i++) {
+					queue.offer(createBytes(i % 3000));
+				}
+			}
+		});
+		Thread t2 = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				int i = 1;
+				while (i <= max) {
+					byte[] t = queue.poll();
+					if (t != null) {
+						if (!Arrays.equals(createBytes(i % 3000), t)) {
+							failed.set(true);
+							System.out.println("failed for i = " + i);
+						}
+						i++;
+					}
+				}
+			}
+		});
+		t1.start();
+		t2.start();
+		t1.join();
+		t2.join();
+		queue.unsubscribe();
+		assertFalse(failed.get());
+	}
+
+	private static byte[] createBytes(int size) {
+		byte[] bytes = new byte[size];
+		for (int i = 0; i < size; i++) {
+			bytes[i] = (byte) (size + i);
+		}
+		return bytes;
+	}
+
 	private static FileBasedSPSCQueue<Integer> createQueue() {
 		File file = new File("target/pq");
 		file.delete();
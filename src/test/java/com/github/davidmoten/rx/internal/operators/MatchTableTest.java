@@ -0,0 +1,105 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.github.davidmoten.rx.internal.operators.MatchTable.Entry;
+
+public class MatchTableTest {
+
+    @Test
+    public void testPollEmpty() {
+        MatchTable<Integer> t = new MatchTable<Integer>(false);
+        assertNull(t.poll(1));
+        assertTrue(t.isEmpty());
+    }
+
+    @Test
+    public void testRepeatedKeyPolledInArrivalOrder() {
+        MatchTable<Integer> t = new MatchTable<Integer>(false);
+        for (int i = 0; i < 100; i++) {
+            t.add(i % 3, i, i);
+        }
+        assertEquals(100, t.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, t.poll(i % 3).value);
+        }
+        assertNull(t.poll(0));
+        assertTrue(t.isEmpty());
+    }
+
+    @Test
+    public void testNullKey() {
+        MatchTable<Integer> t = new MatchTable<Integer>(false);
+        t.add(null, "a", 0);
+        t.add(1, "b", 1);
+        assertEquals("a", t.poll(null).value);
+        assertNull(t.poll(null));
+        assertEquals("b", t.poll(1).value);
+    }
+
+    @Test
+    public void testRemovalFromCollidingKeysKeepsOtherKeysReachable() {
+        MatchTable<Long> t = new MatchTable<Long>(false);
+        // all keys have the same hash code
+        int n = 1000;
+        for (int i = 0; i < n; i++) {
+            t.add(key(i), i, i);
+        }
+        // remove every second key then the rest
+        for (int i = 0; i < n; i += 2) {
+            assertEquals(i, t.poll(key(i)).value);
+        }
+        for (int i = 1; i < n; i += 2) {
+            assertEquals(i, t.poll(key(i)).value);
+        }
+        assertTrue(t.isEmpty());
+    }
+
+    @Test
+    public void testOldestInMemoryFollowsArrivalOrder() {
+        MatchTable<Integer> t = new MatchTable<Integer>(true);
+        t.add(1, "a", 0);
+        t.add(2, "b", 1);
+        t.add(1, "c", 2);
+        assertEquals("a", t.oldestInMemory().value);
+        t.spilledOldestInMemory();
+        assertEquals(3, t.size());
+        assertEquals(2, t.inMemory());
+        assertEquals("b", t.oldestInMemory().value);
+        Entry e = t.poll(1);
+        assertTrue(e.isSpilled());
+        assertEquals(0, e.sequence);
+        assertEquals(2, t.size());
+        assertEquals(2, t.inMemory());
+        // polling the oldest in memory moves it on
+        assertEquals("b", t.poll(2).value);
+        assertEquals("c", t.oldestInMemory().value);
+        assertEquals("c", t.poll(1).value);
+        assertNull(t.oldestInMemory());
+        assertEquals(0, t.inMemory());
+    }
+
+    @Test
+    public void testPollOldestAcrossKeys() {
+        MatchTable<Integer> t = new MatchTable<Integer>(true);
+        t.add(1, "a", 0);
+        t.add(2, "b", 1);
+        t.add(1, "c", 2);
+        assertEquals("a", t.oldest().value);
+        assertEquals("a", t.pollOldest().value);
+        assertEquals("b", t.pollOldest().value);
+        // key 1 still has its remaining entry
+        assertEquals("c", t.poll(1).value);
+        assertNull(t.pollOldest());
+        assertTrue(t.isEmpty());
+    }
+
+    private static Long key(int i) {
+        return i * 0x100000001L;
+    }
+
+}
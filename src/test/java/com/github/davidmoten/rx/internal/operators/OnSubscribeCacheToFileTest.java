@@ -0,0 +1,214 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.github.davidmoten.rx.Actions;
+import com.github.davidmoten.rx.Obs;
+import com.github.davidmoten.rx.buffertofile.DataSerializers;
+import com.github.davidmoten.rx.buffertofile.Options;
+import com.github.davidmoten.rx.observables.FileCachedObservable;
+
+import rx.Observable;
+import rx.functions.Func0;
+import rx.observers.TestSubscriber;
+import rx.schedulers.Schedulers;
+import rx.subjects.PublishSubject;
+
+public class OnSubscribeCacheToFileTest {
+
+    @Test
+    public void testReplaysToEachSubscriberAcrossSegments() {
+        AtomicInteger subscriptions = new AtomicInteger();
+        FileCachedObservable<Integer> cached = Obs.cacheToFile(
+                Observable.range(1, 10000).doOnSubscribe(Actions.increment0(subscriptions)),
+                DataSerializers.integer(), Schedulers.computation(), options(new Files()));
+        List<Integer> expected = Observable.range(1, 10000).toList().toBlocking().single();
+        assertEquals(expected, cached.toList().toBlocking().single());
+        assertEquals(expected, cached.toList().toBlocking().single());
+        assertEquals(1, subscriptions.get());
+        cached.reset();
+    }
+
+    @Test
+    public void testSubscribersReadAtTheirOwnPace() {
+        PublishSubject<Integer> subject = PublishSubject.create();
+        FileCachedObservable<Integer> cached = Obs.cacheToFile(subject,
+                DataSerializers.integer(), Schedulers.trampoline(), options(new Files()));
+        TestSubscriber<Integer> fast = TestSubscriber.create();
+        TestSubscriber<Integer> slow = TestSubscriber.create(0);
+        cached.subscribe(fast);
+        cached.subscribe(slow);
+        for (int i = 1; i <= 1000; i++) {
+            subject.onNext(i);
+        }
+        assertEquals(1000, fast.getOnNextEvents().size());
+        slow.assertNoValues();
+        slow.requestMore(3);
+        slow.assertValues(1, 2, 3);
+        // a late subscriber replays from the start
+        TestSubscriber<Integer> late = TestSubscriber.create(2);
+        cached.subscribe(late);
+        late.assertValues(1, 2);
+        subject.onCompleted();
+        fast.assertCompleted();
+        slow.assertNotCompleted();
+        slow.requestMore(Long.MAX_VALUE);
+        slow.assertCompleted();
+        assertEquals(1000, slow.getOnNextEvents().size());
+        cached.reset();
+    }
+
+    @Test
+    public void testErrorIsReplayedAfterItems() {
+        RuntimeException e = new RuntimeException("boo");
+        FileCachedObservable<Integer> cached = Obs.cacheToFile(
+                Observable.just(1, 2).concatWith(Observable.<Integer> error(e)),
+                DataSerializers.integer(), Schedulers.trampoline(), options(new Files()));
+        for (int i = 0; i < 2; i++) {
+            TestSubscriber<Integer> ts = TestSubscriber.create();
+            cached.subscribe(ts);
+            ts.assertValues(1, 2);
+            ts.assertError(e);
+        }
+        cached.reset();
+    }
+
+    @Test
+    public void testSegmentsKeptUntilResetThenDeletedOnceRead() {
+        Files files = new Files();
+        PublishSubject<Integer> subject = PublishSubject.create();
+        FileCachedObservable<Integer> cached = Obs.cacheToFile(subject,
+                DataSerializers.integer(), Schedulers.trampoline(), options(files));
+        TestSubscriber<Integer> ts = TestSubscriber.create(0);
+        cached.subscribe(ts);
+        for (int i = 1; i <= 1000; i++) {
+            subject.onNext(i);
+        }
+        assertTrue(files.list.size() > 3);
+        ts.requestMore(1000);
+        // still needed by later subscribers
+        assertTrue(files.allExist());
+        TestSubscriber<Integer> ts2 = TestSubscriber.create(0);
+        cached.subscribe(ts2);
+        cached.reset();
+        // the first segment is still needed by ts2
+        assertTrue(files.allExist());
+        ts2.requestMore(1000);
+        // all but the segment being written have been passed
+        assertFalse(files.list.get(0).exists());
+        assertTrue(files.list.get(files.list.size() - 1).exists());
+        ts.unsubscribe();
+        ts2.unsubscribe();
+        assertTrue(files.noneExist());
+        // writes after the cache is disposed of are ignored
+        subject.onNext(1001);
+        assertTrue(files.noneExist());
+    }
+
+    @Test
+    public void testUnsubscribedCacheWithNoSubscribersDeletesFilesOnReset() {
+        Files files = new Files();
+        FileCachedObservable<Integer> cached = Obs.cacheToFile(Observable.range(1, 1000),
+                DataSerializers.integer(), Schedulers.computation(), options(files));
+        cached.take(10).toBlocking().last();
+        cached.toList().toBlocking().single();
+        assertTrue(files.allExist());
+        cached.reset();
+        assertTrue(files.noneExist());
+    }
+
+    @Test
+    public void testManySubscribersOnComputation() {
+        FileCachedObservable<Integer> cached = Obs.cacheToFile(
+                Observable.range(1, 100000).subscribeOn(Schedulers.computation()),
+                DataSerializers.integer(), Schedulers.computation(), options(new Files()));
+        List<TestSubscriber<Integer>> list = new ArrayList<TestSubscriber<Integer>>();
+        for (int i = 0; i < 4; i++) {
+            TestSubscriber<Integer> ts = TestSubscriber.create();
+            list.add(ts);
+            cached.subscribe(ts);
+        }
+        for (TestSubscriber<Integer> ts : list) {
+            ts.awaitTerminalEvent(30, TimeUnit.SECONDS);
+            ts.assertCompleted();
+            assertEquals(100000, ts.getOnNextEvents().size());
+            assertEquals(100000, (int) ts.getOnNextEvents().get(99999));
+        }
+        cached.reset();
+    }
+
+    @Test
+    public void testUnsubscribeWhileReadingAndWritingThenReset() throws InterruptedException {
+        // segments are unmapped when deleted so a read or write of a deleted
+        // segment would fail (or crash the JVM)
+        for (int round = 0; round < 20; round++) {
+            Files files = new Files();
+            FileCachedObservable<Integer> cached = Obs.cacheToFile(
+                    Observable.range(1, 100000).subscribeOn(Schedulers.computation()),
+                    DataSerializers.integer(), Schedulers.computation(), options(files));
+            List<TestSubscriber<Integer>> list = new ArrayList<TestSubscriber<Integer>>();
+            for (int i = 0; i < 4; i++) {
+                TestSubscriber<Integer> ts = TestSubscriber.create();
+                list.add(ts);
+                cached.take(1000 + i * 20000).subscribe(ts);
+            }
+            cached.reset();
+            for (TestSubscriber<Integer> ts : list) {
+                ts.awaitTerminalEvent(30, TimeUnit.SECONDS);
+                ts.assertNoErrors();
+                ts.assertCompleted();
+            }
+            // segments are deleted on the workers once the cursors are removed
+            long start = System.currentTimeMillis();
+            while (!files.noneExist() && System.currentTimeMillis() - start < 10000) {
+                Thread.sleep(10);
+            }
+            assertTrue(files.noneExist());
+        }
+    }
+
+    private static Options options(Files files) {
+        return Options.rolloverSizeBytes(1000).fileFactory(files).build();
+    }
+
+    private static final class Files implements Func0<File> {
+
+        private static final AtomicInteger count = new AtomicInteger();
+        final List<File> list = new ArrayList<File>();
+
+        @Override
+        public synchronized File call() {
+            File file = new File("target/cacheToFile/" + count.incrementAndGet());
+            list.add(file);
+            return file;
+        }
+
+        synchronized boolean allExist() {
+            for (File file : list) {
+                if (!file.exists()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        synchronized boolean noneExist() {
+            for (File file : list) {
+                if (file.exists()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -4,11 +4,14 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -16,14 +19,24 @@ import com.github.davidmoten.rx.Actions;
 import com.github.davidmoten.rx.Functions;
 import com.github.davidmoten.rx.Obs;
 import com.github.davidmoten.rx.Transformers;
+import com.github.davidmoten.rx.buffertofile.DataSerializers;
+import com.github.davidmoten.rx.buffertofile.Options;
+import com.github.davidmoten.rx.internal.operators.MatchTable.Entry;
+import com.github.davidmoten.rx.internal.operators.OnSubscribeMatch.Spill;
 import com.github.davidmoten.rx.testing.TestSubscriber2;
 import com.github.davidmoten.rx.testing.TestingHelper;
 
 import rx.Observable;
 import rx.Subscriber;
+import rx.functions.Action1;
+import rx.functions.Func0;
 import rx.functions.Func1;
 import rx.functions.Func2;
+import rx.plugins.RxJavaHooks;
 import rx.schedulers.Schedulers;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
 
 public class OnSubscribeMatchTest {
 
@@ -309,6 +322,388 @@ public class OnSubscribeMatchTest {
         Obs.match(a, b, Functions.identity(), Functions.identity(), COMBINER, -1);
     }
 
+    @Test
+    public void testManyCollidingKeys() {
+        // all keys have the same hash code
+        Func1<Integer, Long> key = new Func1<Integer, Long>() {
+            @Override
+            public Long call(Integer x) {
+                return x * 0x100000001L;
+            }
+        };
+        int n = 2000;
+        Observable<Integer> a = Observable.range(1, n).map(reverse(n));
+        Observable<Integer> b = Observable.range(1, n);
+        Obs.match(a, b, key, key, COMBINER) //
+                .toSortedList() //
+                .to(TestingHelper.<List<Integer>> test()) //
+                .assertValue(Observable.range(1, n).toList().toBlocking().single()) //
+                .assertCompleted();
+    }
+
+    @Test
+    public void testRepeatedKeysMatchInArrivalOrder() {
+        Observable<Integer> a = Observable.range(0, 30);
+        Observable<Integer> b = Observable.range(0, 30).delaySubscription(
+                Observable.<Integer> empty().subscribeOn(Schedulers.computation()));
+        Func1<Integer, Integer> key = new Func1<Integer, Integer>() {
+            @Override
+            public Integer call(Integer x) {
+                return x % 3;
+            }
+        };
+        Func2<Integer, Integer, List<Integer>> combiner = new Func2<Integer, Integer, List<Integer>>() {
+            @Override
+            public List<Integer> call(Integer x, Integer y) {
+                return Arrays.asList(x, y);
+            }
+        };
+        List<List<Integer>> list = Obs.match(a, b, key, key, combiner).toList().toBlocking()
+                .single();
+        assertEquals(30, list.size());
+        for (List<Integer> pair : list) {
+            // the nth item with a key matches the nth item with the same key
+            assertEquals(pair.get(0), pair.get(1));
+        }
+    }
+
+    @Test
+    public void testMaxUnmatchedMatchesAll() {
+        for (int requestSize = 1; requestSize < 20; requestSize += 3) {
+            for (long maxUnmatched = 1; maxUnmatched < 100; maxUnmatched *= 3) {
+                int n = 1000;
+                Observable<Integer> a = Observable.range(0, n).map(reverseInBlocksOf(50));
+                Observable<Integer> b = Observable.just(0).concatWith(Observable.range(1, n - 1));
+                Obs.match(a, b, Functions.<Integer> identity(), Functions.<Integer> identity(),
+                        COMBINER, requestSize, maxUnmatched) //
+                        .toSortedList() //
+                        .to(TestingHelper.<List<Integer>> test()) //
+                        .assertValue(Observable.range(0, n).toList().toBlocking().single()) //
+                        .assertCompleted();
+            }
+        }
+    }
+
+    @Test
+    public void testMaxUnmatchedThrottlesSourceWithMoreUnmatched() {
+        final List<String> requests = new ArrayList<String>();
+        Observable<Integer> a = Observable.range(1, 20).doOnRequest(record(requests, "a"));
+        Observable<Integer> b = Observable.range(11, 10).concatWith(Observable.range(1, 10))
+                .doOnRequest(record(requests, "b"));
+        Obs.match(a, b, Functions.<Integer> identity(), Functions.<Integer> identity(), COMBINER,
+                5, 10) //
+                .to(TestingHelper.<Integer> test()) //
+                .assertValueCount(20) //
+                .assertCompleted();
+        // 1-5 from a and 11-15 from b are unmatched so only b is requested
+        // till b holds more unmatched items than a
+        assertEquals(Arrays.asList("a5", "b5", "b5", "a5", "b5", "a5", "b5", "a5", "b5"),
+                requests);
+    }
+
+    @Test
+    public void testSpillToDisk() {
+        for (int maxInMemory = 0; maxInMemory < 50; maxInMemory += 7) {
+            Files files = new Files();
+            int n = 1000;
+            Observable<Integer> a = Observable.range(1, n).map(reverse(n));
+            Observable<Integer> b = Observable.range(1, n);
+            Obs.match(a, b, Functions.<Integer> identity(), Functions.<Integer> identity(),
+                    COMBINER, 16, Long.MAX_VALUE, DataSerializers.integer(),
+                    DataSerializers.integer(), maxInMemory, options(files)) //
+                    .toSortedList() //
+                    .to(TestingHelper.<List<Integer>> test()) //
+                    .assertValue(Observable.range(1, n).toList().toBlocking().single()) //
+                    .assertCompleted();
+            assertEquals(1, files.count());
+            assertTrue(files.noneExist());
+        }
+    }
+
+    @Test
+    public void testSpillToDiskUsesCombinerWithSpilledValuesFromBothSources() {
+        Files files = new Files();
+        Observable<Integer> a = Observable.just(1, 2, 30, 40);
+        Observable<Integer> b = Observable.just(3, 4, 10, 20);
+        Func1<Integer, Integer> key = new Func1<Integer, Integer>() {
+            @Override
+            public Integer call(Integer x) {
+                return x < 10 ? x : x / 10;
+            }
+        };
+        Func2<Integer, Integer, Integer> combiner = new Func2<Integer, Integer, Integer>() {
+            @Override
+            public Integer call(Integer x, Integer y) {
+                return x * 100 + y;
+            }
+        };
+        Obs.match(a, b, key, key, combiner, 1, Long.MAX_VALUE, DataSerializers.integer(),
+                DataSerializers.integer(), 0, options(files)) //
+                .toSortedList() //
+                .to(TestingHelper.<List<Integer>> test()) //
+                .assertValue(Arrays.asList(110, 220, 3003, 4004)) //
+                .assertCompleted();
+        assertTrue(files.noneExist());
+    }
+
+    @Test
+    public void testSpillToDiskHandlesNulls() {
+        Files files = new Files();
+        Observable<Integer> a = Observable.just(null, 1, null);
+        Observable<Integer> b = Observable.just(1, null, null);
+        Func1<Integer, Integer> key = new Func1<Integer, Integer>() {
+            @Override
+            public Integer call(Integer x) {
+                return x == null ? 0 : x;
+            }
+        };
+        Obs.match(a, b, key, key, COMBINER, 128, Long.MAX_VALUE, DataSerializers.integer(),
+                DataSerializers.integer(), 0, options(files)) //
+                .to(TestingHelper.<Integer> test()) //
+                .assertValueCount(3) //
+                .assertCompleted();
+        assertTrue(files.noneExist());
+    }
+
+    @Test
+    public void testSpillFileDeletedOnUnsubscribe() {
+        Files files = new Files();
+        Observable<Integer> a = Observable.range(1, 100).concatWith(Observable.<Integer> never());
+        Observable<Integer> b = Observable.<Integer> never();
+        Obs.match(a, b, Functions.<Integer> identity(), Functions.<Integer> identity(), COMBINER,
+                128, Long.MAX_VALUE, DataSerializers.integer(), DataSerializers.integer(), 10,
+                options(files)) //
+                .subscribe() //
+                .unsubscribe();
+        assertEquals(1, files.count());
+        assertTrue(files.noneExist());
+    }
+
+    @Test
+    public void testMatchWithAllOptionsUsesRequestSizeWhenExpiring() {
+        final List<String> requests = new ArrayList<String>();
+        Files files = new Files();
+        Observable<Integer> a = Observable.range(1, 20).doOnRequest(record(requests, "a"));
+        Observable<Integer> b = Observable.range(11, 10).concatWith(Observable.range(1, 10))
+                .doOnRequest(record(requests, "b"));
+        Obs.match(a, b, Functions.<Integer> identity(), Functions.<Integer> identity(), COMBINER,
+                5, 10, DataSerializers.integer(), DataSerializers.integer(), 0, options(files),
+                1, TimeUnit.HOURS, new TestScheduler(), 100, Actions.<Integer> doNothing1(),
+                Actions.<Integer> doNothing1()) //
+                .to(TestingHelper.<Integer> test()) //
+                .assertValueCount(20) //
+                .assertCompleted();
+        assertEquals(Arrays.asList("a5", "b5", "b5", "a5", "b5", "a5", "b5", "a5", "b5"),
+                requests);
+        assertTrue(files.noneExist());
+    }
+
+    @Test
+    public void testMatchWithAllOptionsExpiresSpilledItems() {
+        List<Integer> expiredA = new ArrayList<Integer>();
+        List<Integer> expiredB = new ArrayList<Integer>();
+        Files files = new Files();
+        Observable<Integer> a = Observable.range(1, 10);
+        Observable<Integer> b = Observable.just(10, 1);
+        Obs.match(a, b, Functions.<Integer> identity(), Functions.<Integer> identity(), COMBINER,
+                128, Long.MAX_VALUE, DataSerializers.integer(), DataSerializers.integer(), 0,
+                options(files), Long.MAX_VALUE, TimeUnit.MILLISECONDS, null, 3, addTo(expiredA),
+                addTo(expiredB)) //
+                .to(TestingHelper.<Integer> test()) //
+                .assertValues(10) //
+                .assertCompleted();
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7), expiredA);
+        assertTrue(expiredB.isEmpty());
+        assertEquals(1, files.count());
+        assertTrue(files.noneExist());
+    }
+
+    @Test
+    public void testSpillDeletesSegmentOnceAllItsValuesAreRemoved() throws IOException {
+        Files files = new Files();
+        // two integers per segment
+        Spill spill = new Spill(files, 8);
+        List<Entry> entries = new ArrayList<Entry>();
+        for (int i = 0; i < 6; i++) {
+            Entry entry = new Entry(i, i, i);
+            spill.write(entry, DataSerializers.integer());
+            entries.add(entry);
+        }
+        assertEquals(3, spill.segmentCount());
+        // removing out of order only deletes a segment once both its values
+        // are removed
+        assertEquals(1, spill.remove(entries.get(1), DataSerializers.integer()));
+        assertEquals(3, spill.segmentCount());
+        assertEquals(0, spill.remove(entries.get(0), DataSerializers.integer()));
+        assertEquals(2, spill.segmentCount());
+        assertFalse(files.list.get(0).exists());
+        // the current segment is rewound rather than deleted
+        assertEquals(4, spill.remove(entries.get(4), DataSerializers.integer()));
+        assertEquals(5, spill.remove(entries.get(5), DataSerializers.integer()));
+        assertEquals(2, spill.segmentCount());
+        Entry entry = new Entry(6, 6, 6);
+        spill.write(entry, DataSerializers.integer());
+        assertEquals(0, entry.position);
+        assertEquals(2, spill.segmentCount());
+        assertEquals(2, spill.remove(entries.get(2), DataSerializers.integer()));
+        assertEquals(3, spill.remove(entries.get(3), DataSerializers.integer()));
+        assertEquals(1, spill.segmentCount());
+        assertEquals(6, spill.remove(entry, DataSerializers.integer()));
+        spill.close();
+        assertEquals(0, spill.segmentCount());
+        assertEquals(3, files.count());
+        assertTrue(files.noneExist());
+    }
+
+    @Test
+    public void testSpillCloseReportsFailedDeleteToHooks() throws IOException {
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        RxJavaHooks.setOnError(new Action1<Throwable>() {
+            @Override
+            public void call(Throwable e) {
+                errors.add(e);
+            }
+        });
+        try {
+            Files files = new Files();
+            Spill spill = new Spill(files, Spill.DEFAULT_SEGMENT_SIZE_BYTES);
+            spill.write(new Entry(1, 1, 1), DataSerializers.integer());
+            assertTrue(files.list.get(0).delete());
+            spill.close();
+            assertEquals(1, errors.size());
+            assertTrue(errors.get(0) instanceof IOException);
+        } finally {
+            RxJavaHooks.reset();
+        }
+    }
+
+    @Test
+    public void testMaxRetainedExpiresOldestFirst() {
+        List<Integer> expiredA = new ArrayList<Integer>();
+        List<Integer> expiredB = new ArrayList<Integer>();
+        Observable<Integer> a = Observable.range(1, 10);
+        Observable<Integer> b = Observable.just(10, 1);
+        a.compose(Transformers.matchWith(b, Functions.<Integer> identity(),
+                Functions.<Integer> identity(), COMBINER, 3, addTo(expiredA), addTo(expiredB))) //
+                .to(TestingHelper.<Integer> test()) //
+                .assertValues(10) //
+                .assertCompleted();
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7), expiredA);
+        assertTrue(expiredB.isEmpty());
+    }
+
+    @Test
+    public void testMaxRetainedBoundsEndlessUnmatchedStream() {
+        final AtomicInteger expired = new AtomicInteger();
+        int n = 100000;
+        Observable<Integer> a = Observable.range(1, n);
+        Observable<Integer> b = Observable.range(1, n).map(new Func1<Integer, Integer>() {
+            @Override
+            public Integer call(Integer x) {
+                return -x;
+            }
+        });
+        a.compose(Transformers.matchWith(b, Functions.<Integer> identity(),
+                Functions.<Integer> identity(), COMBINER, 100, Actions.increment1(expired),
+                Actions.increment1(expired))) //
+                .to(TestingHelper.<Integer> test()) //
+                .assertNoValues() //
+                .assertCompleted();
+        assertEquals(2 * n - 100, expired.get());
+    }
+
+    @Test
+    public void testExpiryCompletesWhenNothingLeftToMatch() {
+        List<Integer> expiredA = new ArrayList<Integer>();
+        Observable<Integer> a = Observable.just(1);
+        Observable<Integer> b = Observable.just(2).concatWith(Observable.<Integer> never());
+        a.compose(Transformers.matchWith(b, Functions.<Integer> identity(),
+                Functions.<Integer> identity(), COMBINER, 1, addTo(expiredA),
+                Actions.<Integer> doNothing1())) //
+                .to(TestingHelper.<Integer> test()) //
+                .assertNoValues() //
+                .assertCompleted();
+        assertEquals(Arrays.asList(1), expiredA);
+    }
+
+    @Test
+    public void testMaxAgeExpiresOnSchedule() {
+        TestScheduler scheduler = new TestScheduler();
+        List<Integer> expiredA = new ArrayList<Integer>();
+        List<Integer> expiredB = new ArrayList<Integer>();
+        PublishSubject<Integer> a = PublishSubject.create();
+        PublishSubject<Integer> b = PublishSubject.create();
+        TestSubscriber2<Integer> ts = a
+                .compose(Transformers.matchWith(b, Functions.<Integer> identity(),
+                        Functions.<Integer> identity(), COMBINER, 1, TimeUnit.SECONDS, scheduler,
+                        addTo(expiredA), addTo(expiredB))) //
+                .to(TestingHelper.<Integer> test());
+        a.onNext(1);
+        scheduler.advanceTimeBy(500, TimeUnit.MILLISECONDS);
+        b.onNext(2);
+        scheduler.advanceTimeBy(500, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(1), expiredA);
+        assertTrue(expiredB.isEmpty());
+        // expired on arrival of another item
+        scheduler.advanceTimeBy(600, TimeUnit.MILLISECONDS);
+        a.onNext(3);
+        assertEquals(Arrays.asList(2), expiredB);
+        b.onNext(3);
+        ts.assertValues(3).assertNoTerminalEvent();
+        a.onNext(7);
+        a.onCompleted();
+        // 7 could still be matched by b so the stream continues till it
+        // expires
+        ts.assertNoTerminalEvent();
+        scheduler.advanceTimeBy(2, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(1, 7), expiredA);
+        ts.assertValues(3).assertCompleted();
+    }
+
+    @Test
+    public void testMaxAgeTicksWithoutDemandExpireOnceRequested() {
+        TestScheduler scheduler = new TestScheduler();
+        List<Integer> expiredA = new ArrayList<Integer>();
+        PublishSubject<Integer> a = PublishSubject.create();
+        PublishSubject<Integer> b = PublishSubject.create();
+        TestSubscriber<Integer> ts = TestSubscriber.create(0);
+        a.compose(Transformers.matchWith(b, Functions.<Integer> identity(),
+                Functions.<Integer> identity(), COMBINER, 1, TimeUnit.SECONDS, scheduler,
+                addTo(expiredA), Actions.<Integer> doNothing1())) //
+                .subscribe(ts);
+        a.onNext(1);
+        // neither the item nor the ticks (coalesced into one) are processed
+        // without demand
+        scheduler.advanceTimeBy(100, TimeUnit.SECONDS);
+        assertTrue(expiredA.isEmpty());
+        ts.requestMore(1);
+        assertTrue(expiredA.isEmpty());
+        // later ticks are queued once the pending one has been processed
+        scheduler.advanceTimeBy(1500, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(1), expiredA);
+        a.onNext(5);
+        scheduler.advanceTimeBy(1500, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(1, 5), expiredA);
+        ts.assertNoValues();
+        ts.unsubscribe();
+    }
+
+    @Test
+    public void testExpiryCallbackThrowsResultsInErrorEmission() {
+        Observable<Integer> a = Observable.just(1, 2);
+        Observable<Integer> b = Observable.just(3);
+        a.compose(Transformers.matchWith(b, Functions.<Integer> identity(),
+                Functions.<Integer> identity(), COMBINER, 1, new Action1<Integer>() {
+                    @Override
+                    public void call(Integer x) {
+                        throw new Functions.ThrowingException();
+                    }
+                }, Actions.<Integer> doNothing1())) //
+                .to(TestingHelper.<Integer> test()) //
+                .assertNoValues() //
+                .assertError(Functions.ThrowingException.class);
+    }
+
     private void testShifted(int n, boolean async) {
         Observable<Integer> a = Observable.just(0).concatWith(Observable.range(1, n));
         if (async) {
@@ -334,6 +729,73 @@ public class OnSubscribeMatchTest {
         return matchThem(a, b).to(TestingHelper.<Integer> test());
     }
 
+    private static Func1<Integer, Integer> reverse(final int n) {
+        return new Func1<Integer, Integer>() {
+            @Override
+            public Integer call(Integer x) {
+                return n + 1 - x;
+            }
+        };
+    }
+
+    private static Func1<Integer, Integer> reverseInBlocksOf(final int size) {
+        return new Func1<Integer, Integer>() {
+            @Override
+            public Integer call(Integer x) {
+                int start = x / size * size;
+                return start + size - 1 - (x - start);
+            }
+        };
+    }
+
+    private static Action1<Long> record(final List<String> requests, final String name) {
+        return new Action1<Long>() {
+            @Override
+            public void call(Long n) {
+                requests.add(name + n);
+            }
+        };
+    }
+
+    private static Action1<Integer> addTo(final List<Integer> list) {
+        return new Action1<Integer>() {
+            @Override
+            public void call(Integer x) {
+                list.add(x);
+            }
+        };
+    }
+
+    private static Options options(Files files) {
+        return Options.fileFactory(files).build();
+    }
+
+    private static final class Files implements Func0<File> {
+
+        private static final AtomicInteger index = new AtomicInteger();
+        private final List<File> list = new ArrayList<File>();
+
+        @Override
+        public synchronized File call() {
+            File file = new File("target/match/" + index.incrementAndGet());
+            list.add(file);
+            return file;
+        }
+
+        synchronized int count() {
+            return list.size();
+        }
+
+        synchronized boolean noneExist() {
+            for (File file : list) {
+                if (file.exists()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     private static final Func2<Integer, Integer, Integer> COMBINER = new Func2<Integer, Integer, Integer>() {
         @Override
         public Integer call(Integer x, Integer y) {
@@ -19,7 +19,9 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -34,9 +36,14 @@ import org.junit.runners.MethodSorters;
 
 import com.github.davidmoten.rx.Actions;
 import com.github.davidmoten.rx.Transformers;
+import com.github.davidmoten.rx.buffertofile.Compression;
 import com.github.davidmoten.rx.buffertofile.DataSerializer;
 import com.github.davidmoten.rx.buffertofile.DataSerializers;
 import com.github.davidmoten.rx.buffertofile.Options;
+import com.github.davidmoten.rx.buffertofile.OverflowPolicy;
+import com.github.davidmoten.rx.buffertofile.SpillListener;
+import com.github.davidmoten.rx.buffertofile.StorageType;
+import com.github.davidmoten.rx.exceptions.StorageFullException;
 import com.github.davidmoten.rx.testing.TestingHelper;
 
 import rx.Observable;
@@ -306,6 +313,413 @@ public final class OperatorBufferToFileTest {
         }
     }
 
+    @Test
+    public void storageLimitErrorPolicy() throws InterruptedException {
+        System.out.println("storageLimitErrorPolicy");
+        Scheduler scheduler = createSingleThreadScheduler();
+        TestSubscriber<Integer> ts = TestSubscriber.create(0);
+        Observable.range(1, 1000)
+                //
+                .compose(Transformers.onBackpressureBufferToFile(DataSerializers.integer(),
+                        scheduler, Options.bufferSizeBytes(1).rolloverEvery(101)
+                                .maxStorageBytes(1000).delayError(false).build()))
+                .subscribe(ts);
+        ts.awaitTerminalEvent(10, TimeUnit.SECONDS);
+        ts.assertNoValues();
+        ts.assertError(StorageFullException.class);
+        waitUntilWorkCompleted(scheduler);
+    }
+
+    @Test
+    public void storageLimitDropNewestPolicy() throws InterruptedException {
+        System.out.println("storageLimitDropNewestPolicy");
+        Scheduler scheduler = createSingleThreadScheduler();
+        TestSubscriber<Integer> ts = TestSubscriber.create(0);
+        Observable.range(1, 1000)
+                //
+                .compose(Transformers.onBackpressureBufferToFile(DataSerializers.integer(),
+                        scheduler,
+                        Options.bufferSizeBytes(1).rolloverEvery(101).maxStorageBytes(1000)
+                                .overflowPolicy(OverflowPolicy.DROP_NEWEST).build()))
+                .subscribe(ts);
+        ts.requestMore(Long.MAX_VALUE);
+        ts.awaitTerminalEvent(10, TimeUnit.SECONDS);
+        ts.assertCompleted();
+        // nothing read until the source completed so about 250 4 byte
+        // integers fill the storage (the last byte of each file is held in
+        // its one byte write buffer)
+        List<Integer> list = ts.getOnNextEvents();
+        assertTrue(list.size() >= 250 && list.size() <= 253);
+        for (int i = 0; i < list.size(); i++) {
+            assertEquals(i + 1, (int) list.get(i));
+        }
+        waitUntilWorkCompleted(scheduler);
+    }
+
+    @Test
+    public void storageLimitDropOldestSegmentPolicy() throws InterruptedException {
+        System.out.println("storageLimitDropOldestSegmentPolicy");
+        Scheduler scheduler = createSingleThreadScheduler();
+        TestSubscriber<Integer> ts = TestSubscriber.create(0);
+        Observable.range(1, 1000)
+                //
+                .compose(Transformers.onBackpressureBufferToFile(DataSerializers.integer(),
+                        scheduler,
+                        Options.bufferSizeBytes(1).rolloverEvery(101).maxStorageBytes(1000)
+                                .overflowPolicy(OverflowPolicy.DROP_OLDEST_SEGMENT).build()))
+                .subscribe(ts);
+        ts.requestMore(Long.MAX_VALUE);
+        ts.awaitTerminalEvent(10, TimeUnit.SECONDS);
+        ts.assertCompleted();
+        // whole segments of 100 items have been dropped from the start
+        List<Integer> list = ts.getOnNextEvents();
+        assertTrue(list.size() <= 250);
+        assertEquals(1, list.get(0) % 100);
+        for (int i = 0; i < list.size(); i++) {
+            assertEquals(1000 - list.size() + 1 + i, (int) list.get(i));
+        }
+        waitUntilWorkCompleted(scheduler);
+    }
+
+    @Test
+    public void storageLimitBackpressurePolicy() throws InterruptedException {
+        System.out.println("storageLimitBackpressurePolicy");
+        Scheduler scheduler = createSingleThreadScheduler();
+        final int max = 10000;
+        final AtomicInteger produced = new AtomicInteger();
+        final AtomicInteger maxOutstanding = new AtomicInteger();
+        final AtomicInteger expected = new AtomicInteger(1);
+        Observable.range(1, max)
+                //
+                .doOnNext(new Action1<Integer>() {
+                    @Override
+                    public void call(Integer n) {
+                        produced.set(n);
+                    }
+                })
+                //
+                .compose(Transformers.onBackpressureBufferToFile(DataSerializers.integer(),
+                        scheduler,
+                        Options.bufferSizeBytes(1).rolloverEvery(101).maxStorageBytes(1000)
+                                .overflowPolicy(OverflowPolicy.BACKPRESSURE).build()))
+                //
+                .doOnNext(new Action1<Integer>() {
+                    @Override
+                    public void call(Integer n) {
+                        assertEquals(expected.getAndIncrement(), (int) n);
+                        int outstanding = produced.get() - n;
+                        if (outstanding > maxOutstanding.get()) {
+                            maxOutstanding.set(outstanding);
+                        }
+                        if (n % 50 == 0) {
+                            try {
+                                // slow consumer
+                                Thread.sleep(1);
+                            } catch (InterruptedException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    }
+                })
+                //
+                .subscribeOn(Schedulers.computation())
+                //
+                .toBlocking().last();
+        assertEquals(max + 1, expected.get());
+        System.out.println("max outstanding=" + maxOutstanding.get());
+        // without backpressure the producer would finish long before the
+        // consumer
+        assertTrue(maxOutstanding.get() < 2000);
+        waitUntilWorkCompleted(scheduler);
+    }
+
+    @Test
+    public void mergedSourcesBufferedToFileConcurrently() throws InterruptedException {
+        System.out.println("mergedSourcesBufferedToFileConcurrently");
+        Scheduler scheduler = createSingleThreadScheduler();
+        final int producers = 4;
+        final int n = 50000;
+        List<Observable<Integer>> sources = new ArrayList<Observable<Integer>>();
+        for (int p = 0; p < producers; p++) {
+            sources.add(Observable.range(p * n, n).subscribeOn(Schedulers.io()));
+        }
+        List<Integer> list = Observable.from(sources)
+                //
+                .compose(Transformers.onBackpressureBufferToFileMerged(DataSerializers.integer(),
+                        scheduler, Options.rolloverSizeBytes(4096).build()))
+                //
+                .toList().toBlocking().single();
+        assertEquals(producers * n, list.size());
+        // order is preserved for each source
+        int[] next = new int[producers];
+        for (int x : list) {
+            int p = x / n;
+            assertEquals(p * n + next[p], x);
+            next[p]++;
+        }
+        waitUntilWorkCompleted(scheduler);
+    }
+
+    @Test
+    public void mergedSourceErrorIsSerializedWithItemsFromOtherSources()
+            throws InterruptedException {
+        System.out.println("mergedSourceErrorIsSerializedWithItemsFromOtherSources");
+        for (int i = 0; i < 20; i++) {
+            final RuntimeException ex = new RuntimeException("boo");
+            Observable<Integer> busy = Observable.range(1, Integer.MAX_VALUE)
+                    .subscribeOn(Schedulers.io());
+            Observable<Integer> failing = Observable.<Integer> error(ex)
+                    .delaySubscription(1, TimeUnit.MILLISECONDS, Schedulers.io());
+            final AtomicInteger concurrent = new AtomicInteger();
+            final AtomicBoolean overlapped = new AtomicBoolean();
+            final AtomicBoolean afterTerminal = new AtomicBoolean();
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            final CountDownLatch latch = new CountDownLatch(1);
+            Observable.just(busy, failing)
+                    //
+                    .compose(Transformers.onBackpressureBufferToFileMerged(
+                            DataSerializers.integer(), Schedulers.computation(),
+                            Options.rolloverSizeBytes(4096).build()))
+                    //
+                    .subscribe(new Subscriber<Integer>() {
+
+                        @Override
+                        public void onCompleted() {
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onError(Throwable e) {
+                            enter();
+                            error.set(e);
+                            concurrent.decrementAndGet();
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onNext(Integer t) {
+                            enter();
+                            concurrent.decrementAndGet();
+                        }
+
+                        private void enter() {
+                            if (concurrent.incrementAndGet() > 1) {
+                                overlapped.set(true);
+                            }
+                            if (latch.getCount() == 0) {
+                                afterTerminal.set(true);
+                            }
+                        }
+                    });
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertEquals(ex, error.get());
+            assertFalse(overlapped.get());
+            assertFalse(afterTerminal.get());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergedDoesNotSupportDurable() {
+        Transformers.onBackpressureBufferToFileMerged(DataSerializers.integer(),
+                Schedulers.computation(), Options.durable(new File("target/merged")).build());
+    }
+
+    @Test
+    public void rolloverWorksWithRolloverScheduler() throws InterruptedException {
+        System.out.println("rolloverWorksWithRolloverScheduler");
+        for (int i = 0; i < 100; i++) {
+            DataSerializer<Integer> serializer = DataSerializers.integer();
+            int max = 100;
+            Scheduler scheduler = createSingleThreadScheduler();
+            Scheduler rolloverScheduler = createSingleThreadScheduler();
+            int last = Observable.range(1, max)
+                    //
+                    .compose(Transformers.onBackpressureBufferToFile(serializer, scheduler,
+                            Options.rolloverEvery(max / 10).rolloverScheduler(rolloverScheduler)
+                                    .build()))
+                    .last().toBlocking().single();
+            assertEquals(max, last);
+            // wait for all scheduled work to complete (unsubscription)
+            waitUntilWorkCompleted(scheduler, 10, TimeUnit.SECONDS);
+            waitUntilWorkCompleted(rolloverScheduler, 10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void rolloverWorksWithDirectBuffers() throws InterruptedException {
+        System.out.println("rolloverWorksWithDirectBuffers");
+        for (int i = 0; i < 100; i++) {
+            DataSerializer<Integer> serializer = DataSerializers.integer();
+            int max = 100;
+            Scheduler scheduler = createSingleThreadScheduler();
+            int last = Observable.range(1, max)
+                    //
+                    .compose(Transformers.onBackpressureBufferToFile(serializer, scheduler,
+                            Options.directBuffers(true).bufferSizeBytes(16).rolloverEvery(max / 10)
+                                    .build()))
+                    .last().toBlocking().single();
+            assertEquals(max, last);
+            // wait for all scheduled work to complete (unsubscription)
+            waitUntilWorkCompleted(scheduler, 10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void directBuffersNotSupportedWithCompression() {
+        Options.directBuffers(true).compression(Compression.DEFLATE).build();
+    }
+
+    @Test
+    public void rolloverWorksMemoryMapped() throws InterruptedException {
+        System.out.println("rolloverWorksMemoryMapped");
+        for (int i = 0; i < 100; i++) {
+            DataSerializer<Integer> serializer = DataSerializers.integer();
+            int max = 100;
+            Scheduler scheduler = createSingleThreadScheduler();
+            int last = Observable.range(1, max)
+                    //
+                    .compose(Transformers.onBackpressureBufferToFile(serializer, scheduler,
+                            Options.storage(StorageType.MEMORY_MAPPED).rolloverSizeBytes(40)
+                                    .build()))
+                    .last().toBlocking().single();
+            assertEquals(max, last);
+            // wait for all scheduled work to complete (unsubscription)
+            waitUntilWorkCompleted(scheduler, 10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void rolloverWorksCompressed() throws InterruptedException {
+        System.out.println("rolloverWorksCompressed");
+        for (int i = 0; i < 100; i++) {
+            DataSerializer<Integer> serializer = DataSerializers.integer();
+            int max = 100;
+            Scheduler scheduler = createSingleThreadScheduler();
+            int last = Observable.range(1, max)
+                    //
+                    .compose(Transformers.onBackpressureBufferToFile(serializer, scheduler,
+                            Options.compression(Compression.DEFLATE).bufferSizeBytes(16)
+                                    .rolloverSizeBytes(40).build()))
+                    .last().toBlocking().single();
+            assertEquals(max, last);
+            // wait for all scheduled work to complete (unsubscription)
+            waitUntilWorkCompleted(scheduler, 10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void handlesManyLargeMessagesCompressed() {
+        System.out.println("handlesManyLargeMessagesCompressed");
+        Scheduler scheduler = createSingleThreadScheduler();
+        DataSerializer<Integer> serializer = createLargeMessageSerializer();
+        int max = 20;
+        int last = Observable.range(1, max) //
+                .compose(Transformers.onBackpressureBufferToFile(serializer, scheduler,
+                        Options.compression(Compression.DEFLATE_FAST).rolloverSizeBytes(100000)
+                                .build()))
+                .last().toBlocking().single();
+        assertEquals(max, last);
+        waitUntilWorkCompleted(scheduler);
+    }
+
+    @Test
+    public void memoryBufferSpillsToFileWhenConsumerIsSlow() {
+        System.out.println("memoryBufferSpillsToFileWhenConsumerIsSlow");
+        Scheduler scheduler = createSingleThreadScheduler();
+        final AtomicLong spills = new AtomicLong();
+        final AtomicLong itemsSpilled = new AtomicLong();
+        SpillListener listener = new SpillListener() {
+
+            @Override
+            public void spillStarted() {
+                spills.incrementAndGet();
+            }
+
+            @Override
+            public void spillFinished(long items) {
+                itemsSpilled.addAndGet(items);
+            }
+        };
+        final Lock lock = new ReentrantLock();
+        lock.lock();
+        int max = 1000;
+        List<Integer> list = Observable.range(1, max)
+                //
+                .doOnCompleted(new Action0() {
+                    @Override
+                    public void call() {
+                        lock.unlock();
+                    }
+                })
+                //
+                .compose(Transformers.onBackpressureBufferToFile(DataSerializers.integer(),
+                        scheduler, Options.memoryBufferItems(128).spillListener(listener)
+                                .rolloverEvery(100).build()))
+                // don't consume anything until the source has completed
+                .doOnNext(new Action1<Integer>() {
+                    boolean first = true;
+
+                    @Override
+                    public void call(Integer n) {
+                        if (first) {
+                            lock.lock();
+                            first = false;
+                        }
+                    }
+                }).toList().toBlocking().single();
+        assertEquals(max, list.size());
+        for (int i = 0; i < max; i++) {
+            assertEquals(i + 1, (int) list.get(i));
+        }
+        waitUntilWorkCompleted(scheduler);
+        assertEquals(1, spills.get());
+        // unsubscribe reports the finish of the spill, the first item may
+        // have been taken from memory before the consumer blocked
+        assertTrue(itemsSpilled.get() == max - 128 || itemsSpilled.get() == max - 129);
+    }
+
+    @Test
+    public void handlesManyLargeMessagesMemoryMapped() {
+        System.out.println("handlesManyLargeMessagesMemoryMapped");
+        Scheduler scheduler = createSingleThreadScheduler();
+        DataSerializer<Integer> serializer = createLargeMessageSerializer();
+        int max = 20;
+        int last = Observable.range(1, max) //
+                .compose(Transformers.onBackpressureBufferToFile(serializer, scheduler,
+                        Options.storage(StorageType.MEMORY_MAPPED).rolloverSizeBytes(100000)
+                                .build()))
+                .last().toBlocking().single();
+        assertEquals(max, last);
+        waitUntilWorkCompleted(scheduler);
+    }
+
+    @Test
+    public void durableResumesAfterUnsubscribe() {
+        System.out.println("durableResumesAfterUnsubscribe");
+        File directory = new File("target/durableOperator");
+        directory.mkdirs();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        Options options = Options.durable(directory).build();
+        TestSubscriber<Integer> ts = TestSubscriber.create(0);
+        Observable.range(1, 100) //
+                .compose(Transformers.onBackpressureBufferToFile(DataSerializers.integer(),
+                        Schedulers.immediate(), options)) //
+                .subscribe(ts);
+        ts.requestMore(10);
+        ts.assertValueCount(10);
+        ts.unsubscribe();
+        List<Integer> list = Observable.<Integer> empty() //
+                .compose(Transformers.onBackpressureBufferToFile(DataSerializers.integer(),
+                        Schedulers.immediate(), options)) //
+                .toList().toBlocking().single();
+        assertEquals(90, list.size());
+        assertEquals(11, (int) list.get(0));
+        assertEquals(100, (int) list.get(89));
+        assertEquals(0, directory.listFiles().length);
+    }
+
     private static void waitUntilWorkCompleted(Scheduler scheduler) {
         waitUntilWorkCompleted(scheduler, 10, TimeUnit.SECONDS);
     }
@@ -460,6 +874,19 @@ public final class OperatorBufferToFileTest {
         checkRateForSmallMessagesWithOptions(Options.rolloverSizeBytes(Long.MAX_VALUE - 1).build());
     }
 
+    @Test
+    public void checkRateForSmallMessagesMemoryMapped() {
+        System.out.println("checkRateForSmallMessagesMemoryMapped");
+        checkRateForSmallMessagesWithOptions(Options.storage(StorageType.MEMORY_MAPPED).build());
+    }
+
+    @Test
+    public void checkRateForSmallMessagesMemoryBuffer() {
+        System.out.println("checkRateForSmallMessagesMemoryBuffer");
+        checkRateForSmallMessagesWithOptions(Options.memoryBufferItems(1024)
+                .rolloverSizeBytes(Long.MAX_VALUE - 1).build());
+    }
+
     private static String df(double d) {
         return new DecimalFormat("0.0").format(d);
     }
@@ -485,7 +912,16 @@ public final class OperatorBufferToFileTest {
     }
 
     private static String rolloverStatus(Options options) {
-        return options.rolloverEnabled() ? "rollover" : "no rollover";
+        if (options.memoryBufferItems() > 0) {
+            return "memory buffer of " + options.memoryBufferItems() + " items";
+        } else if (options.storageType() == StorageType.MEMORY_MAPPED) {
+            return "memory mapped";
+        } else if (options.compression() != Compression.NONE) {
+            return "compression " + options.compression() + ", "
+                    + (options.rolloverEnabled() ? "rollover" : "no rollover");
+        } else {
+            return options.rolloverEnabled() ? "rollover" : "no rollover";
+        }
     }
 
     @Test
@@ -500,6 +936,26 @@ public final class OperatorBufferToFileTest {
         checkRateForOneKMessagesWithOptions(Options.rolloverSizeBytes(Long.MAX_VALUE - 1).build());
     }
 
+    @Test
+    public void checkRateForOneKMessagesMemoryMapped() {
+        System.out.println("checkRateForOneKMessagesMemoryMapped");
+        checkRateForOneKMessagesWithOptions(Options.storage(StorageType.MEMORY_MAPPED).build());
+    }
+
+    @Test
+    public void checkRateForOneKMessagesMemoryBuffer() {
+        System.out.println("checkRateForOneKMessagesMemoryBuffer");
+        checkRateForOneKMessagesWithOptions(Options.memoryBufferItems(1024)
+                .rolloverSizeBytes(Long.MAX_VALUE - 1).build());
+    }
+
+    @Test
+    public void checkRateForOneKMessagesCompressed() {
+        System.out.println("checkRateForOneKMessagesCompressed");
+        checkRateForOneKMessagesWithOptions(Options.compression(Compression.DEFLATE_FAST)
+                .bufferSizeBytes(64 * 1024).rolloverSizeBytes(Long.MAX_VALUE - 1).build());
+    }
+
     private static void checkRateForOneKMessagesWithOptions(Options options) {
         Scheduler scheduler = createSingleThreadScheduler();
         DataSerializer<Integer> serializer = createSerializer1K();
@@ -570,6 +1026,13 @@ public final class OperatorBufferToFileTest {
                 Options.rolloverSizeBytes(Long.MAX_VALUE - 1).build());
     }
 
+    @Test
+    public void checkRateForOneKMessagesNoReadMemoryMapped() {
+        System.out.println("checkRateForOneKMessagesNoReadMemoryMapped");
+        checkRateForOneKMessagesNoReadWithOptions(
+                Options.storage(StorageType.MEMORY_MAPPED).build());
+    }
+
     private static void checkRateForOneKMessagesNoReadWithOptions(Options options) {
         Scheduler scheduler = createSingleThreadScheduler();
         DataSerializer<Integer> serializer = createSerializer1K();
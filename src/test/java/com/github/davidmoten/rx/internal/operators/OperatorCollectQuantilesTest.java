@@ -0,0 +1,115 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.github.davidmoten.rx.Histogram;
+import com.github.davidmoten.rx.Transformers;
+
+import rx.Observable;
+import rx.functions.Action1;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
+
+public class OperatorCollectQuantilesTest {
+
+    @Test
+    public void testEmitsEveryNAndOnCompletion() {
+        List<Histogram> list = Observable.range(1, 25)
+                .compose(Transformers.<Integer> collectQuantiles(10)).toList().toBlocking()
+                .single();
+        assertEquals(3, list.size());
+        assertEquals(10, list.get(0).count());
+        assertEquals(10, list.get(0).max(), 0);
+        assertEquals(20, list.get(1).count());
+        assertEquals(25, list.get(2).count());
+        assertEquals(13, list.get(2).quantile(0.5), 13 * 0.01);
+    }
+
+    @Test
+    public void testNoFinalEmissionWhenNothingSinceLast() {
+        List<Histogram> list = Observable.range(1, 20)
+                .compose(Transformers.<Integer> collectQuantiles(10)).toList().toBlocking()
+                .single();
+        assertEquals(2, list.size());
+    }
+
+    @Test
+    public void testEmpty() {
+        TestSubscriber<Histogram> ts = TestSubscriber.create();
+        Observable.<Integer> empty().compose(Transformers.<Integer> collectQuantiles(10))
+                .subscribe(ts);
+        ts.assertNoValues();
+        ts.assertCompleted();
+    }
+
+    @Test
+    public void testBackpressureRequestsMultiplesOfEvery() {
+        final List<Long> requests = new ArrayList<Long>();
+        TestSubscriber<Histogram> ts = TestSubscriber.create(0);
+        Observable.range(1, 100).doOnRequest(new Action1<Long>() {
+            @Override
+            public void call(Long n) {
+                requests.add(n);
+            }
+        }).compose(Transformers.<Integer> collectQuantiles(10)).subscribe(ts);
+        ts.assertNoValues();
+        ts.requestMore(2);
+        ts.assertValueCount(2);
+        assertEquals(20L, (long) requests.get(requests.size() - 1));
+        ts.assertNotCompleted();
+    }
+
+    @Test
+    public void testEmitsPeriodically() {
+        TestScheduler scheduler = new TestScheduler();
+        PublishSubject<Integer> subject = PublishSubject.create();
+        TestSubscriber<Histogram> ts = TestSubscriber.create();
+        subject.compose(Transformers.<Integer> collectQuantiles(1, TimeUnit.SECONDS, scheduler))
+                .subscribe(ts);
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        // nothing before the first value
+        ts.assertNoValues();
+        subject.onNext(1);
+        subject.onNext(2);
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        ts.assertValueCount(1);
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        ts.assertValueCount(2);
+        assertEquals(2, ts.getOnNextEvents().get(1).count());
+        subject.onNext(3);
+        subject.onCompleted();
+        ts.assertValueCount(3);
+        assertEquals(3, ts.getOnNextEvents().get(2).count());
+        ts.assertCompleted();
+    }
+
+    @Test
+    public void testPeriodicSkipsWithoutDemand() {
+        TestScheduler scheduler = new TestScheduler();
+        PublishSubject<Integer> subject = PublishSubject.create();
+        TestSubscriber<Histogram> ts = TestSubscriber.create(1);
+        subject.compose(Transformers.<Integer> collectQuantiles(1, TimeUnit.SECONDS, scheduler))
+                .subscribe(ts);
+        subject.onNext(1);
+        scheduler.advanceTimeBy(3, TimeUnit.SECONDS);
+        ts.assertValueCount(1);
+        ts.requestMore(1);
+        subject.onNext(2);
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        ts.assertValueCount(2);
+        assertEquals(2, ts.getOnNextEvents().get(1).count());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEveryZeroThrowsIAE() {
+        Transformers.<Integer> collectQuantiles(0);
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.github.davidmoten.rx.Transformers;
+
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
+
+public class OperatorEwmaTest {
+
+    @Test
+    public void testWeightHalvesEveryHalfLife() {
+        TestScheduler scheduler = new TestScheduler();
+        PublishSubject<Integer> subject = PublishSubject.create();
+        TestSubscriber<Double> ts = TestSubscriber.create();
+        subject.compose(Transformers.<Integer> ewma(10, TimeUnit.SECONDS, scheduler))
+                .subscribe(ts);
+        subject.onNext(0);
+        scheduler.advanceTimeBy(10, TimeUnit.SECONDS);
+        // weights 0.5 and 1
+        subject.onNext(3);
+        scheduler.advanceTimeBy(10, TimeUnit.SECONDS);
+        // weights 0.25, 0.5 and 1
+        subject.onNext(7);
+        List<Double> list = ts.getOnNextEvents();
+        assertEquals(0, list.get(0), 0.00001);
+        assertEquals(3 / 1.5, list.get(1), 0.00001);
+        assertEquals((1.5 + 7) / 1.75, list.get(2), 0.00001);
+    }
+
+    @Test
+    public void testSimultaneousValuesWeightedEqually() {
+        TestScheduler scheduler = new TestScheduler();
+        PublishSubject<Integer> subject = PublishSubject.create();
+        TestSubscriber<Double> ts = TestSubscriber.create();
+        subject.compose(Transformers.<Integer> ewma(10, TimeUnit.SECONDS, scheduler))
+                .subscribe(ts);
+        subject.onNext(1);
+        subject.onNext(2);
+        subject.onNext(6);
+        ts.assertValues(1.0, 1.5, 3.0);
+        subject.onCompleted();
+        ts.assertCompleted();
+    }
+
+    @Test
+    public void testRateOfSteadyStream() {
+        TestScheduler scheduler = new TestScheduler();
+        PublishSubject<String> subject = PublishSubject.create();
+        TestSubscriber<Double> ts = TestSubscriber.create();
+        subject.compose(Transformers.<String> ewmaRate(1, TimeUnit.SECONDS, scheduler))
+                .subscribe(ts);
+        // 100 per second for a minute
+        for (int i = 0; i < 6000; i++) {
+            scheduler.advanceTimeBy(10, TimeUnit.MILLISECONDS);
+            subject.onNext("a");
+        }
+        assertEquals(100, ts.getOnNextEvents().get(5999), 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHalfLifeZeroThrowsIAE() {
+        Transformers.<Integer> ewma(0, TimeUnit.SECONDS, new TestScheduler());
+    }
+
+}
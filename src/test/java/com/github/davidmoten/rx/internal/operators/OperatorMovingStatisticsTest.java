@@ -0,0 +1,93 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.github.davidmoten.rx.Statistics;
+import com.github.davidmoten.rx.Transformers;
+
+import rx.Observable;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
+
+public class OperatorMovingStatisticsTest {
+
+    @Test
+    public void testMatchesStatisticsOfEachWindow() {
+        Random r = new Random(1);
+        List<Double> list = new ArrayList<Double>();
+        for (int i = 0; i < 5000; i++) {
+            // large mean relative to spread
+            list.add(1e6 + r.nextGaussian());
+        }
+        for (int windowSize : new int[] { 1, 2, 17, 100 }) {
+            List<Statistics> stats = Observable.from(list)
+                    .compose(Transformers.<Double> movingStats(windowSize)).toList()
+                    .toBlocking().single();
+            assertEquals(list.size() - windowSize + 1, stats.size());
+            for (int i = 0; i < stats.size(); i++) {
+                Statistics expected = Statistics.create(list.subList(i, i + windowSize));
+                Statistics s = stats.get(i);
+                assertEquals(windowSize, s.count());
+                assertEquals(expected.mean(), s.mean(), 1e-7);
+                assertEquals(expected.sd(), s.sd(), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void testBackpressure() {
+        TestSubscriber<Statistics> ts = TestSubscriber.create(0);
+        Observable.just(1, 2, 3, 4).compose(Transformers.<Integer> movingStats(2)).subscribe(ts);
+        ts.assertNoValues();
+        ts.requestMore(1);
+        ts.assertValueCount(1);
+        assertEquals(1.5, ts.getOnNextEvents().get(0).mean(), 0.00001);
+        ts.requestMore(2);
+        ts.assertValueCount(3);
+        assertEquals(3.5, ts.getOnNextEvents().get(2).mean(), 0.00001);
+        ts.assertCompleted();
+    }
+
+    @Test
+    public void testTimeWindow() {
+        TestScheduler scheduler = new TestScheduler();
+        PublishSubject<Integer> subject = PublishSubject.create();
+        TestSubscriber<Statistics> ts = TestSubscriber.create();
+        subject.compose(Transformers.<Integer> movingStats(10, TimeUnit.SECONDS, scheduler))
+                .subscribe(ts);
+        subject.onNext(2);
+        subject.onNext(4);
+        ts.assertValueCount(2);
+        assertEquals(3, ts.getOnNextEvents().get(1).mean(), 0.00001);
+        assertEquals(1, ts.getOnNextEvents().get(1).sd(), 0.00001);
+        scheduler.advanceTimeBy(5, TimeUnit.SECONDS);
+        subject.onNext(9);
+        assertEquals(3, ts.getOnNextEvents().get(2).count());
+        assertEquals(5, ts.getOnNextEvents().get(2).mean(), 0.00001);
+        scheduler.advanceTimeBy(5, TimeUnit.SECONDS);
+        // 2 and 4 have left the window
+        subject.onNext(11);
+        assertEquals(2, ts.getOnNextEvents().get(3).count());
+        assertEquals(10, ts.getOnNextEvents().get(3).mean(), 0.00001);
+        scheduler.advanceTimeBy(20, TimeUnit.SECONDS);
+        subject.onNext(1);
+        assertEquals(1, ts.getOnNextEvents().get(4).count());
+        assertEquals(0, ts.getOnNextEvents().get(4).sd(), 0.00001);
+        subject.onCompleted();
+        ts.assertCompleted();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWindowSizeZeroThrowsIAE() {
+        Transformers.<Integer> movingStats(0);
+    }
+
+}
@@ -3,8 +3,11 @@ package com.github.davidmoten.rx.internal.operators;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.FixMethodOrder;
 import org.junit.Test;
@@ -71,4 +74,98 @@ public class OperatorWindowMinMaxTest {
         ts.assertError(r);
     }
 
+    @Test
+    public void testMatchesFullScanOfEachWindow() {
+        Random r = new Random(1);
+        List<Integer> list = new ArrayList<Integer>();
+        for (int i = 0; i < 2000; i++) {
+            list.add(r.nextInt(100));
+        }
+        for (int windowSize : new int[] { 1, 2, 3, 17, 100, 1000 }) {
+            List<Integer> min = Observable.from(list)
+                    .compose(Transformers.<Integer> windowMin(windowSize)).toList().toBlocking()
+                    .single();
+            List<Integer> max = Observable.from(list)
+                    .compose(Transformers.<Integer> windowMax(windowSize)).toList().toBlocking()
+                    .single();
+            assertEquals(list.size() - windowSize + 1, min.size());
+            for (int i = 0; i < min.size(); i++) {
+                List<Integer> window = list.subList(i, i + windowSize);
+                assertEquals(Collections.min(window), min.get(i));
+                assertEquals(Collections.max(window), max.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testLongMatchesFullScanOfEachWindow() {
+        Random r = new Random(2);
+        List<Long> list = new ArrayList<Long>();
+        for (int i = 0; i < 2000; i++) {
+            list.add((long) r.nextInt(100) - 50);
+        }
+        for (int windowSize : new int[] { 1, 2, 3, 17, 100, 1000 }) {
+            List<Long> min = Observable.from(list)
+                    .compose(Transformers.windowMinLong(windowSize)).toList().toBlocking()
+                    .single();
+            List<Long> max = Observable.from(list)
+                    .compose(Transformers.windowMaxLong(windowSize)).toList().toBlocking()
+                    .single();
+            assertEquals(list.size() - windowSize + 1, min.size());
+            for (int i = 0; i < min.size(); i++) {
+                List<Long> window = list.subList(i, i + windowSize);
+                assertEquals(Collections.min(window), min.get(i));
+                assertEquals(Collections.max(window), max.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testDoubleMatchesFullScanOfEachWindow() {
+        Random r = new Random(3);
+        List<Double> list = new ArrayList<Double>();
+        for (int i = 0; i < 2000; i++) {
+            list.add(r.nextGaussian());
+        }
+        for (int windowSize : new int[] { 1, 2, 3, 17, 100, 1000 }) {
+            List<Double> min = Observable.from(list)
+                    .compose(Transformers.windowMinDouble(windowSize)).toList().toBlocking()
+                    .single();
+            List<Double> max = Observable.from(list)
+                    .compose(Transformers.windowMaxDouble(windowSize)).toList().toBlocking()
+                    .single();
+            assertEquals(list.size() - windowSize + 1, min.size());
+            for (int i = 0; i < min.size(); i++) {
+                List<Double> window = list.subList(i, i + windowSize);
+                assertEquals(Collections.min(window), min.get(i));
+                assertEquals(Collections.max(window), max.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testDoubleNaNIsGreatest() {
+        List<Double> list = Observable.just(1.0, Double.NaN, 2.0, 3.0)
+                .compose(Transformers.windowMaxDouble(2)).toList().toBlocking().single();
+        assertEquals(Arrays.asList(Double.NaN, Double.NaN, 3.0), list);
+    }
+
+    @Test
+    public void testLongBackpressure() {
+        TestSubscriber<Long> ts = TestSubscriber.create(0);
+        Observable.just(4L, 3L, 2L, 1L).compose(Transformers.windowMinLong(2)).subscribe(ts);
+        ts.assertNoValues();
+        ts.requestMore(2);
+        ts.assertValues(3L, 2L);
+        ts.assertNotCompleted();
+        ts.requestMore(1);
+        ts.assertValues(3L, 2L, 1L);
+        ts.assertCompleted();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLongWindowSizeZeroThrowsIAE() {
+        Transformers.windowMaxLong(0);
+    }
+
 }
@@ -0,0 +1,207 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.github.davidmoten.rx.Transformers;
+
+import rx.Observable;
+import rx.functions.Func1;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
+
+public class OperatorWindowMinMaxTimeTest {
+
+    // value in the low 16 bits, timestamp in the rest
+    private static final Func1<Long, Long> TIMESTAMP = new Func1<Long, Long>() {
+        @Override
+        public Long call(Long x) {
+            return x >> 16;
+        }
+    };
+
+    @Test
+    public void testMatchesFullScanOfEachWindow() {
+        Random r = new Random(1);
+        List<Long> list = new ArrayList<Long>();
+        long time = 0;
+        for (int i = 0; i < 2000; i++) {
+            // irregular gaps including repeated timestamps
+            time += r.nextInt(5);
+            list.add((time << 16) + r.nextInt(1000));
+        }
+        for (long duration : new long[] { 1, 3, 50, 10000 }) {
+            List<Long> min = Observable.from(list)
+                    .compose(Transformers.windowMin(duration, TimeUnit.MILLISECONDS, TIMESTAMP,
+                            VALUE_ORDER))
+                    .toList().toBlocking().single();
+            List<Long> max = Observable.from(list)
+                    .compose(Transformers.windowMax(duration, TimeUnit.MILLISECONDS, TIMESTAMP,
+                            VALUE_ORDER))
+                    .toList().toBlocking().single();
+            assertEquals(list.size(), min.size());
+            for (int i = 0; i < list.size(); i++) {
+                List<Long> window = new ArrayList<Long>();
+                for (int j = 0; j <= i; j++) {
+                    if (TIMESTAMP.call(list.get(j)) > TIMESTAMP.call(list.get(i)) - duration) {
+                        window.add(list.get(j));
+                    }
+                }
+                assertEquals(value(Collections.min(window, VALUE_ORDER)), value(min.get(i)));
+                assertEquals(value(Collections.max(window, VALUE_ORDER)), value(max.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testEarlierTimestampTreatedAsLatest() {
+        List<Long> list = Observable.just(at(10, 5), at(0, 1), at(19, 3))
+                .compose(Transformers.windowMin(10, TimeUnit.MILLISECONDS, TIMESTAMP,
+                        VALUE_ORDER))
+                .map(VALUE).toList().toBlocking().single();
+        // the second value is treated as arriving at 10 so is still in the
+        // window at 19
+        assertEquals(5L, (long) list.get(0));
+        assertEquals(1L, (long) list.get(1));
+        assertEquals(1L, (long) list.get(2));
+    }
+
+    @Test
+    public void testArrivalTime() {
+        TestScheduler scheduler = new TestScheduler();
+        PublishSubject<Integer> subject = PublishSubject.create();
+        TestSubscriber<Integer> ts = TestSubscriber.create();
+        subject.compose(Transformers.<Integer> windowMax(10, TimeUnit.SECONDS, scheduler))
+                .subscribe(ts);
+        subject.onNext(3);
+        scheduler.advanceTimeBy(5, TimeUnit.SECONDS);
+        subject.onNext(1);
+        ts.assertValues(3, 3);
+        scheduler.advanceTimeBy(5, TimeUnit.SECONDS);
+        // 3 has left the window
+        subject.onNext(2);
+        ts.assertValues(3, 3, 2);
+        subject.onCompleted();
+        ts.assertCompleted();
+    }
+
+    @Test
+    public void testEmitsPeriodically() {
+        TestScheduler scheduler = new TestScheduler();
+        PublishSubject<Integer> subject = PublishSubject.create();
+        TestSubscriber<Integer> ts = TestSubscriber.create();
+        subject.compose(Transformers.<Integer> windowMin(10, TimeUnit.SECONDS, 1,
+                TimeUnit.SECONDS, scheduler, NATURAL))
+                .subscribe(ts);
+        subject.onNext(1);
+        subject.onNext(2);
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        ts.assertValues(1);
+        scheduler.advanceTimeBy(4, TimeUnit.SECONDS);
+        subject.onNext(3);
+        scheduler.advanceTimeBy(5, TimeUnit.SECONDS);
+        // 1 and 2 left the window at 10s
+        ts.assertValueCount(10);
+        assertEquals(3, (int) ts.getOnNextEvents().get(9));
+        scheduler.advanceTimeBy(5, TimeUnit.SECONDS);
+        // window is empty from 15s
+        ts.assertValueCount(14);
+        subject.onCompleted();
+        ts.assertCompleted();
+        scheduler.advanceTimeBy(5, TimeUnit.SECONDS);
+        ts.assertValueCount(14);
+    }
+
+    @Test
+    public void testEmitsPeriodicallyOnlyWhenRequested() {
+        TestScheduler scheduler = new TestScheduler();
+        PublishSubject<Integer> subject = PublishSubject.create();
+        TestSubscriber<Integer> ts = TestSubscriber.create(1);
+        subject.compose(Transformers.<Integer> windowMin(10, TimeUnit.SECONDS, 1,
+                TimeUnit.SECONDS, scheduler, NATURAL))
+                .subscribe(ts);
+        subject.onNext(1);
+        scheduler.advanceTimeBy(3, TimeUnit.SECONDS);
+        ts.assertValues(1);
+        ts.requestMore(1);
+        subject.onNext(0);
+        scheduler.advanceTimeBy(3, TimeUnit.SECONDS);
+        ts.assertValues(1, 0);
+    }
+
+    @Test
+    public void testUnsubscribeStopsPeriodicEmissions() {
+        TestScheduler scheduler = new TestScheduler();
+        PublishSubject<Integer> subject = PublishSubject.create();
+        TestSubscriber<Integer> ts = TestSubscriber.create();
+        subject.compose(Transformers.<Integer> windowMin(10, TimeUnit.SECONDS, 1,
+                TimeUnit.SECONDS, scheduler, NATURAL))
+                .subscribe(ts);
+        subject.onNext(1);
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        ts.unsubscribe();
+        scheduler.advanceTimeBy(5, TimeUnit.SECONDS);
+        ts.assertValues(1);
+    }
+
+    @Test
+    public void testTimestampErrorPropagated() {
+        final RuntimeException e = new RuntimeException();
+        TestSubscriber<Long> ts = TestSubscriber.create();
+        Observable.just(1L, 2L)
+                .compose(Transformers.windowMax(1, TimeUnit.SECONDS, new Func1<Long, Long>() {
+                    @Override
+                    public Long call(Long x) {
+                        throw e;
+                    }
+                }, VALUE_ORDER)).subscribe(ts);
+        ts.assertNoValues();
+        ts.assertError(e);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDurationZeroThrowsIAE() {
+        Transformers.windowMax(0, TimeUnit.SECONDS, TIMESTAMP, VALUE_ORDER);
+    }
+
+    private static final Comparator<Long> VALUE_ORDER = new Comparator<Long>() {
+        @Override
+        public int compare(Long a, Long b) {
+            long x = value(a);
+            long y = value(b);
+            return x < y ? -1 : (x == y ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<Integer> NATURAL = new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+            return a.compareTo(b);
+        }
+    };
+
+    private static final Func1<Long, Long> VALUE = new Func1<Long, Long>() {
+        @Override
+        public Long call(Long x) {
+            return value(x);
+        }
+    };
+
+    private static long value(long x) {
+        return x & 0xFFFF;
+    }
+
+    private static long at(long time, long value) {
+        return (time << 16) + value;
+    }
+
+}
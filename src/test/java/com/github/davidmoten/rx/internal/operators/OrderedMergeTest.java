@@ -1,11 +1,15 @@
 package com.github.davidmoten.rx.internal.operators;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static rx.Observable.from;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
@@ -19,6 +23,8 @@ import com.google.common.collect.Sets;
 
 import rx.Observable;
 import rx.Scheduler;
+import rx.functions.Action1;
+import rx.functions.Func1;
 import rx.observers.TestSubscriber;
 import rx.schedulers.Schedulers;
 
@@ -269,4 +275,168 @@ public class OrderedMergeTest {
 		ts.assertValues(1, 2);
 
 	}
+
+	@Test
+	public void testWithAllCombinationsFromPowerSetUsingHeap() {
+		for (int n = 0; n <= 8; n++) {
+			Set<Integer> numbers = Sets.newTreeSet();
+			for (int i = 1; i <= n; i++) {
+				numbers.add(i);
+			}
+			for (Set<Integer> a : Sets.powerSet(numbers)) {
+				TreeSet<Integer> x = Sets.newTreeSet(a);
+				TreeSet<Integer> y = Sets.newTreeSet(Sets.difference(numbers, x));
+				List<Observable<Integer>> sources = Lists.newArrayList(from(x), from(y));
+				List<Integer> list = Observable.create(new OrderedMerge<Integer>(sources, comparator, false, true))
+						.toList().toBlocking().single();
+				assertEquals(Lists.newArrayList(numbers), list);
+			}
+		}
+	}
+
+	@Test
+	public void testManySourcesUseHeapAndMatchScan() {
+		List<Observable<Integer>> sources = randomSortedSources(300, 20);
+		assertTrue(sources.size() > OrderedMerge.HEAP_THRESHOLD);
+		List<Integer> expected = new ArrayList<Integer>();
+		for (Observable<Integer> source : sources) {
+			expected.addAll(source.toList().toBlocking().single());
+		}
+		Collections.sort(expected);
+		assertEquals(expected, OrderedMerge.create(sources, comparator).toList().toBlocking().single());
+		assertEquals(expected, Observable.create(new OrderedMerge<Integer>(sources, comparator, false, false))
+				.toList().toBlocking().single());
+	}
+
+	@Test
+	public void testManySourcesAsync() {
+		List<Observable<Integer>> sources = new ArrayList<Observable<Integer>>();
+		List<Integer> expected = new ArrayList<Integer>();
+		for (Observable<Integer> source : randomSortedSources(100, 200)) {
+			expected.addAll(source.toList().toBlocking().single());
+			sources.add(source.subscribeOn(Schedulers.computation()));
+		}
+		Collections.sort(expected);
+		OrderedMerge.create(sources, comparator) //
+				.to(TestingHelper.<Integer> test()) //
+				.awaitTerminalEvent(10, TimeUnit.SECONDS) //
+				.assertNoErrors() //
+				.assertCompleted() //
+				.assertValueCount(expected.size()) //
+				.assertValues(expected.toArray(new Integer[0]));
+	}
+
+	@Test
+	public void testHeapTiesWonByEarlierSource() {
+		// compare on tens only so that there are many ties
+		Comparator<Integer> tens = new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.valueOf(a / 10).compareTo(b / 10);
+			}
+		};
+		List<Observable<Integer>> sources = new ArrayList<Observable<Integer>>();
+		for (int i = 0; i < 10; i++) {
+			sources.add(Observable.just(i, 10 + i, 20 + i));
+		}
+		List<Integer> expected = Observable.range(0, 30).toList().toBlocking().single();
+		assertEquals(expected, Observable.create(new OrderedMerge<Integer>(sources, tens, false, true)).toList()
+				.toBlocking().single());
+	}
+
+	@Test
+	public void testHeapBackpressureAndErrors() {
+		List<Observable<Integer>> sources = new ArrayList<Observable<Integer>>();
+		for (int i = 0; i < 20; i++) {
+			sources.add(Observable.just(i, 20 + i));
+		}
+		TestSubscriber<Integer> ts = TestSubscriber.create(0);
+		OrderedMerge.create(sources, comparator).subscribe(ts);
+		ts.assertNoValues();
+		ts.requestMore(3);
+		ts.assertValues(0, 1, 2);
+		ts.requestMore(100);
+		ts.assertValueCount(40);
+		ts.assertCompleted();
+
+		sources.add(Observable.just(5).concatWith(Observable.<Integer> error(new TestException())));
+		ts = TestSubscriber.create();
+		OrderedMerge.create(sources, comparator).subscribe(ts);
+		ts.assertError(TestException.class);
+		ts.assertValues(0, 1, 2, 3, 4, 5, 5);
+
+		ts = TestSubscriber.create();
+		OrderedMerge.create(sources, comparator, true).subscribe(ts);
+		ts.assertError(TestException.class);
+		ts.assertValueCount(41);
+	}
+
+	@Test
+	public void testRequestsReplenishedInBatches() {
+		final List<Long> requests = new ArrayList<Long>();
+		Observable<Integer> o1 = Observable.range(1, 100).doOnRequest(new Action1<Long>() {
+			@Override
+			public void call(Long n) {
+				requests.add(n);
+			}
+		});
+		Observable<Integer> o2 = Observable.range(1, 100);
+		List<Integer> list = o1.compose(Transformers.orderedMergeWith(o2, comparator, 16)).toList().toBlocking()
+				.single();
+		assertEquals(200, list.size());
+		// 16 up front then 12 each time 75% of 16 is consumed
+		assertEquals(Arrays.asList(16L, 12L, 12L, 12L, 12L, 12L, 12L, 12L), requests.subList(0, 8));
+		for (long n : requests) {
+			assertTrue(n == 16 || n == 12);
+		}
+	}
+
+	@Test
+	public void testPrefetchOne() {
+		List<Observable<Integer>> sources = randomSortedSources(10, 50);
+		List<Integer> expected = OrderedMerge.create(sources, comparator).toList().toBlocking().single();
+		assertEquals(expected, OrderedMerge.create(sources, comparator, false, 1).toList().toBlocking().single());
+	}
+
+	@Test
+	public void testPrefetchAsync() {
+		Observable<Integer> o1 = Observable.range(0, 1000).map(linear(2, 1)).subscribeOn(Schedulers.computation());
+		Observable<Integer> o2 = Observable.range(0, 1000).map(linear(2, 0)).subscribeOn(Schedulers.computation());
+		o1.compose(Transformers.orderedMergeWith(o2, comparator, 4)) //
+				.to(TestingHelper.<Integer> test()) //
+				.awaitTerminalEvent(10, TimeUnit.SECONDS) //
+				.assertNoErrors() //
+				.assertCompleted() //
+				.assertValues(Observable.range(0, 2000).toList().toBlocking().single().toArray(new Integer[0]));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPrefetchMustBePositive() {
+		OrderedMerge.create(randomSortedSources(2, 2), comparator, false, 0);
+	}
+
+	private static Func1<Integer, Integer> linear(final int factor, final int offset) {
+		return new Func1<Integer, Integer>() {
+			@Override
+			public Integer call(Integer n) {
+				return n * factor + offset;
+			}
+		};
+	}
+
+	private static List<Observable<Integer>> randomSortedSources(int count, int maxSize) {
+		Random random = new Random(1);
+		List<Observable<Integer>> sources = new ArrayList<Observable<Integer>>();
+		for (int i = 0; i < count; i++) {
+			List<Integer> list = new ArrayList<Integer>();
+			int size = random.nextInt(maxSize);
+			for (int j = 0; j < size; j++) {
+				list.add(random.nextInt(1000));
+			}
+			Collections.sort(list);
+			sources.add(Observable.from(list));
+		}
+		return sources;
+	}
+
 }
\ No newline at end of file
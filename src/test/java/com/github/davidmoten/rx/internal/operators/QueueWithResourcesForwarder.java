@@ -4,6 +4,8 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.Queue;
 
+import rx.functions.Action1;
+
 public class QueueWithResourcesForwarder<T> implements QueueWithResources<T> {
 
     private final Queue<T> q;
@@ -48,6 +50,20 @@ public class QueueWithResourcesForwarder<T> implements QueueWithResources<T> {
         return q.poll();
     }
 
+    @Override
+    public int drainTo(Action1<? super T> consumer, int max) {
+        int count = 0;
+        while (count < max) {
+            T t = q.poll();
+            if (t == null) {
+                break;
+            }
+            count++;
+            consumer.call(t);
+        }
+        return count;
+    }
+
     @Override
     public T element() {
         return q.element();
@@ -0,0 +1,89 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.github.davidmoten.rx.buffertofile.DataSerializers;
+import com.github.davidmoten.rx.buffertofile.Options;
+import com.github.davidmoten.util.Optional;
+
+import rx.Scheduler;
+import rx.functions.Func0;
+import rx.schedulers.Schedulers;
+
+/**
+ * Samples the latency of a single {@link RollingSPSCQueue#offer(Object)} with
+ * a rollover every 1000 items (as for {@code Options.rolloverEvery(1000)})
+ * while another thread polls. With {@code onScheduler} the next queue is
+ * created and read queues are deleted on a scheduler (as for
+ * {@code Options.rolloverScheduler}) so the high percentiles should not
+ * include file creation and deletion.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RollingSPSCQueueOfferBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean onScheduler;
+
+    private RollingSPSCQueue<Long> queue;
+    private Thread reader;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private long n;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        final Func0<File> fileFactory = Options.defaultInstance().fileFactory();
+        final int bufferSizeBytes = Options.defaultInstance().bufferSizeBytes();
+        Func0<QueueWithResources<Long>> factory = new Func0<QueueWithResources<Long>>() {
+            @Override
+            public QueueWithResources<Long> call() {
+                return new FileBasedSPSCQueue<Long>(bufferSizeBytes, fileFactory.call(),
+                        DataSerializers.longs());
+            }
+        };
+        Optional<Scheduler> scheduler = onScheduler ? Optional.of(Schedulers.io())
+                : Optional.<Scheduler> absent();
+        queue = new RollingSPSCQueue<Long>(factory, Long.MAX_VALUE, 1000,
+                Collections.<QueueWithResources<Long>> emptyList(), scheduler);
+        finished.set(false);
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!finished.get()) {
+                    if (queue.poll() == null) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        reader.start();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        finished.set(true);
+        reader.join();
+        queue.unsubscribe();
+    }
+
+    @Benchmark
+    public boolean offer() {
+        return queue.offer(n++);
+    }
+
+}
@@ -1,14 +1,26 @@
 package com.github.davidmoten.rx.internal.operators;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Ignore;
 import org.junit.Test;
 
+import com.github.davidmoten.rx.buffertofile.DataSerializers;
+import com.github.davidmoten.util.Optional;
 import com.google.testing.threadtester.AnnotatedTestRunner;
 import com.google.testing.threadtester.MethodOption;
 import com.google.testing.threadtester.ThreadedAfter;
@@ -16,7 +28,11 @@ import com.google.testing.threadtester.ThreadedBefore;
 import com.google.testing.threadtester.ThreadedMain;
 import com.google.testing.threadtester.ThreadedSecondary;
 
+import rx.Scheduler;
+import rx.functions.Action1;
 import rx.functions.Func0;
+import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
 
 /**
  * Uses thread-weaver to test concurrent calls of poll and offer using
@@ -61,6 +77,348 @@ public class RollingSPSCQueueTest {
 		assertTrue(first == 1 && second == null || first == 2 && second == null);
 	}
 
+	@Test
+	public void testQueuesCreatedAheadAndDeletedByWorker() {
+		TestScheduler scheduler = new TestScheduler();
+		List<File> files = new CopyOnWriteArrayList<File>();
+		RollingSPSCQueue<Integer> q = createFileQueue(files, 3, Optional.<Scheduler> of(scheduler));
+		assertTrue(files.isEmpty());
+		scheduler.triggerActions();
+		// first queue prepared before the first offer
+		assertEquals(1, files.size());
+		q.offer(1);
+		assertEquals(1, files.size());
+		scheduler.triggerActions();
+		assertEquals(2, files.size());
+		q.offer(2);
+		q.offer(3);
+		// rollover uses the prepared queue
+		assertEquals(2, files.size());
+		scheduler.triggerActions();
+		assertEquals(3, files.size());
+		assertEquals(1, (int) q.poll());
+		assertEquals(2, (int) q.poll());
+		assertEquals(3, (int) q.poll());
+		// the first queue is deleted by the worker not by poll
+		assertTrue(files.get(0).exists());
+		scheduler.triggerActions();
+		assertFalse(files.get(0).exists());
+		assertNull(q.poll());
+		q.unsubscribe();
+		scheduler.triggerActions();
+		for (File file : files) {
+			assertFalse(file.exists());
+		}
+	}
+
+	@Test
+	public void testRolloverCreatesQueueIfWorkerHasNotPreparedOne() {
+		TestScheduler scheduler = new TestScheduler();
+		List<File> files = new CopyOnWriteArrayList<File>();
+		RollingSPSCQueue<Integer> q = createFileQueue(files, 3, Optional.<Scheduler> of(scheduler));
+		for (int i = 1; i <= 5; i++) {
+			q.offer(i);
+		}
+		assertEquals(3, files.size());
+		scheduler.triggerActions();
+		// only one queue is prepared
+		assertEquals(4, files.size());
+		for (int i = 1; i <= 5; i++) {
+			assertEquals(i, (int) q.poll());
+		}
+		assertNull(q.poll());
+		q.unsubscribe();
+		scheduler.triggerActions();
+		for (File file : files) {
+			assertFalse(file.exists());
+		}
+	}
+
+	@Test
+	public void testDrainToAcrossRollover() {
+		List<File> files = new CopyOnWriteArrayList<File>();
+		RollingSPSCQueue<Integer> q = createFileQueue(files, 3, Optional.<Scheduler> absent());
+		for (int i = 1; i <= 10; i++) {
+			q.offer(i);
+		}
+		final List<Integer> list = new ArrayList<Integer>();
+		Action1<Integer> add = new Action1<Integer>() {
+			@Override
+			public void call(Integer t) {
+				list.add(t);
+			}
+		};
+		assertEquals(4, q.drainTo(add, 4));
+		assertEquals(Arrays.asList(1, 2, 3, 4), list);
+		assertEquals(6, q.drainTo(add, 100));
+		assertEquals(10, list.size());
+		assertEquals(10, (int) list.get(9));
+		assertEquals(0, q.drainTo(add, 100));
+		assertTrue(q.isEmpty());
+		// queues that have been read are deleted
+		for (File file : files.subList(0, files.size() - 1)) {
+			assertFalse(file.exists());
+		}
+		q.unsubscribe();
+	}
+
+	@Test
+	public void testConcurrentOfferAndPollAcrossRollovers() throws InterruptedException {
+		List<File> files = new CopyOnWriteArrayList<File>();
+		final RollingSPSCQueue<Integer> q = createFileQueue(files, 100, Optional.<Scheduler> absent());
+		final int max = 200000;
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final int[] next = new int[] { 1 };
+				Action1<Integer> check = new Action1<Integer>() {
+					@Override
+					public void call(Integer t) {
+						if (t != next[0]) {
+							failed.set(true);
+						}
+						next[0]++;
+					}
+				};
+				while (next[0] <= max) {
+					// alternate between poll and drainTo
+					if (next[0] % 2 == 0) {
+						Integer t = q.poll();
+						if (t != null) {
+							check.call(t);
+						}
+					} else {
+						q.drainTo(check, 37);
+					}
+				}
+			}
+		});
+		reader.start();
+		for (int i = 1; i <= max; i++) {
+			q.offer(i);
+		}
+		reader.join();
+		assertFalse(failed.get());
+		assertTrue(q.isEmpty());
+		for (File file : files.subList(0, files.size() - 1)) {
+			assertFalse(file.exists());
+		}
+		q.unsubscribe();
+	}
+
+	@Test
+	public void testQueueDroppedWhileBeingReadIsUnsubscribedAfterRead() {
+		final List<File> files = new CopyOnWriteArrayList<File>();
+		final RollingSPSCQueue<Integer> q = createFileQueue(files, 3, Optional.<Scheduler> absent());
+		for (int i = 1; i <= 7; i++) {
+			q.offer(i);
+		}
+		// two items per queue
+		assertEquals(4, files.size());
+		final List<Integer> list = new ArrayList<Integer>();
+		final AtomicBoolean existedAfterDrop = new AtomicBoolean();
+		q.drainTo(new Action1<Integer>() {
+			@Override
+			public void call(Integer t) {
+				list.add(t);
+				if (t == 1) {
+					// as if the writer dropped the queue being read
+					assertTrue(q.dropOldestQueue());
+					existedAfterDrop.set(files.get(0).exists());
+				}
+			}
+		}, 1);
+		assertEquals(Arrays.asList(1), list);
+		assertTrue(existedAfterDrop.get());
+		// not unsubscribed until the reader moves off it
+		assertTrue(files.get(0).exists());
+		// the reader moves on to the next queue
+		assertEquals(3, (int) q.poll());
+		assertFalse(files.get(0).exists());
+		q.unsubscribe();
+		for (File file : files) {
+			assertFalse(file.exists());
+		}
+	}
+
+	@Test
+	public void testDropQueueBeingReadWhilePollingSynchronousDeletion() throws InterruptedException {
+		checkDropQueueBeingReadWhilePolling(Optional.<Scheduler> absent());
+	}
+
+	@Test
+	public void testDropQueueBeingReadWhilePollingDeletionOnScheduler() throws InterruptedException {
+		checkDropQueueBeingReadWhilePolling(Optional.of(Schedulers.io()));
+	}
+
+	private static void checkDropQueueBeingReadWhilePolling(Optional<Scheduler> scheduler)
+			throws InterruptedException {
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		final AtomicInteger index = new AtomicInteger();
+		Func0<QueueWithResources<Integer>> factory = new Func0<QueueWithResources<Integer>>() {
+			@Override
+			public QueueWithResources<Integer> call() {
+				File file = new File("target/rolling-drop" + index.incrementAndGet());
+				return new UseAfterUnsubscribeDetector<Integer>(
+						new FileBasedSPSCQueue<Integer>(16, file, DataSerializers.integer()), failed);
+			}
+		};
+		final RollingSPSCQueue<Integer> q = new RollingSPSCQueue<Integer>(factory, Long.MAX_VALUE, 20,
+				Collections.<QueueWithResources<Integer>> emptyList(), scheduler);
+		final int max = 200000;
+		final AtomicBoolean finished = new AtomicBoolean(false);
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final int[] last = new int[] { 0 };
+				Action1<Integer> check = new Action1<Integer>() {
+					@Override
+					public void call(Integer t) {
+						// items may be dropped but order is preserved
+						if (t <= last[0]) {
+							failed.set(true);
+						}
+						last[0] = t;
+					}
+				};
+				try {
+					while (!finished.get() || !q.isEmpty()) {
+						if (last[0] % 2 == 0) {
+							Integer t = q.poll();
+							if (t != null) {
+								check.call(t);
+							}
+						} else {
+							q.drainTo(check, 7);
+						}
+					}
+				} catch (Throwable e) {
+					e.printStackTrace();
+					failed.set(true);
+				}
+			}
+		});
+		reader.start();
+		for (int i = 1; i <= max; i++) {
+			q.offer(i);
+			if (i % 50 == 0) {
+				q.dropOldestQueue();
+			}
+		}
+		finished.set(true);
+		reader.join();
+		q.unsubscribe();
+		assertFalse(failed.get());
+	}
+
+	/**
+	 * Flags a poll or drain of the wrapped queue after (or while) it is
+	 * unsubscribed.
+	 */
+	private static final class UseAfterUnsubscribeDetector<T> extends AbstractQueueWithResources<T> {
+
+		private final AtomicBoolean failed;
+		private final AtomicBoolean unsubscribed = new AtomicBoolean(false);
+		private final AtomicInteger reading = new AtomicInteger();
+
+		UseAfterUnsubscribeDetector(QueueWithResources<T> queue, AtomicBoolean failed) {
+			super(queue);
+			this.failed = failed;
+		}
+
+		@Override
+		public T poll() {
+			enter();
+			try {
+				return super.poll();
+			} finally {
+				reading.decrementAndGet();
+			}
+		}
+
+		@Override
+		public int drainTo(Action1<? super T> consumer, int max) {
+			enter();
+			try {
+				return super.drainTo(consumer, max);
+			} finally {
+				reading.decrementAndGet();
+			}
+		}
+
+		private void enter() {
+			reading.incrementAndGet();
+			if (unsubscribed.get()) {
+				failed.set(true);
+			}
+		}
+
+		@Override
+		public void unsubscribe() {
+			unsubscribed.set(true);
+			if (reading.get() > 0) {
+				failed.set(true);
+			}
+			super.unsubscribe();
+		}
+
+		@Override
+		public boolean isUnsubscribed() {
+			return unsubscribed.get();
+		}
+	}
+
+	@Test
+	public void testRolloverFilesCreatedAndDeletedOnScheduler() {
+		List<File> files = new CopyOnWriteArrayList<File>();
+		TestScheduler scheduler = new TestScheduler();
+		// two items per queue
+		RollingSPSCQueue<Integer> q = createFileQueue(files, 3, Optional.<Scheduler> of(scheduler));
+		assertEquals(0, files.size());
+		scheduler.triggerActions();
+		// the first queue is prepared on the scheduler
+		assertEquals(1, files.size());
+		q.offer(1);
+		assertEquals(1, files.size());
+		scheduler.triggerActions();
+		assertEquals(2, files.size());
+		q.offer(2);
+		q.offer(3);
+		// rollover used the prepared queue
+		assertEquals(2, files.size());
+		scheduler.triggerActions();
+		assertEquals(3, files.size());
+		assertEquals(1, (int) q.poll());
+		assertEquals(2, (int) q.poll());
+		assertEquals(3, (int) q.poll());
+		// the first queue has been read but is deleted on the scheduler
+		assertTrue(files.get(0).exists());
+		scheduler.triggerActions();
+		assertFalse(files.get(0).exists());
+		assertTrue(files.get(1).exists());
+		q.unsubscribe();
+		scheduler.triggerActions();
+		for (File file : files) {
+			assertFalse(file.exists());
+		}
+	}
+
+	private static RollingSPSCQueue<Integer> createFileQueue(final List<File> files, long maxItemsPerQueue,
+			Optional<Scheduler> scheduler) {
+		final AtomicInteger index = new AtomicInteger();
+		Func0<QueueWithResources<Integer>> factory = new Func0<QueueWithResources<Integer>>() {
+			@Override
+			public QueueWithResources<Integer> call() {
+				File file = new File("target/rolling" + index.incrementAndGet());
+				files.add(file);
+				return new FileBasedSPSCQueue<Integer>(256, file, DataSerializers.integer());
+			}
+		};
+		return new RollingSPSCQueue<Integer>(factory, Long.MAX_VALUE, maxItemsPerQueue,
+				Collections.<QueueWithResources<Integer>> emptyList(), scheduler);
+	}
+
 	private static final Func0<QueueWithResources<Integer>> queueFactory = new Func0<QueueWithResources<Integer>>() {
 
 		@Override
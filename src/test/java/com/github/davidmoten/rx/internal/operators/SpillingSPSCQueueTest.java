@@ -0,0 +1,172 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.github.davidmoten.rx.buffertofile.DataSerializers;
+import com.github.davidmoten.rx.buffertofile.SpillListener;
+
+import rx.functions.Func0;
+
+public class SpillingSPSCQueueTest {
+
+    @Test
+    public void testNoFileCreatedIfMemoryBufferDoesNotOverflow() {
+        List<File> files = new ArrayList<File>();
+        RecordingSpillListener listener = new RecordingSpillListener();
+        SpillingSPSCQueue<Integer> q = createQueue(4, files, listener);
+        for (int i = 1; i <= 4; i++) {
+            q.offer(i);
+        }
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, (int) q.poll());
+        }
+        assertNull(q.poll());
+        assertTrue(q.isEmpty());
+        assertTrue(files.isEmpty());
+        assertEquals(0, q.resourcesSize());
+        assertEquals(0, listener.started.get());
+        q.unsubscribe();
+    }
+
+    @Test
+    public void testSpillPreservesOrderAndReturnsToMemory() {
+        List<File> files = new ArrayList<File>();
+        RecordingSpillListener listener = new RecordingSpillListener();
+        SpillingSPSCQueue<Integer> q = createQueue(4, files, listener);
+        for (int i = 1; i <= 10; i++) {
+            q.offer(i);
+        }
+        assertEquals(1, files.size());
+        assertEquals(1, listener.started.get());
+        assertEquals(1, (int) q.poll());
+        // still spilling because items remain in the file
+        q.offer(11);
+        for (int i = 2; i <= 11; i++) {
+            assertEquals(i, (int) q.poll());
+        }
+        assertNull(q.poll());
+        assertEquals(0, listener.finished.get());
+        // everything spilled has been read so back to memory
+        q.offer(12);
+        assertEquals(1, listener.finished.get());
+        assertEquals(7, listener.itemsSpilled.get());
+        assertEquals(12, (int) q.poll());
+        // spill again reusing the file queue
+        for (int i = 13; i <= 18; i++) {
+            q.offer(i);
+        }
+        assertEquals(2, listener.started.get());
+        assertEquals(1, files.size());
+        for (int i = 13; i <= 18; i++) {
+            assertEquals(i, (int) q.poll());
+        }
+        q.unsubscribe();
+        assertEquals(2, listener.finished.get());
+        assertEquals(9, listener.itemsSpilled.get());
+        assertFalse(files.get(0).exists());
+    }
+
+    @Test
+    public void testNullsHeldInMemory() {
+        SpillingSPSCQueue<Integer> q = createQueue(4, new ArrayList<File>(),
+                new RecordingSpillListener());
+        q.offer(null);
+        q.offer(1);
+        q.offer(null);
+        assertTrue(NullSentinel.isNullSentinel(q.poll()));
+        assertEquals(1, (int) q.poll());
+        assertTrue(NullSentinel.isNullSentinel(q.poll()));
+        assertNull(q.poll());
+        q.unsubscribe();
+    }
+
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        RecordingSpillListener listener = new RecordingSpillListener();
+        final SpillingSPSCQueue<Integer> queue = createQueue(16, new ArrayList<File>(), listener);
+        final int max = 1000000;
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        Thread t1 = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                for (int i = 1; i <= max; i++) {
+                    queue.offer(i);
+                    if (i % 1000 == 0) {
+                        // give the reader a chance to empty the file queue
+                        // so that there are many spills
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        Thread t2 = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                int i = 1;
+                while (i <= max) {
+                    Integer t = queue.poll();
+                    if (t != null) {
+                        if (i != t) {
+                            failed.set(true);
+                            System.out.println("failed for i = " + i);
+                        }
+                        i++;
+                    }
+                }
+            }
+        });
+        t1.start();
+        t2.start();
+        t1.join();
+        t2.join();
+        queue.unsubscribe();
+        assertFalse(failed.get());
+        System.out.println("spills=" + listener.started.get() + ", itemsSpilled="
+                + listener.itemsSpilled.get());
+    }
+
+    private static SpillingSPSCQueue<Integer> createQueue(int memoryBufferItems,
+            final List<File> files, SpillListener listener) {
+        Func0<QueueWithResources<Integer>> factory = new Func0<QueueWithResources<Integer>>() {
+            @Override
+            public QueueWithResources<Integer> call() {
+                File file = new File("target/spilling" + files.size());
+                files.add(file);
+                return new FileBasedSPSCQueue<Integer>(1024, file, DataSerializers.integer());
+            }
+        };
+        return new SpillingSPSCQueue<Integer>(memoryBufferItems, factory, listener);
+    }
+
+    private static final class RecordingSpillListener implements SpillListener {
+
+        final AtomicLong started = new AtomicLong();
+        final AtomicLong finished = new AtomicLong();
+        final AtomicLong itemsSpilled = new AtomicLong();
+
+        @Override
+        public void spillStarted() {
+            started.incrementAndGet();
+        }
+
+        @Override
+        public void spillFinished(long items) {
+            finished.incrementAndGet();
+            itemsSpilled.addAndGet(items);
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+import com.github.davidmoten.rx.buffertofile.DataSerializers;
+import com.github.davidmoten.rx.buffertofile.OverflowPolicy;
+import com.github.davidmoten.rx.exceptions.StorageFullException;
+import com.github.davidmoten.util.Optional;
+
+import rx.Scheduler;
+import rx.functions.Func0;
+
+public class StorageLimitedQueueTest {
+
+    @Test
+    public void testErrorWhenStorageFull() {
+        StorageLimitedQueue<Integer> q = new StorageLimitedQueue<Integer>(
+                createFileQueue(new File("target/limited-error")), 11, OverflowPolicy.ERROR);
+        q.offer(1);
+        q.offer(2);
+        q.offer(3);
+        try {
+            q.offer(4);
+            fail();
+        } catch (StorageFullException e) {
+            // expected
+        }
+        assertEquals(1, (int) q.poll());
+        q.unsubscribe();
+    }
+
+    @Test
+    public void testEmptyQueueIsNotFull() {
+        StorageLimitedQueue<Integer> q = new StorageLimitedQueue<Integer>(
+                createFileQueue(new File("target/limited-empty")), 7, OverflowPolicy.ERROR);
+        q.offer(1);
+        q.offer(2);
+        long size = q.resourcesSize();
+        assertTrue(size >= 7);
+        assertEquals(1, (int) q.poll());
+        assertEquals(2, (int) q.poll());
+        // file not reclaimed but everything has been read
+        assertEquals(size, q.resourcesSize());
+        q.offer(3);
+        assertEquals(3, (int) q.poll());
+        q.unsubscribe();
+    }
+
+    @Test
+    public void testDropNewest() {
+        StorageLimitedQueue<Integer> q = new StorageLimitedQueue<Integer>(
+                createFileQueue(new File("target/limited-drop-newest")), 11,
+                OverflowPolicy.DROP_NEWEST);
+        for (int i = 1; i <= 5; i++) {
+            q.offer(i);
+        }
+        assertEquals(1, (int) q.poll());
+        assertEquals(2, (int) q.poll());
+        assertEquals(3, (int) q.poll());
+        assertNull(q.poll());
+        q.unsubscribe();
+    }
+
+    @Test
+    public void testDropOldestSegment() {
+        final List<File> files = new CopyOnWriteArrayList<File>();
+        Func0<QueueWithResources<Integer>> factory = new Func0<QueueWithResources<Integer>>() {
+            @Override
+            public QueueWithResources<Integer> call() {
+                File file = new File("target/limited-segment" + files.size());
+                files.add(file);
+                return createFileQueue(file);
+            }
+        };
+        // two items per segment after the first
+        RollingSPSCQueue<Integer> rolling = new RollingSPSCQueue<Integer>(factory, Long.MAX_VALUE,
+                3, Collections.<QueueWithResources<Integer>> emptyList(),
+                Optional.<Scheduler> absent());
+        StorageLimitedQueue<Integer> q = new StorageLimitedQueue<Integer>(rolling, 14,
+                OverflowPolicy.DROP_OLDEST_SEGMENT);
+        for (int i = 1; i <= 6; i++) {
+            q.offer(i);
+        }
+        // segment holding 1, 2 dropped to make room for 5
+        assertFalse(files.get(0).exists());
+        for (int i = 3; i <= 6; i++) {
+            assertEquals(i, (int) q.poll());
+        }
+        assertNull(q.poll());
+        q.unsubscribe();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDropOldestSegmentRequiresRollingQueue() {
+        FileBasedSPSCQueue<Integer> queue = createFileQueue(new File("target/limited-not-rolling"));
+        try {
+            new StorageLimitedQueue<Integer>(queue, 16, OverflowPolicy.DROP_OLDEST_SEGMENT);
+        } finally {
+            queue.unsubscribe();
+        }
+    }
+
+    private static FileBasedSPSCQueue<Integer> createFileQueue(File file) {
+        // a one byte write buffer means at least all but the last byte offered
+        // is in the file so n integers have a resourcesSize of 4n - 1 or 4n
+        // (depending on whether the JDK writes an int a byte at a time)
+        return new FileBasedSPSCQueue<Integer>(1, file, DataSerializers.integer());
+    }
+
+}
@@ -5,6 +5,7 @@ import static org.junit.Assert.assertEquals;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.regex.Pattern;
 
@@ -130,6 +131,72 @@ public class StringSplitTest {
         ts.assertValues("boo", "and", "you");
     }
 
+    @Test
+    public void testLiteralSpanningChunks() {
+        Observable<String> o = Observable.just("a:", ":b::", ":c:", ":");
+        List<String> list = o.compose(Transformers.split("::")).toList().toBlocking().single();
+        assertEquals(asList("a", "b", ":c", ""), list);
+    }
+
+    @Test
+    public void testLongLineInManySmallChunks() {
+        StringBuilder s = new StringBuilder();
+        List<String> chunks = new ArrayList<String>();
+        for (int i = 0; i < 100000; i++) {
+            chunks.add("ab");
+            s.append("ab");
+        }
+        chunks.add(":c");
+        List<String> list = Observable.from(chunks).compose(Transformers.split(":")).toList()
+                .toBlocking().single();
+        assertEquals(asList(s.toString(), "c"), list);
+    }
+
+    @Test
+    public void testSameAsSplittingEachChunkWithLeftOver() {
+        Random r = new Random(1);
+        String[] patterns = { ":", "::", "ab", "aa", "a+", ":|b", "(?=b)", "", "\\s+", "^a",
+                "(?<=a):", "b$", "\\bb" };
+        for (int k = 0; k < 2000; k++) {
+            List<String> chunks = new ArrayList<String>();
+            int n = r.nextInt(6);
+            for (int i = 0; i < n; i++) {
+                StringBuilder s = new StringBuilder();
+                int length = r.nextInt(6);
+                for (int j = 0; j < length; j++) {
+                    s.append("ab: ".charAt(r.nextInt(4)));
+                }
+                chunks.add(s.toString());
+            }
+            for (String pattern : patterns) {
+                List<String> list = Observable.from(chunks).compose(Transformers.split(pattern))
+                        .toList().toBlocking().single();
+                assertEquals(pattern + " " + chunks, splitEachChunkWithLeftOver(chunks, pattern),
+                        list);
+            }
+            List<String> list = Observable.from(chunks)
+                    .compose(Transformers.split(Pattern.compile("a:", Pattern.LITERAL))).toList()
+                    .toBlocking().single();
+            assertEquals(splitEachChunkWithLeftOver(chunks, "a:"), list);
+        }
+    }
+
+    // the original implementation
+    private static List<String> splitEachChunkWithLeftOver(List<String> chunks, String pattern) {
+        List<String> list = new ArrayList<String>();
+        String leftOver = null;
+        for (String chunk : chunks) {
+            String s = leftOver == null ? chunk : leftOver + chunk;
+            String[] parts = s.split(pattern, -1);
+            list.addAll(asList(parts).subList(0, parts.length - 1));
+            leftOver = parts[parts.length - 1];
+        }
+        if (leftOver != null) {
+            list.add(leftOver);
+        }
+        return list;
+    }
+
     private static void checkWithBackpressure(Observable<String> o, List<String> expected) {
         final List<String> list = new ArrayList<String>();
         o.compose(Transformers.split(":")).subscribe(createBackpressureSubscriber(list));
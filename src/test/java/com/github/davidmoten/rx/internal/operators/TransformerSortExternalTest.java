@@ -0,0 +1,191 @@
+package com.github.davidmoten.rx.internal.operators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.github.davidmoten.rx.Transformers;
+import com.github.davidmoten.rx.buffertofile.DataSerializers;
+import com.github.davidmoten.rx.buffertofile.Options;
+
+import rx.Observable;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.observers.TestSubscriber;
+
+public class TransformerSortExternalTest {
+
+    private static final Comparator<Integer> NATURAL = new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+            return a.compareTo(b);
+        }
+    };
+
+    // compares on the first character only so that ties are common
+    private static final Comparator<String> FIRST_CHAR = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            return Character.valueOf(a.charAt(0)).compareTo(b.charAt(0));
+        }
+    };
+
+    @Test
+    public void testSortsLikeInMemorySortWithManyMergePasses() {
+        Files files = new Files();
+        List<Integer> list = randomIntegers(10000);
+        List<Integer> expected = new ArrayList<Integer>(list);
+        Collections.sort(expected);
+        List<Integer> sorted = Observable.from(list)
+                .compose(new TransformerSortExternal<Integer>(NATURAL, DataSerializers.integer(),
+                        100, 4, files, 1024))
+                .toList().toBlocking().single();
+        assertEquals(expected, sorted);
+        assertFalse(files.anyExist());
+    }
+
+    @Test
+    public void testEqualItemsKeepArrivalOrder() {
+        Files files = new Files();
+        List<String> list = new ArrayList<String>();
+        Random random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            list.add((char) ('a' + random.nextInt(5)) + ":" + i);
+        }
+        List<String> expected = Observable.from(list)
+                .compose(Transformers.sort(FIRST_CHAR)).toList().toBlocking().single();
+        List<String> sorted = Observable.from(list)
+                .compose(new TransformerSortExternal<String>(FIRST_CHAR,
+                        DataSerializers.string(), 37, 3, files, 64))
+                .toList().toBlocking().single();
+        assertEquals(expected, sorted);
+        assertFalse(files.anyExist());
+    }
+
+    @Test
+    public void testEmpty() {
+        Observable.<Integer> empty()
+                .compose(Transformers.sortExternal(DataSerializers.integer(),
+                        Options.defaultInstance()))
+                .test().assertNoValues().assertCompleted();
+    }
+
+    @Test
+    public void testPublicMethodUsesRolloverEveryAsRunSize() {
+        List<Integer> list = randomIntegers(1000);
+        List<Integer> expected = new ArrayList<Integer>(list);
+        Collections.sort(expected);
+        Files files = new Files();
+        assertEquals(expected,
+                Observable.from(list)
+                        .compose(Transformers.sortExternal(DataSerializers.integer(),
+                                Options.rolloverEvery(10).fileFactory(files).build()))
+                        .toList().toBlocking().single());
+        // 100 runs then one pass merging groups of 64 and 36 runs
+        assertEquals(102, files.list.size());
+    }
+
+    @Test
+    public void testPublicMethodWithExplicitRunSize() {
+        List<Integer> list = randomIntegers(1000);
+        List<Integer> expected = new ArrayList<Integer>(list);
+        Collections.sort(expected);
+        Files files = new Files();
+        assertEquals(expected,
+                Observable.from(list)
+                        .compose(Transformers.sortExternal(DataSerializers.integer(), 250,
+                                Options.fileFactory(files).build()))
+                        .toList().toBlocking().single());
+        assertEquals(4, files.list.size());
+    }
+
+    @Test
+    public void testRolloverDisabledUsesDefaultRunSize() {
+        Files files = new Files();
+        // used to allocate an Integer.MAX_VALUE sized buffer
+        assertEquals(Arrays.asList(1, 2, 3),
+                Observable.just(3, 1, 2)
+                        .compose(Transformers.sortExternal(DataSerializers.integer(),
+                                Options.fileFactory(files).disableRollover().build()))
+                        .toList().toBlocking().single());
+        assertEquals(1, files.list.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRunSizeMustBePositive() {
+        Transformers.sortExternal(DataSerializers.integer(), 0, Options.defaultInstance());
+    }
+
+    @Test
+    public void testBackpressureAndFilesDeletedOnUnsubscribe() {
+        Files files = new Files();
+        TestSubscriber<Integer> ts = TestSubscriber.create(0);
+        Observable.range(1, 1000).map(new Func1<Integer, Integer>() {
+            @Override
+            public Integer call(Integer n) {
+                return 1001 - n;
+            }
+        }).compose(new TransformerSortExternal<Integer>(NATURAL, DataSerializers.integer(), 100,
+                64, files, 1024)).subscribe(ts);
+        ts.assertNoValues();
+        ts.requestMore(3);
+        ts.assertValues(1, 2, 3);
+        ts.assertNotCompleted();
+        assertEquals(10, files.list.size());
+        ts.unsubscribe();
+        assertFalse(files.anyExist());
+    }
+
+    @Test
+    public void testErrorDeletesFiles() {
+        Files files = new Files();
+        RuntimeException e = new RuntimeException("boo");
+        Observable.range(1, 1000).concatWith(Observable.<Integer> error(e))
+                .compose(new TransformerSortExternal<Integer>(NATURAL, DataSerializers.integer(),
+                        100, 64, files, 1024))
+                .test().assertNoValues().assertError(e);
+        assertEquals(10, files.list.size());
+        assertFalse(files.anyExist());
+    }
+
+    private static List<Integer> randomIntegers(int n) {
+        Random random = new Random(1);
+        List<Integer> list = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++) {
+            list.add(random.nextInt(n));
+        }
+        return list;
+    }
+
+    private static final class Files implements Func0<File> {
+
+        private static final AtomicInteger count = new AtomicInteger();
+        final List<File> list = new ArrayList<File>();
+
+        @Override
+        public synchronized File call() {
+            File file = new File("target/sortExternal/" + count.incrementAndGet());
+            list.add(file);
+            return file;
+        }
+
+        synchronized boolean anyExist() {
+            for (File file : list) {
+                if (file.exists()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
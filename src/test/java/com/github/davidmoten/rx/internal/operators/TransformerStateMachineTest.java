@@ -4,6 +4,7 @@ import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -14,6 +15,8 @@ import com.github.davidmoten.rx.Actions;
 import com.github.davidmoten.rx.Functions;
 import com.github.davidmoten.rx.StateMachine.Transition;
 import com.github.davidmoten.rx.Transformers;
+import com.github.davidmoten.rx.testing.TestingHelper;
+import com.github.davidmoten.rx.util.BackpressureStrategy;
 import com.github.davidmoten.rx.util.BackpressureUtils;
 
 import rx.Observable;
@@ -299,4 +302,167 @@ public class TransformerStateMachineTest {
         ts.assertNoValues();
     }
 
+
+    @Test
+    public void testDropBuffersEmissionsUntilRequested() {
+        TestSubscriber<Integer> ts = TestSubscriber.create(0);
+        Observable.range(1, 5) //
+                .compose(passThrough(BackpressureStrategy.DROP, 128)) //
+                .subscribe(ts);
+        ts.assertNoValues();
+        ts.assertNoTerminalEvent();
+        ts.requestMore(10);
+        ts.assertValues(1, 2, 3, 4, 5);
+        ts.assertCompleted();
+    }
+
+    @Test
+    public void testLatestBuffersEmissionsUntilRequested() {
+        TestSubscriber<Integer> ts = TestSubscriber.create(0);
+        Observable.range(1, 5) //
+                .compose(passThrough(BackpressureStrategy.LATEST, 128)) //
+                .subscribe(ts);
+        ts.assertNoValues();
+        ts.assertNoTerminalEvent();
+        ts.requestMore(10);
+        ts.assertValues(1, 2, 3, 4, 5);
+        ts.assertCompleted();
+    }
+
+    @Test
+    public void testDropDropsEmissionsOfTransitionBeyondBuffer() {
+        TestSubscriber<Integer> ts = TestSubscriber.create(0);
+        Observable.just(200) //
+                .compose(emitRange(BackpressureStrategy.DROP)) //
+                .subscribe(ts);
+        ts.requestMore(1000);
+        ts.assertValueCount(128);
+        assertEquals(Observable.range(1, 128).toList().toBlocking().single(),
+                ts.getOnNextEvents());
+        ts.assertCompleted();
+    }
+
+    @Test
+    public void testLatestKeepsNewestEmissionOfTransitionBeyondBufferAndCompletesAfterIt() {
+        TestSubscriber<Integer> ts = TestSubscriber.create(0);
+        Observable.just(200) //
+                .compose(emitRange(BackpressureStrategy.LATEST)) //
+                .subscribe(ts);
+        ts.assertNoTerminalEvent();
+        ts.requestMore(128);
+        ts.assertValueCount(128);
+        ts.assertNoTerminalEvent();
+        ts.requestMore(1);
+        assertEquals(200, (int) ts.getOnNextEvents().get(128));
+        ts.assertCompleted();
+    }
+
+    @Test
+    public void testDropAcceptsEmissionsOfTransitionWithDemand() {
+        TestSubscriber<Integer> ts = TestSubscriber.create(150);
+        Observable.just(200) //
+                .compose(emitRange(BackpressureStrategy.DROP)) //
+                .subscribe(ts);
+        // 150 requested and 128 more buffered
+        ts.requestMore(1000);
+        ts.assertValueCount(200);
+        ts.assertCompleted();
+    }
+
+    @Test
+    public void testUpstreamErrorEmittedAfterQueuedEmissions() {
+        RuntimeException ex = new RuntimeException("boo");
+        TestSubscriber<Integer> ts = TestSubscriber.create(0);
+        Observable.range(1, 3).concatWith(Observable.<Integer> error(ex)) //
+                .compose(passThrough(BackpressureStrategy.BUFFER, 128)) //
+                .subscribe(ts);
+        ts.assertNoValues();
+        ts.assertNoTerminalEvent();
+        ts.requestMore(2);
+        ts.assertValues(1, 2);
+        ts.assertNoTerminalEvent();
+        ts.requestMore(1);
+        ts.assertValues(1, 2, 3);
+        ts.assertError(ex);
+    }
+
+    @Test
+    public void testEmitterUnsubscribeCompletesAfterQueuedEmissions() {
+        final AtomicInteger count = new AtomicInteger();
+        Func3<Integer, Integer, Subscriber<Integer>, Integer> transition = new Func3<Integer, Integer, Subscriber<Integer>, Integer>() {
+            @Override
+            public Integer call(Integer state, Integer t, Subscriber<Integer> subscriber) {
+                subscriber.onNext(t);
+                if (t == 3) {
+                    subscriber.unsubscribe();
+                }
+                return state;
+            }
+        };
+        TestSubscriber<Integer> ts = TestSubscriber.create(0);
+        Observable.range(1, 10) //
+                .doOnNext(Actions.increment1(count)) //
+                .compose(Transformers.stateMachine(Functions.constant0(0), transition,
+                        Functions.alwaysTrue2(), BackpressureStrategy.DROP, 128)) //
+                .subscribe(ts);
+        ts.assertNoTerminalEvent();
+        assertEquals(3, count.get());
+        ts.requestMore(10);
+        ts.assertValues(1, 2, 3);
+        ts.assertCompleted();
+        ts.assertUnsubscribed();
+    }
+
+    @Test
+    public void testReplenishesUpstreamInBatches() {
+        final List<Long> requests = new ArrayList<Long>();
+        Observable.range(1, 100) //
+                .doOnRequest(new Action1<Long>() {
+                    @Override
+                    public void call(Long n) {
+                        requests.add(n);
+                    }
+                }) //
+                .compose(passThrough(BackpressureStrategy.BUFFER, 8)) //
+                .to(TestingHelper.<Integer> test()) //
+                .assertValueCount(100) //
+                .assertCompleted();
+        // 8 then 6 as each 3/4 of initialRequest transitions finish
+        List<Long> expected = new ArrayList<Long>();
+        expected.add(8L);
+        for (int i = 0; i < 16; i++) {
+            expected.add(6L);
+        }
+        assertEquals(expected, requests);
+    }
+
+    private static Transformer<Integer, Integer> passThrough(
+            BackpressureStrategy backpressureStrategy, int initialRequest) {
+        Func3<Integer, Integer, Subscriber<Integer>, Integer> transition = new Func3<Integer, Integer, Subscriber<Integer>, Integer>() {
+            @Override
+            public Integer call(Integer state, Integer t, Subscriber<Integer> subscriber) {
+                subscriber.onNext(t);
+                return state;
+            }
+        };
+        return Transformers.stateMachine(Functions.constant0(0), transition,
+                Functions.alwaysTrue2(), backpressureStrategy, initialRequest);
+    }
+
+    // emits 1 to n for each n
+    private static Transformer<Integer, Integer> emitRange(
+            BackpressureStrategy backpressureStrategy) {
+        Func3<Integer, Integer, Subscriber<Integer>, Integer> transition = new Func3<Integer, Integer, Subscriber<Integer>, Integer>() {
+            @Override
+            public Integer call(Integer state, Integer n, Subscriber<Integer> subscriber) {
+                for (int i = 1; i <= n; i++) {
+                    subscriber.onNext(i);
+                }
+                return state;
+            }
+        };
+        return Transformers.stateMachine(Functions.constant0(0), transition,
+                Functions.alwaysTrue2(), backpressureStrategy, 128);
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,41 @@
+package com.github.davidmoten.rx.perf;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import rx.Subscriber;
+
+/**
+ * Requests nothing until {@link #requestAll()} is called so that a buffering
+ * operator upstream holds every item before any is emitted.
+ */
+public class DeferredRequestSubscriber<T> extends Subscriber<T> {
+
+    private final Blackhole bh;
+
+    public DeferredRequestSubscriber(Blackhole bh) {
+        this.bh = bh;
+    }
+
+    @Override
+    public void onStart() {
+        request(0);
+    }
+
+    public void requestAll() {
+        request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onCompleted() {
+    }
+
+    @Override
+    public void onError(Throwable e) {
+    }
+
+    @Override
+    public void onNext(T t) {
+        bh.consume(t);
+    }
+
+}